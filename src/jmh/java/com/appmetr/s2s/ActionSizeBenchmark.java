@@ -0,0 +1,71 @@
+package com.appmetr.s2s;
+
+import com.appmetr.s2s.events.Action;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Size estimation done by AppMetr.track() for every action, against the former toString() based estimate
+ * and the exact serialized size. Run with -prof gc to see allocation per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ActionSizeBenchmark {
+
+    @Param({"4", "16"})
+    int properties;
+
+    List<Action> actions;
+    int next;
+
+    @Setup
+    public void setUp() {
+        actions = BenchmarkActions.create(1024, properties);
+    }
+
+    Action next() {
+        return actions.get(next++ & 1023);
+    }
+
+    @Benchmark
+    public int calcApproximateSize() {
+        return next().calcApproximateSize();
+    }
+
+    @Benchmark
+    public int toStringSize() {
+        return toStringSize(next());
+    }
+
+    @Benchmark
+    public int serializedSize() throws JsonProcessingException {
+        return SerializationUtils.objectMapper.writeValueAsBytes(next()).length;
+    }
+
+    static int toStringSize(Action action) {
+        int size = 40 + (40 * action.getProperties().size());
+
+        size += stringLength(action.getAction());
+        size += stringLength(String.valueOf(action.getTimestamp()));
+        size += stringLength(action.getUserId());
+
+        for (Map.Entry<String, Object> entry : action.getProperties().entrySet()) {
+            size += stringLength(entry.getKey());
+            size += stringLength(entry.getValue() != null ? entry.getValue().toString() : null);
+        }
+
+        return 8 + size + 8;
+    }
+
+    static int stringLength(String str) {
+        return str == null ? 0 : str.length() * Character.BYTES + 24 + 16;
+    }
+}
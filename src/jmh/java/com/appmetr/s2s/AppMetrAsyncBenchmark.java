@@ -0,0 +1,90 @@
+package com.appmetr.s2s;
+
+import com.appmetr.s2s.events.Action;
+import com.appmetr.s2s.persister.NonBlockingHeapStorage;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bursts of 1024 actions tracked through AppMetrAsync, each waiting until its actions reach AppMetr,
+ * against the former executor based implementation. Run with -prof gc to see allocation per action.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AppMetrAsyncBenchmark {
+    static final int BURST = 1024;
+
+    @Param({"AppMetrAsync", "ExecutorAppMetrAsync"})
+    String implementation;
+
+    AppMetr appMetr;
+    AppMetrAsync appMetrAsync;
+    ExecutorAppMetrAsync executorAppMetrAsync;
+
+    @Setup
+    public void setUp() {
+        appMetr = new AppMetr("benchmark", "http://localhost");
+        appMetr.setBatchStorage(new NonBlockingHeapStorage(Long.MAX_VALUE));
+        appMetr.setBatchSender((uri, token, batch) -> true);
+        appMetr.start();
+
+        if ("AppMetrAsync".equals(implementation)) {
+            appMetrAsync = new AppMetrAsync(appMetr, 16 * BURST);
+        } else {
+            executorAppMetrAsync = new ExecutorAppMetrAsync(appMetr);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (appMetrAsync != null) {
+            appMetrAsync.stop().join();
+        } else {
+            executorAppMetrAsync.stop();
+            appMetr.hardStop();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Actions {
+        List<Action> actions = BenchmarkActions.create(BURST, 4);
+    }
+
+    @Benchmark
+    @Threads(1)
+    @OperationsPerInvocation(BURST)
+    public void track_1thread(Actions actions) {
+        trackBurst(actions);
+    }
+
+    @Benchmark
+    @Threads(4)
+    @OperationsPerInvocation(BURST)
+    public void track_4threads(Actions actions) {
+        trackBurst(actions);
+    }
+
+    void trackBurst(Actions actions) {
+        if (appMetrAsync != null) {
+            for (Action action : actions.actions) {
+                appMetrAsync.track(action);
+            }
+            while (appMetrAsync.getQueuedActions() > 0) {
+                Thread.yield();
+            }
+        } else {
+            CompletableFuture<Boolean> last = null;
+            for (Action action : actions.actions) {
+                last = executorAppMetrAsync.track(action);
+            }
+            last.join();
+        }
+    }
+}
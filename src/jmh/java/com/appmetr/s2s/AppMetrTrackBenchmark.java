@@ -0,0 +1,90 @@
+package com.appmetr.s2s;
+
+import com.appmetr.s2s.events.Action;
+import com.appmetr.s2s.metrics.InMemoryMetrics;
+import com.appmetr.s2s.persister.NonBlockingHeapStorage;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AppMetr.track() including batch cutting and encoding by the tracking threads, under contention.
+ * Uploading is instant, so the storage never fills up.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AppMetrTrackBenchmark {
+
+    @Param({"AppMetr", "ConcurrentAppMetr"})
+    String implementation;
+
+    @Param({"0", "2"})
+    int encoderThreads;
+
+    /**
+     * Non-zero compresses actions as they are tracked, AppMetr only
+     */
+    @Param({"0"})
+    long targetBatchBytes;
+
+    @Param({"false"})
+    boolean inMemoryMetrics;
+
+    AppMetr appMetr;
+
+    @Setup
+    public void setUp() {
+        appMetr = "ConcurrentAppMetr".equals(implementation)
+                ? new ConcurrentAppMetr("benchmark", "http://localhost")
+                : new AppMetr("benchmark", "http://localhost");
+        appMetr.setBatchStorage(new NonBlockingHeapStorage(Long.MAX_VALUE));
+        appMetr.setBatchSender((uri, token, batch) -> true);
+        appMetr.setEncoderThreads(encoderThreads);
+        if (inMemoryMetrics) {
+            appMetr.setMetrics(new InMemoryMetrics());
+        }
+        if (targetBatchBytes > 0) {
+            appMetr.setTargetBatchBytes(targetBatchBytes);
+        }
+        appMetr.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        appMetr.hardStop();
+    }
+
+    @State(Scope.Thread)
+    public static class Actions {
+        List<Action> actions = BenchmarkActions.create(1024, 4);
+        int next;
+
+        Action next() {
+            return actions.get(next++ & 1023);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean track_1thread(Actions actions) throws IOException, InterruptedException {
+        return appMetr.track(actions.next());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean track_4threads(Actions actions) throws IOException, InterruptedException {
+        return appMetr.track(actions.next());
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public boolean track_maxThreads(Actions actions) throws IOException, InterruptedException {
+        return appMetr.track(actions.next());
+    }
+}
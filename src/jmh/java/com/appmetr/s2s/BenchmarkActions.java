@@ -0,0 +1,65 @@
+package com.appmetr.s2s;
+
+import com.appmetr.s2s.events.Action;
+import com.appmetr.s2s.events.Event;
+import com.appmetr.s2s.events.Events;
+import com.appmetr.s2s.events.Payment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Game server like mix of actions: mostly events with a few properties, some payments and level/ab group updates
+ */
+public class BenchmarkActions {
+    private static final String[] EVENTS = {"battle/start", "battle/finish", "shop/open", "quest/complete", "chest/open"};
+    private static final String[] PROCESSORS = {"google_play", "app_store", "steam"};
+
+    public static List<Action> create(int actions, int properties) {
+        final Random random = new Random(actions * 31L + properties);
+        final List<Action> result = new ArrayList<>(actions);
+        for (int i = 0; i < actions; i++) {
+            result.add(create(random, properties));
+        }
+        return result;
+    }
+
+    public static Action create(Random random, int properties) {
+        final String userId = "user" + random.nextInt(100_000);
+        final int kind = random.nextInt(100);
+
+        final Action action;
+        if (kind < 5) {
+            action = new Payment("order" + random.nextLong(), "trans" + random.nextLong(),
+                    PROCESSORS[random.nextInt(PROCESSORS.length)], "USD", String.valueOf(random.nextInt(10_000) / 100.0),
+                    "gold", String.valueOf(random.nextInt(1000)), "US", random.nextBoolean());
+        } else if (kind < 8) {
+            action = Events.trackLevel(userId, random.nextInt(100));
+        } else if (kind < 10) {
+            action = Events.trackAbGroup(userId, Arrays.asList("exp" + random.nextInt(10) + ":A", "exp" + random.nextInt(10) + ":B"));
+        } else {
+            action = new Event(EVENTS[random.nextInt(EVENTS.length)]);
+        }
+
+        action.setUserId(userId);
+        for (int p = 0; p < properties; p++) {
+            switch (p % 4) {
+                case 0:
+                    action.getProperties().put("level", random.nextInt(100));
+                    break;
+                case 1:
+                    action.getProperties().put("location" + p, "zone" + random.nextInt(50));
+                    break;
+                case 2:
+                    action.getProperties().put("gold" + p, random.nextInt(1_000_000));
+                    break;
+                default:
+                    action.getProperties().put("ratio" + p, random.nextDouble());
+            }
+        }
+
+        return action;
+    }
+}
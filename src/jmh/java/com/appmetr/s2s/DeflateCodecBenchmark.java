@@ -0,0 +1,57 @@
+package com.appmetr.s2s;
+
+import com.appmetr.s2s.events.Action;
+import com.appmetr.s2s.persister.GzippedJsonBatchFactory;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Size/CPU tradeoff of compression settings. The compressed size of each setting is printed on setup.
+ * Run with: mvn -Pbenchmark test-compile exec:exec -Djmh.args=DeflateCodecBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeflateCodecBenchmark {
+
+    @Param({"1", "6", "9"})
+    int level;
+
+    @Param({"0", "1"})
+    int strategy;
+
+    @Param({"1000"})
+    int batchSize;
+
+    @Param({"8192"})
+    int bufferSize;
+
+    GzippedJsonBatchFactory batchFactory;
+    List<Action> actions;
+
+    @Setup
+    public void setUp() {
+        batchFactory = new GzippedJsonBatchFactory(new DeflateCodec(level, strategy == 0 ? Deflater.DEFAULT_STRATEGY : Deflater.FILTERED, bufferSize));
+        actions = BenchmarkActions.create(batchSize, 4);
+
+        final int compressed = batchFactory.createBatch(actions, 1, "server").getBytes().length;
+        final int raw = new GzippedJsonBatchFactory(new DeflateCodec(Deflater.NO_COMPRESSION)).createBatch(actions, 1, "server").getBytes().length;
+        System.out.printf("%nlevel=%d strategy=%d: %d -> %d bytes (%.1f%%)%n", level, strategy, raw, compressed, compressed * 100.0 / raw);
+    }
+
+    @TearDown
+    public void tearDown() {
+        batchFactory.getCodec().close();
+    }
+
+    @Benchmark
+    public BinaryBatch createBatch() {
+        return batchFactory.createBatch(actions, 1, "server");
+    }
+}
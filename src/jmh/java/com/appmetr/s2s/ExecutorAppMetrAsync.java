@@ -0,0 +1,34 @@
+package com.appmetr.s2s;
+
+import com.appmetr.s2s.events.Action;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Baseline for {@link AppMetrAsyncBenchmark}: AppMetrAsync as it was before the ring buffer,
+ * a task per action on an unbounded single thread executor
+ */
+public class ExecutorAppMetrAsync {
+    private final AppMetr appMetr;
+    private final ExecutorService executorService = Executors.newSingleThreadExecutor(r -> new Thread(r, "appmetr-async"));
+
+    public ExecutorAppMetrAsync(AppMetr appMetr) {
+        this.appMetr = appMetr;
+    }
+
+    public CompletableFuture<Boolean> track(Action newAction) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return appMetr.track(newAction);
+            } catch (Throwable t) {
+                throw new RuntimeException(t);
+            }
+        }, executorService);
+    }
+
+    public void stop() {
+        executorService.shutdown();
+    }
+}
@@ -0,0 +1,42 @@
+package com.appmetr.s2s;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Typed batch dumps as used by migrations. Run with -prof gc to see allocation per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationUtilsBenchmark {
+
+    @Param({"10", "1000"})
+    int batchSize;
+
+    @Param({"4"})
+    int properties;
+
+    Batch batch;
+    byte[] typedBytes;
+
+    @Setup
+    public void setUp() {
+        batch = new Batch("server", 1, BenchmarkActions.create(batchSize, properties));
+        typedBytes = SerializationUtils.serializeJsonGzip(batch, true);
+    }
+
+    @Benchmark
+    public byte[] serializeTyped() {
+        return SerializationUtils.serializeJsonGzip(batch, true);
+    }
+
+    @Benchmark
+    public Batch deserializeJsonGzip() {
+        return SerializationUtils.deserializeJsonGzip(typedBytes);
+    }
+}
@@ -0,0 +1,133 @@
+package com.appmetr.s2s.persister;
+
+import com.appmetr.s2s.BinaryBatch;
+import com.appmetr.s2s.events.Action;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Write throughput of persistent storages, alone and together with reading and removing every batch. Uses tmpfs by default to measure the storage overhead rather than the disk,
+ * pass -p directory=... to measure a real disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileStorageBenchmark {
+    static final Collection<Action> actions = Collections.emptyList();
+
+    @Param({"FileStorage", "BufferedFileStorage", "SegmentedLogStorage", "HybridStorage"})
+    String implementation;
+
+    @Param({"/dev/shm"})
+    String directory;
+
+    @Param({"16384"})
+    int batchBytes;
+
+    /**
+     * NONE, EVERY_64, PERIODIC_100MS or GROUP_COMMIT. fsync is free on tmpfs, pass a disk directory to compare them
+     */
+    @Param({"NONE"})
+    String durability;
+
+    /**
+     * Save threads of BufferedFileStorage
+     */
+    @Param({"1"})
+    int saveThreads;
+
+    Path path;
+    BatchStorage storage;
+    BatchFactory batchFactory;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        final Path parent = Paths.get(directory);
+        path = Files.createTempDirectory(Files.isDirectory(parent) ? parent : Paths.get(System.getProperty("java.io.tmpdir")), "appmetr-bench");
+
+        switch (implementation) {
+            case "BufferedFileStorage":
+                final FileStorage bufferedStorage = new FileStorage(path);
+                bufferedStorage.setDurabilityPolicy(durabilityPolicy());
+                storage = new BufferedFileStorage(bufferedStorage, new HeapStorage(64L * batchBytes), saveThreads);
+                break;
+            case "SegmentedLogStorage":
+                final SegmentedLogStorage segmentedLogStorage = new SegmentedLogStorage(path);
+                segmentedLogStorage.setDurabilityPolicy(durabilityPolicy());
+                storage = segmentedLogStorage;
+                break;
+            case "HybridStorage":
+                final SegmentedLogStorage spillStorage = new SegmentedLogStorage(path);
+                spillStorage.setDurabilityPolicy(durabilityPolicy());
+                storage = new HybridStorage(spillStorage, 64L * batchBytes);
+                break;
+            default:
+                final FileStorage fileStorage = new FileStorage(path);
+                fileStorage.setDurabilityPolicy(durabilityPolicy());
+                storage = fileStorage;
+        }
+
+        final byte[] bytes = new byte[batchBytes];
+        batchFactory = (actions, batchId) -> new BinaryBatch(batchId, bytes);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException, InterruptedException {
+        storage.shutdown();
+        if (storage instanceof Closeable) {
+            ((Closeable) storage).close();
+        }
+        try (Stream<Path> files = Files.walk(path)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    DurabilityPolicy durabilityPolicy() {
+        switch (durability) {
+            case "EVERY_64":
+                return DurabilityPolicy.everyBatches(64);
+            case "PERIODIC_100MS":
+                return DurabilityPolicy.periodic(Duration.ofMillis(100));
+            case "GROUP_COMMIT":
+                return DurabilityPolicy.groupCommit();
+            default:
+                return DurabilityPolicy.NONE;
+        }
+    }
+
+    @Benchmark
+    public boolean store() throws IOException, InterruptedException {
+        return storage.store(actions, batchFactory);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean store_4threads() throws IOException, InterruptedException {
+        return storage.store(actions, batchFactory);
+    }
+
+    /**
+     * Steady state of an uploading AppMetr: every stored batch is read and removed
+     */
+    @Benchmark
+    public BinaryBatch storeGetRemove() throws IOException, InterruptedException {
+        storage.store(actions, batchFactory);
+        final BinaryBatch binaryBatch = storage.get();
+        storage.remove();
+        return binaryBatch;
+    }
+}
@@ -0,0 +1,68 @@
+package com.appmetr.s2s.persister;
+
+import com.appmetr.s2s.BinaryBatch;
+import com.appmetr.s2s.events.Action;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Time to open a {@link FileStorage} with a backlog of batch files left by a previous run.
+ * {@code recoveryCheckBatches=1000000} verifies every batch file on startup for comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileStorageStartupBenchmark {
+    static final Collection<Action> actions = Collections.emptyList();
+
+    @Param({"1000", "10000", "100000"})
+    int backlog;
+
+    @Param({"64", "1000000"})
+    int recoveryCheckBatches;
+
+    @Param({"/dev/shm"})
+    String directory;
+
+    @Param({"16384"})
+    int batchBytes;
+
+    Path path;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() throws IOException, InterruptedException {
+        final Path parent = Paths.get(directory);
+        path = Files.createTempDirectory(Files.isDirectory(parent) ? parent : Paths.get(System.getProperty("java.io.tmpdir")), "appmetr-bench");
+
+        final FileStorage fileStorage = new FileStorage(path);
+        fileStorage.store(actions, (actions, batchId) -> new BinaryBatch(batchId, new byte[batchBytes]));
+        final Path firstBatch = fileStorage.batchFilePath(0L, FileStorage.BATCH_FILE_NAME_PREFIX);
+        for (long id = 1; id < backlog; id++) {
+            Files.copy(firstBatch, fileStorage.batchFilePath(id, FileStorage.BATCH_FILE_NAME_PREFIX));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(path)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public FileStorage open() throws IOException {
+        return new FileStorage(path, recoveryCheckBatches);
+    }
+}
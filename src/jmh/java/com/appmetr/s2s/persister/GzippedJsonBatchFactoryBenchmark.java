@@ -0,0 +1,48 @@
+package com.appmetr.s2s.persister;
+
+import com.appmetr.s2s.BenchmarkActions;
+import com.appmetr.s2s.BinaryBatch;
+import com.appmetr.s2s.events.Action;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GzippedJsonBatchFactoryBenchmark {
+
+    @Param({"10", "100", "1000"})
+    int batchSize;
+
+    @Param({"0", "4", "16"})
+    int properties;
+
+    List<Action> actions;
+    byte[] encodedActions;
+
+    @Setup
+    public void setUp() {
+        actions = BenchmarkActions.create(batchSize, properties);
+        encodedActions = GzippedJsonBatchFactory.instance.encodeActions(actions);
+    }
+
+    @Benchmark
+    public BinaryBatch createBatch() {
+        return GzippedJsonBatchFactory.instance.createBatch(actions, 1, "server");
+    }
+
+    @Benchmark
+    public byte[] encodeActions() {
+        return GzippedJsonBatchFactory.instance.encodeActions(actions);
+    }
+
+    @Benchmark
+    public BinaryBatch createPreEncodedBatch() {
+        return GzippedJsonBatchFactory.instance.createBatch(encodedActions, 1, "server");
+    }
+}
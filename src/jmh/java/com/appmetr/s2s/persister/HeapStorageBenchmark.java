@@ -0,0 +1,93 @@
+package com.appmetr.s2s.persister;
+
+import com.appmetr.s2s.BinaryBatch;
+import com.appmetr.s2s.events.Action;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Control;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Store/get/remove cycles without encoding: by a single thread and with producers and the consumer running concurrently.
+ * TwoLockHeapStorage is the opt-in alternative to the single lock heap storages, its gains need several cores.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HeapStorageBenchmark {
+    static final Collection<Action> actions = Collections.emptyList();
+
+    @Param({"HeapStorage", "NonBlockingHeapStorage", "TwoLockHeapStorage"})
+    String implementation;
+
+    @Param({"1024"})
+    int batchBytes;
+
+    @Param({"1048576"})
+    long maxBytes;
+
+    BatchStorage storage;
+    BatchFactory batchFactory;
+
+    @Setup
+    public void setUp() {
+        switch (implementation) {
+            case "HeapStorage":
+                storage = new HeapStorage(maxBytes);
+                break;
+            case "TwoLockHeapStorage":
+                storage = new TwoLockHeapStorage(maxBytes);
+                break;
+            default:
+                storage = new NonBlockingHeapStorage(maxBytes);
+        }
+        final byte[] bytes = new byte[batchBytes];
+        batchFactory = (actions, batchId) -> new BinaryBatch(batchId, bytes);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        while (!storage.isEmpty()) {
+            storage.remove();
+        }
+    }
+
+    @Benchmark
+    @Group("cycle")
+    public BinaryBatch cycle() throws InterruptedException, IOException {
+        storage.store(actions, batchFactory);
+        final BinaryBatch binaryBatch = storage.get();
+        storage.remove();
+        return binaryBatch;
+    }
+
+    @Benchmark
+    @Group("producersConsumer")
+    @GroupThreads(3)
+    public boolean store() throws InterruptedException, IOException {
+        return storage.store(actions, batchFactory);
+    }
+
+    @Benchmark
+    @Group("producersConsumer")
+    @GroupThreads(1)
+    public void getAndRemove(Control control) throws IOException, InterruptedException {
+        if (control.stopMeasurement) {
+            // producers blocked on a full storage have to finish the iteration too
+            while (!storage.isEmpty()) {
+                storage.remove();
+            }
+            return;
+        }
+        if (!storage.isEmpty()) {
+            storage.get();
+            storage.remove();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.appmetr.s2s.persister;
+
+import com.appmetr.s2s.BinaryBatch;
+import com.appmetr.s2s.events.Action;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Throughput of draining a backlog of stored batches the way the upload thread does: get, read the batch, remove.
+ * Reading the batch means summing its bytes, so copied and mapped batches both touch all the data.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StorageDrainBenchmark {
+    static final Collection<Action> actions = Collections.emptyList();
+    static final int BACKLOG = 2000;
+
+    @Param({"FileStorage", "SegmentedLogStorage", "SegmentedLogStorage-mmap"})
+    String implementation;
+
+    @Param({"/dev/shm"})
+    String directory;
+
+    @Param({"16384"})
+    int batchBytes;
+
+    Path path;
+    BatchStorage storage;
+    BatchFactory batchFactory;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() throws IOException {
+        final Path parent = Paths.get(directory);
+        path = Files.createTempDirectory(Files.isDirectory(parent) ? parent : Paths.get(System.getProperty("java.io.tmpdir")), "appmetr-bench");
+
+        switch (implementation) {
+            case "SegmentedLogStorage":
+                storage = new SegmentedLogStorage(path);
+                break;
+            case "SegmentedLogStorage-mmap":
+                final SegmentedLogStorage segmentedLogStorage = new SegmentedLogStorage(path);
+                segmentedLogStorage.setMemoryMapped(true);
+                storage = segmentedLogStorage;
+                break;
+            default:
+                storage = new FileStorage(path);
+        }
+
+        final byte[] bytes = new byte[batchBytes];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        batchFactory = (actions, batchId) -> new BinaryBatch(batchId, bytes);
+    }
+
+    @Setup(Level.Invocation)
+    public void fillBacklog() throws IOException, InterruptedException {
+        for (int i = 0; i < BACKLOG; i++) {
+            storage.store(actions, batchFactory);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException {
+        storage.shutdown();
+        if (storage instanceof Closeable) {
+            ((Closeable) storage).close();
+        }
+        try (Stream<Path> files = Files.walk(path)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BACKLOG)
+    public void drain(Blackhole blackhole) throws IOException, InterruptedException {
+        for (int i = 0; i < BACKLOG; i++) {
+            final BinaryBatch binaryBatch = storage.get();
+            blackhole.consume(sum(binaryBatch.getByteBuffer()));
+            storage.remove();
+            binaryBatch.release();
+        }
+    }
+
+    static long sum(ByteBuffer buffer) {
+        long sum = 0;
+        while (buffer.remaining() >= 8) {
+            sum += buffer.getLong();
+        }
+        while (buffer.hasRemaining()) {
+            sum += buffer.get();
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,110 @@
+package com.appmetr.s2s.sender;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.client.WireMock;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+
+/**
+ * Upload throughput against a local WireMock collector, a new connection per batch versus reused keep-alive connections.
+ * Loopback hides most of the handshake cost, so the difference grows with the real round trip time and TLS.
+ * {@code sendAsync_16inFlight} keeps 16 uploads of the NIO sender going from a single thread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HttpBatchSenderBenchmark {
+    static final String PATH = "/api";
+
+    @Param({"HttpBatchSender", "KeepAliveHttpBatchSender", "NioHttpBatchSender"})
+    String implementation;
+
+    @Param({"16384"})
+    int batchBytes;
+
+    /**
+     * Simulated collector round trip, loopback alone is bound by WireMock itself
+     */
+    @Param({"0", "20"})
+    int responseDelayMs;
+
+    WireMockServer wireMockServer;
+    String url;
+    HttpBatchSender sender;
+    byte[] batch;
+
+    @Setup
+    public void setUp() {
+        wireMockServer = new WireMockServer(options().dynamicPort().containerThreads(32).disableRequestJournal());
+        wireMockServer.start();
+        url = wireMockServer.baseUrl() + PATH;
+        new WireMock(wireMockServer.port()).register(post(urlPathEqualTo(PATH))
+                .willReturn(okJson("{\"response\": {\"status\": \"OK\"}}").withFixedDelay(responseDelayMs)));
+
+        switch (implementation) {
+            case "KeepAliveHttpBatchSender":
+                sender = new KeepAliveHttpBatchSender();
+                break;
+            case "NioHttpBatchSender":
+                sender = new NioHttpBatchSender();
+                break;
+            default:
+                sender = new HttpBatchSender();
+        }
+        batch = new byte[batchBytes];
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (sender instanceof Closeable) {
+            try {
+                ((Closeable) sender).close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        wireMockServer.stop();
+    }
+
+    @Benchmark
+    public boolean send_1thread() {
+        return sender.send(url, "benchmark", batch);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean send_4threads() {
+        return sender.send(url, "benchmark", batch);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(16)
+    public boolean sendAsync_16inFlight() {
+        if (!(sender instanceof AsyncBatchSender)) {
+            boolean sent = true;
+            for (int i = 0; i < 16; i++) {
+                sent &= sender.send(url, "benchmark", batch);
+            }
+            return sent;
+        }
+
+        final CompletableFuture<?>[] results = new CompletableFuture<?>[16];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = ((AsyncBatchSender) sender).sendAsync(url, "benchmark", ByteBuffer.wrap(batch));
+        }
+        CompletableFuture.allOf(results).join();
+        return true;
+    }
+}
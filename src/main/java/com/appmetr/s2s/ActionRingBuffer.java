@@ -0,0 +1,101 @@
+package com.appmetr.s2s;
+
+import com.appmetr.s2s.events.Action;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue of actions for many producers and a single consumer. Producers claim a slot
+ * by advancing the tail and publish the action into it, the consumer takes published actions from the head
+ * in claiming order. Offering allocates nothing.
+ */
+public class ActionRingBuffer {
+    protected final AtomicReferenceArray<Action> slots;
+    protected final int mask;
+    protected final AtomicLong tail = new AtomicLong();
+    protected final AtomicLong head = new AtomicLong();
+
+    /**
+     * @param capacity Rounded up to a power of two
+     */
+    public ActionRingBuffer(int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Capacity must be positive and not exceed 2^30: " + capacity);
+        }
+
+        final int size = Integer.highestOneBit(capacity - 1) << 1;
+        slots = new AtomicReferenceArray<>(Math.max(size, 1));
+        mask = slots.length() - 1;
+    }
+
+    /**
+     * @return {@code false} if the buffer is full
+     */
+    public boolean offer(Action action) {
+        long position;
+        do {
+            position = tail.get();
+            if (position - head.get() >= slots.length()) {
+                return false;
+            }
+        } while (!tail.compareAndSet(position, position + 1));
+
+        slots.lazySet((int) position & mask, action);
+        return true;
+    }
+
+    /**
+     * Moves published actions to the collection, stops at a slot claimed but not yet published. Consumer only.
+     *
+     * @return number of moved actions
+     */
+    public int drainTo(Collection<Action> actions, int maxActions) {
+        long position = head.get();
+        int drained = 0;
+        while (drained < maxActions) {
+            final int index = (int) position & mask;
+            final Action action = slots.get(index);
+            if (action == null) {
+                break;
+            }
+            slots.lazySet(index, null);
+            actions.add(action);
+            position++;
+            drained++;
+        }
+        // frees the slots for producers after they are cleared
+        head.lazySet(position);
+        return drained;
+    }
+
+    /**
+     * @return number of claimed slots, including ones not yet published
+     */
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public boolean isEmpty() {
+        return tail.get() == head.get();
+    }
+
+    public int capacity() {
+        return slots.length();
+    }
+
+    /**
+     * @return number of actions ever offered, the position the next claimed slot has
+     */
+    public long getTail() {
+        return tail.get();
+    }
+
+    /**
+     * @return number of actions ever drained
+     */
+    public long getHead() {
+        return head.get();
+    }
+}
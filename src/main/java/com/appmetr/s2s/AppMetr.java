@@ -1,16 +1,31 @@
 package com.appmetr.s2s;
 
 import com.appmetr.s2s.events.Action;
+import com.appmetr.s2s.metrics.AppMetrMetrics;
+import com.appmetr.s2s.metrics.BatchTimeline;
+import com.appmetr.s2s.metrics.BatchTracer;
+import com.appmetr.s2s.metrics.UploadWorkerStats;
 import com.appmetr.s2s.persister.*;
+import com.appmetr.s2s.sender.AsyncBatchSender;
 import com.appmetr.s2s.sender.HttpBatchSender;
 import com.appmetr.s2s.sender.BatchSender;
+import com.appmetr.s2s.sender.FixedDelayRetryPolicy;
+import com.appmetr.s2s.sender.RetryPolicy;
+import com.appmetr.s2s.sender.SendResult;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.time.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class AppMetr {
     private static final Logger log = LoggerFactory.getLogger(AppMetr.class);
@@ -23,20 +38,40 @@ public class AppMetr {
     protected BatchStorage batchStorage = new HeapStorage(HeapStorage.DEFAULT_MAX_BYTES);
     protected BatchSender batchSender = new HttpBatchSender();
     protected BatchFactoryServerId batchFactory = GzippedJsonBatchFactory.instance;
+    protected RetryPolicy retryPolicy;
+    // the set policy or the default one, created on start
+    protected RetryPolicy uploadRetryPolicy;
+    protected AppMetrMetrics metrics = AppMetrMetrics.NOOP;
+    protected BatchTracer batchTracer;
 
     protected int maxBatchActions = 1000;
     protected long maxBatchBytes = 1024 * 1024;
+    protected long targetBatchBytes;
     protected Duration flushPeriod = Duration.ofMinutes(1);
     protected Duration readRetryTimeout = Duration.ofSeconds(3);
     protected Duration failedUploadTimeout = Duration.ofSeconds(1);
+    protected int encoderThreads;
+    protected int maxPendingBatches;
+    protected int maxInFlightUploads = 1;
+    protected int uploadWorkers = 1;
+    protected Duration uploadLeaseTime = BatchClaims.DEFAULT_LEASE_TIME;
 
     protected volatile boolean stopped = true;
     protected volatile boolean hardStop;
     protected volatile boolean softStop;
+    // set by stop() once the last batch is stored, an empty storage before that doesn't end uploading
+    protected volatile boolean lastBatchStored;
     protected long actionsBytes;
-    protected Instant lastFlushTime;
+    protected volatile Instant lastFlushTime;
     protected ArrayList<Action> actionList = new ArrayList<>();
+    protected StreamingActionsEncoder actionsEncoder;
+    protected byte[] pendingEncodedActions;
+    protected int pendingEncodedActionsNumber;
+    protected long pendingEncodedJsonBytes;
     protected Thread uploadThread;
+    protected AsyncBatchEncoder batchEncoder;
+    protected BatchClaims batchClaims;
+    protected volatile List<UploadWorkerStats> uploadWorkerStats = Collections.emptyList();
     protected volatile Throwable lastUploadThrowable;
 
     protected AppMetr() {
@@ -83,15 +118,33 @@ public class AppMetr {
         this.maxBatchActions = maxBatchActions;
     }
 
+    /**
+     * @param maxBatchBytes Limit of serialized JSON bytes of a batch before compression, as estimated by {@link Action#calcApproximateSize()}
+     */
     public void setMaxBatchBytes(long maxBatchBytes) {
         this.maxBatchBytes = maxBatchBytes;
     }
 
+    /**
+     * @param targetBatchBytes Compressed size at which a batch is cut, replacing {@code maxBatchBytes}. Actions are
+     *                         compressed as they are tracked instead of being kept until flush, so background
+     *                         encoding is not used. Requires a {@link GzippedJsonBatchFactory}. 0 turns it off
+     */
+    public void setTargetBatchBytes(long targetBatchBytes) {
+        this.targetBatchBytes = targetBatchBytes;
+    }
+
     public synchronized int getActionsNumber() {
-        return actionList.size();
+        return actionsEncoder != null ? actionsEncoder.getActionsNumber() + pendingEncodedActionsNumber : actionList.size();
     }
 
+    /**
+     * @return estimated bytes of actions not flushed yet, compressed ones if {@code targetBatchBytes} is set
+     */
     public synchronized long getActionsBytes() {
+        if (actionsEncoder != null) {
+            return actionsEncoder.getCompressedBytes() + (pendingEncodedActions == null ? 0 : pendingEncodedActions.length);
+        }
         return actionsBytes;
     }
 
@@ -107,6 +160,86 @@ public class AppMetr {
         this.failedUploadTimeout = failedUploadTimeout;
     }
 
+    /**
+     * @param retryPolicy Policy of failed upload retries. Retries after {@code failedUploadTimeout} if not set
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * @param encoderThreads Number of threads encoding batches in background. 0 means batches are encoded
+     *                       and stored by the thread which flushes actions
+     */
+    public void setEncoderThreads(int encoderThreads) {
+        this.encoderThreads = encoderThreads;
+    }
+
+    /**
+     * @param maxPendingBatches Limit of flushed batches waiting for background encoding. Flushing blocks when
+     *                          it is reached. Twice the number of encoder threads by default
+     */
+    public void setMaxPendingBatches(int maxPendingBatches) {
+        this.maxPendingBatches = maxPendingBatches;
+    }
+
+    /**
+     * @param maxInFlightUploads Number of batches uploaded at once. More than 1 hides the round trip time of
+     *                           a remote collector but requires a storage supporting
+     *                           {@link BatchStorage#get(long)} and {@link BatchStorage#remove(long)}.
+     *                           An {@link AsyncBatchSender} keeps them in flight without a thread per upload
+     */
+    public void setMaxInFlightUploads(int maxInFlightUploads) {
+        if (maxInFlightUploads < 1) {
+            throw new IllegalArgumentException("Max in flight uploads should be positive: " + maxInFlightUploads);
+        }
+
+        this.maxInFlightUploads = maxInFlightUploads;
+    }
+
+    /**
+     * @param uploadWorkers Number of threads uploading distinct batches claimed from the storage, e.g. to drain
+     *                      a backlog of a persistent storage. More than 1 requires a storage supporting
+     *                      {@link BatchStorage#get(long)} and {@link BatchStorage#remove(long)} and a blocking sender,
+     *                      each worker has one batch in flight
+     */
+    public void setUploadWorkers(int uploadWorkers) {
+        if (uploadWorkers < 1) {
+            throw new IllegalArgumentException("Upload workers number should be positive: " + uploadWorkers);
+        }
+
+        this.uploadWorkers = uploadWorkers;
+    }
+
+    /**
+     * @param uploadLeaseTime Time an upload worker may be stuck in one send before the batch is claimed
+     *                        by another worker, the lease is renewed while the worker waits to retry
+     */
+    public void setUploadLeaseTime(Duration uploadLeaseTime) {
+        this.uploadLeaseTime = uploadLeaseTime;
+    }
+
+    /**
+     * @return throughput of each upload worker since the last start, empty with a single worker
+     */
+    public List<UploadWorkerStats> getUploadWorkerStats() {
+        return uploadWorkerStats;
+    }
+
+    /**
+     * @param metrics Receiver of tracking, flushing, encoding and upload measurements, none are kept by default
+     */
+    public void setMetrics(AppMetrMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param batchTracer Recorder of batch timelines from flush to acknowledgement, batches aren't traced by default
+     */
+    public void setBatchTracer(BatchTracer batchTracer) {
+        this.batchTracer = batchTracer;
+    }
+
     public boolean isStopped() {
         return stopped;
     }
@@ -119,13 +252,57 @@ public class AppMetr {
             throw new IllegalStateException("Appmetr is in running state");
         }
 
+        if (uploadWorkers > 1 && (maxInFlightUploads > 1 || batchSender instanceof AsyncBatchSender)) {
+            throw new IllegalStateException("Upload workers require a blocking sender with one upload in flight");
+        }
+
+        if ((maxInFlightUploads > 1 || uploadWorkers > 1) && !batchStorage.supportsRandomAccess()) {
+            throw new IllegalStateException("Several uploads at once require a storage supporting get and remove by batch id: " + batchStorage);
+        }
+
+        if (targetBatchBytes > 0 && !(batchFactory instanceof GzippedJsonBatchFactory)) {
+            throw new IllegalStateException("Target batch bytes require GzippedJsonBatchFactory: " + batchFactory);
+        }
+
+        lastUploadThrowable = null;
+        uploadRetryPolicy = retryPolicy != null ? retryPolicy : new FixedDelayRetryPolicy(failedUploadTimeout);
+        metrics.bind(batchStorage);
+        batchClaims = uploadWorkers > 1 ? new BatchClaims(batchStorage, uploadLeaseTime) : null;
+        if (batchStorage instanceof BufferedFileStorage) {
+            ((BufferedFileStorage) batchStorage).setBatchTracer(batchTracer);
+        }
+        if (targetBatchBytes > 0) {
+            actionsEncoder = new StreamingActionsEncoder(((GzippedJsonBatchFactory) batchFactory).getCodec());
+        } else if (encoderThreads > 0) {
+            batchEncoder = new AsyncBatchEncoder(batchStorage, batchFactory, serverId, encoderThreads,
+                    maxPendingBatches > 0 ? maxPendingBatches : encoderThreads * 2, token);
+            batchEncoder.setMetrics(metrics);
+            batchEncoder.setBatchTracer(batchTracer);
+        }
+
+        // the upload thread checks the flag before its first read
+        lastBatchStored = false;
+        stopped = false;
+        startUpload();
+
+        lastFlushTime = clock.instant();
+    }
+
+    /**
+     * Starts the upload thread, called by start() once AppMetr is running
+     */
+    protected void startUpload() {
         uploadThread = new Thread(this::upload, "appmetr-upload-" + token);
         uploadThread.setUncaughtExceptionHandler((t, e) -> log.error("Uncaught upload exception", e));
         uploadThread.start();
+    }
 
-        lastFlushTime = clock.instant();
-        lastUploadThrowable = null;
-        stopped = false;
+    /**
+     * Waits for the upload thread, called by stop() once all actions are stored
+     */
+    protected void stopUpload() throws InterruptedException {
+        uploadThread.interrupt();
+        uploadThread.join();
     }
 
     /**
@@ -134,11 +311,21 @@ public class AppMetr {
     public synchronized void stop() {
         stopped = true;
         try {
-            flush();
+            if (actionsEncoder != null) {
+                flushAllEncoded();
+            } else {
+                flush();
+            }
+            if (batchEncoder != null) {
+                batchEncoder.shutdown();
+            }
+            if (actionsEncoder != null) {
+                actionsEncoder.close();
+            }
             batchStorage.shutdown();
+            lastBatchStored = true;
 
-            uploadThread.interrupt();
-            uploadThread.join();
+            stopUpload();
 
         } catch (InterruptedException e) {
             log.error("AppMetr stopping was interrupted", e);
@@ -168,7 +355,34 @@ public class AppMetr {
      * Can blocks until a storage space become available regardless BatchStorage implementation
      * @return {@code true} if an Action has been tracked successfully or {@code false} if no space is currently available.
      */
-    public synchronized boolean track(Action newAction) throws InterruptedException, IOException {
+    public boolean track(Action newAction) throws InterruptedException, IOException {
+        final long startNanos = System.nanoTime();
+        try {
+            return trackAction(newAction);
+        } finally {
+            metrics.tracked(System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Tracks the actions one by one holding the lock once, for a single thread feeding AppMetr in bulk.
+     * Tracking stops at the first action rejected because the last batch couldn't be stored, so the storage
+     * isn't asked again for every remaining action
+     *
+     * @return number of tracked actions, the first ones of the collection
+     */
+    public synchronized int track(Collection<Action> newActions) throws InterruptedException, IOException {
+        int tracked = 0;
+        for (Action newAction : newActions) {
+            if (!track(newAction)) {
+                break;
+            }
+            tracked++;
+        }
+        return tracked;
+    }
+
+    protected synchronized boolean trackAction(Action newAction) throws InterruptedException, IOException {
         checkState();
 
         if (needFlush()) {
@@ -177,8 +391,12 @@ public class AppMetr {
             }
         }
 
-        actionList.add(newAction);
-        actionsBytes += newAction.calcApproximateSize();
+        if (actionsEncoder != null) {
+            actionsEncoder.add(newAction);
+        } else {
+            actionList.add(newAction);
+            actionsBytes += newAction.calcApproximateSize();
+        }
 
         return true;
     }
@@ -195,6 +413,10 @@ public class AppMetr {
      *         {@code false}
      */
     public synchronized boolean flush() throws InterruptedException, IOException {
+        if (actionsEncoder != null) {
+            return flushEncoded();
+        }
+
         log.trace("Flushing {} actions", actionList.size());
 
         if (actionList.isEmpty()) {
@@ -202,7 +424,7 @@ public class AppMetr {
             return true;
         }
 
-        final boolean stored = batchStorage.store(actionList, (actions, batchId) -> batchFactory.createBatch(actions, batchId, serverId));
+        final boolean stored = store(actionList);
         if (stored) {
             log.debug("Flushing completed for {} actions", actionList.size());
             lastFlushTime = clock.instant();
@@ -215,6 +437,106 @@ public class AppMetr {
         return stored;
     }
 
+    /**
+     * Stores actions compressed by {@link #actionsEncoder}, keeping them for the next flush if the storage rejects them
+     */
+    protected boolean flushEncoded() throws InterruptedException, IOException {
+        if (pendingEncodedActions == null) {
+            pendingEncodedActionsNumber = actionsEncoder.getActionsNumber();
+            pendingEncodedActions = actionsEncoder.finish();
+            pendingEncodedJsonBytes = actionsEncoder.getFinishedJsonBytes();
+            if (pendingEncodedActions == null) {
+                log.debug("Nothing to flush");
+                return true;
+            }
+        }
+
+        final byte[] encodedActions = pendingEncodedActions;
+        final long jsonBytes = pendingEncodedJsonBytes;
+        final PreEncodingBatchFactory preEncodingBatchFactory = (PreEncodingBatchFactory) batchFactory;
+        final long startNanos = System.nanoTime();
+        final BatchTimeline timeline = batchTracer == null ? null : batchTracer.queued();
+        final boolean stored = batchStorage.store(Collections.emptyList(), (batchActions, batchId) -> {
+            final long encodeStartNanos = System.nanoTime();
+            final BinaryBatch binaryBatch = preEncodingBatchFactory.createBatch(encodedActions, batchId, serverId);
+            metrics.encoded(System.nanoTime() - encodeStartNanos, jsonBytes, binaryBatch.getSize());
+            if (timeline != null) {
+                batchTracer.encoded(timeline, batchId, binaryBatch.getSize());
+            }
+            return binaryBatch;
+        });
+        metrics.flushed(System.nanoTime() - startNanos, stored);
+        if (timeline != null) {
+            batchTracer.stored(timeline, stored);
+        }
+        if (stored) {
+            log.debug("Flushing completed for {} actions, {} bytes", pendingEncodedActionsNumber, encodedActions.length);
+            lastFlushTime = clock.instant();
+            pendingEncodedActions = null;
+            pendingEncodedActionsNumber = 0;
+        } else {
+            log.warn("Flushing failed for {} actions", pendingEncodedActionsNumber);
+        }
+
+        return stored;
+    }
+
+    /**
+     * A flush after a rejected one stores only the actions pending since then, so flushing is repeated
+     * until the actions tracked afterwards are stored too or the storage rejects them
+     */
+    protected boolean flushAllEncoded() throws InterruptedException, IOException {
+        boolean stored;
+        do {
+            stored = flushEncoded();
+        } while (stored && actionsEncoder.getActionsNumber() > 0);
+        return stored;
+    }
+
+    /**
+     * With background encoding a batch is only queued here, it is rejected while the encoder retries
+     * a batch rejected by the storage
+     */
+    protected boolean store(Collection<Action> actions) throws InterruptedException, IOException {
+        final long startNanos = System.nanoTime();
+        if (batchEncoder != null) {
+            final boolean submitted = batchEncoder.submit(actions);
+            metrics.flushed(System.nanoTime() - startNanos, submitted);
+            return submitted;
+        }
+
+        if (batchTracer == null) {
+            final boolean stored = batchStorage.store(actions, this::encode);
+            metrics.flushed(System.nanoTime() - startNanos, stored);
+            return stored;
+        }
+
+        final BatchTimeline timeline = batchTracer.queued();
+        final boolean stored = batchStorage.store(actions, (batchActions, batchId) -> {
+            final BinaryBatch binaryBatch = encode(batchActions, batchId);
+            batchTracer.encoded(timeline, batchId, binaryBatch.getSize());
+            return binaryBatch;
+        });
+        metrics.flushed(System.nanoTime() - startNanos, stored);
+        batchTracer.stored(timeline, stored);
+        return stored;
+    }
+
+    protected BinaryBatch encode(Collection<Action> actions, long batchId) {
+        final long startNanos = System.nanoTime();
+        final BinaryBatch binaryBatch = batchFactory.createBatch(actions, batchId, serverId);
+        metrics.encoded(System.nanoTime() - startNanos, calcApproximateSize(actions), binaryBatch.getSize());
+        return binaryBatch;
+    }
+
+    protected static long calcApproximateSize(Collection<Action> actions) {
+        long size = 0;
+        for (Action action : actions) {
+            size += action.calcApproximateSize();
+        }
+        return size;
+    }
+
     public synchronized boolean flushIfNeeded() throws InterruptedException, IOException {
         checkState();
         
@@ -226,23 +548,55 @@ public class AppMetr {
         return false;
     }
 
+    /**
+     * @return fill state of the batch storage. Actions tracked under {@link Backpressure#FULL} may be dropped
+     *         or block track(), so expensive ones can be skipped
+     */
+    public Backpressure getBackpressure() {
+        return batchStorage.getBackpressure();
+    }
+
     public Throwable getLastUploadError() {
         return lastUploadThrowable;
     }
 
     protected boolean needFlush() {
+        if (actionsEncoder != null) {
+            return pendingEncodedActions != null
+                    || actionsEncoder.getCompressedBytes() >= targetBatchBytes
+                    || (maxBatchActions > 0 && actionsEncoder.getActionsNumber() >= maxBatchActions)
+                    || !clock.instant().minus(flushPeriod).isBefore(lastFlushTime);
+        }
+
         return actionsBytes >= maxBatchBytes
                 || (maxBatchActions > 0 && actionList.size() >= maxBatchActions)
                 ||  !clock.instant().minus(flushPeriod).isBefore(lastFlushTime);
     }
 
     protected void upload() {
+        if (batchSender instanceof AsyncBatchSender) {
+            uploadAsync((AsyncBatchSender) batchSender);
+            return;
+        }
+        if (uploadWorkers > 1) {
+            uploadClaimed();
+            return;
+        }
+        if (maxInFlightUploads > 1) {
+            uploadPipelined();
+            return;
+        }
+
         log.trace("Upload starting");
 
         int uploadedBatchCounter = 0;
         int allBatchCounter = 0;
         long sendBatchesBytes = 0;
         while (true) {
+            if (!pauseReads()) {
+                break;
+            }
+
             final Instant batchReadStart = clock.instant();
             final BinaryBatch binaryBatch;
             try {
@@ -255,81 +609,589 @@ public class AppMetr {
                 }
             } catch (IOException e) {
                 log.error("Error while reading batch", e);
-                try {
-                    Thread.sleep(readRetryTimeout.toMillis());
-                    continue;
-                } catch (InterruptedException ie) {
-                    if (shouldInterrupt()) {
-                        Thread.currentThread().interrupt();
-                        break;
-                    } else {
-                        continue;
-                    }
+                if (!sleepAfterReadError()) {
+                    break;
                 }
+                continue;
             }
 
             allBatchCounter++;
 
             log.trace("Batch {} read time: {}", binaryBatch.getBatchId(), Duration.between(batchReadStart, clock.instant()));
 
-            while (true) {
-                final Instant batchUploadStart = clock.instant();
-                boolean result;
-                try {
-                    result = batchSender.send(url, token, binaryBatch.getBytes());
-                } catch (Throwable e) {
-                    log.error("Unexpected exception while sending the batch {}", binaryBatch.getBatchId(), e);
-                    lastUploadThrowable = e;
-                    stopped = true;
-                    return;
-                }
+            final int batchBytes = binaryBatch.getSize();
+            if (uploadBatch(binaryBatch)) {
+                uploadedBatchCounter++;
+                sendBatchesBytes += batchBytes;
+            }
+            if (lastUploadThrowable != null) {
+                return;
+            }
 
-                log.debug("Batch {} {} finished. Took {}", binaryBatch.getBatchId(), result ? "" : "NOT", Duration.between(batchUploadStart, clock.instant()));
+            if (stopped && shouldInterrupt()) {
+                break;
+            }
+        }
 
-                if (result) {
-                    log.trace("Batch {} successfully uploaded", binaryBatch.getBatchId());
-                    tryRemove(binaryBatch.getBatchId());
-                    uploadedBatchCounter++;
-                    sendBatchesBytes += binaryBatch.getBytes().length;
+        log.info("{} from {} batches uploaded. ({} bytes)", uploadedBatchCounter, allBatchCounter, sendBatchesBytes);
+    }
+
+    /**
+     * Reads batches one after another and uploads them on a pool of {@code maxInFlightUploads} threads.
+     * Batches are acknowledged independently, each uploaded batch is removed by its id.
+     */
+    protected void uploadPipelined() {
+        log.trace("Pipelined upload starting with {} uploads in flight", maxInFlightUploads);
+
+        final Thread dispatchThread = Thread.currentThread();
+        final Semaphore inFlight = new Semaphore(maxInFlightUploads);
+        final AtomicInteger threadCounter = new AtomicInteger();
+        final ExecutorService uploadService = Executors.newFixedThreadPool(maxInFlightUploads, r -> {
+            final Thread thread = new Thread(r, dispatchThread.getName() + "-" + threadCounter.incrementAndGet());
+            thread.setUncaughtExceptionHandler((t, e) -> log.error("Uncaught upload exception", e));
+            return thread;
+        });
+
+        final AtomicInteger uploadedBatchCounter = new AtomicInteger();
+        final AtomicLong sendBatchesBytes = new AtomicLong();
+        int allBatchCounter = 0;
+        long previousBatchId = Long.MIN_VALUE;
+        while (lastUploadThrowable == null) {
+            if (!pauseReads()) {
+                break;
+            }
+
+            // an interrupt from stop() stays pending until the storage has to wait for a batch
+            inFlight.acquireUninterruptibly();
+            if (stopped && shouldInterrupt()) {
+                inFlight.release();
+                break;
+            }
+
+            final Instant batchReadStart = clock.instant();
+            final BinaryBatch binaryBatch;
+            try {
+                binaryBatch = batchStorage.get(previousBatchId);
+            } catch (InterruptedException e) {
+                inFlight.release();
+                if (shouldStopDispatching(inFlight)) {
+                    break;
+                }
+                continue;
+            } catch (IOException e) {
+                inFlight.release();
+                log.error("Error while reading batch", e);
+                if (!sleepAfterReadError()) {
                     break;
                 }
+                continue;
+            }
 
-                log.error("Error while uploading batch {}", binaryBatch.getBatchId());
+            allBatchCounter++;
+            previousBatchId = binaryBatch.getBatchId();
+
+            log.trace("Batch {} read time: {}", binaryBatch.getBatchId(), Duration.between(batchReadStart, clock.instant()));
 
+            final int batchBytes = binaryBatch.getSize();
+            uploadService.execute(() -> {
                 try {
-                    Thread.sleep(failedUploadTimeout.toMillis());
+                    if (uploadBatch(binaryBatch)) {
+                        uploadedBatchCounter.incrementAndGet();
+                        sendBatchesBytes.addAndGet(batchBytes);
+                    }
+                    if (lastUploadThrowable != null) {
+                        dispatchThread.interrupt();
+                    }
+                } finally {
+                    inFlight.release();
+                }
+            });
+
+            if (stopped && shouldInterrupt()) {
+                break;
+            }
+        }
+
+        uploadService.shutdownNow();
+        try {
+            while (!uploadService.awaitTermination(1, TimeUnit.SECONDS)) {
+                log.debug("Waiting for {} uploads in flight", maxInFlightUploads - inFlight.availablePermits());
+            }
+        } catch (InterruptedException e) {
+            log.warn("Waiting for uploads in flight was interrupted");
+            Thread.currentThread().interrupt();
+        }
+
+        if (lastUploadThrowable == null) {
+            log.info("{} from {} batches uploaded. ({} bytes)", uploadedBatchCounter.get(), allBatchCounter, sendBatchesBytes.get());
+        }
+    }
+
+    /**
+     * Runs {@code uploadWorkers} threads, each claiming a batch and uploading it. A batch which isn't uploaded
+     * or dropped, e.g. because the sender has thrown or AppMetr is stopping, is released for another worker.
+     * The upload thread keeps interrupting the workers blocked on an empty storage once they should stop.
+     */
+    protected void uploadClaimed() {
+        log.trace("Upload starting with {} workers", uploadWorkers);
+
+        final String name = Thread.currentThread().getName();
+        final List<UploadWorkerStats> workerStats = new ArrayList<>(uploadWorkers);
+        final Thread[] workers = new Thread[uploadWorkers];
+        for (int i = 0; i < uploadWorkers; i++) {
+            final UploadWorkerStats stats = new UploadWorkerStats(name + "-" + (i + 1));
+            workerStats.add(stats);
+            workers[i] = new Thread(() -> uploadClaimedBatches(stats), stats.getName());
+            workers[i].setUncaughtExceptionHandler((t, e) -> log.error("Uncaught upload exception", e));
+        }
+        uploadWorkerStats = Collections.unmodifiableList(workerStats);
+        for (Thread worker : workers) {
+            worker.start();
+        }
+
+        for (Thread worker : workers) {
+            while (worker.isAlive()) {
+                try {
+                    worker.join(100);
                 } catch (InterruptedException e) {
-                    if (shouldInterrupt()) {
-                        Thread.currentThread().interrupt();
-                        break;
+                    log.trace("Upload workers are notified to stop");
+                }
+
+                if (lastUploadThrowable != null || stopped && shouldInterrupt()) {
+                    for (Thread otherWorker : workers) {
+                        otherWorker.interrupt();
                     }
                 }
+            }
+        }
 
-                if (!retryBatchUpload) {
-                    tryRemove(binaryBatch.getBatchId());
+        if (lastUploadThrowable == null) {
+            for (UploadWorkerStats stats : workerStats) {
+                log.info("{}", stats);
+            }
+        }
+    }
+
+    protected void uploadClaimedBatches(UploadWorkerStats stats) {
+        while (lastUploadThrowable == null) {
+            if (!pauseReads()) {
+                break;
+            }
+
+            final BatchClaims.Lease lease;
+            try {
+                lease = batchClaims.claim();
+            } catch (InterruptedException e) {
+                if (shouldInterrupt()) {
+                    break;
+                }
+                continue;
+            } catch (IOException e) {
+                log.error("Error while reading batch", e);
+                if (!sleepAfterReadError()) {
                     break;
                 }
+                continue;
+            }
 
-                log.info("Retrying the batch {}", binaryBatch.getBatchId());
+            final BinaryBatch binaryBatch = lease.getBinaryBatch();
+            final long startNanos = System.nanoTime();
+            try {
+                stats.batchDone(binaryBatch.getSize(), uploadBatch(binaryBatch), System.nanoTime() - startNanos);
+            } finally {
+                batchClaims.release(lease);
             }
 
             if (stopped && shouldInterrupt()) {
                 break;
             }
         }
+    }
 
-        log.info("{} from {} batches uploaded. ({} bytes)", uploadedBatchCounter, allBatchCounter, sendBatchesBytes);
+    /**
+     * Keeps up to {@code maxInFlightUploads} uploads of a non-blocking sender going from the upload thread.
+     * Results are handled on a single callback thread which also schedules retries, so no thread sleeps
+     * or blocks per batch in flight.
+     */
+    protected void uploadAsync(AsyncBatchSender asyncSender) {
+        log.trace("Async upload starting with {} uploads in flight", maxInFlightUploads);
+
+        final Thread dispatchThread = Thread.currentThread();
+        final ScheduledExecutorService callbackService = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, dispatchThread.getName() + "-callbacks");
+            thread.setUncaughtExceptionHandler((t, e) -> log.error("Uncaught upload exception", e));
+            return thread;
+        });
+        final AsyncUpload asyncUpload = new AsyncUpload(asyncSender, dispatchThread, callbackService);
+
+        int allBatchCounter = 0;
+        long previousBatchId = Long.MIN_VALUE;
+        while (lastUploadThrowable == null) {
+            if (!pauseReads()) {
+                break;
+            }
+
+            asyncUpload.inFlight.acquireUninterruptibly();
+            if (stopped && shouldInterrupt()) {
+                asyncUpload.inFlight.release();
+                break;
+            }
+
+            final Instant batchReadStart = clock.instant();
+            final BinaryBatch binaryBatch;
+            try {
+                binaryBatch = maxInFlightUploads > 1 ? batchStorage.get(previousBatchId) : batchStorage.get();
+            } catch (InterruptedException e) {
+                asyncUpload.inFlight.release();
+                if (shouldStopDispatching(asyncUpload.inFlight)) {
+                    break;
+                }
+                continue;
+            } catch (IOException e) {
+                asyncUpload.inFlight.release();
+                log.error("Error while reading batch", e);
+                if (!sleepAfterReadError()) {
+                    break;
+                }
+                continue;
+            }
+
+            allBatchCounter++;
+            previousBatchId = binaryBatch.getBatchId();
+
+            log.trace("Batch {} read time: {}", binaryBatch.getBatchId(), Duration.between(batchReadStart, clock.instant()));
+
+            asyncUpload.send(binaryBatch, 1);
+
+            if (stopped && shouldInterrupt()) {
+                break;
+            }
+        }
+
+        asyncUpload.finish();
+        callbackService.shutdownNow();
+
+        if (lastUploadThrowable == null) {
+            log.info("{} from {} batches uploaded. ({} bytes)", asyncUpload.uploadedBatchCounter.get(), allBatchCounter, asyncUpload.sendBatchesBytes.get());
+        }
+    }
+
+    /**
+     * State of {@link #uploadAsync(AsyncBatchSender)} shared with its callbacks
+     */
+    protected class AsyncUpload {
+        protected final AsyncBatchSender asyncSender;
+        protected final Thread dispatchThread;
+        protected final ScheduledExecutorService callbackService;
+        protected final Semaphore inFlight = new Semaphore(maxInFlightUploads);
+        protected final Map<Long, ScheduledFuture<?>> scheduledRetries = new ConcurrentHashMap<>();
+        protected final AtomicInteger uploadedBatchCounter = new AtomicInteger();
+        protected final AtomicLong sendBatchesBytes = new AtomicLong();
+
+        protected AsyncUpload(AsyncBatchSender asyncSender, Thread dispatchThread, ScheduledExecutorService callbackService) {
+            this.asyncSender = asyncSender;
+            this.dispatchThread = dispatchThread;
+            this.callbackService = callbackService;
+        }
+
+        protected void send(BinaryBatch binaryBatch, int attempt) {
+            final Instant batchUploadStart = clock.instant();
+            final long startNanos = System.nanoTime();
+            if (batchTracer != null) {
+                batchTracer.sending(binaryBatch.getBatchId());
+            }
+            final CompletableFuture<SendResult> future;
+            try {
+                future = asyncSender.sendAsync(url, token, binaryBatch.getByteBuffer());
+            } catch (Throwable e) {
+                failed(binaryBatch, e);
+                return;
+            }
+
+            future.whenCompleteAsync((result, e) -> {
+                if (e != null) {
+                    failed(binaryBatch, e);
+                } else {
+                    completed(binaryBatch, attempt, result, batchUploadStart, startNanos);
+                }
+            }, callbackService);
+        }
+
+        protected void completed(BinaryBatch binaryBatch, int attempt, SendResult result, Instant batchUploadStart, long startNanos) {
+            metrics.uploaded(System.nanoTime() - startNanos, binaryBatch.getSize(), result.isSuccess());
+            log.debug("Batch {} {} finished. Took {}", binaryBatch.getBatchId(), result.isSuccess() ? "" : "NOT", Duration.between(batchUploadStart, clock.instant()));
+
+            final RetryPolicy policy = retryPolicy();
+            policy.onResult(result);
+            if (result.isSuccess()) {
+                log.trace("Batch {} successfully uploaded", binaryBatch.getBatchId());
+                uploadedBatchCounter.incrementAndGet();
+                sendBatchesBytes.addAndGet(binaryBatch.getSize());
+                acknowledged(binaryBatch, true);
+                done(binaryBatch, true);
+            } else if (!policy.shouldRetry(attempt, result)) {
+                log.error("Batch {} dropped after {} attempts: {}", binaryBatch.getBatchId(), attempt, result);
+                metrics.dropped();
+                acknowledged(binaryBatch, false);
+                done(binaryBatch, true);
+            } else if (!retryBatchUpload) {
+                log.error("Error while uploading batch {}: {}", binaryBatch.getBatchId(), result);
+                metrics.dropped();
+                acknowledged(binaryBatch, false);
+                done(binaryBatch, true);
+            } else if (stopped && shouldInterrupt()) {
+                done(binaryBatch, false);
+            } else {
+                log.error("Error while uploading batch {}: {}", binaryBatch.getBatchId(), result);
+                metrics.retried();
+                final long batchId = binaryBatch.getBatchId();
+                scheduledRetries.put(batchId, callbackService.schedule(() -> {
+                    scheduledRetries.remove(batchId);
+                    if (stopped && shouldInterrupt()) {
+                        done(binaryBatch, false);
+                        return;
+                    }
+
+                    log.info("Retrying the batch {}", batchId);
+                    send(binaryBatch, attempt + 1);
+                }, policy.nextDelay(attempt, result).toMillis(), TimeUnit.MILLISECONDS));
+            }
+        }
+
+        protected void failed(BinaryBatch binaryBatch, Throwable e) {
+            log.error("Unexpected exception while sending the batch {}", binaryBatch.getBatchId(), e);
+            lastUploadThrowable = e;
+            stopped = true;
+            inFlight.release();
+            dispatchThread.interrupt();
+        }
+
+        protected void done(BinaryBatch binaryBatch, boolean remove) {
+            if (remove) {
+                tryRemove(binaryBatch.getBatchId());
+            }
+            inFlight.release();
+        }
+
+        /**
+         * Drops scheduled retries and waits for uploads in flight
+         */
+        protected void finish() {
+            for (ScheduledFuture<?> retry : scheduledRetries.values()) {
+                if (retry.cancel(false)) {
+                    inFlight.release();
+                }
+            }
+
+            try {
+                while (!inFlight.tryAcquire(maxInFlightUploads, 1, TimeUnit.SECONDS)) {
+                    log.debug("Waiting for {} uploads in flight", maxInFlightUploads - inFlight.availablePermits());
+                }
+            } catch (InterruptedException e) {
+                log.warn("Waiting for uploads in flight was interrupted");
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Called when dispatching is interrupted while waiting for a batch. Batches which aren't removed yet
+     * may all be in flight, so the decision is made after they are done unless the upload has to stop at once.
+     */
+    protected boolean shouldStopDispatching(Semaphore inFlight) {
+        if (lastUploadThrowable != null || shouldInterrupt()) {
+            return true;
+        }
+
+        inFlight.acquireUninterruptibly(maxInFlightUploads);
+        inFlight.release(maxInFlightUploads);
+
+        return lastUploadThrowable != null || shouldInterrupt();
+    }
+
+    /**
+     * @return {@code false} if interrupted and uploading should be stopped
+     */
+    protected boolean sleepAfterReadError() {
+        try {
+            Thread.sleep(readRetryTimeout.toMillis());
+            return true;
+        } catch (InterruptedException ie) {
+            if (shouldInterrupt()) {
+                Thread.currentThread().interrupt();
+                return false;
+            } else {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Sends the batch retrying failed uploads if configured and removes it from the storage.
+     * An unexpected sender exception stops AppMetr and is kept as the last upload error.
+     *
+     * @return {@code true} if the batch has been uploaded
+     */
+    protected boolean uploadBatch(BinaryBatch binaryBatch) {
+        return uploadBatch(binaryBatch, 1);
+    }
+
+    /**
+     * @param attempt Number of the first attempt, greater than 1 when resuming retries given up by {@link #awaitRetry}
+     */
+    protected boolean uploadBatch(BinaryBatch binaryBatch, int attempt) {
+        final RetryPolicy policy = retryPolicy();
+        for (; ; attempt++) {
+            if (attempt > 1) {
+                if ((maxInFlightUploads > 1 || batchClaims != null) && stopped && shouldInterrupt()) {
+                    return false;
+                }
+
+                if (!retryBatchUpload) {
+                    metrics.dropped();
+                    acknowledged(binaryBatch, false);
+                    tryRemove(binaryBatch.getBatchId());
+                    return false;
+                }
+
+                metrics.retried();
+                log.info("Retrying the batch {}", binaryBatch.getBatchId());
+            }
+
+            final Instant batchUploadStart = clock.instant();
+            final long startNanos = System.nanoTime();
+            if (batchTracer != null) {
+                batchTracer.sending(binaryBatch.getBatchId());
+            }
+            if (batchClaims != null) {
+                batchClaims.renew(binaryBatch.getBatchId());
+            }
+            final SendResult result;
+            try {
+                result = sendBatch(binaryBatch);
+            } catch (Throwable e) {
+                log.error("Unexpected exception while sending the batch {}", binaryBatch.getBatchId(), e);
+                lastUploadThrowable = e;
+                stopped = true;
+                return false;
+            }
+
+            metrics.uploaded(System.nanoTime() - startNanos, binaryBatch.getSize(), result.isSuccess());
+            log.debug("Batch {} {} finished. Took {}", binaryBatch.getBatchId(), result.isSuccess() ? "" : "NOT", Duration.between(batchUploadStart, clock.instant()));
+
+            policy.onResult(result);
+            if (result.isSuccess()) {
+                log.trace("Batch {} successfully uploaded", binaryBatch.getBatchId());
+                acknowledged(binaryBatch, true);
+                tryRemove(binaryBatch.getBatchId());
+                return true;
+            }
+
+            if (!policy.shouldRetry(attempt, result)) {
+                log.error("Batch {} dropped after {} attempts: {}", binaryBatch.getBatchId(), attempt, result);
+                metrics.dropped();
+                acknowledged(binaryBatch, false);
+                tryRemove(binaryBatch.getBatchId());
+                return false;
+            }
+
+            log.error("Error while uploading batch {}", binaryBatch.getBatchId());
+
+            if (!awaitRetry(binaryBatch, attempt, policy.nextDelay(attempt, result))) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Waits before the next attempt of the batch on the upload thread
+     *
+     * @param attempt Number of failed attempts of the batch so far
+     * @return {@code false} to stop retrying now, the batch is kept in the storage
+     */
+    protected boolean awaitRetry(BinaryBatch binaryBatch, int attempt, Duration delay) {
+        // a claimed batch is renewed while waiting, as the delay may be longer than the lease
+        final long renewMillis = batchClaims != null ? Math.max(batchClaims.getLeaseTime().toMillis() / 2, 1) : Long.MAX_VALUE;
+        final long deadlineNanos = System.nanoTime() + delay.toNanos();
+        try {
+            for (long remainingMillis = delay.toMillis(); remainingMillis > 0;
+                 remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime())) {
+                Thread.sleep(Math.min(remainingMillis, renewMillis));
+                if (batchClaims != null) {
+                    batchClaims.renew(binaryBatch.getBatchId());
+                }
+            }
+        } catch (InterruptedException e) {
+            if (shouldInterrupt()) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Plain senders only tell success from failure, so their failures are all retryable
+     */
+    protected SendResult sendBatch(BinaryBatch binaryBatch) {
+        if (batchSender instanceof HttpBatchSender) {
+            return ((HttpBatchSender) batchSender).sendForResult(url, token, binaryBatch.getByteBuffer());
+        }
+
+        final boolean sent = binaryBatch.hasArray()
+                ? batchSender.send(url, token, binaryBatch.getBytes())
+                : batchSender.sendBuffer(url, token, binaryBatch.getByteBuffer());
+
+        return sent ? SendResult.OK : SendResult.retryable(null);
+    }
+
+    protected RetryPolicy retryPolicy() {
+        return uploadRetryPolicy;
+    }
+
+    /**
+     * Waits while the retry policy pauses reading new batches, e.g. when the collector seems to be down
+     *
+     * @return {@code false} if interrupted and uploading should be stopped
+     */
+    protected boolean pauseReads() {
+        final RetryPolicy policy = retryPolicy();
+        for (Duration pause = policy.readPause(); !pause.isZero(); pause = policy.readPause()) {
+            log.debug("Reading batches paused for {}", pause);
+            try {
+                Thread.sleep(Math.max(pause.toMillis(), 1));
+            } catch (InterruptedException e) {
+                if (shouldInterrupt()) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    protected void acknowledged(BinaryBatch binaryBatch, boolean uploaded) {
+        if (batchTracer != null) {
+            batchTracer.acknowledged(binaryBatch.getBatchId(), uploaded);
+        }
     }
 
     protected void tryRemove(long batchId) {
         try {
-            batchStorage.remove();
+            if (batchClaims != null) {
+                batchClaims.complete(batchId);
+            } else if (maxInFlightUploads > 1) {
+                batchStorage.remove(batchId);
+            } else {
+                batchStorage.remove();
+            }
         } catch (IOException e) {
             log.error("Error while removing uploaded batch {}", batchId, e);
         }
     }
 
     protected boolean shouldInterrupt() {
-        return hardStop || (batchStorage.isPersistent() && !softStop) || batchStorage.isEmpty();
+        return hardStop || (batchStorage.isPersistent() && !softStop) || lastBatchStored && batchStorage.isEmpty();
     }
 }
@@ -1,66 +1,170 @@
 package com.appmetr.s2s;
 
 import com.appmetr.s2s.events.Action;
+import com.appmetr.s2s.persister.OverflowPolicy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Queue;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * Should be used with caution. Could produce OOM error!
+ * Queues tracked actions in a bounded {@link ActionRingBuffer} and feeds them to AppMetr in bulk from
+ * a single drain task, which also flushes AppMetr by its flush period. Tracking allocates nothing.
+ * <p>
+ * When the buffer is full an action is handled by the {@link OverflowPolicy}: {@link OverflowPolicy#BLOCK},
+ * {@link OverflowPolicy#BLOCK_WITH_DEADLINE} (the default) or {@link OverflowPolicy#DROP_NEWEST}.
+ * {@link #flush()} signals when the actions tracked before it are stored.
  */
 public class AppMetrAsync {
     private static final Logger log = LoggerFactory.getLogger(AppMetrAsync.class);
 
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+    public static final int DEFAULT_DRAIN_ACTIONS = 1024;
+    public static final Duration DEFAULT_BLOCK_TIMEOUT = Duration.ofSeconds(1);
+    protected static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    protected static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
     private final AppMetr appMetr;
     private final ScheduledExecutorService executorService;
+    private final ActionRingBuffer buffer;
+    private final Queue<FlushRequest> flushRequests = new ConcurrentLinkedQueue<>();
+    private final AtomicLong droppedActions = new AtomicLong();
+    private final AtomicLong failedActions = new AtomicLong();
+    private final Future<?> drainFuture;
 
-    private ScheduledFuture<?> periodicFlushingFuture;
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK_WITH_DEADLINE;
+    private volatile Duration blockTimeout = DEFAULT_BLOCK_TIMEOUT;
+    private volatile Thread drainThread;
+    private volatile boolean drainWaiting;
+    private volatile boolean stopped;
 
     public AppMetrAsync(AppMetr appMetr) {
-        this(appMetr, Executors.newScheduledThreadPool(1, r -> new Thread(r, "appmetr-async")));
+        this(appMetr, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity Number of queued actions, rounded up to a power of two
+     */
+    public AppMetrAsync(AppMetr appMetr, int capacity) {
+        this(appMetr, Executors.newScheduledThreadPool(1, r -> new Thread(r, "appmetr-async")), capacity);
     }
 
+    /**
+     * @param executorService Runs the drain task, which takes one of its threads until stop
+     */
     public AppMetrAsync(AppMetr appMetr, ScheduledExecutorService executorService) {
+        this(appMetr, executorService, DEFAULT_CAPACITY);
+    }
+
+    public AppMetrAsync(AppMetr appMetr, ScheduledExecutorService executorService, int capacity) {
         this.appMetr = appMetr;
         this.executorService = executorService;
+        buffer = new ActionRingBuffer(capacity);
 
         if (appMetr.isStopped()) {
             appMetr.start();
         }
 
-        periodicFlushingFuture = executorService.scheduleWithFixedDelay(() -> {
-            try {
-                appMetr.flushIfNeeded();
-            } catch (Throwable t) {
-                log.error("Periodic flushing failed", t);
-            }
-        }, appMetr.flushPeriod.toMillis(), appMetr.flushPeriod.toMillis(), TimeUnit.MILLISECONDS);
+        drainFuture = executorService.submit(this::drain);
     }
 
-    public CompletableFuture<Boolean> track(Action newAction) {
-        return CompletableFuture.supplyAsync(() -> {
-            try {
-                return appMetr.track(newAction);
-            } catch (Throwable t) {
-                log.error("Track {} failed", newAction, t);
-                throw new RuntimeException(t);
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        switch (overflowPolicy) {
+            case BLOCK:
+            case BLOCK_WITH_DEADLINE:
+            case DROP_NEWEST:
+                this.overflowPolicy = overflowPolicy;
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported overflow policy: " + overflowPolicy);
+        }
+    }
+
+    /**
+     * @param blockTimeout Longest wait for space with {@link OverflowPolicy#BLOCK_WITH_DEADLINE}
+     */
+    public void setBlockTimeout(Duration blockTimeout) {
+        this.blockTimeout = blockTimeout;
+    }
+
+    /**
+     * @return {@code false} if the action is dropped because the buffer is full
+     */
+    public boolean track(Action newAction) {
+        if (stopped) {
+            throw new IllegalStateException("AppMetrAsync is in stopped state");
+        }
+
+        if (!buffer.offer(newAction) && !offerWhenFull(newAction)) {
+            droppedActions.incrementAndGet();
+            return false;
+        }
+
+        if (drainWaiting) {
+            LockSupport.unpark(drainThread);
+        }
+        return true;
+    }
+
+    protected boolean offerWhenFull(Action newAction) {
+        final OverflowPolicy policy = overflowPolicy;
+        if (policy == OverflowPolicy.DROP_NEWEST) {
+            return false;
+        }
+
+        final long deadlineNanos = System.nanoTime() + blockTimeout.toNanos();
+        do {
+            if (drainWaiting) {
+                LockSupport.unpark(drainThread);
             }
-        }, executorService);
+            LockSupport.parkNanos(FULL_PARK_NANOS);
+            if (buffer.offer(newAction)) {
+                return true;
+            }
+        } while (!stopped && (policy == OverflowPolicy.BLOCK || System.nanoTime() - deadlineNanos < 0));
+
+        return false;
     }
 
+    /**
+     * @return completed with {@code true} once actions tracked before are stored by AppMetr, or {@code false}
+     * if AppMetr rejected the flushed batch or any action since the previous flush
+     */
+    public CompletableFuture<Boolean> flush() {
+        if (stopped) {
+            throw new IllegalStateException("AppMetrAsync is in stopped state");
+        }
+
+        final FlushRequest request = new FlushRequest(buffer.getTail());
+        flushRequests.add(request);
+        LockSupport.unpark(drainThread);
+        return request.future;
+    }
+
+    /**
+     * Stores queued actions and stops AppMetr, waiting until all batches are uploaded
+     */
     public CompletableFuture<Void> stop() {
+        stopped = true;
+        LockSupport.unpark(drainThread);
+
         return CompletableFuture.runAsync(() -> {
-            periodicFlushingFuture.cancel(false);
-            executorService.shutdown();
-        }, executorService).thenCompose(aVoid -> CompletableFuture.runAsync(() -> {
             try {
+                drainFuture.get();
+                executorService.shutdown();
                 awaitTermination();
                 appMetr.softStop();
             } catch (InterruptedException e) {
                 throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
             }
-        }, r -> new Thread(r, "appmetr-async-stop").start()));
+        }, r -> new Thread(r, "appmetr-async-stop").start());
     }
 
     protected void awaitTermination() throws InterruptedException {
@@ -68,4 +172,124 @@ public class AppMetrAsync {
             log.warn("ExecutorService {} do not terminated", executorService);
         }
     }
+
+    public int getQueuedActions() {
+        return buffer.size();
+    }
+
+    /**
+     * @return number of actions dropped because the buffer was full
+     */
+    public long getDroppedActions() {
+        return droppedActions.get();
+    }
+
+    /**
+     * @return number of actions AppMetr didn't track
+     */
+    public long getFailedActions() {
+        return failedActions.get();
+    }
+
+    protected void drain() {
+        drainThread = Thread.currentThread();
+        final ArrayList<Action> actions = new ArrayList<>(DEFAULT_DRAIN_ACTIONS);
+        final long flushCheckNanos = appMetr.flushPeriod.toNanos();
+        long lastFlushCheckNanos = System.nanoTime();
+        long lastFailedActions = 0;
+        boolean interrupted = false;
+
+        while (true) {
+            if (Thread.interrupted()) {
+                // e.g. the executor is shut down now, queued actions are still tracked before the task ends
+                log.warn("Draining was interrupted, stopping with {} queued actions", buffer.size());
+                stopped = true;
+                interrupted = true;
+            }
+
+            final int drained = buffer.drainTo(actions, DEFAULT_DRAIN_ACTIONS);
+            if (drained > 0) {
+                trackAll(actions);
+                actions.clear();
+            }
+
+            lastFailedActions = completeFlushes(lastFailedActions);
+
+            final long nowNanos = System.nanoTime();
+            if (nowNanos - lastFlushCheckNanos >= flushCheckNanos) {
+                lastFlushCheckNanos = nowNanos;
+                try {
+                    appMetr.flushIfNeeded();
+                } catch (Throwable t) {
+                    log.error("Periodic flushing failed", t);
+                }
+            }
+
+            if (drained == 0) {
+                if (stopped && buffer.isEmpty()) {
+                    break;
+                }
+
+                drainWaiting = true;
+                // checked again after announcing the wait, so a producer either sees it or is seen here
+                if (buffer.isEmpty() && flushRequests.isEmpty()) {
+                    LockSupport.parkNanos(this, Math.min(IDLE_PARK_NANOS, flushCheckNanos));
+                }
+                drainWaiting = false;
+            }
+        }
+
+        completeFlushes(lastFailedActions);
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    protected void trackAll(ArrayList<Action> actions) {
+        try {
+            failedActions.addAndGet(actions.size() - appMetr.track(actions));
+        } catch (Throwable t) {
+            log.error("Tracking {} actions failed", actions.size(), t);
+            failedActions.addAndGet(actions.size());
+        }
+    }
+
+    /**
+     * Flushes AppMetr once for all requests whose actions are drained
+     *
+     * @return failed actions counted by this flush
+     */
+    protected long completeFlushes(long lastFailedActions) {
+        final long head = buffer.getHead();
+        FlushRequest request = flushRequests.peek();
+        if (request == null || request.position > head) {
+            return lastFailedActions;
+        }
+
+        boolean flushed;
+        try {
+            flushed = appMetr.flush();
+        } catch (Throwable t) {
+            log.error("Flushing failed", t);
+            flushed = false;
+        }
+        final long failed = failedActions.get();
+        final boolean result = flushed && failed == lastFailedActions;
+
+        while (request != null && request.position <= head) {
+            flushRequests.poll();
+            request.future.complete(result);
+            request = flushRequests.peek();
+        }
+        return failed;
+    }
+
+    private static class FlushRequest {
+        final long position;
+        final CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+        FlushRequest(long position) {
+            this.position = position;
+        }
+    }
 }
@@ -0,0 +1,234 @@
+package com.appmetr.s2s;
+
+import com.appmetr.s2s.events.Action;
+import com.appmetr.s2s.metrics.AppMetrMetrics;
+import com.appmetr.s2s.metrics.BatchTimeline;
+import com.appmetr.s2s.metrics.BatchTracer;
+import com.appmetr.s2s.persister.BatchFactoryServerId;
+import com.appmetr.s2s.persister.BatchStorage;
+import com.appmetr.s2s.persister.PreEncodingBatchFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Encodes flushed actions on a bounded pool of worker threads and stores the batches from a dedicated thread
+ * in the order they were submitted.
+ * Batch ids are assigned by the storage at store time, so actions are encoded in parallel only by a
+ * {@link PreEncodingBatchFactory}, other factories are called by the storing thread.
+ * A batch rejected by the storage is stored again after a pause, meanwhile submit() rejects new batches,
+ * so the storage backpressure reaches the caller. On shutdown a rejected batch is dropped once the shutdown
+ * timeout has elapsed.
+ */
+public class AsyncBatchEncoder {
+    private static final Logger log = LoggerFactory.getLogger(AsyncBatchEncoder.class);
+
+    public static final Duration DEFAULT_SHUTDOWN_TIMEOUT = Duration.ofSeconds(5);
+
+    protected static final PendingBatch SHUTDOWN = new PendingBatch(null, null, null);
+    protected static final long STORE_RETRY_MILLIS = 100;
+
+    protected final BatchStorage batchStorage;
+    protected final BatchFactoryServerId batchFactory;
+    protected final String serverId;
+    protected final ExecutorService encoderService;
+    protected final BlockingQueue<PendingBatch> pendingBatches;
+    protected final Thread storeThread;
+
+    protected volatile AppMetrMetrics metrics = AppMetrMetrics.NOOP;
+    protected volatile BatchTracer batchTracer;
+    protected volatile Duration shutdownTimeout = DEFAULT_SHUTDOWN_TIMEOUT;
+    protected volatile long shutdownDeadlineNanos;
+    protected volatile boolean stopped;
+    protected volatile boolean rejecting;
+    protected volatile long droppedBatches;
+    protected volatile Throwable lastStoreThrowable;
+
+    /**
+     * @param threads Number of encoding threads
+     * @param maxPendingBatches Limit of submitted but not yet stored batches
+     */
+    public AsyncBatchEncoder(BatchStorage batchStorage, BatchFactoryServerId batchFactory, String serverId,
+                             int threads, int maxPendingBatches, String name) {
+        this.batchStorage = batchStorage;
+        this.batchFactory = batchFactory;
+        this.serverId = serverId;
+
+        final AtomicInteger threadCounter = new AtomicInteger();
+        encoderService = Executors.newFixedThreadPool(threads, r -> {
+            final Thread thread = new Thread(r, "appmetr-encoder-" + name + "-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        pendingBatches = new ArrayBlockingQueue<>(maxPendingBatches);
+
+        storeThread = new Thread(this::store, "appmetr-encoder-store-" + name);
+        storeThread.setUncaughtExceptionHandler((t, e) -> log.error("Uncaught store exception", e));
+        storeThread.start();
+    }
+
+    public void setMetrics(AppMetrMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void setBatchTracer(BatchTracer batchTracer) {
+        this.batchTracer = batchTracer;
+    }
+
+    /**
+     * @param shutdownTimeout Longest wait of shutdown() for pending batches to be stored
+     */
+    public void setShutdownTimeout(Duration shutdownTimeout) {
+        this.shutdownTimeout = shutdownTimeout;
+    }
+
+    /**
+     * Blocks while the limit of pending batches is reached
+     *
+     * @return {@code false} if the storage is rejecting batches and the actions aren't submitted
+     */
+    public boolean submit(Collection<Action> actions) throws InterruptedException {
+        if (stopped) {
+            throw new IllegalStateException("Encoder is in shutdown state", lastStoreThrowable);
+        }
+        if (rejecting) {
+            return false;
+        }
+
+        final List<Action> batchActions = new ArrayList<>(actions);
+        final CompletableFuture<byte[]> encodedActions = batchFactory instanceof PreEncodingBatchFactory
+                ? new CompletableFuture<>()
+                : null;
+        final BatchTimeline timeline = batchTracer == null ? null : batchTracer.queued();
+        final PendingBatch pendingBatch = new PendingBatch(batchActions, encodedActions, timeline);
+        pendingBatches.put(pendingBatch);
+
+        if (encodedActions != null) {
+            encoderService.execute(() -> {
+                try {
+                    final long startNanos = System.nanoTime();
+                    final byte[] encoded = ((PreEncodingBatchFactory) batchFactory).encodeActions(batchActions);
+                    pendingBatch.encodeNanos = System.nanoTime() - startNanos;
+                    encodedActions.complete(encoded);
+                } catch (Throwable t) {
+                    encodedActions.completeExceptionally(t);
+                }
+            });
+        }
+        return true;
+    }
+
+    /**
+     * Waits until all submitted batches are stored, batches still pending after the shutdown timeout are lost
+     */
+    public void shutdown() throws InterruptedException {
+        if (stopped) {
+            return;
+        }
+
+        shutdownDeadlineNanos = System.nanoTime() + shutdownTimeout.toNanos();
+        stopped = true;
+        if (!pendingBatches.offer(SHUTDOWN, shutdownTimeout.toNanos(), TimeUnit.NANOSECONDS)) {
+            storeThread.interrupt();
+        }
+        storeThread.join();
+        encoderService.shutdown();
+    }
+
+    public int getPendingBatches() {
+        return pendingBatches.size();
+    }
+
+    public long getDroppedBatches() {
+        return droppedBatches;
+    }
+
+    public Throwable getLastStoreError() {
+        return lastStoreThrowable;
+    }
+
+    protected void store() {
+        while (true) {
+            final PendingBatch pendingBatch;
+            try {
+                pendingBatch = pendingBatches.take();
+            } catch (InterruptedException e) {
+                log.warn("Encoder store thread was interrupted, {} batches are lost", pendingBatches.size());
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            if (pendingBatch == SHUTDOWN) {
+                break;
+            }
+
+            try {
+                final byte[] encodedActions = pendingBatch.encodedActions == null ? null : pendingBatch.encodedActions.get();
+                boolean stored = storeBatch(pendingBatch, encodedActions);
+                while (!stored && !(stopped && System.nanoTime() - shutdownDeadlineNanos >= 0)) {
+                    rejecting = true;
+                    if (pendingBatch.timeline != null) {
+                        batchTracer.storeRetried(pendingBatch.timeline);
+                    }
+                    Thread.sleep(STORE_RETRY_MILLIS);
+                    stored = storeBatch(pendingBatch, encodedActions);
+                }
+                rejecting = false;
+                if (pendingBatch.timeline != null) {
+                    batchTracer.stored(pendingBatch.timeline, stored);
+                }
+
+                if (!stored) {
+                    log.warn("Storage rejected a batch of {} actions", pendingBatch.actions.size());
+                    droppedBatches++;
+                    metrics.dropped();
+                }
+            } catch (InterruptedException e) {
+                log.warn("Encoder store thread was interrupted, {} batches are lost", pendingBatches.size() + 1);
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                log.error("Error while storing a batch of {} actions", pendingBatch.actions.size(), e);
+                lastStoreThrowable = e instanceof ExecutionException ? e.getCause() : e;
+                rejecting = false;
+                droppedBatches++;
+                metrics.dropped();
+            }
+        }
+    }
+
+    protected boolean storeBatch(PendingBatch pendingBatch, byte[] encodedActions) throws InterruptedException, IOException {
+        return batchStorage.store(pendingBatch.actions, (actions, batchId) -> {
+            final long startNanos = System.nanoTime();
+            final BinaryBatch binaryBatch = encodedActions == null
+                    ? batchFactory.createBatch(actions, batchId, serverId)
+                    : ((PreEncodingBatchFactory) batchFactory).createBatch(encodedActions, batchId, serverId);
+            metrics.encoded(pendingBatch.encodeNanos + System.nanoTime() - startNanos,
+                    AppMetr.calcApproximateSize(actions), binaryBatch.getSize());
+            if (pendingBatch.timeline != null) {
+                batchTracer.encoded(pendingBatch.timeline, batchId, binaryBatch.getSize());
+            }
+            return binaryBatch;
+        });
+    }
+
+    protected static class PendingBatch {
+        final List<Action> actions;
+        final CompletableFuture<byte[]> encodedActions;
+        final BatchTimeline timeline;
+        volatile long encodeNanos;
+
+        PendingBatch(List<Action> actions, CompletableFuture<byte[]> encodedActions, BatchTimeline timeline) {
+            this.actions = actions;
+            this.encodedActions = encodedActions;
+            this.timeline = timeline;
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.appmetr.s2s;
 
+import java.nio.ByteBuffer;
+
 public class BinaryBatch {
     private final long batchId;
     private final byte[] bytes;
@@ -13,10 +15,39 @@ public class BinaryBatch {
         return batchId;
     }
 
+    /**
+     * Can copy the batch if it is not backed by a heap array, see {@link #hasArray()}
+     */
     public byte[] getBytes() {
         return bytes;
     }
 
+    public int getSize() {
+        return bytes.length;
+    }
+
+    /**
+     * @return view of the batch with independent position, backed by the batch array if {@link #hasArray()}.
+     * The batch must not be modified through it
+     */
+    public ByteBuffer getByteBuffer() {
+        return ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * @return {@code true} if {@link #getBytes()} doesn't copy
+     */
+    public boolean hasArray() {
+        return true;
+    }
+
+    /**
+     * Returns resources backing the batch. The batch must not be used afterwards.
+     * Called by the storage which owns the batch when it is removed or dropped.
+     */
+    public void release() {
+    }
+
     @Override public String toString() {
         return "BinaryBatch{" +
                 "batchId=" + batchId +
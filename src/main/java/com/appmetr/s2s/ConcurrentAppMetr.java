@@ -0,0 +1,207 @@
+package com.appmetr.s2s;
+
+import com.appmetr.s2s.events.Action;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * AppMetr for many concurrent producers.
+ * Actions are appended to a lock-free {@link StripedActionBuffer} and {@link #track(Action)} never waits for another
+ * thread: only the thread which finds the batch thresholds reached cuts and stores the batch, while others keep appending.
+ * {@code maxBatchActions}, {@code maxBatchBytes} and {@code flushPeriod} limit each stored batch as in {@link AppMetr}.
+ */
+public class ConcurrentAppMetr extends AppMetr {
+    private static final Logger log = LoggerFactory.getLogger(ConcurrentAppMetr.class);
+
+    protected static final long MIN_STOP_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+    protected static final long MAX_STOP_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    protected final StripedActionBuffer actionBuffer;
+    protected final ReentrantLock flushLock = new ReentrantLock();
+    protected final LongAdder activeTrackers = new LongAdder();
+
+    protected volatile List<Action> pendingActions;
+    protected volatile long pendingBytes;
+    protected volatile boolean storeRejected;
+
+    protected ConcurrentAppMetr() {
+        actionBuffer = new StripedActionBuffer();
+    }
+
+    public ConcurrentAppMetr(String token, String url) {
+        this(token, url, Runtime.getRuntime().availableProcessors());
+    }
+
+    public ConcurrentAppMetr(String token, String url, int stripes) {
+        super(token, url);
+        actionBuffer = new StripedActionBuffer(stripes);
+    }
+
+    /**
+     * Not supported, batches are cut from the striped buffers by whole actions
+     */
+    @Override public void setTargetBatchBytes(long targetBatchBytes) {
+        throw new UnsupportedOperationException("Target batch bytes aren't supported by ConcurrentAppMetr");
+    }
+
+    @Override public int getActionsNumber() {
+        final List<Action> pending = pendingActions;
+        return actionBuffer.getActionsNumber() + (pending == null ? 0 : pending.size());
+    }
+
+    @Override public long getActionsBytes() {
+        return actionBuffer.getActionsBytes() + pendingBytes;
+    }
+
+    /**
+     * Waits for tracking calls in progress so no action is appended after the last flush.
+     * Tracking calls don't signal, the wait parks for growing periods instead, as a call may be storing a batch
+     */
+    @Override public synchronized void stop() {
+        stopped = true;
+        long parkNanos = MIN_STOP_PARK_NANOS;
+        while (activeTrackers.sum() != 0) {
+            LockSupport.parkNanos(parkNanos);
+            parkNanos = Math.min(parkNanos * 2, MAX_STOP_PARK_NANOS);
+        }
+
+        super.stop();
+    }
+
+    /**
+     * Doesn't hold the AppMetr lock, concurrent tracking goes on. Stops at the first rejected action as AppMetr does
+     */
+    @Override public int track(Collection<Action> newActions) throws InterruptedException, IOException {
+        int tracked = 0;
+        for (Action newAction : newActions) {
+            if (!track(newAction)) {
+                break;
+            }
+            tracked++;
+        }
+        return tracked;
+    }
+
+    /**
+     * Never blocks unless this thread has to cut a batch and the storage blocks
+     * @return {@code true} if an Action has been tracked successfully or {@code false} if the last batch couldn't be stored
+     */
+    @Override protected boolean trackAction(Action newAction) throws InterruptedException, IOException {
+        activeTrackers.increment();
+        try {
+            checkState();
+
+            if (needFlush() && flushLock.tryLock()) {
+                try {
+                    if (needFlush() && flushBatch() < 0) {
+                        return false;
+                    }
+                } finally {
+                    flushLock.unlock();
+                }
+            } else if (storeRejected) {
+                return false;
+            }
+
+            actionBuffer.add(newAction, newAction.calcApproximateSize());
+
+            return true;
+
+        } finally {
+            activeTrackers.decrement();
+        }
+    }
+
+    /**
+     * Stores actions buffered at the moment of the call, splitting them into batches by {@code maxBatchActions}
+     * and {@code maxBatchBytes}. Blocks while another thread is cutting a batch.
+     */
+    @Override public boolean flush() throws InterruptedException, IOException {
+        flushLock.lockInterruptibly();
+        try {
+            log.trace("Flushing {} actions", getActionsNumber());
+
+            int remaining = getActionsNumber();
+            if (remaining <= 0) {
+                log.debug("Nothing to flush");
+                return true;
+            }
+
+            while (remaining > 0) {
+                final int flushed = flushBatch();
+                if (flushed < 0) {
+                    return false;
+                }
+                if (flushed == 0) {
+                    break;
+                }
+                remaining -= flushed;
+            }
+
+            return true;
+
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    @Override public boolean flushIfNeeded() throws InterruptedException, IOException {
+        checkState();
+
+        if (needFlush()) {
+            flush();
+            return true;
+        }
+
+        return false;
+    }
+
+    @Override protected boolean needFlush() {
+        return pendingActions != null
+                || actionBuffer.getActionsBytes() >= maxBatchBytes
+                || (maxBatchActions > 0 && actionBuffer.getActionsNumber() >= maxBatchActions)
+                || !clock.instant().minus(flushPeriod).isBefore(lastFlushTime);
+    }
+
+    /**
+     * Must be called under the flush lock. Actions of a rejected batch are kept and retried first next time.
+     * @return number of stored actions or -1 if the storage rejected the batch
+     */
+    protected int flushBatch() throws InterruptedException, IOException {
+        if (pendingActions == null) {
+            final List<Action> batch = new ArrayList<>(maxBatchActions > 0 ? maxBatchActions : 16);
+            pendingBytes = actionBuffer.drainTo(batch, maxBatchActions, maxBatchBytes);
+            pendingActions = batch;
+        }
+
+        final int batchSize = pendingActions.size();
+        if (batchSize == 0) {
+            pendingActions = null;
+            lastFlushTime = clock.instant();
+            return 0;
+        }
+
+        final boolean stored = store(pendingActions);
+        storeRejected = !stored;
+        if (!stored) {
+            log.warn("Flushing failed for {} actions", batchSize);
+            return -1;
+        }
+
+        log.debug("Flushing completed for {} actions", batchSize);
+        lastFlushTime = clock.instant();
+        pendingActions = null;
+        pendingBytes = 0;
+
+        return batchSize;
+    }
+}
@@ -0,0 +1,120 @@
+package com.appmetr.s2s;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Raw deflate settings together with pools of {@link Deflater} and {@link Inflater} instances.
+ * Pooled instances are reused across batches and instances which don't fit into the pool are ended at once,
+ * so native memory never waits for finalization.
+ */
+public class DeflateCodec implements AutoCloseable {
+    public static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+    public static final DeflateCodec DEFAULT = new DeflateCodec(Deflater.BEST_COMPRESSION);
+
+    protected final int level;
+    protected final int strategy;
+    protected final int bufferSize;
+    protected final BlockingQueue<Deflater> deflaters;
+    protected final BlockingQueue<Inflater> inflaters;
+
+    public DeflateCodec(int level) {
+        this(level, Deflater.DEFAULT_STRATEGY, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param level      Compression level from {@link Deflater#NO_COMPRESSION} to {@link Deflater#BEST_COMPRESSION}
+     * @param strategy   One of {@link Deflater#DEFAULT_STRATEGY}, {@link Deflater#FILTERED} or {@link Deflater#HUFFMAN_ONLY}
+     * @param bufferSize Size of the buffer between the serializer and the compressor
+     */
+    public DeflateCodec(int level, int strategy, int bufferSize) {
+        this(level, strategy, bufferSize, Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    /**
+     * @param maxPooled Limit of idle instances kept in each pool
+     */
+    public DeflateCodec(int level, int strategy, int bufferSize, int maxPooled) {
+        if ((level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) && level != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("Wrong compression level " + level);
+        }
+        if (strategy != Deflater.DEFAULT_STRATEGY && strategy != Deflater.FILTERED && strategy != Deflater.HUFFMAN_ONLY) {
+            throw new IllegalArgumentException("Wrong compression strategy " + strategy);
+        }
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size should be positive: " + bufferSize);
+        }
+
+        this.level = level;
+        this.strategy = strategy;
+        this.bufferSize = bufferSize;
+        deflaters = new ArrayBlockingQueue<>(maxPooled);
+        inflaters = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public int getStrategy() {
+        return strategy;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public Deflater acquireDeflater() {
+        final Deflater deflater = deflaters.poll();
+        if (deflater != null) {
+            return deflater;
+        }
+
+        final Deflater newDeflater = new Deflater(level, true);
+        newDeflater.setStrategy(strategy);
+        return newDeflater;
+    }
+
+    public void releaseDeflater(Deflater deflater) {
+        deflater.reset();
+        if (!deflaters.offer(deflater)) {
+            deflater.end();
+        }
+    }
+
+    public Inflater acquireInflater() {
+        final Inflater inflater = inflaters.poll();
+        return inflater != null ? inflater : new Inflater(true);
+    }
+
+    public void releaseInflater(Inflater inflater) {
+        inflater.reset();
+        if (!inflaters.offer(inflater)) {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Ends idle pooled instances
+     */
+    @Override public void close() {
+        Deflater deflater;
+        while ((deflater = deflaters.poll()) != null) {
+            deflater.end();
+        }
+        Inflater inflater;
+        while ((inflater = inflaters.poll()) != null) {
+            inflater.end();
+        }
+    }
+
+    @Override public String toString() {
+        return "DeflateCodec{" +
+                "level=" + level +
+                ", strategy=" + strategy +
+                ", bufferSize=" + bufferSize +
+                '}';
+    }
+}
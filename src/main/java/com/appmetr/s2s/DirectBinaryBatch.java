@@ -0,0 +1,58 @@
+package com.appmetr.s2s;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Batch kept off heap in a pooled direct buffer until {@link #release()}, a batch above the max buffer size
+ * of the pool is kept in a heap buffer
+ */
+public class DirectBinaryBatch extends BinaryBatch {
+    private final ByteBuffer buffer;
+    private final DirectBufferPool pool;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    /**
+     * @param buffer Batch data between position and limit
+     * @param pool   Pool to return the buffer to or {@code null} if the buffer isn't pooled, e.g. a view of a mapped file
+     */
+    public DirectBinaryBatch(long batchId, ByteBuffer buffer, DirectBufferPool pool) {
+        super(batchId, null);
+        this.buffer = buffer;
+        this.pool = pool;
+    }
+
+    /**
+     * Copies the batch to heap
+     */
+    @Override public byte[] getBytes() {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    @Override public int getSize() {
+        return buffer.remaining();
+    }
+
+    @Override public ByteBuffer getByteBuffer() {
+        return buffer.duplicate();
+    }
+
+    @Override public boolean hasArray() {
+        return false;
+    }
+
+    @Override public void release() {
+        if (released.compareAndSet(false, true) && pool != null) {
+            pool.release(buffer);
+        }
+    }
+
+    @Override public String toString() {
+        return "DirectBinaryBatch{" +
+                "batchId=" + getBatchId() +
+                ", size=" + getSize() +
+                '}';
+    }
+}
@@ -0,0 +1,72 @@
+package com.appmetr.s2s;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes into a pooled direct buffer, moving to a bigger pooled one if the data doesn't fit.
+ * Data above the max buffer size of the pool moves to a heap buffer.
+ */
+public class DirectBufferOutputStream extends OutputStream {
+    protected final DirectBufferPool pool;
+    protected ByteBuffer buffer;
+
+    public DirectBufferOutputStream(DirectBufferPool pool) {
+        this.pool = pool;
+        buffer = pool.acquire();
+    }
+
+    @Override public void write(int b) {
+        ensureRemaining(1);
+        buffer.put((byte) b);
+    }
+
+    @Override public void write(byte[] b, int off, int len) {
+        ensureRemaining(len);
+        buffer.put(b, off, len);
+    }
+
+    public void write(ByteBuffer src) {
+        ensureRemaining(src.remaining());
+        buffer.put(src);
+    }
+
+    public int size() {
+        return buffer.position();
+    }
+
+    /**
+     * Hands the written data over to the caller. The stream must not be used afterwards.
+     *
+     * @return flipped buffer which should be returned with {@link DirectBufferPool#release(ByteBuffer)}
+     */
+    public ByteBuffer toByteBuffer() {
+        final ByteBuffer result = buffer;
+        buffer = null;
+        result.flip();
+        return result;
+    }
+
+    /**
+     * Returns the buffer to the pool if it hasn't been handed over
+     */
+    @Override public void close() {
+        if (buffer != null) {
+            pool.release(buffer);
+            buffer = null;
+        }
+    }
+
+    protected void ensureRemaining(int length) {
+        if (buffer.remaining() >= length) {
+            return;
+        }
+
+        final int capacity = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(buffer.capacity() * 2L, (long) buffer.position() + length));
+        final ByteBuffer newBuffer = pool.acquire(capacity);
+        buffer.flip();
+        newBuffer.put(buffer);
+        pool.release(buffer);
+        buffer = newBuffer;
+    }
+}
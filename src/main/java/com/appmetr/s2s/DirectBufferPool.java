@@ -0,0 +1,105 @@
+package com.appmetr.s2s;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pool of direct buffers for batches kept off heap. Buffers are pooled in size classes doubling from
+ * the buffer size up to the max buffer size, each class keeping about the same memory.
+ * Buffers of other capacity are not pooled and are freed by GC.
+ */
+public class DirectBufferPool {
+    public static final int DEFAULT_BUFFER_SIZE = 128 * 1024;
+    public static final int DEFAULT_MAX_POOLED = 32;
+    public static final int DEFAULT_SIZE_CLASSES = 4;
+
+    protected final int bufferSize;
+    protected final int maxBufferSize;
+    protected final List<BlockingQueue<ByteBuffer>> buffers = new ArrayList<>();
+
+    public DirectBufferPool() {
+        this(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOLED);
+    }
+
+    /**
+     * @param bufferSize Capacity of pooled buffers. Should fit a typical compressed batch
+     * @param maxPooled  Limit of idle buffers of the buffer size kept in the pool
+     */
+    public DirectBufferPool(int bufferSize, int maxPooled) {
+        this(bufferSize, maxPooled, DEFAULT_SIZE_CLASSES);
+    }
+
+    /**
+     * @param sizeClasses Number of pooled capacities, the largest one is {@code bufferSize << (sizeClasses - 1)}
+     */
+    public DirectBufferPool(int bufferSize, int maxPooled, int sizeClasses) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size should be positive: " + bufferSize);
+        }
+        if (sizeClasses <= 0 || (long) bufferSize << (sizeClasses - 1) > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Wrong number of size classes: " + sizeClasses);
+        }
+
+        this.bufferSize = bufferSize;
+        this.maxBufferSize = bufferSize << (sizeClasses - 1);
+        for (int i = 0; i < sizeClasses; i++) {
+            buffers.add(new ArrayBlockingQueue<>(Math.max(maxPooled >> i, 1)));
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getMaxBufferSize() {
+        return maxBufferSize;
+    }
+
+    public int getPooledBuffers() {
+        int pooled = 0;
+        for (BlockingQueue<ByteBuffer> classBuffers : buffers) {
+            pooled += classBuffers.size();
+        }
+        return pooled;
+    }
+
+    /**
+     * @return cleared buffer of {@link #getBufferSize()} capacity
+     */
+    public ByteBuffer acquire() {
+        return acquire(bufferSize);
+    }
+
+    /**
+     * @return cleared direct buffer of the smallest size class fitting the capacity,
+     * or a heap buffer of the capacity if it's above {@link #getMaxBufferSize()}
+     */
+    public ByteBuffer acquire(int capacity) {
+        if (capacity > maxBufferSize) {
+            return ByteBuffer.allocate(capacity);
+        }
+
+        int sizeClass = 0;
+        while (bufferSize << sizeClass < capacity) {
+            sizeClass++;
+        }
+        final ByteBuffer buffer = buffers.get(sizeClass).poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(bufferSize << sizeClass);
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            return;
+        }
+        for (int i = 0; i < buffers.size(); i++) {
+            if (buffer.capacity() == bufferSize << i) {
+                buffer.clear();
+                buffers.get(i).offer(buffer);
+                return;
+            }
+        }
+    }
+}
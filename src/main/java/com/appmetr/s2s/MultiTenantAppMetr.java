@@ -0,0 +1,326 @@
+package com.appmetr.s2s;
+
+import com.appmetr.s2s.events.Action;
+import com.appmetr.s2s.persister.AbstractHeapStorage;
+import com.appmetr.s2s.persister.ShardedHeapStorage;
+import com.appmetr.s2s.sender.BatchSender;
+import com.appmetr.s2s.sender.HttpBatchSender;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Tracks actions of many deploy tokens. Each token is a tenant batching its actions like a separate {@link AppMetr},
+ * but without threads of its own: batches are stored in a shard of one {@link ShardedHeapStorage} and uploaded
+ * by a fixed pool of upload threads shared by all tenants.
+ * <p>
+ * Upload threads take tenants in turn and make one upload attempt for a tenant at a time, so a tenant with
+ * a backlog doesn't hold up the others. A failed batch isn't retried on the thread: the tenant is released and
+ * skipped until its retry delay has passed. A tenant whose sender has thrown stops like an AppMetr and is
+ * skipped from then on.
+ */
+public class MultiTenantAppMetr {
+    private static final Logger log = LoggerFactory.getLogger(MultiTenantAppMetr.class);
+
+    protected static final long UPLOAD_IDLE_MILLIS = 100;
+
+    protected final String url;
+    protected ShardedHeapStorage storage = new ShardedHeapStorage(AbstractHeapStorage.DEFAULT_MAX_BYTES);
+    protected BatchSender batchSender = new HttpBatchSender();
+    protected Consumer<AppMetr> tenantConfigurer = appMetr -> {};
+    protected int uploadThreadsNumber = 2;
+
+    protected final Map<String, Tenant> tenants = new ConcurrentHashMap<>();
+    protected final List<Tenant> tenantList = new CopyOnWriteArrayList<>();
+    protected final AtomicInteger nextTenant = new AtomicInteger();
+    protected volatile boolean stopped = true;
+    protected volatile boolean tenantsStopped;
+    protected Thread[] uploadThreads;
+
+    public MultiTenantAppMetr(String url) {
+        this.url = url;
+    }
+
+    /**
+     * @param storage Storage shared by tenants, with a global memory budget and fair per tenant quotas
+     */
+    public void setStorage(ShardedHeapStorage storage) {
+        this.storage = storage;
+    }
+
+    public void setBatchSender(BatchSender batchSender) {
+        this.batchSender = batchSender;
+    }
+
+    /**
+     * @param tenantConfigurer Called for every new tenant to set batching and retry options,
+     *                         the storage and the sender are set afterwards
+     */
+    public void setTenantConfigurer(Consumer<AppMetr> tenantConfigurer) {
+        this.tenantConfigurer = tenantConfigurer;
+    }
+
+    /**
+     * @param uploadThreads Number of threads uploading batches of all tenants
+     */
+    public void setUploadThreads(int uploadThreads) {
+        if (uploadThreads < 1) {
+            throw new IllegalArgumentException("Upload threads number should be positive: " + uploadThreads);
+        }
+
+        this.uploadThreadsNumber = uploadThreads;
+    }
+
+    public ShardedHeapStorage getStorage() {
+        return storage;
+    }
+
+    public synchronized void start() {
+        if (!stopped) {
+            throw new IllegalStateException("Appmetr is in running state");
+        }
+
+        stopped = false;
+        tenantsStopped = false;
+        uploadThreads = new Thread[uploadThreadsNumber];
+        for (int i = 0; i < uploadThreadsNumber; i++) {
+            uploadThreads[i] = new Thread(this::upload, "appmetr-upload-shared-" + (i + 1));
+            uploadThreads[i].setUncaughtExceptionHandler((t, e) -> log.error("Uncaught upload exception", e));
+            uploadThreads[i].start();
+        }
+    }
+
+    /**
+     * Stops tenants, storing their actions, and waits until all batches are uploaded
+     */
+    public synchronized void stop() {
+        stopped = true;
+        for (Tenant tenant : tenantList) {
+            tenant.stop();
+        }
+        // upload threads finish once the last batches of all tenants are stored and uploaded
+        tenantsStopped = true;
+
+        try {
+            for (Thread uploadThread : uploadThreads) {
+                uploadThread.join();
+            }
+        } catch (InterruptedException e) {
+            log.error("AppMetr stopping was interrupted", e);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops without uploading stored batches
+     */
+    public synchronized void hardStop() {
+        for (Tenant tenant : tenantList) {
+            tenant.hardStop = true;
+        }
+        for (Thread uploadThread : uploadThreads) {
+            uploadThread.interrupt();
+        }
+        stop();
+    }
+
+    /**
+     * Tracks the action of the tenant, a new tenant is started on its first action
+     *
+     * @return {@code false} if the last batch of the tenant couldn't be stored
+     */
+    public boolean track(String token, Action action) throws InterruptedException, IOException {
+        return getTenant(token).track(action);
+    }
+
+    /**
+     * Flushes tenants whose batch thresholds are reached, e.g. by flush period
+     */
+    public void flushIfNeeded() throws InterruptedException, IOException {
+        for (Tenant tenant : tenantList) {
+            if (!tenant.isStopped()) {
+                tenant.flushIfNeeded();
+            }
+        }
+    }
+
+    public void flush() throws InterruptedException, IOException {
+        for (Tenant tenant : tenantList) {
+            if (!tenant.isStopped()) {
+                tenant.flush();
+            }
+        }
+    }
+
+    /**
+     * @return the tenant of the token, created and started on the first call
+     */
+    public AppMetr getTenant(String token) {
+        if (stopped) {
+            throw new IllegalStateException("Appmetr is in stopped state");
+        }
+
+        final Tenant tenant = tenants.get(token);
+        return tenant != null ? tenant : newTenant(token);
+    }
+
+    /**
+     * Creates tenants under the lock of stop(), so a tenant is either created before stop() and stopped by it,
+     * or not created at all
+     */
+    protected synchronized Tenant newTenant(String token) {
+        if (stopped) {
+            throw new IllegalStateException("Appmetr is in stopped state");
+        }
+
+        return tenants.computeIfAbsent(token, this::createTenant);
+    }
+
+    public int getTenantsNumber() {
+        return tenants.size();
+    }
+
+    protected Tenant createTenant(String token) {
+        final Tenant tenant = new Tenant(token, url);
+        tenantConfigurer.accept(tenant);
+        tenant.setBatchStorage(storage.shard(token));
+        tenant.setBatchSender(batchSender);
+        tenant.start();
+        tenantList.add(tenant);
+        return tenant;
+    }
+
+    protected void upload() {
+        log.trace("Shared upload starting");
+
+        int uploadedBatchCounter = 0;
+        while (true) {
+            final Tenant tenant = claimTenant();
+            if (tenant == null) {
+                if (tenantsStopped && isUploadFinished()) {
+                    break;
+                }
+                try {
+                    storage.awaitBatches(idleNanos(), TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    log.trace("Shared upload was interrupted");
+                }
+                continue;
+            }
+
+            try {
+                if (tenant.uploadNext()) {
+                    uploadedBatchCounter++;
+                }
+            } catch (InterruptedException e) {
+                log.trace("Shared upload was interrupted");
+            } catch (IOException e) {
+                log.error("Error while reading batch of {}", tenant.token, e);
+            } finally {
+                tenant.uploading.set(false);
+            }
+        }
+
+        log.info("{} batches uploaded", uploadedBatchCounter);
+    }
+
+    /**
+     * Takes the next tenant in turn which has batches and isn't uploaded by another thread
+     *
+     * @return null if there is no such tenant
+     */
+    protected Tenant claimTenant() {
+        final int size = tenantList.size();
+        final int start = nextTenant.getAndIncrement();
+        for (int i = 0; i < size; i++) {
+            final Tenant tenant = tenantList.get(Math.floorMod(start + i, size));
+            if (tenant.lastUploadThrowable == null && !tenant.shouldInterrupt()
+                    && tenant.uploading.compareAndSet(false, true)) {
+                // the storage may have been emptied by another thread before the claim
+                if (!tenant.batchStorage.isEmpty() && tenant.isRetryDue()) {
+                    return tenant;
+                }
+                tenant.uploading.set(false);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return how long an upload thread without a tenant to claim waits, until the earliest retry at most
+     */
+    protected long idleNanos() {
+        long idleNanos = TimeUnit.MILLISECONDS.toNanos(UPLOAD_IDLE_MILLIS);
+        final long now = System.nanoTime();
+        for (Tenant tenant : tenantList) {
+            final long retryNanos = tenant.retryAtNanos - now;
+            if (tenant.failedAttempts > 0 && retryNanos < idleNanos) {
+                idleNanos = Math.max(retryNanos, 1);
+            }
+        }
+        return idleNanos;
+    }
+
+    protected boolean isUploadFinished() {
+        for (Tenant tenant : tenantList) {
+            if (tenant.lastUploadThrowable == null && !tenant.shouldInterrupt()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * AppMetr of one token, its batches are uploaded by the shared upload threads
+     */
+    protected static class Tenant extends AppMetr {
+        protected final AtomicBoolean uploading = new AtomicBoolean();
+        // attempts and the retry time of the head batch, volatile as they are read by threads not uploading the tenant
+        protected volatile int failedAttempts;
+        protected volatile long retryAtNanos;
+
+        protected Tenant(String token, String url) {
+            super(token, url);
+        }
+
+        /**
+         * Makes one upload attempt of the next batch, called by the thread which has claimed the tenant
+         *
+         * @return {@code true} if the batch has been uploaded
+         */
+        protected boolean uploadNext() throws InterruptedException, IOException {
+            final int attempt = failedAttempts + 1;
+            failedAttempts = 0;
+            return uploadBatch(batchStorage.get(), attempt);
+        }
+
+        protected boolean isRetryDue() {
+            return failedAttempts == 0 || System.nanoTime() - retryAtNanos >= 0;
+        }
+
+        /**
+         * Gives up the shared thread instead of sleeping, the batch is retried on a later turn after the delay
+         */
+        @Override protected boolean awaitRetry(BinaryBatch binaryBatch, int attempt, Duration delay) {
+            retryAtNanos = System.nanoTime() + delay.toNanos();
+            failedAttempts = attempt;
+            return false;
+        }
+
+        @Override protected void startUpload() {
+        }
+
+        @Override protected void stopUpload() {
+        }
+    }
+}
@@ -1,30 +1,42 @@
 package com.appmetr.s2s;
 
-import com.appmetr.s2s.events.Action;
+import com.appmetr.s2s.events.*;
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.PropertyAccessor;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.ObjectCodec;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.*;
 import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
 import com.fasterxml.jackson.databind.module.SimpleModule;
 import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.Inflater;
-import java.util.zip.InflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 public class SerializationUtils {
     private static final String CLASS_NAME = "cls";
     private static final String INSTANCE = "inst";
     public static final ObjectMapper objectMapper;
     public static final ObjectMapper objectMapperTyped;
+    protected static final ObjectWriter actionWriter;
+    protected static final ObjectWriter batchWriter;
+    protected static final ObjectWriter batchWriterTyped;
 
     static {
         objectMapper = new ObjectMapper()
@@ -32,48 +44,228 @@ public class SerializationUtils {
                 .setVisibility(PropertyAccessor.ALL, JsonAutoDetect.Visibility.NONE)
                 .setVisibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.ANY)
                 .addMixIn(Action.class, ActionMixin.class);
+        actionWriter = objectMapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
         objectMapperTyped = objectMapper.copy();
         final SimpleModule module = new SimpleModule();
         module.addSerializer(Action.class, new ActionJsonSerializer());
         module.addDeserializer(Action.class, new ActionJsonDeserializer());
         objectMapperTyped.registerModule(module);
+        batchWriter = objectMapper.writer().without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        batchWriterTyped = objectMapperTyped.writer().without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
     }
 
     public static byte[] serializeJsonGzip(Batch batch, boolean withType) {
+        return serializeJsonGzip(batch, withType, DeflateCodec.DEFAULT);
+    }
+
+    public static byte[] serializeJsonGzip(Batch batch, boolean withType, DeflateCodec codec) {
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream(codec.getBufferSize())) {
+
+            writeJsonGzip(baos, batch, withType, codec);
+
+            return baos.toByteArray();
+
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Streams the compressed batch straight into a pooled direct buffer without a heap copy of the batch
+     *
+     * @return flipped buffer which should be returned to the pool
+     */
+    public static ByteBuffer serializeJsonGzip(Batch batch, boolean withType, DeflateCodec codec, DirectBufferPool bufferPool) {
+        try (DirectBufferOutputStream out = new DirectBufferOutputStream(bufferPool)) {
 
-        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
-             DeflaterOutputStream gzos = new DeflaterOutputStream(baos, new Deflater(Deflater.BEST_COMPRESSION, true))) {
+            writeJsonGzip(out, batch, withType, codec);
 
+            return out.toByteBuffer();
+
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    protected static void writeJsonGzip(OutputStream out, Batch batch, boolean withType, DeflateCodec codec) throws IOException {
+        final Deflater deflater = codec.acquireDeflater();
+        try {
+            final DeflaterOutputStream gzos = new DeflaterOutputStream(out, deflater, codec.getBufferSize());
             if (withType) {
-                objectMapperTyped.writeValue(gzos, batch);
+                batchWriterTyped.writeValue(gzos, batch);
             } else {
-                objectMapper.writeValue(gzos, batch);
+                batchWriter.writeValue(gzos, batch);
             }
 
             gzos.finish();
 
+        } finally {
+            codec.releaseDeflater(deflater);
+        }
+    }
+
+    public static byte[] serializeJsonGzipActions(Collection<Action> actions) {
+        return serializeJsonGzipActions(actions, DeflateCodec.DEFAULT);
+    }
+
+    /**
+     * Serializes and compresses the actions array of a batch. The result doesn't depend on batch id and server id
+     * and can be turned into a complete batch with {@link #serializeJsonGzip(String, long, byte[], DeflateCodec)}.
+     */
+    public static byte[] serializeJsonGzipActions(Collection<Action> actions, DeflateCodec codec) {
+        final Deflater deflater = codec.acquireDeflater();
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream(codec.getBufferSize());
+             DeflaterOutputStream gzos = new DeflaterOutputStream(baos, deflater, codec.getBufferSize());
+             JsonGenerator gen = objectMapper.getFactory().createGenerator(gzos)) {
+
+            gen.writeStartArray();
+            for (Action action : actions) {
+                actionWriter.writeValue(gen, action);
+            }
+            gen.writeEndArray();
+            gen.writeRaw('}');
+            gen.flush();
+
+            gzos.finish();
+
             return baos.toByteArray();
 
         } catch (Exception e) {
             throw new RuntimeException(e);
+        } finally {
+            codec.releaseDeflater(deflater);
         }
     }
 
-    public static Batch deserializeJsonGzip(byte[] deflatedBytes) {
-        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
-             InflaterOutputStream uzos = new InflaterOutputStream(baos, new Inflater(true))) {
+    public static byte[] serializeJsonGzip(String serverId, long batchId, byte[] serializedActions) {
+        return serializeJsonGzip(serverId, batchId, serializedActions, DeflateCodec.DEFAULT);
+    }
+
+    /**
+     * Makes the same batch as {@link #serializeJsonGzip(Batch, boolean, DeflateCodec)} without type info.
+     * The batch header is compressed into a non-final deflate block which is followed by the independently
+     * compressed actions, so the heavy part is not recompressed.
+     *
+     * @param serializedActions result of {@link #serializeJsonGzipActions(Collection, DeflateCodec)}
+     */
+    public static byte[] serializeJsonGzip(String serverId, long batchId, byte[] serializedActions, DeflateCodec codec) {
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream(serializedActions.length + 64)) {
+
+            writeJsonGzipHeader(baos, serverId, batchId, codec);
+            baos.write(serializedActions);
 
-            uzos.write(deflatedBytes);
+            return baos.toByteArray();
+
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Same as {@link #serializeJsonGzip(String, long, byte[], DeflateCodec)} but into a pooled direct buffer
+     *
+     * @return flipped buffer which should be returned to the pool
+     */
+    public static ByteBuffer serializeJsonGzip(String serverId, long batchId, byte[] serializedActions, DeflateCodec codec,
+                                               DirectBufferPool bufferPool) {
+        try (DirectBufferOutputStream out = new DirectBufferOutputStream(bufferPool)) {
 
-            uzos.finish();
+            writeJsonGzipHeader(out, serverId, batchId, codec);
+            out.write(serializedActions);
 
-            return objectMapperTyped.readValue(baos.toByteArray(), Batch.class);
+            return out.toByteBuffer();
 
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
+    protected static void writeJsonGzipHeader(OutputStream out, String serverId, long batchId, DeflateCodec codec) throws IOException {
+        final Deflater deflater = codec.acquireDeflater();
+        try {
+            final StringBuilder header = new StringBuilder(64).append('{');
+            if (serverId != null) {
+                header.append("\"serverId\":").append(objectMapper.writeValueAsString(serverId)).append(',');
+            }
+            header.append("\"batchId\":").append(batchId).append(",\"batch\":");
+
+            deflater.setInput(header.toString().getBytes(StandardCharsets.UTF_8));
+            final byte[] buffer = new byte[256];
+            while (true) {
+                final int length = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                out.write(buffer, 0, length);
+                if (length < buffer.length) {
+                    break;
+                }
+            }
+
+        } finally {
+            codec.releaseDeflater(deflater);
+        }
+    }
+
+    public static Batch deserializeJsonGzip(byte[] deflatedBytes) {
+        return deserializeJsonGzip(deflatedBytes, DeflateCodec.DEFAULT);
+    }
+
+    public static Batch deserializeJsonGzip(byte[] deflatedBytes, DeflateCodec codec) {
+        final Inflater inflater = codec.acquireInflater();
+        try (InflaterInputStream uzis = new InflaterInputStream(new ByteArrayInputStream(deflatedBytes), inflater, codec.getBufferSize())) {
+
+            return objectMapperTyped.readValue(uzis, Batch.class);
+
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            codec.releaseInflater(inflater);
+        }
+    }
+
+    /**
+     * Resolves {@value #CLASS_NAME} values to action classes once per class instead of once per action
+     */
+    static class ActionClassRegistry {
+        private static final String EVENTS_PACKAGE = Action.class.getPackage().getName() + ".";
+
+        private static final ConcurrentMap<String, Class<? extends Action>> classes = new ConcurrentHashMap<>();
+        private static final ConcurrentMap<Class<?>, ObjectWriter> writers = new ConcurrentHashMap<>();
+        private static final ConcurrentMap<Class<?>, ObjectReader> readers = new ConcurrentHashMap<>();
+
+        static {
+            for (Class<? extends Action> aClass : Arrays.asList(Event.class, Payment.class, Refund.class,
+                    AttachProperties.class, AttachEntityAttributes.class, AddToPropertiesValue.class)) {
+                classes.put(aClass.getSimpleName(), aClass);
+            }
+        }
+
+        static Class<? extends Action> forName(String className) {
+            final Class<? extends Action> aClass = classes.get(className);
+            if (aClass != null) {
+                return aClass;
+            }
+
+            try {
+                final Class<? extends Action> loadedClass = Class.forName(EVENTS_PACKAGE + className).asSubclass(Action.class);
+                classes.putIfAbsent(className, loadedClass);
+                return loadedClass;
+
+            } catch (ClassNotFoundException | ClassCastException e) {
+                throw new RuntimeException("Couldn't find class " + className);
+            }
+        }
+
+        static ObjectWriter writer(Class<?> aClass) {
+            return writers.computeIfAbsent(aClass, actionWriter::forType);
+        }
+
+        static ObjectReader reader(Class<?> aClass) {
+            return readers.computeIfAbsent(aClass, objectMapper::readerFor);
+        }
+    }
+
+    /**
+     * Writes the action straight into the generator of the enclosing batch
+     */
     static class ActionJsonSerializer extends StdSerializer<Action> {
 
         ActionJsonSerializer() {
@@ -84,11 +276,15 @@ public class SerializationUtils {
             gen.writeStartObject();
             gen.writeStringField(CLASS_NAME, action.getClass().getSimpleName());
             gen.writeFieldName(INSTANCE);
-            gen.writeRawValue(objectMapper.writeValueAsString(action));
+            ActionClassRegistry.writer(action.getClass()).writeValue(gen, action);
             gen.writeEndObject();
         }
     }
 
+    /**
+     * Reads the action straight from the parser when {@value #CLASS_NAME} goes first as written by
+     * {@link ActionJsonSerializer}, otherwise the instance is buffered until its class is known
+     */
     static class ActionJsonDeserializer extends StdDeserializer<Action> {
 
         ActionJsonDeserializer() {
@@ -96,24 +292,43 @@ public class SerializationUtils {
         }
 
         @Override public Action deserialize(JsonParser p, DeserializationContext ctxt) throws IOException, JsonProcessingException {
-            final ObjectCodec oc = p.getCodec();
-            final JsonNode node = oc.readTree(p);
-
-            if (!node.has(CLASS_NAME) || !node.has(INSTANCE)) {
-                throw new IllegalArgumentException("Can't deserialize object without " + CLASS_NAME + " or " + INSTANCE + " property: " + node);
+            JsonToken token = p.getCurrentToken();
+            if (token == JsonToken.START_OBJECT) {
+                token = p.nextToken();
             }
 
-            final String className = node.get(CLASS_NAME).textValue();
-            final JsonNode action = node.get(INSTANCE);
-            try {
-                @SuppressWarnings("unchecked")
-                final Class<? extends Action> aClass = (Class<? extends Action>) Class.forName(Action.class.getPackage().getName() + "." + className);
+            Class<? extends Action> aClass = null;
+            Action action = null;
+            TokenBuffer bufferedInstance = null;
 
-                return objectMapper.treeToValue(action, aClass);
+            for (; token == JsonToken.FIELD_NAME; token = p.nextToken()) {
+                final String fieldName = p.getCurrentName();
+                p.nextToken();
 
-            } catch (ClassNotFoundException e) {
-                throw new RuntimeException("Couldn't find class " + className);
+                if (CLASS_NAME.equals(fieldName)) {
+                    aClass = ActionClassRegistry.forName(p.getValueAsString());
+                } else if (INSTANCE.equals(fieldName) && aClass != null) {
+                    action = ActionClassRegistry.reader(aClass).readValue(p);
+                } else if (INSTANCE.equals(fieldName)) {
+                    bufferedInstance = new TokenBuffer(p, ctxt);
+                    bufferedInstance.copyCurrentStructure(p);
+                } else {
+                    p.skipChildren();
+                }
             }
+
+            if (action == null && aClass != null && bufferedInstance != null) {
+                try (JsonParser bufferedParser = bufferedInstance.asParser(p.getCodec())) {
+                    bufferedParser.nextToken();
+                    action = ActionClassRegistry.reader(aClass).readValue(bufferedParser);
+                }
+            }
+
+            if (action == null) {
+                throw new IllegalArgumentException("Can't deserialize object without " + CLASS_NAME + " or " + INSTANCE + " property at " + p.getCurrentLocation());
+            }
+
+            return action;
         }
     }
 
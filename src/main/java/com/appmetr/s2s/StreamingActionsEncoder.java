@@ -0,0 +1,170 @@
+package com.appmetr.s2s;
+
+import com.appmetr.s2s.events.Action;
+import com.appmetr.s2s.persister.PreEncodingBatchFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Compresses actions one by one as they are tracked, producing the same encoded actions as
+ * {@link SerializationUtils#serializeJsonGzipActions(Collection, DeflateCodec)}, so a batch can be cut by its
+ * compressed size and made with {@link PreEncodingBatchFactory#createBatch(byte[], long, String)}.
+ * <p>
+ * The deflater emits output a block at a time, so the compressed size of the input it still holds
+ * is projected with the compression ratio seen so far. Not thread safe.
+ */
+public class StreamingActionsEncoder implements Closeable {
+    /**
+     * Used until the first deflate block is written, JSON of typical actions compresses about 10 times
+     */
+    public static final double DEFAULT_COMPRESSION_RATIO = 0.1;
+
+    protected final DeflateCodec codec;
+    protected final JsonBuffer jsonBuffer;
+    protected final ByteArrayOutputStream out;
+    protected JsonGenerator generator;
+    protected Deflater deflater;
+    protected DeflaterOutputStream deflaterOut;
+    protected int actionsNumber;
+    protected long writtenBytes;
+    protected long readWhenWritten;
+    protected double compressionRatio = DEFAULT_COMPRESSION_RATIO;
+    protected long finishedJsonBytes;
+
+    public StreamingActionsEncoder(DeflateCodec codec) {
+        this.codec = codec;
+        jsonBuffer = new JsonBuffer(codec.getBufferSize());
+        out = new ByteArrayOutputStream(codec.getBufferSize());
+    }
+
+    /**
+     * An action which fails to serialize is left out of the batch
+     */
+    public void add(Action action) throws IOException {
+        if (deflater == null) {
+            deflater = codec.acquireDeflater();
+            deflaterOut = new DeflaterOutputStream(out, deflater, codec.getBufferSize());
+            writtenBytes = 0;
+            readWhenWritten = 0;
+            jsonBuffer.write('[');
+        }
+        if (generator == null) {
+            generator = SerializationUtils.objectMapper.getFactory().createGenerator(jsonBuffer);
+            generator.setRootValueSeparator(null);
+        }
+
+        final int mark = jsonBuffer.size();
+        if (actionsNumber > 0) {
+            jsonBuffer.write(',');
+        }
+        try {
+            SerializationUtils.actionWriter.writeValue(generator, action);
+            generator.flush();
+        } catch (IOException | RuntimeException e) {
+            jsonBuffer.truncate(mark);
+            // the generator state is undefined after a failure
+            generator = null;
+            throw e;
+        }
+        actionsNumber++;
+
+        if (jsonBuffer.size() >= codec.getBufferSize()) {
+            jsonBuffer.writeTo(deflaterOut);
+            jsonBuffer.reset();
+
+            if (out.size() != writtenBytes) {
+                // a block has just been written, it covers about all the input read so far
+                writtenBytes = out.size();
+                readWhenWritten = deflater.getBytesRead();
+                compressionRatio = (double) writtenBytes / readWhenWritten;
+            }
+        }
+    }
+
+    public int getActionsNumber() {
+        return actionsNumber;
+    }
+
+    /**
+     * @return compressed size of the actions added since the last {@link #finish()}, the part still held
+     * by the deflater is projected
+     */
+    public long getCompressedBytes() {
+        if (actionsNumber == 0) {
+            return 0;
+        }
+
+        final long pending = deflater.getBytesRead() - readWhenWritten + jsonBuffer.size();
+        return writtenBytes + (long) (pending * compressionRatio);
+    }
+
+    /**
+     * Completes the encoded actions and starts a new batch
+     *
+     * @return encoded actions or null if nothing was added
+     */
+    public byte[] finish() throws IOException {
+        if (actionsNumber == 0) {
+            return null;
+        }
+
+        try {
+            jsonBuffer.write(']');
+            jsonBuffer.write('}');
+            jsonBuffer.writeTo(deflaterOut);
+            deflaterOut.finish();
+
+            finishedJsonBytes = deflater.getBytesRead();
+            compressionRatio = (double) deflater.getBytesWritten() / finishedJsonBytes;
+            return out.toByteArray();
+
+        } finally {
+            reset();
+        }
+    }
+
+    /**
+     * @return uncompressed size of the actions returned by the last {@link #finish()}
+     */
+    public long getFinishedJsonBytes() {
+        return finishedJsonBytes;
+    }
+
+    protected void reset() {
+        if (deflater != null) {
+            codec.releaseDeflater(deflater);
+        }
+        deflater = null;
+        deflaterOut = null;
+        jsonBuffer.reset();
+        out.reset();
+        actionsNumber = 0;
+    }
+
+    /**
+     * Drops actions added since the last {@link #finish()}
+     */
+    @Override public void close() {
+        reset();
+    }
+
+    /**
+     * Collects serialized actions before compression, so a failed action can be cut off
+     */
+    protected static class JsonBuffer extends ByteArrayOutputStream {
+
+        protected JsonBuffer(int size) {
+            super(size);
+        }
+
+        protected void truncate(int size) {
+            count = size;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.appmetr.s2s;
+
+import com.appmetr.s2s.events.Action;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lock-free multi-producer buffer of tracked actions.
+ * Producers are spread over several stripes by thread id and never block each other for longer than a single CAS.
+ * Draining is single-consumer: only one thread at a time may call {@link #drainTo(Collection, int, long)}.
+ * Actions of the same thread are always drained in the order they were added.
+ */
+public class StripedActionBuffer {
+
+    protected final Stripe[] stripes;
+    protected final int mask;
+    protected final AtomicInteger actionsNumber = new AtomicInteger();
+    protected final AtomicLong actionsBytes = new AtomicLong();
+    protected int drainStripe;
+
+    public StripedActionBuffer() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param stripes Number of stripes. Rounded up to a power of two
+     */
+    public StripedActionBuffer(int stripes) {
+        if (stripes <= 0) {
+            throw new IllegalArgumentException("Stripes number should be positive: " + stripes);
+        }
+
+        final int size = stripes == 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+        this.stripes = new Stripe[size];
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new Stripe();
+        }
+        mask = size - 1;
+    }
+
+    public void add(Action action, int size) {
+        stripes[(int) Thread.currentThread().getId() & mask].add(new Node(action, size));
+        actionsBytes.addAndGet(size);
+        actionsNumber.incrementAndGet();
+    }
+
+    /**
+     * Moves actions to the target collection until the buffer is empty or one of the limits is reached.
+     * As for a single-threaded batch, the last moved action can exceed {@code maxBytes}.
+     * Must not be called concurrently.
+     *
+     * @param maxActions Limit of moved actions. Non positive value means unlimited
+     * @return moved bytes
+     */
+    public long drainTo(Collection<Action> target, int maxActions, long maxBytes) {
+        int actions = 0;
+        long bytes = 0;
+        int emptyStripes = 0;
+
+        while (emptyStripes < stripes.length && bytes < maxBytes && (maxActions <= 0 || actions < maxActions)) {
+            final Node node = stripes[drainStripe].poll();
+            if (node == null) {
+                emptyStripes++;
+                drainStripe = (drainStripe + 1) & mask;
+                continue;
+            }
+
+            emptyStripes = 0;
+            target.add(node.action);
+            node.action = null;
+            actions++;
+            bytes += node.size;
+        }
+
+        actionsNumber.addAndGet(-actions);
+        actionsBytes.addAndGet(-bytes);
+
+        return bytes;
+    }
+
+    public int getActionsNumber() {
+        return actionsNumber.get();
+    }
+
+    public long getActionsBytes() {
+        return actionsBytes.get();
+    }
+
+    public boolean isEmpty() {
+        return actionsNumber.get() <= 0;
+    }
+
+    protected static class Node {
+        Action action;
+        final int size;
+        volatile Node next;
+
+        Node(Action action, int size) {
+            this.action = action;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Intrusive MPSC linked queue: producers swap the tail, the single consumer follows next links from the head
+     */
+    protected static class Stripe {
+        protected final AtomicReference<Node> tail;
+        protected Node head;
+
+        Stripe() {
+            head = new Node(null, 0);
+            tail = new AtomicReference<>(head);
+        }
+
+        void add(Node node) {
+            tail.getAndSet(node).next = node;
+        }
+
+        Node poll() {
+            final Node next = head.next;
+            if (next == null) {
+                return null;
+            }
+
+            head = next;
+            return next;
+        }
+    }
+}
@@ -1,10 +1,13 @@
 package com.appmetr.s2s.events;
 
 import java.time.Instant;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.RandomAccess;
 
 public abstract class Action {
     private String action;
@@ -48,23 +51,127 @@ public abstract class Action {
         return this;
     }
 
+    /**
+     * Estimates the serialized JSON size of the action without building strings for property values.
+     * Numbers, booleans, collections and maps are measured by type, other values fall back to toString().
+     */
     public int calcApproximateSize() {
-        int size = 40 + (40 * properties.size()); //40 - Map size and 40 - each entry overhead
+        int size = 1; // {
 
-        size += getStringLength(action);
-        size += getStringLength(String.valueOf(timestamp));
-        size += getStringLength(userId);
+        size += getFieldLength("action", action);
+        size += getFieldLength("timestamp", timestamp);
+        if (userTime != 0) {
+            size += getFieldLength("userTime", userTime);
+        }
+        size += getFieldLength("userId", userId);
+        if (properties != null) {
+            size += "properties".length() + 4 + getMapLength(properties);
+        }
+
+        return size;
+    }
+
+    /**
+     * @return length of {@code "name":"value",} or 0 for a null value which isn't serialized
+     */
+    protected int getFieldLength(String name, String value) {
+        return value == null ? 0 : name.length() + 4 + value.length() + 2;
+    }
+
+    protected int getFieldLength(String name, long value) {
+        return name.length() + 4 + getNumberLength(value);
+    }
+
+    protected int getFieldLength(String name, Object value) {
+        return value == null ? 0 : name.length() + 4 + getValueLength(value);
+    }
 
-        for (Map.Entry<String, Object> entry : properties.entrySet()) {
-            size += getStringLength(entry.getKey());
-            size += getStringLength(entry.getValue() != null ? entry.getValue().toString() : null);   //toString because sending this object via json
+    protected static int getValueLength(Object value) {
+        if (value == null) {
+            return 4;
+        } else if (value instanceof String) {
+            return ((String) value).length() + 2;
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return getNumberLength(((Number) value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            return getDecimalLength(((Number) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            return (Boolean) value ? 4 : 5;
+        } else if (value instanceof Map) {
+            return getMapLength((Map<?, ?>) value);
+        } else if (value instanceof List && value instanceof RandomAccess) {
+            final List<?> list = (List<?>) value;
+            int size = 1 + list.size();
+            for (int i = 0; i < list.size(); i++) {
+                size += getValueLength(list.get(i));
+            }
+            return size;
+        } else if (value instanceof Collection) {
+            final Collection<?> collection = (Collection<?>) value;
+            int size = 1 + collection.size();
+            for (Object element : collection) {
+                size += getValueLength(element);
+            }
+            return size;
+        } else if (value instanceof Object[]) {
+            final Object[] array = (Object[]) value;
+            int size = 1 + array.length;
+            for (Object element : array) {
+                size += getValueLength(element);
+            }
+            return size;
+        } else if (value instanceof Enum) {
+            return ((Enum<?>) value).name().length() + 2;
+        } else if (value instanceof Date) {
+            return getNumberLength(((Date) value).getTime());
         }
+        return value.toString().length() + 2;
+    }
 
-        return 8 + size + 8; //8 - object header
+    /**
+     * Null values are skipped like the serializer does
+     */
+    protected static int getMapLength(Map<?, ?> map) {
+        int size = 1; // { and } or a comma after each entry
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            final Object value = entry.getValue();
+            if (value != null) {
+                final Object key = entry.getKey();
+                size += (key instanceof String ? ((String) key).length() : String.valueOf(key).length()) + 4;
+                size += getValueLength(value);
+            }
+        }
+        return Math.max(size, 2);
     }
 
-    protected int getStringLength(String str) {
-        return str == null ? 0 : str.length() * Character.BYTES + 24 + 16;    //24 - String object size, 16 - char[]
+    protected static int getNumberLength(long value) {
+        if (value == Long.MIN_VALUE) {
+            return 20;
+        }
+        int length = 1;
+        if (value < 0) {
+            length++;
+            value = -value;
+        }
+        while (value >= 10) {
+            value /= 10;
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Exact for values with up to two fraction digits, like amounts, and the longest form for the rest
+     */
+    protected static int getDecimalLength(double value) {
+        final double scaled = value * 100;
+        if (Math.abs(scaled) < 1e15 && scaled == Math.rint(scaled)) {
+            final long cents = (long) scaled;
+            // integral part, point and one or two fraction digits
+            final int fractionLength = cents % 10 != 0 ? 2 : 1;
+            return getNumberLength(cents / 100) + (cents < 0 && cents > -100 ? 1 : 0) + 1 + fractionLength;
+        }
+        return Double.isFinite(value) ? 20 : 5;
     }
 
     @Override public boolean equals(Object o) {
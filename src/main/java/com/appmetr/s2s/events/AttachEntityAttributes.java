@@ -14,6 +14,12 @@ public class AttachEntityAttributes extends Action {
         this.entityValue = entityValue;
     }
 
+    @Override public int calcApproximateSize() {
+        return super.calcApproximateSize()
+                + getFieldLength("entityName", entityName)
+                + getFieldLength("entityValue", entityValue);
+    }
+
     @Override public boolean equals(Object o) {
         if (this == o) return true;
         if (!(o instanceof AttachEntityAttributes)) return false;
@@ -22,7 +22,7 @@ public class Event extends Action {
     }
 
     @Override public int calcApproximateSize() {
-        return super.calcApproximateSize() + getStringLength(event);
+        return super.calcApproximateSize() + getFieldLength("event", event);
     }
 
     @Override public boolean equals(Object o) {
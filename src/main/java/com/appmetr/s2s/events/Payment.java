@@ -97,14 +97,15 @@ public class Payment extends Action {
 
     @Override public int calcApproximateSize() {
         return super.calcApproximateSize()
-                + getStringLength(orderId)
-                + getStringLength(transactionId)
-                + getStringLength(processor)
-                + getStringLength(psUserSpentCurrencyCode)
-                + getStringLength(psUserSpentCurrencyAmount)
-                + getStringLength(appCurrencyCode)
-                + getStringLength(appCurrencyAmount)
-                + getStringLength(psUserStoreCountryCode);
+                + getFieldLength("orderId", orderId)
+                + getFieldLength("transactionId", transactionId)
+                + getFieldLength("processor", processor)
+                + getFieldLength("psUserSpentCurrencyCode", psUserSpentCurrencyCode)
+                + getFieldLength("psUserSpentCurrencyAmount", psUserSpentCurrencyAmount)
+                + getFieldLength("appCurrencyCode", appCurrencyCode)
+                + getFieldLength("appCurrencyAmount", appCurrencyAmount)
+                + getFieldLength("psUserStoreCountryCode", psUserStoreCountryCode)
+                + getFieldLength("isSandbox", sandbox);
     }
 
     @Override public boolean equals(Object o) {
@@ -37,8 +37,8 @@ public class Refund extends Action {
 
     @Override public int calcApproximateSize() {
         return super.calcApproximateSize()
-                + getStringLength(transactionId)
-                + Long.BYTES;
+                + getFieldLength("transactionId", transactionId)
+                + getFieldLength("cancellationDateMs", cancellationDateMs);
     }
 
     @Override public boolean equals(Object o) {
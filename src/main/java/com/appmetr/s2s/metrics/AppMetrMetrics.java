@@ -0,0 +1,56 @@
+package com.appmetr.s2s.metrics;
+
+import com.appmetr.s2s.persister.BatchStorage;
+
+/**
+ * Receives measurements of tracking, encoding and uploading. Methods are called on hot paths from tracking,
+ * encoder and upload threads at once, so implementations should neither block nor allocate.
+ * All of them do nothing by default, see {@link InMemoryMetrics}.
+ */
+public interface AppMetrMetrics {
+    AppMetrMetrics NOOP = new AppMetrMetrics() {
+    };
+
+    /**
+     * Called on start with the storage whose depth can be read on demand
+     */
+    default void bind(BatchStorage batchStorage) {
+    }
+
+    /**
+     * @param nanos Time of a track() call including waiting for the lock and flushing a batch
+     */
+    default void tracked(long nanos) {
+    }
+
+    /**
+     * @param nanos Time of storing a batch including encoding and waiting for storage space
+     * @param stored {@code false} if the storage rejected the batch
+     */
+    default void flushed(long nanos, boolean stored) {
+    }
+
+    /**
+     * @param jsonBytes Serialized, maybe estimated, size of the batch actions before compression
+     */
+    default void encoded(long nanos, long jsonBytes, int batchBytes) {
+    }
+
+    /**
+     * @param nanos Time of an upload attempt
+     */
+    default void uploaded(long nanos, int batchBytes, boolean success) {
+    }
+
+    /**
+     * Called when a failed upload is going to be retried
+     */
+    default void retried() {
+    }
+
+    /**
+     * Called when a batch is dropped without being uploaded
+     */
+    default void dropped() {
+    }
+}
@@ -0,0 +1,117 @@
+package com.appmetr.s2s.metrics;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Stage timestamps of one batch from the flush which cut it to its acknowledgement, see {@link BatchTracer}.
+ * A stage the batch hasn't reached, or doesn't go through, has no time.
+ */
+public class BatchTimeline {
+    protected final long queuedMillis;
+    protected final long queuedNanos;
+    protected volatile long batchId;
+    protected volatile int batchBytes;
+    protected volatile long encodedNanos;
+    protected volatile long storedNanos;
+    protected volatile boolean rejected;
+    protected volatile long persistedNanos;
+    protected volatile long firstSendNanos;
+    protected volatile int attempts;
+    protected volatile long acknowledgedNanos;
+    protected volatile boolean uploaded;
+
+    protected BatchTimeline(long queuedMillis, long queuedNanos) {
+        this.queuedMillis = queuedMillis;
+        this.queuedNanos = queuedNanos;
+    }
+
+    /**
+     * @return id of the batch in the storage it's uploaded from
+     */
+    public long getBatchId() {
+        return batchId;
+    }
+
+    public int getBatchBytes() {
+        return batchBytes;
+    }
+
+    public Instant getQueuedTime() {
+        return Instant.ofEpochMilli(queuedMillis);
+    }
+
+    /**
+     * @return from the flush to the encoded batch, including waiting for an encoder thread
+     */
+    public Duration getEncoding() {
+        return between(queuedNanos, encodedNanos);
+    }
+
+    /**
+     * @return from the encoded batch to the end of the store call, mostly waiting for storage space
+     */
+    public Duration getStoring() {
+        return between(encodedNanos, storedNanos);
+    }
+
+    /**
+     * @return from storing to the batch file written by a save thread of a buffered storage
+     */
+    public Duration getPersisting() {
+        return between(storedNanos, persistedNanos);
+    }
+
+    /**
+     * @return from storing or persisting to the first upload attempt
+     */
+    public Duration getWaiting() {
+        return between(persistedNanos != 0 ? persistedNanos : storedNanos, firstSendNanos);
+    }
+
+    /**
+     * @return from the first upload attempt to the acknowledgement, including retries
+     */
+    public Duration getUploading() {
+        return between(firstSendNanos, acknowledgedNanos);
+    }
+
+    public Duration getTotal() {
+        return between(queuedNanos, acknowledgedNanos);
+    }
+
+    public boolean isRejected() {
+        return rejected;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * @return {@code false} if the batch was dropped after failed attempts
+     */
+    public boolean isUploaded() {
+        return uploaded;
+    }
+
+    protected static Duration between(long startNanos, long endNanos) {
+        return startNanos == 0 || endNanos == 0 ? null : Duration.ofNanos(endNanos - startNanos);
+    }
+
+    @Override public String toString() {
+        return "BatchTimeline{" +
+                "batchId=" + batchId +
+                ", batchBytes=" + batchBytes +
+                ", queuedTime=" + getQueuedTime() +
+                ", encoding=" + getEncoding() +
+                ", storing=" + getStoring() +
+                (rejected ? ", rejected" : "") +
+                ", persisting=" + getPersisting() +
+                ", waiting=" + getWaiting() +
+                ", uploading=" + getUploading() +
+                ", attempts=" + attempts +
+                ", uploaded=" + uploaded +
+                '}';
+    }
+}
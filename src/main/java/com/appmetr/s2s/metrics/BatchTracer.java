@@ -0,0 +1,215 @@
+package com.appmetr.s2s.metrics;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Records a {@link BatchTimeline} of every batch and keeps the finished ones in a ring buffer of recent batches.
+ * Batches in flight are looked up by id, batches loaded from a persistent storage on start aren't traced.
+ * Tracing is off unless a tracer is set, so then it costs nothing.
+ * <p>
+ * A batch the storage drops or quarantines is never acknowledged, so once the traced batches reach their limit
+ * timelines older than {@code maxTracedAge} are expired to make room for new ones.
+ */
+public class BatchTracer {
+    public static final int DEFAULT_CAPACITY = 1024;
+    public static final int DEFAULT_MAX_TRACED_BATCHES = 10_000;
+    public static final Duration DEFAULT_MAX_TRACED_AGE = Duration.ofHours(1);
+    protected static final long MAX_EXPIRY_CHECK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    protected final AtomicReferenceArray<BatchTimeline> recentTimelines;
+    protected final AtomicLong finishedTimelines = new AtomicLong();
+    protected final Map<Long, BatchTimeline> tracedTimelines = new ConcurrentHashMap<>();
+    protected final int maxTracedBatches;
+    protected final AtomicLong untracedBatches = new AtomicLong();
+    protected final AtomicLong expiredBatches = new AtomicLong();
+    protected final AtomicLong lastExpiryNanos = new AtomicLong(System.nanoTime());
+    protected long maxTracedAgeNanos = DEFAULT_MAX_TRACED_AGE.toNanos();
+    protected Clock clock = Clock.systemUTC();
+
+    public BatchTracer() {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_TRACED_BATCHES);
+    }
+
+    /**
+     * @param capacity Number of recent finished timelines kept
+     * @param maxTracedBatches Limit of batches traced at once, more are left untraced while uploads are behind
+     */
+    public BatchTracer(int capacity, int maxTracedBatches) {
+        recentTimelines = new AtomicReferenceArray<>(capacity);
+        this.maxTracedBatches = maxTracedBatches;
+    }
+
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * @param maxTracedAge Age since encoding after which a traced batch may be expired, should be longer
+     *                     than a batch normally takes to upload including retries
+     */
+    public void setMaxTracedAge(Duration maxTracedAge) {
+        this.maxTracedAgeNanos = maxTracedAge.toNanos();
+    }
+
+    /**
+     * Called when a flush starts cutting the batch
+     */
+    public BatchTimeline queued() {
+        return new BatchTimeline(clock.millis(), System.nanoTime());
+    }
+
+    /**
+     * Called by the batch factory call of the storage, once the batch has its id
+     */
+    public void encoded(BatchTimeline timeline, long batchId, int batchBytes) {
+        timeline.batchId = batchId;
+        timeline.batchBytes = batchBytes;
+        timeline.encodedNanos = System.nanoTime();
+        if (tracedTimelines.size() < maxTracedBatches
+                || expireTraced(timeline.encodedNanos) && tracedTimelines.size() < maxTracedBatches) {
+            tracedTimelines.put(batchId, timeline);
+        } else {
+            untracedBatches.incrementAndGet();
+        }
+    }
+
+    /**
+     * Removes traced timelines older than the max age, checking at most once per max age or a second
+     *
+     * @return {@code true} if any timeline has expired
+     */
+    protected boolean expireTraced(long nowNanos) {
+        final long lastNanos = lastExpiryNanos.get();
+        if (nowNanos - lastNanos < Math.min(maxTracedAgeNanos, MAX_EXPIRY_CHECK_NANOS)
+                || !lastExpiryNanos.compareAndSet(lastNanos, nowNanos)) {
+            return false;
+        }
+
+        boolean expired = false;
+        for (BatchTimeline timeline : tracedTimelines.values()) {
+            if (nowNanos - timeline.encodedNanos > maxTracedAgeNanos
+                    && tracedTimelines.remove(timeline.batchId, timeline)) {
+                expiredBatches.incrementAndGet();
+                expired = true;
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Called when the store call returns, a rejected batch is finished
+     */
+    public void stored(BatchTimeline timeline, boolean stored) {
+        timeline.storedNanos = System.nanoTime();
+        if (!stored) {
+            timeline.rejected = true;
+            if (timeline.encodedNanos != 0) {
+                tracedTimelines.remove(timeline.batchId, timeline);
+            }
+            finish(timeline);
+        }
+    }
+
+    /**
+     * Called when the storage has rejected the batch which is going to be stored again under a new id
+     */
+    public void storeRetried(BatchTimeline timeline) {
+        if (timeline.encodedNanos != 0) {
+            tracedTimelines.remove(timeline.batchId, timeline);
+        }
+    }
+
+    /**
+     * Called when a buffered storage starts writing the batch to its file under a new id,
+     * before the batch can be read by the new id
+     *
+     * @return timeline to complete with {@link #persisted(BatchTimeline)} or null if the batch isn't traced
+     */
+    public BatchTimeline persisting(long batchId, long persistedBatchId) {
+        final BatchTimeline timeline = tracedTimelines.remove(batchId);
+        if (timeline != null) {
+            timeline.batchId = persistedBatchId;
+            tracedTimelines.put(persistedBatchId, timeline);
+        }
+        return timeline;
+    }
+
+    public void persisted(BatchTimeline timeline) {
+        timeline.persistedNanos = System.nanoTime();
+    }
+
+    /**
+     * Called on every upload attempt
+     */
+    public void sending(long batchId) {
+        final BatchTimeline timeline = tracedTimelines.get(batchId);
+        if (timeline != null) {
+            if (timeline.firstSendNanos == 0) {
+                timeline.firstSendNanos = System.nanoTime();
+            }
+            timeline.attempts++;
+        }
+    }
+
+    /**
+     * Called when the batch is removed after a successful upload or dropped
+     */
+    public void acknowledged(long batchId, boolean uploaded) {
+        final BatchTimeline timeline = tracedTimelines.remove(batchId);
+        if (timeline != null) {
+            timeline.acknowledgedNanos = System.nanoTime();
+            timeline.uploaded = uploaded;
+            finish(timeline);
+        }
+    }
+
+    protected void finish(BatchTimeline timeline) {
+        final long index = finishedTimelines.getAndIncrement();
+        recentTimelines.set((int) (index % recentTimelines.length()), timeline);
+    }
+
+    /**
+     * @return finished timelines, the most recent first
+     */
+    public List<BatchTimeline> getRecentTimelines() {
+        final long finished = finishedTimelines.get();
+        final int number = (int) Math.min(finished, recentTimelines.length());
+        final List<BatchTimeline> timelines = new ArrayList<>(number);
+        for (long index = finished - 1; index >= finished - number; index--) {
+            final BatchTimeline timeline = recentTimelines.get((int) (index % recentTimelines.length()));
+            if (timeline != null) {
+                timelines.add(timeline);
+            }
+        }
+        return timelines;
+    }
+
+    /**
+     * @return timelines of batches being stored or uploaded now
+     */
+    public List<BatchTimeline> getTracedTimelines() {
+        return new ArrayList<>(tracedTimelines.values());
+    }
+
+    /**
+     * @return batches not traced because too many were in flight
+     */
+    public long getUntracedBatches() {
+        return untracedBatches.get();
+    }
+
+    /**
+     * @return traced batches removed by age, e.g. dropped or quarantined by the storage
+     */
+    public long getExpiredBatches() {
+        return expiredBatches.get();
+    }
+}
@@ -0,0 +1,200 @@
+package com.appmetr.s2s.metrics;
+
+import com.appmetr.s2s.persister.BatchStorage;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps counters and latency histograms in memory, readable directly or over JMX once registered
+ * with {@link #registerMBean(String)}
+ */
+public class InMemoryMetrics implements AppMetrMetrics, InMemoryMetricsMXBean {
+    protected static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    protected final Histogram trackTime = new Histogram();
+    protected final Histogram flushTime = new Histogram();
+    protected final LongAdder rejectedFlushes = new LongAdder();
+    protected final Histogram encodeTime = new Histogram();
+    protected final LongAdder encodedJsonBytes = new LongAdder();
+    protected final LongAdder encodedBatchBytes = new LongAdder();
+    protected final Histogram uploadTime = new Histogram();
+    protected final LongAdder failedUploads = new LongAdder();
+    protected final LongAdder retries = new LongAdder();
+    protected final LongAdder drops = new LongAdder();
+    protected volatile BatchStorage batchStorage;
+    protected ObjectName objectName;
+
+    @Override public void bind(BatchStorage batchStorage) {
+        this.batchStorage = batchStorage;
+    }
+
+    @Override public void tracked(long nanos) {
+        trackTime.record(nanos);
+    }
+
+    @Override public void flushed(long nanos, boolean stored) {
+        flushTime.record(nanos);
+        if (!stored) {
+            rejectedFlushes.increment();
+        }
+    }
+
+    @Override public void encoded(long nanos, long jsonBytes, int batchBytes) {
+        encodeTime.record(nanos);
+        encodedJsonBytes.add(jsonBytes);
+        encodedBatchBytes.add(batchBytes);
+    }
+
+    @Override public void uploaded(long nanos, int batchBytes, boolean success) {
+        uploadTime.record(nanos);
+        if (!success) {
+            failedUploads.increment();
+        }
+    }
+
+    @Override public void retried() {
+        retries.increment();
+    }
+
+    @Override public void dropped() {
+        drops.increment();
+    }
+
+    /**
+     * Registers in the platform MBean server as {@code com.appmetr.s2s:type=AppMetr,name=<name>}
+     */
+    public synchronized ObjectName registerMBean(String name) throws JMException {
+        objectName = new ObjectName("com.appmetr.s2s:type=AppMetr,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    public synchronized void unregisterMBean() throws JMException {
+        if (objectName != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            objectName = null;
+        }
+    }
+
+    public Histogram getTrackTime() {
+        return trackTime;
+    }
+
+    public Histogram getFlushTime() {
+        return flushTime;
+    }
+
+    public Histogram getEncodeTime() {
+        return encodeTime;
+    }
+
+    public Histogram getUploadTime() {
+        return uploadTime;
+    }
+
+    @Override public long getTrackCount() {
+        return trackTime.getCount();
+    }
+
+    @Override public double getTrackMeanMillis() {
+        return trackTime.getMean() / NANOS_PER_MILLI;
+    }
+
+    @Override public double getTrack99thPercentileMillis() {
+        return trackTime.getPercentile(99) / NANOS_PER_MILLI;
+    }
+
+    @Override public double getTrackMaxMillis() {
+        return trackTime.getMax() / NANOS_PER_MILLI;
+    }
+
+    @Override public long getFlushCount() {
+        return flushTime.getCount();
+    }
+
+    @Override public long getRejectedFlushCount() {
+        return rejectedFlushes.sum();
+    }
+
+    @Override public double getFlushMeanMillis() {
+        return flushTime.getMean() / NANOS_PER_MILLI;
+    }
+
+    @Override public double getFlushMaxMillis() {
+        return flushTime.getMax() / NANOS_PER_MILLI;
+    }
+
+    @Override public long getEncodeCount() {
+        return encodeTime.getCount();
+    }
+
+    @Override public double getEncodeMeanMillis() {
+        return encodeTime.getMean() / NANOS_PER_MILLI;
+    }
+
+    @Override public double getCompressionRatio() {
+        final long jsonBytes = encodedJsonBytes.sum();
+        return jsonBytes == 0 ? 0 : (double) encodedBatchBytes.sum() / jsonBytes;
+    }
+
+    @Override public double getBatchMeanBytes() {
+        final long batches = encodeTime.getCount();
+        return batches == 0 ? 0 : (double) encodedBatchBytes.sum() / batches;
+    }
+
+    @Override public long getStorageBatches() {
+        final BatchStorage batchStorage = this.batchStorage;
+        return batchStorage == null ? -1 : batchStorage.getBatchesNumber();
+    }
+
+    @Override public long getStorageBytes() {
+        final BatchStorage batchStorage = this.batchStorage;
+        return batchStorage == null ? -1 : batchStorage.getStoredBytes();
+    }
+
+    @Override public long getUploadCount() {
+        return uploadTime.getCount();
+    }
+
+    @Override public long getFailedUploadCount() {
+        return failedUploads.sum();
+    }
+
+    @Override public double getUploadMeanMillis() {
+        return uploadTime.getMean() / NANOS_PER_MILLI;
+    }
+
+    @Override public double getUpload99thPercentileMillis() {
+        return uploadTime.getPercentile(99) / NANOS_PER_MILLI;
+    }
+
+    @Override public double getUploadMaxMillis() {
+        return uploadTime.getMax() / NANOS_PER_MILLI;
+    }
+
+    @Override public long getRetryCount() {
+        return retries.sum();
+    }
+
+    @Override public long getDropCount() {
+        return drops.sum();
+    }
+
+    @Override public String toString() {
+        return "InMemoryMetrics{" +
+                "tracks=" + getTrackCount() +
+                ", trackP99Millis=" + getTrack99thPercentileMillis() +
+                ", flushes=" + getFlushCount() +
+                ", compressionRatio=" + getCompressionRatio() +
+                ", storageBatches=" + getStorageBatches() +
+                ", uploads=" + getUploadCount() +
+                ", failedUploads=" + getFailedUploadCount() +
+                ", retries=" + getRetryCount() +
+                ", drops=" + getDropCount() +
+                '}';
+    }
+}
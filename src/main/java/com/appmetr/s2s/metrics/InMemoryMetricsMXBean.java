@@ -0,0 +1,58 @@
+package com.appmetr.s2s.metrics;
+
+/**
+ * JMX view of {@link InMemoryMetrics}. Times are in milliseconds, percentiles are accurate within 25%.
+ */
+public interface InMemoryMetricsMXBean {
+
+    long getTrackCount();
+
+    double getTrackMeanMillis();
+
+    double getTrack99thPercentileMillis();
+
+    double getTrackMaxMillis();
+
+    long getFlushCount();
+
+    long getRejectedFlushCount();
+
+    double getFlushMeanMillis();
+
+    double getFlushMaxMillis();
+
+    long getEncodeCount();
+
+    double getEncodeMeanMillis();
+
+    /**
+     * @return compressed to uncompressed size of all encoded batches
+     */
+    double getCompressionRatio();
+
+    double getBatchMeanBytes();
+
+    /**
+     * @return batches in the storage, -1 if the storage doesn't count them
+     */
+    long getStorageBatches();
+
+    /**
+     * @return bytes in the storage, -1 if the storage doesn't count them
+     */
+    long getStorageBytes();
+
+    long getUploadCount();
+
+    long getFailedUploadCount();
+
+    double getUploadMeanMillis();
+
+    double getUpload99thPercentileMillis();
+
+    double getUploadMaxMillis();
+
+    long getRetryCount();
+
+    long getDropCount();
+}
@@ -0,0 +1,76 @@
+package com.appmetr.s2s.metrics;
+
+import java.time.Duration;
+
+/**
+ * Throughput of one upload worker, updated by the worker thread only
+ */
+public class UploadWorkerStats {
+    protected final String name;
+    protected final long startNanos = System.nanoTime();
+    protected volatile long uploadedBatches;
+    protected volatile long uploadedBytes;
+    protected volatile long failedBatches;
+    protected volatile long busyNanos;
+
+    public UploadWorkerStats(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @param uploaded {@code false} if the batch was dropped or left for another attempt
+     */
+    public void batchDone(int batchBytes, boolean uploaded, long nanos) {
+        if (uploaded) {
+            uploadedBatches++;
+            uploadedBytes += batchBytes;
+        } else {
+            failedBatches++;
+        }
+        busyNanos += nanos;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getUploadedBatches() {
+        return uploadedBatches;
+    }
+
+    public long getUploadedBytes() {
+        return uploadedBytes;
+    }
+
+    public long getFailedBatches() {
+        return failedBatches;
+    }
+
+    /**
+     * @return time spent uploading, including retries
+     */
+    public Duration getBusyTime() {
+        return Duration.ofNanos(busyNanos);
+    }
+
+    /**
+     * @return uploaded batches per second since the worker started
+     */
+    public double getBatchesPerSecond() {
+        final long elapsedNanos = System.nanoTime() - startNanos;
+        return elapsedNanos > 0 ? uploadedBatches * 1e9 / elapsedNanos : 0;
+    }
+
+    /**
+     * @return uploaded bytes per second since the worker started
+     */
+    public double getBytesPerSecond() {
+        final long elapsedNanos = System.nanoTime() - startNanos;
+        return elapsedNanos > 0 ? uploadedBytes * 1e9 / elapsedNanos : 0;
+    }
+
+    @Override public String toString() {
+        return String.format("%s: %d batches (%d bytes) uploaded, %d failed, %.1f batches/s, busy %s",
+                name, uploadedBatches, uploadedBytes, failedBatches, getBatchesPerSecond(), getBusyTime());
+    }
+}
@@ -6,16 +6,45 @@ import com.appmetr.s2s.events.Action;
 import java.time.Clock;
 import java.util.ArrayDeque;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.Queue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Heap storage guarded by a single lock. Producers take turns to store, a producer waiting for space keeps its turn
+ * and the next ones queue behind it, so a removal has a single producer to wake. Readers wait on their own condition,
+ * so each side is woken with signal().
+ */
 public class AbstractHeapStorage implements BatchStorage {
     public static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+    public static final double DEFAULT_HIGH_WATERMARK = 0.8;
+    public static final long NO_DEADLINE = Long.MIN_VALUE;
 
     protected final long maxBytes;
     protected Queue<BinaryBatch> batchesQueue = new ArrayDeque<>();
     protected Clock clock = Clock.systemUTC();
     protected long previousBatchId;
     protected long occupiedBytes;
+    protected long lastBatchBytes;
+    protected double highWatermark = DEFAULT_HIGH_WATERMARK;
+    protected boolean producerWaiting;
+    protected int queuedProducers;
+
+    protected final ReentrantLock lock = new ReentrantLock();
+    /**
+     * Producers queued behind the one holding the turn
+     */
+    protected final Condition turnFree = lock.newCondition();
+    /**
+     * The producer holding the turn, waiting for space
+     */
+    protected final Condition notFull = lock.newCondition();
+    protected final Condition notEmpty = lock.newCondition();
+    /**
+     * System.nanoTime() deadline of the producer holding the turn, or {@link #NO_DEADLINE}
+     */
+    protected long storeDeadline = NO_DEADLINE;
 
     protected AbstractHeapStorage() {
         this(DEFAULT_MAX_BYTES);
@@ -32,44 +61,160 @@ public class AbstractHeapStorage implements BatchStorage {
         this.clock = clock;
     }
 
-    @Override public synchronized boolean store(Collection<Action> actions, BatchFactory batchFactory) throws InterruptedException {
-        long batchId = clock.millis();
-        if (batchId <= previousBatchId) {
-            batchId = previousBatchId + 1;
+    /**
+     * @param highWatermark Fraction of the capacity above which the storage reports {@link Backpressure#HIGH}
+     */
+    public void setHighWatermark(double highWatermark) {
+        lock.lock();
+        try {
+            this.highWatermark = highWatermark;
+        } finally {
+            lock.unlock();
         }
+    }
+
+    @Override public boolean store(Collection<Action> actions, BatchFactory batchFactory) throws InterruptedException {
+        lock.lock();
+        try {
+            // one deadline for both the turn and space, so queued producers don't add up their timeouts
+            final long deadline = newStoreDeadline();
+            // a producer waiting for space keeps its turn, so batch ids stay in storing order
+            while (producerWaiting) {
+                queuedProducers++;
+                try {
+                    if (!awaitUntil(turnFree, deadline)) {
+                        rejectedInQueue();
+                        return false;
+                    }
+                } finally {
+                    queuedProducers--;
+                }
+            }
+
+            long batchId = clock.millis();
+            if (batchId <= previousBatchId) {
+                batchId = previousBatchId + 1;
+            }
 
-        return store(batchFactory.createBatch(actions, batchId));
+            return store(batchFactory.createBatch(actions, batchId), deadline);
+        } finally {
+            lock.unlock();
+        }
     }
 
-    protected synchronized boolean store(BinaryBatch binaryBatch) throws InterruptedException {
-        if (isCapacityExceeded(binaryBatch)) {
-            return false;
+    /**
+     * Takes ownership of the batch, a rejected batch is released at once
+     */
+    protected boolean store(BinaryBatch binaryBatch) throws InterruptedException {
+        return store(binaryBatch, newStoreDeadline());
+    }
+
+    protected boolean store(BinaryBatch binaryBatch, long deadline) throws InterruptedException {
+        lock.lock();
+        try {
+            lastBatchBytes = binaryBatch.getSize();
+            final boolean capacityExceeded;
+            producerWaiting = true;
+            storeDeadline = deadline;
+            try {
+                capacityExceeded = isCapacityExceeded(binaryBatch);
+            } catch (InterruptedException e) {
+                binaryBatch.release();
+                throw e;
+            } finally {
+                producerWaiting = false;
+                if (queuedProducers > 0) {
+                    turnFree.signal();
+                }
+            }
+            if (capacityExceeded) {
+                binaryBatch.release();
+                return false;
+            }
+
+            occupiedBytes += binaryBatch.getSize();
+            previousBatchId = binaryBatch.getBatchId();
+            batchesQueue.add(binaryBatch);
+            notEmpty.signal();
+
+            return true;
+        } finally {
+            lock.unlock();
         }
+    }
 
-        occupiedBytes += binaryBatch.getBytes().length;
-        previousBatchId = binaryBatch.getBatchId();
-        batchesQueue.add(binaryBatch);
+    @Override public BinaryBatch get() throws InterruptedException {
+        // an interrupted reader still gets a stored batch, only waiting for one is interrupted
+        lock.lock();
+        try {
+            while (true) {
+                final BinaryBatch binaryBatch = batchesQueue.peek();
+                if (binaryBatch != null) {
+                    return binaryBatch;
+                }
+                notEmpty.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        notify();
+    @Override public BinaryBatch get(long previousBatchId) throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                for (BinaryBatch binaryBatch : batchesQueue) {
+                    if (binaryBatch.getBatchId() > previousBatchId) {
+                        return binaryBatch;
+                    }
+                }
+                notEmpty.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        return true;
+    @Override public void remove(long batchId) {
+        lock.lock();
+        try {
+            final Iterator<BinaryBatch> iterator = batchesQueue.iterator();
+            while (iterator.hasNext()) {
+                final BinaryBatch binaryBatch = iterator.next();
+                if (binaryBatch.getBatchId() == batchId) {
+                    iterator.remove();
+                    removed(binaryBatch);
+                    return;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
     }
 
-    @Override public synchronized BinaryBatch get() throws InterruptedException {
-        while (true) {
-            final BinaryBatch binaryBatch = batchesQueue.peek();
+    @Override public void remove() {
+        lock.lock();
+        try {
+            final BinaryBatch binaryBatch = batchesQueue.poll();
             if (binaryBatch != null) {
-                return binaryBatch;
+                removed(binaryBatch);
             }
-            wait();
+        } finally {
+            lock.unlock();
         }
     }
 
-    @Override public synchronized void remove() {
-        final BinaryBatch binaryBatch = batchesQueue.poll();
-        if (binaryBatch != null) {
-            occupiedBytes -= binaryBatch.getBytes().length;
-        }
+    /**
+     * Frees the space of a batch taken out of the queue, only the producer holding the turn may wait for it
+     */
+    protected void removed(BinaryBatch binaryBatch) {
+        occupiedBytes -= binaryBatch.getSize();
+        binaryBatch.release();
+        notFull.signal();
+    }
+
+    @Override public boolean supportsRandomAccess() {
+        return true;
     }
 
     @Override
@@ -82,7 +227,80 @@ public class AbstractHeapStorage implements BatchStorage {
         return batchesQueue.isEmpty();
     }
 
+    @Override public long getBatchesNumber() {
+        lock.lock();
+        try {
+            return batchesQueue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override public long getStoredBytes() {
+        lock.lock();
+        try {
+            return occupiedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override public Backpressure getBackpressure() {
+        lock.lock();
+        try {
+            if (occupiedBytes + lastBatchBytes > maxBytes) {
+                return Backpressure.FULL;
+            }
+            return occupiedBytes > maxBytes * highWatermark ? Backpressure.HIGH : Backpressure.NONE;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return id of the last stored batch
+     */
+    protected long getPreviousBatchId() {
+        lock.lock();
+        try {
+            return previousBatchId;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     protected boolean isCapacityExceeded(BinaryBatch binaryBatch) throws InterruptedException {
-        return occupiedBytes + binaryBatch.getBytes().length > maxBytes;
+        return occupiedBytes + binaryBatch.getSize() > maxBytes;
+    }
+
+    /**
+     * @return deadline of a store() call waiting for its turn and for space, or {@link #NO_DEADLINE}
+     */
+    protected long newStoreDeadline() {
+        return NO_DEADLINE;
+    }
+
+    /**
+     * Called when the deadline passes before the producer gets its turn, no batch is created then
+     */
+    protected void rejectedInQueue() {
+    }
+
+    /**
+     * Waits on the condition until signalled or the deadline
+     *
+     * @return false if the deadline has passed
+     */
+    protected boolean awaitUntil(Condition condition, long deadline) throws InterruptedException {
+        if (deadline == NO_DEADLINE) {
+            condition.await();
+            return true;
+        }
+        final long remainingNanos = deadline - System.nanoTime();
+        if (remainingNanos <= 0) {
+            return false;
+        }
+        condition.awaitNanos(remainingNanos);
+        return true;
     }
 }
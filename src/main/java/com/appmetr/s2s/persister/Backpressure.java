@@ -0,0 +1,19 @@
+package com.appmetr.s2s.persister;
+
+/**
+ * Fill state of a storage, lets callers skip building actions which would be dropped or would block
+ */
+public enum Backpressure {
+    /**
+     * Below the high watermark
+     */
+    NONE,
+    /**
+     * Above the high watermark, batches may be sampled
+     */
+    HIGH,
+    /**
+     * The last stored batch wouldn't fit again, the next store blocks or drops
+     */
+    FULL
+}
@@ -0,0 +1,147 @@
+package com.appmetr.s2s.persister;
+
+import com.appmetr.s2s.BinaryBatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands out distinct batches of a storage to several upload workers. A claimed batch is leased to its worker
+ * until it's completed, which removes it from the storage, or released, which makes it claimable again.
+ * A lease not renewed in time expires and the batch is claimed by another worker, so a worker stuck in a send
+ * delays its batch but doesn't lose it, though the batch may be sent twice. A worker waiting to retry its batch
+ * keeps renewing the lease, so the retry delay may be longer than the lease time.
+ * <p>
+ * The storage must support {@link BatchStorage#get(long)} and {@link BatchStorage#remove(long)}.
+ * A released batch is claimed again before new ones, by a worker not already waiting for a new batch.
+ */
+public class BatchClaims {
+    private static final Logger log = LoggerFactory.getLogger(BatchClaims.class);
+
+    public static final Duration DEFAULT_LEASE_TIME = Duration.ofMinutes(2);
+
+    protected final BatchStorage batchStorage;
+    protected final long leaseNanos;
+    protected final Map<Long, Lease> leases = new ConcurrentHashMap<>();
+    protected final Queue<BinaryBatch> releasedBatches = new ConcurrentLinkedQueue<>();
+    protected final ReentrantLock readLock = new ReentrantLock();
+    protected long lastReadBatchId = Long.MIN_VALUE;
+
+    public BatchClaims(BatchStorage batchStorage) {
+        this(batchStorage, DEFAULT_LEASE_TIME);
+    }
+
+    /**
+     * @param leaseTime Time a worker may hold a batch without renewing the lease
+     */
+    public BatchClaims(BatchStorage batchStorage, Duration leaseTime) {
+        this.batchStorage = batchStorage;
+        this.leaseNanos = leaseTime.toNanos();
+    }
+
+    public Duration getLeaseTime() {
+        return Duration.ofNanos(leaseNanos);
+    }
+
+    /**
+     * Takes a released or expired batch first, otherwise the next unread batch of the storage,
+     * waiting if necessary until one is stored.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Lease claim() throws InterruptedException, IOException {
+        final BinaryBatch releasedBatch = releasedBatches.poll();
+        if (releasedBatch != null) {
+            return lease(releasedBatch);
+        }
+
+        final long nowNanos = System.nanoTime();
+        for (Lease lease : leases.values()) {
+            if (nowNanos - lease.expiresNanos > 0) {
+                final Lease newLease = new Lease(lease.binaryBatch, nowNanos + leaseNanos);
+                if (leases.replace(lease.getBatchId(), lease, newLease)) {
+                    log.warn("Lease of batch {} has expired, the batch is claimed again", lease.getBatchId());
+                    return newLease;
+                }
+            }
+        }
+
+        readLock.lockInterruptibly();
+        try {
+            final BinaryBatch binaryBatch = batchStorage.get(lastReadBatchId);
+            lastReadBatchId = binaryBatch.getBatchId();
+            return lease(binaryBatch);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    protected Lease lease(BinaryBatch binaryBatch) {
+        final Lease lease = new Lease(binaryBatch, System.nanoTime() + leaseNanos);
+        leases.put(binaryBatch.getBatchId(), lease);
+        return lease;
+    }
+
+    /**
+     * Extends the lease of the batch by the lease time, e.g. before every upload attempt
+     */
+    public void renew(long batchId) {
+        final Lease lease = leases.get(batchId);
+        if (lease != null) {
+            lease.expiresNanos = System.nanoTime() + leaseNanos;
+        }
+    }
+
+    /**
+     * Removes the batch from the storage, whoever holds its lease
+     */
+    public void complete(long batchId) throws IOException {
+        leases.remove(batchId);
+        if (!releasedBatches.isEmpty()) {
+            releasedBatches.removeIf(binaryBatch -> binaryBatch.getBatchId() == batchId);
+        }
+        batchStorage.remove(batchId);
+    }
+
+    /**
+     * Makes the batch claimable again unless it's completed or its lease has passed to another worker
+     */
+    public void release(Lease lease) {
+        if (leases.remove(lease.getBatchId(), lease)) {
+            log.debug("Batch {} is released", lease.getBatchId());
+            releasedBatches.add(lease.binaryBatch);
+        }
+    }
+
+    /**
+     * @return number of batches leased to workers now
+     */
+    public int getClaimedBatches() {
+        return leases.size();
+    }
+
+    public static class Lease {
+        protected final BinaryBatch binaryBatch;
+        protected volatile long expiresNanos;
+
+        protected Lease(BinaryBatch binaryBatch, long expiresNanos) {
+            this.binaryBatch = binaryBatch;
+            this.expiresNanos = expiresNanos;
+        }
+
+        public BinaryBatch getBinaryBatch() {
+            return binaryBatch;
+        }
+
+        public long getBatchId() {
+            return binaryBatch.getBatchId();
+        }
+    }
+}
@@ -35,6 +35,32 @@ public interface BatchStorage {
      */
     void remove() throws IOException;
 
+    /**
+     * Retrieves, but does not remove, the first batch with id greater than the specified one, waiting if necessary
+     * until such a batch becomes available. Batch ids are expected to grow in storing order.
+     * Used together with {@link #remove(long)} to upload several batches at once.
+     *
+     * @param previousBatchId id of the last retrieved batch or {@link Long#MIN_VALUE} to get the head
+     * @throws InterruptedException if interrupted while waiting
+     */
+    default BinaryBatch get(long previousBatchId) throws InterruptedException, IOException {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " doesn't support reading after a batch");
+    }
+
+    /**
+     * Removes the batch with the specified id wherever it is in this storage. Does nothing if there is no such batch.
+     */
+    default void remove(long batchId) throws IOException {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " doesn't support removal by batch id");
+    }
+
+    /**
+     * @return {@code true} if the storage implements {@link #get(long)} and {@link #remove(long)}
+     */
+    default boolean supportsRandomAccess() {
+        return false;
+    }
+
     /**
      * @return true if storage is file based or use another persistent background
      */
@@ -45,6 +71,27 @@ public interface BatchStorage {
      */
     boolean isEmpty();
 
+    /**
+     * @return fill state of this storage, storages without a capacity limit are never under backpressure
+     */
+    default Backpressure getBackpressure() {
+        return Backpressure.NONE;
+    }
+
+    /**
+     * @return number of stored batches or -1 if the storage doesn't count them
+     */
+    default long getBatchesNumber() {
+        return -1;
+    }
+
+    /**
+     * @return size of stored batches or -1 if the storage doesn't count it
+     */
+    default long getStoredBytes() {
+        return -1;
+    }
+
     /**
      * Storage should store all data and clean up
      */
@@ -0,0 +1,179 @@
+package com.appmetr.s2s.persister;
+
+import com.appmetr.s2s.BinaryBatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Iterator;
+
+/**
+ * Heap storage handling a batch which doesn't fit according to the {@link OverflowPolicy},
+ * by default it waits for space no longer than the block timeout. A rejected batch makes store() return false.
+ */
+public class BoundedHeapStorage extends AbstractHeapStorage {
+    private final static Logger log = LoggerFactory.getLogger(BoundedHeapStorage.class);
+
+    public static final Duration DEFAULT_BLOCK_TIMEOUT = Duration.ofSeconds(1);
+    public static final int DEFAULT_SAMPLE_RATE = 10;
+
+    protected OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK_WITH_DEADLINE;
+    protected Duration blockTimeout = DEFAULT_BLOCK_TIMEOUT;
+    protected int sampleRate = DEFAULT_SAMPLE_RATE;
+    protected long sampleCounter;
+    protected long lastReturnedBatchId = Long.MIN_VALUE;
+    protected long droppedBatches;
+
+    public BoundedHeapStorage(long maxBytes) {
+        super(maxBytes);
+    }
+
+    public BoundedHeapStorage(long maxBytes, OverflowPolicy overflowPolicy) {
+        super(maxBytes);
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        lock.lock();
+        try {
+            this.overflowPolicy = overflowPolicy;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param blockTimeout Longest wait for space with {@link OverflowPolicy#BLOCK_WITH_DEADLINE}
+     */
+    public void setBlockTimeout(Duration blockTimeout) {
+        lock.lock();
+        try {
+            this.blockTimeout = blockTimeout;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param sampleRate Every N-th batch is kept above the high watermark with {@link OverflowPolicy#SAMPLE}
+     */
+    public void setSampleRate(int sampleRate) {
+        if (sampleRate < 1) {
+            throw new IllegalArgumentException("Sample rate must be positive: " + sampleRate);
+        }
+        lock.lock();
+        try {
+            this.sampleRate = sampleRate;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of batches rejected or dropped since start
+     */
+    public long getDroppedBatches() {
+        lock.lock();
+        try {
+            return droppedBatches;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override protected boolean isCapacityExceeded(BinaryBatch binaryBatch) throws InterruptedException {
+        final boolean capacityExceeded;
+        switch (overflowPolicy) {
+            case BLOCK:
+                while (exceeds(binaryBatch)) {
+                    notFull.await();
+                }
+                capacityExceeded = false;
+                break;
+            case BLOCK_WITH_DEADLINE:
+                capacityExceeded = awaitCapacity(binaryBatch);
+                break;
+            case DROP_OLDEST:
+                capacityExceeded = dropOldest(binaryBatch);
+                break;
+            case SAMPLE:
+                capacityExceeded = exceeds(binaryBatch)
+                        || occupiedBytes > maxBytes * highWatermark && sampleCounter++ % sampleRate != 0;
+                break;
+            default:
+                capacityExceeded = exceeds(binaryBatch);
+        }
+
+        if (capacityExceeded) {
+            droppedBatches++;
+            log.debug("Batch {} of {} bytes is dropped by {} policy", binaryBatch.getBatchId(), binaryBatch.getSize(), overflowPolicy);
+        }
+        return capacityExceeded;
+    }
+
+    /**
+     * @return true if the store deadline has passed before the batch fits
+     */
+    protected boolean awaitCapacity(BinaryBatch binaryBatch) throws InterruptedException {
+        while (exceeds(binaryBatch)) {
+            if (!awaitUntil(notFull, storeDeadline)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The block timeout counts from the store() call, including the wait behind other producers
+     */
+    @Override protected long newStoreDeadline() {
+        return overflowPolicy == OverflowPolicy.BLOCK_WITH_DEADLINE ? System.nanoTime() + blockTimeout.toNanos() : NO_DEADLINE;
+    }
+
+    @Override protected void rejectedInQueue() {
+        droppedBatches++;
+        log.debug("Batch is dropped after waiting {} behind other producers", blockTimeout);
+    }
+
+    /**
+     * Batches returned by get() may be uploaded now and are kept
+     *
+     * @return true if the batch doesn't fit even after dropping all other batches
+     */
+    protected boolean dropOldest(BinaryBatch binaryBatch) {
+        final Iterator<BinaryBatch> iterator = batchesQueue.iterator();
+        while (exceeds(binaryBatch) && iterator.hasNext()) {
+            final BinaryBatch oldBatch = iterator.next();
+            if (oldBatch.getBatchId() > lastReturnedBatchId) {
+                iterator.remove();
+                occupiedBytes -= oldBatch.getSize();
+                oldBatch.release();
+                droppedBatches++;
+                log.debug("Batch {} of {} bytes is dropped to store a new one", oldBatch.getBatchId(), oldBatch.getSize());
+            }
+        }
+        return exceeds(binaryBatch);
+    }
+
+    protected boolean exceeds(BinaryBatch binaryBatch) {
+        return occupiedBytes + binaryBatch.getSize() > maxBytes;
+    }
+
+    @Override public BinaryBatch get() throws InterruptedException {
+        return returned(super.get());
+    }
+
+    @Override public BinaryBatch get(long previousBatchId) throws InterruptedException {
+        return returned(super.get(previousBatchId));
+    }
+
+    protected BinaryBatch returned(BinaryBatch binaryBatch) {
+        lock.lock();
+        try {
+            lastReturnedBatchId = Math.max(lastReturnedBatchId, binaryBatch.getBatchId());
+        } finally {
+            lock.unlock();
+        }
+        return binaryBatch;
+    }
+}
@@ -2,28 +2,63 @@ package com.appmetr.s2s.persister;
 
 import com.appmetr.s2s.BinaryBatch;
 import com.appmetr.s2s.events.Action;
+import com.appmetr.s2s.metrics.BatchTimeline;
+import com.appmetr.s2s.metrics.BatchTracer;
 
 import java.io.IOException;
 import java.util.Collection;
 
+/**
+ * Buffers batches in the heap storage and moves them to the file storage by a pool of save threads.
+ * Batch files are written in parallel and committed to the file storage in the order batches were stored.
+ */
 public class BufferedFileStorage implements BatchStorage {
     protected final FileStorage fileStorage;
     protected final AbstractHeapStorage heapStorage;
-    protected final Thread saveThread;
+    protected final Thread[] saveThreads;
+    protected final Object claimLock = new Object();
 
     protected long batchId;
+    protected long lastClaimedBatchId;
     protected volatile Throwable lastStorageThrowable;
     protected volatile boolean stopped;
+    protected volatile BatchTracer batchTracer;
 
     public BufferedFileStorage(FileStorage fileStorage, AbstractHeapStorage heapStorage) {
+        this(fileStorage, heapStorage, 1);
+    }
+
+    /**
+     * @param saveThreads Number of threads writing batch files
+     */
+    public BufferedFileStorage(FileStorage fileStorage, AbstractHeapStorage heapStorage, int saveThreads) {
+        if (saveThreads < 1) {
+            throw new IllegalArgumentException("Save threads number must be positive: " + saveThreads);
+        }
+
         this.fileStorage = fileStorage;
         this.heapStorage = heapStorage;
         batchId = fileStorage.lastBatchId;
+        lastClaimedBatchId = batchId;
 
         lastStorageThrowable = null;
-        saveThread = new Thread(this::save, "appmetr-storage-" + fileStorage.path.getParent().getFileName());
-        saveThread.setUncaughtExceptionHandler((t, e) -> lastStorageThrowable = e);
-        saveThread.start();
+        final String threadName = "appmetr-storage-" + fileStorage.path.getParent().getFileName();
+        this.saveThreads = new Thread[saveThreads];
+        for (int i = 0; i < saveThreads; i++) {
+            final Thread saveThread = new Thread(this::save, saveThreads == 1 ? threadName : threadName + "-" + i);
+            saveThread.setUncaughtExceptionHandler((t, e) -> lastStorageThrowable = e);
+            this.saveThreads[i] = saveThread;
+        }
+        for (Thread saveThread : this.saveThreads) {
+            saveThread.start();
+        }
+    }
+
+    /**
+     * @param batchTracer Tracer told about batches moved to the file storage under their file ids
+     */
+    public void setBatchTracer(BatchTracer batchTracer) {
+        this.batchTracer = batchTracer;
     }
 
     @Override public synchronized boolean store(Collection<Action> actions, BatchFactory batchFactory) throws InterruptedException, IOException {
@@ -51,37 +86,67 @@ public class BufferedFileStorage implements BatchStorage {
         return stored;
     }
 
+    /**
+     * Claims the next batch and reserves its file id under the claim lock, so ids follow the heap storage order.
+     * A batch stays in the heap storage until its file is written.
+     */
     protected void save() {
         while (true) {
+            final BinaryBatch binaryBatch;
+            final long fileBatchId;
             try {
-                final BinaryBatch binaryBatch = heapStorage.get();
-                try {
-                    fileStorage.store(binaryBatch);
-                    heapStorage.remove();
-                } catch (IOException e) {
-                    lastStorageThrowable = e;
-                    break;
+                synchronized (claimLock) {
+                    if (lastStorageThrowable != null || stopped && !hasUnclaimedBatches()) {
+                        break;
+                    }
+
+                    binaryBatch = heapStorage.get(lastClaimedBatchId);
+                    lastClaimedBatchId = binaryBatch.getBatchId();
+                    fileBatchId = fileStorage.reserveBatchId();
                 }
             } catch (InterruptedException e) {
-                if (heapStorage.isEmpty()) {
-                    break;
-                }
+                continue;
             }
 
-            if (stopped && heapStorage.isEmpty()) {
+            final BatchTracer tracer = batchTracer;
+            final BatchTimeline timeline = tracer == null ? null : tracer.persisting(binaryBatch.getBatchId(), fileBatchId);
+            try {
+                fileStorage.store(fileBatchId, binaryBatch);
+                if (timeline != null) {
+                    tracer.persisted(timeline);
+                }
+                heapStorage.remove(binaryBatch.getBatchId());
+            } catch (IOException e) {
+                lastStorageThrowable = e;
                 break;
             }
         }
     }
 
+    protected boolean hasUnclaimedBatches() {
+        return heapStorage.getPreviousBatchId() > lastClaimedBatchId;
+    }
+
     @Override public BinaryBatch get() throws InterruptedException, IOException {
         return fileStorage.get();
     }
 
+    @Override public BinaryBatch get(long previousBatchId) throws InterruptedException, IOException {
+        return fileStorage.get(previousBatchId);
+    }
+
     @Override public void remove() throws IOException {
         fileStorage.remove();
     }
 
+    @Override public void remove(long batchId) throws IOException {
+        fileStorage.remove(batchId);
+    }
+
+    @Override public boolean supportsRandomAccess() {
+        return true;
+    }
+
     @Override public boolean isPersistent() {
         return true;
     }
@@ -90,10 +155,33 @@ public class BufferedFileStorage implements BatchStorage {
         return fileStorage.isEmpty();
     }
 
+    /**
+     * Batches still in the heap are included
+     */
+    @Override public long getBatchesNumber() {
+        return heapStorage.getBatchesNumber() + fileStorage.getBatchesNumber();
+    }
+
+    /**
+     * Batches still in the heap are included
+     */
+    @Override public long getStoredBytes() {
+        return heapStorage.getStoredBytes() + fileStorage.getStoredBytes();
+    }
+
+    @Override public Backpressure getBackpressure() {
+        return heapStorage.getBackpressure();
+    }
+
     @Override public synchronized void shutdown() throws InterruptedException {
         stopped = true;
-        saveThread.interrupt();
-        saveThread.join();
+        for (Thread saveThread : saveThreads) {
+            saveThread.interrupt();
+        }
+        for (Thread saveThread : saveThreads) {
+            saveThread.join();
+        }
+        fileStorage.shutdown();
     }
 
     public Throwable getLastStorageError() {
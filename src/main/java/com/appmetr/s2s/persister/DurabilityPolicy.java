@@ -0,0 +1,78 @@
+package com.appmetr.s2s.persister;
+
+import java.time.Duration;
+
+/**
+ * When a persistent storage forces stored batches to disk. Without that a stored batch reaches only the page cache
+ * and may be lost or truncated by a host crash, while forcing every batch on its own limits stores to disk latency.
+ */
+public class DurabilityPolicy {
+    public enum Mode {
+        /**
+         * Never force, the operating system writes batches back when it decides to
+         */
+        NONE,
+        /**
+         * Force after every N stored batches. A crash loses at most N - 1 batches
+         */
+        EVERY_N_BATCHES,
+        /**
+         * Force from a background thread every period. A crash loses at most the batches of the last period
+         */
+        PERIODIC,
+        /**
+         * {@code store} returns only when the batch is on disk. Concurrent stores wait for a single fsync together
+         */
+        GROUP_COMMIT
+    }
+
+    public static final DurabilityPolicy NONE = new DurabilityPolicy(Mode.NONE, 0, null);
+
+    protected final Mode mode;
+    protected final int batches;
+    protected final Duration period;
+
+    protected DurabilityPolicy(Mode mode, int batches, Duration period) {
+        this.mode = mode;
+        this.batches = batches;
+        this.period = period;
+    }
+
+    public static DurabilityPolicy everyBatches(int batches) {
+        if (batches < 1) {
+            throw new IllegalArgumentException("Batches number should be positive: " + batches);
+        }
+        return new DurabilityPolicy(Mode.EVERY_N_BATCHES, batches, null);
+    }
+
+    public static DurabilityPolicy periodic(Duration period) {
+        if (period.isNegative() || period.isZero()) {
+            throw new IllegalArgumentException("Period should be positive: " + period);
+        }
+        return new DurabilityPolicy(Mode.PERIODIC, 0, period);
+    }
+
+    public static DurabilityPolicy groupCommit() {
+        return new DurabilityPolicy(Mode.GROUP_COMMIT, 0, null);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getBatches() {
+        return batches;
+    }
+
+    public Duration getPeriod() {
+        return period;
+    }
+
+    @Override public String toString() {
+        return "DurabilityPolicy{" +
+                "mode=" + mode +
+                ", batches=" + batches +
+                ", period=" + period +
+                '}';
+    }
+}
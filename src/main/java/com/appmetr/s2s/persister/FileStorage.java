@@ -6,49 +6,231 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent storage writing a file per batch. A batch file starts with a header holding the batch length
+ * and checksum. The id of the first batch written with the header is recorded, files with lower ids are
+ * written by previous versions and are read as is.
+ * <p>
+ * After an unclean shutdown only the last written batches can be torn, so startup verifies the newest
+ * {@code recoveryCheckBatches} files and other files are verified when read. A torn or corrupted batch file
+ * is moved to the quarantine directory instead of being uploaded.
+ */
 public class FileStorage implements BatchStorage {
     private final static Logger log = LoggerFactory.getLogger(FileStorage.class);
 
+    public static final int DEFAULT_RECOVERY_CHECK_BATCHES = 64;
+
     protected static final String BATCH_FILE = "batchFile";
     protected static final String BATCH_FILE_NAME_PREFIX = BATCH_FILE + "-";
     protected static final String BATCH_FILE_GLOB_PATTERN = BATCH_FILE + "*";
     protected static final String DIGITAL_FORMAT = "%011d";
     protected static final String LAST_BATCH_ID_FILE_NAME = "lastBatchId";
+    protected static final String FIRST_HEADER_BATCH_ID_FILE_NAME = "firstHeaderBatchId";
+    protected static final String QUARANTINE_DIRECTORY_NAME = "quarantine";
+    protected static final int BATCH_MAGIC = 0x41424631;
+    protected static final int BATCH_HEADER_BYTES = 12;
+    protected static final int PARALLEL_INDEX_THRESHOLD = 10_000;
 
     protected Queue<Long> fileIds;
+    // sizes of the files of fileIds, kept to count stored bytes without listing the files
+    protected final Map<Long, Long> fileBytes = new HashMap<>();
+    protected long storedBytes;
     protected Path path;
     protected long lastBatchId;
     protected Path batchIdFile;
+    protected long firstHeaderBatchId;
+    protected FsyncScheduler fsyncScheduler = new FsyncScheduler(DurabilityPolicy.NONE, this::sync, "");
+    protected List<Path> unsyncedFiles = new ArrayList<>();
+    protected final int recoveryCheckBatches;
+    protected final AtomicLong quarantinedBatches = new AtomicLong();
+    protected long nextCommitBatchId;
+    // file sizes of batches written out of order, -1 if writing has failed
+    protected final NavigableMap<Long, Long> uncommittedBatchIds = new TreeMap<>();
 
     public FileStorage(Path path) throws IOException {
+        this(path, DEFAULT_RECOVERY_CHECK_BATCHES);
+    }
+
+    /**
+     * @param recoveryCheckBatches Number of the newest batch files verified on startup
+     */
+    public FileStorage(Path path, int recoveryCheckBatches) throws IOException {
         this.path = path;
+        this.recoveryCheckBatches = recoveryCheckBatches;
         init();
     }
 
-    @Override public synchronized boolean store(Collection<Action> actions, BatchFactory batchFactory) throws IOException {
-        final BinaryBatch binaryBatch = batchFactory.createBatch(actions, lastBatchId);
-        return store(binaryBatch);
+    /**
+     * Replaces the durability policy, batches stored under the previous one are forced to disk first
+     */
+    public void setDurabilityPolicy(DurabilityPolicy durabilityPolicy) throws IOException {
+        final FsyncScheduler previousScheduler;
+        synchronized (this) {
+            previousScheduler = fsyncScheduler;
+            fsyncScheduler = new FsyncScheduler(durabilityPolicy, this::sync, path.getFileName().toString());
+        }
+        previousScheduler.shutdown();
+    }
+
+    public FsyncStats getFsyncStats() {
+        return fsyncScheduler.getStats();
+    }
+
+    /**
+     * @return number of torn or corrupted batch files moved to the quarantine directory
+     */
+    public long getQuarantinedBatches() {
+        return quarantinedBatches.get();
     }
 
-    protected synchronized boolean store(BinaryBatch binaryBatch) throws IOException {
-        final Path file = batchFilePath(lastBatchId);
+    @Override public boolean store(Collection<Action> actions, BatchFactory batchFactory) throws IOException {
+        final FsyncScheduler scheduler;
+        final long syncSequence;
+        synchronized (this) {
+            final BinaryBatch binaryBatch = batchFactory.createBatch(actions, lastBatchId);
+            try {
+                syncSequence = write(binaryBatch);
+            } finally {
+                binaryBatch.release();
+            }
+            scheduler = fsyncScheduler;
+        }
+
+        scheduler.afterWrite(syncSequence);
+
+        return true;
+    }
+
+    protected boolean store(BinaryBatch binaryBatch) throws IOException {
+        final FsyncScheduler scheduler;
+        final long syncSequence;
+        synchronized (this) {
+            syncSequence = write(binaryBatch);
+            scheduler = fsyncScheduler;
+        }
+
+        scheduler.afterWrite(syncSequence);
 
-        Files.write(file, binaryBatch.getBytes());
+        return true;
+    }
 
-        fileIds.add(lastBatchId);
-        updateLastBatchId();
+    /**
+     * Stores the batch under an id taken with {@link #reserveBatchId()}, batch files are written without holding
+     * the storage lock and become visible to get() in reservation order
+     */
+    protected boolean store(long batchId, BinaryBatch binaryBatch) throws IOException {
+        final long syncSequence = write(batchId, binaryBatch);
+        final FsyncScheduler scheduler;
+        synchronized (this) {
+            scheduler = fsyncScheduler;
+        }
 
-        notify();
+        scheduler.afterWrite(syncSequence);
 
         return true;
     }
 
+    /**
+     * @return fsync sequence number of the batch
+     */
+    protected synchronized long write(BinaryBatch binaryBatch) throws IOException {
+        return write(reserveBatchId(), binaryBatch);
+    }
+
+    /**
+     * @return fsync sequence number of the batch
+     */
+    protected long write(long batchId, BinaryBatch binaryBatch) throws IOException {
+        final Path file = batchFilePath(batchId);
+        try {
+            try {
+                writeBatchFile(file, binaryBatch.getByteBuffer());
+            } catch (ClosedByInterruptException e) {
+                // interrupted on shutdown, finish the write and leave the interrupt to the caller
+                Thread.interrupted();
+                try {
+                    writeBatchFile(file, binaryBatch.getByteBuffer());
+                } finally {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            try {
+                commit(batchId, null, -1);
+            } catch (IOException | RuntimeException commitError) {
+                e.addSuppressed(commitError);
+            }
+            throw e;
+        }
+
+        return commit(batchId, file, BATCH_HEADER_BYTES + binaryBatch.getSize());
+    }
+
+    protected synchronized long reserveBatchId() {
+        return lastBatchId++;
+    }
+
+    /**
+     * Makes the batch and the batches written before it visible to get() once all previously reserved ids
+     * are committed, so the last batch id file is rewritten once per group of batches written out of order
+     *
+     * @param file Written batch file or {@code null} if writing has failed
+     * @param bytes Size of the written batch file
+     * @return fsync sequence number of the batch
+     */
+    protected synchronized long commit(long batchId, Path file, long bytes) throws IOException {
+        if (file != null && fsyncScheduler.getPolicy().getMode() != DurabilityPolicy.Mode.NONE) {
+            unsyncedFiles.add(file);
+        }
+
+        uncommittedBatchIds.put(batchId, file != null ? bytes : -1);
+        if (uncommittedBatchIds.firstKey() == nextCommitBatchId) {
+            while (!uncommittedBatchIds.isEmpty() && uncommittedBatchIds.firstKey() == nextCommitBatchId) {
+                final long committedBytes = uncommittedBatchIds.pollFirstEntry().getValue();
+                if (committedBytes >= 0) {
+                    fileIds.add(nextCommitBatchId);
+                    added(nextCommitBatchId, committedBytes);
+                }
+                nextCommitBatchId++;
+            }
+
+            updateLastBatchId();
+            notify();
+        }
+
+        return fsyncScheduler.written();
+    }
+
+    protected static void writeBatchFile(Path file, ByteBuffer batch) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            final ByteBuffer header = ByteBuffer.allocate(BATCH_HEADER_BYTES);
+            header.putInt(BATCH_MAGIC).putInt(batch.remaining()).putInt(checksum(batch.duplicate()));
+            header.flip();
+
+            final ByteBuffer[] buffers = {header, batch};
+            while (batch.hasRemaining()) {
+                channel.write(buffers);
+            }
+        }
+    }
+
     @Override public synchronized BinaryBatch get() throws InterruptedException, IOException {
         while (true) {
             final Long batchId = fileIds.peek();
@@ -65,27 +247,100 @@ public class FileStorage implements BatchStorage {
 
             log.warn("Batch file {} is missing or empty", batchFile);
 
-            fileIds.remove();
+            removed(fileIds.remove());
+        }
+    }
+
+    @Override public synchronized BinaryBatch get(long previousBatchId) throws InterruptedException, IOException {
+        while (true) {
+            Long batchId = null;
+            for (Long fileId : fileIds) {
+                if (fileId > previousBatchId) {
+                    batchId = fileId;
+                    break;
+                }
+            }
+            if (batchId == null) {
+                wait();
+                continue;
+            }
+
+            final Path batchFile = batchFilePath(batchId);
+            final byte[] bytes = getBatchFromFile(batchFile);
+            if (bytes != null) {
+                return new BinaryBatch(batchId, bytes);
+            }
+
+            log.warn("Batch file {} is missing or empty", batchFile);
+
+            fileIds.remove(batchId);
+            removed(batchId);
+        }
+    }
+
+    @Override public synchronized void remove(long batchId) throws IOException {
+        if (fileIds.remove(batchId)) {
+            removed(batchId);
+            tryDeleteFile(batchFilePath(batchId));
         }
     }
 
     @Override public synchronized void remove() throws IOException {
-        final Path batchFile = batchFilePath(fileIds.poll());
-        if (batchFile != null) {
-            tryDeleteFile(batchFile);
+        final Long batchId = fileIds.poll();
+        if (batchId != null) {
+            removed(batchId);
+            tryDeleteFile(batchFilePath(batchId));
         }
     }
 
+    protected void added(long batchId, long bytes) {
+        fileBytes.put(batchId, bytes);
+        storedBytes += bytes;
+    }
+
+    protected void removed(long batchId) {
+        final Long bytes = fileBytes.remove(batchId);
+        if (bytes != null) {
+            storedBytes -= bytes;
+        }
+    }
+
+    @Override public boolean supportsRandomAccess() {
+        return true;
+    }
+
     @Override
     public boolean isPersistent() {
         return true;
     }
 
+    /**
+     * Forces to disk batches stored according to the durability policy
+     */
+    @Override public void shutdown() throws InterruptedException {
+        try {
+            fsyncScheduler.shutdown();
+        } catch (IOException e) {
+            log.error("Error while forcing batches to disk", e);
+        }
+    }
+
     @Override
     public boolean isEmpty() {
         return fileIds.isEmpty();
     }
 
+    @Override public synchronized long getBatchesNumber() {
+        return fileIds.size();
+    }
+
+    /**
+     * @return size of batch files including their headers
+     */
+    @Override public synchronized long getStoredBytes() {
+        return storedBytes;
+    }
+
     protected void init() throws IOException {
         if (Files.notExists(path)) {
             Files.createDirectories(path);
@@ -96,29 +351,169 @@ public class FileStorage implements BatchStorage {
 
         batchIdFile = path.toAbsolutePath().resolve(LAST_BATCH_ID_FILE_NAME);
 
-        final List<Long> ids = new ArrayList<>();
+        final long[] ids = listBatchIds();
+
+        // the last batch id file is rewritten after the batch file, so it can be behind or torn after a crash
+        final long nextBatchId = ids.length > 0 ? ids[ids.length - 1] + 1 : 0;
+        lastBatchId = Math.max(readLastBatchId(), nextBatchId);
+        nextCommitBatchId = lastBatchId;
+
+        log.debug("Init lastBatchId with {}", lastBatchId);
+
+        firstHeaderBatchId = initFirstHeaderBatchId();
+
+        final Set<Long> corruptedIds = verifyNewestBatches(ids);
+        final long[] bytes = batchFileBytes(ids);
+        fileIds = new ArrayDeque<>(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            if (!corruptedIds.contains(ids[i])) {
+                fileIds.add(ids[i]);
+                added(ids[i], bytes[i]);
+            }
+        }
+        log.debug("Initialized {} batches.", fileIds.size());
+    }
+
+    /**
+     * Names are parsed and sorted in parallel for large directories, listing itself is sequential
+     *
+     * @return sorted ids of batch files
+     */
+    protected long[] listBatchIds() throws IOException {
+        final List<String> names = new ArrayList<>();
         try (final DirectoryStream<Path> directoryStream = Files.newDirectoryStream(path, BATCH_FILE_GLOB_PATTERN)) {
             for (Path file : directoryStream) {
-                ids.add(batchId(file.getFileName().toString()));
+                names.add(file.getFileName().toString());
             }
         }
-        Collections.sort(ids);
-
-        final long batchIdFileLength = Files.exists(batchIdFile) ? Files.size(batchIdFile) : 0;
 
-        if (batchIdFileLength > 0) {
-            final List<String> lines = Files.readAllLines(batchIdFile, StandardCharsets.UTF_8);
-            lastBatchId = Integer.parseInt(lines.get(0));
-        } else if (ids.size() > 0) {
-            lastBatchId = ids.get(ids.size() - 1);
+        final boolean parallel = names.size() >= PARALLEL_INDEX_THRESHOLD;
+        final long[] ids = (parallel ? names.parallelStream() : names.stream())
+                .mapToLong(this::parseBatchId)
+                .filter(id -> id >= 0)
+                .toArray();
+        if (parallel) {
+            Arrays.parallelSort(ids);
         } else {
-            lastBatchId = 0;
+            Arrays.sort(ids);
         }
+        return ids;
+    }
 
-        log.debug("Init lastBatchId with {}", lastBatchId);
+    /**
+     * @return id of the batch file or -1 if the name is malformed
+     */
+    protected long parseBatchId(String batchFileName) {
+        try {
+            return batchId(batchFileName);
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            log.warn("Ignoring file {} with malformed batch id", batchFileName);
+            return -1;
+        }
+    }
+
+    /**
+     * @return id stored in the last batch id file or 0 if the file is missing or malformed
+     */
+    protected long readLastBatchId() throws IOException {
+        if (Files.notExists(batchIdFile) || Files.size(batchIdFile) == 0) {
+            return 0;
+        }
+
+        final List<String> lines = Files.readAllLines(batchIdFile, StandardCharsets.UTF_8);
+        try {
+            return Long.parseLong(lines.get(0).trim());
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            log.warn("Last batch id file {} is malformed: {}", batchIdFile, lines);
+            return 0;
+        }
+    }
 
-        fileIds = new ArrayDeque<>(ids);
-        log.debug("Initialized {} batches.", ids.size());
+    /**
+     * Batch files of a directory used by a previous version are older than the next batch id,
+     * which is recorded and forced to disk before any batch is written with the header
+     *
+     * @return id of the first batch written with the header
+     */
+    protected long initFirstHeaderBatchId() throws IOException {
+        final Path firstHeaderBatchIdFile = path.toAbsolutePath().resolve(FIRST_HEADER_BATCH_ID_FILE_NAME);
+        if (Files.exists(firstHeaderBatchIdFile)) {
+            final List<String> lines = Files.readAllLines(firstHeaderBatchIdFile, StandardCharsets.UTF_8);
+            try {
+                return Long.parseLong(lines.get(0).trim());
+            } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                // torn while first written, no batch with the header has been stored since
+                log.warn("First header batch id file {} is malformed: {}", firstHeaderBatchIdFile, lines);
+            }
+        }
+
+        Files.write(firstHeaderBatchIdFile, Collections.singleton(String.valueOf(lastBatchId)), StandardCharsets.UTF_8);
+        FsyncScheduler.forceFile(firstHeaderBatchIdFile);
+        FsyncScheduler.forceDirectory(path);
+        return lastBatchId;
+    }
+
+    /**
+     * Sizes are read in parallel for large directories
+     *
+     * @return sizes of the batch files of the ids
+     */
+    protected long[] batchFileBytes(long[] ids) throws IOException {
+        final LongStream idStream = Arrays.stream(ids);
+        try {
+            return (ids.length >= PARALLEL_INDEX_THRESHOLD ? idStream.parallel() : idStream)
+                    .map(id -> {
+                        try {
+                            return batchFileBytes(id);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    })
+                    .toArray();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * @return size of the batch file or 0 if it is missing
+     */
+    protected long batchFileBytes(long batchId) throws IOException {
+        try {
+            return Files.size(batchFilePath(batchId));
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Verifies the newest batch files in parallel, quarantining torn and corrupted ones
+     *
+     * @return ids of quarantined batches
+     */
+    protected Set<Long> verifyNewestBatches(long[] ids) throws IOException {
+        final int from = Math.max(0, ids.length - recoveryCheckBatches);
+        try {
+            return Arrays.stream(ids, from, ids.length).parallel()
+                    .filter(id -> {
+                        final Path batchFile = batchFilePath(id);
+                        try {
+                            try {
+                                readBatchFile(batchFile);
+                                return false;
+                            } catch (CorruptedBatchException e) {
+                                quarantine(batchFile, e.getMessage());
+                                return true;
+                            }
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    })
+                    .boxed()
+                    .collect(Collectors.toSet());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
     }
 
     private Path batchFilePath(Long fileId) {
@@ -134,19 +529,129 @@ public class FileStorage implements BatchStorage {
     }
 
     protected void updateLastBatchId() throws IOException {
-        lastBatchId++;
-        Files.write(batchIdFile, Collections.singleton(String.valueOf(lastBatchId)), StandardCharsets.UTF_8);
+        Files.write(batchIdFile, Collections.singleton(String.valueOf(nextCommitBatchId)), StandardCharsets.UTF_8);
     }
 
+    /**
+     * @return the batch or {@code null} if the file is missing, empty or has been quarantined
+     */
     protected byte[] getBatchFromFile(Path batchFile) throws IOException {
-        if (Files.notExists(batchFile) || Files.size(batchFile) == 0) {
+        try {
+            return readBatchFile(batchFile);
+        } catch (CorruptedBatchException e) {
+            quarantine(batchFile, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return the batch or {@code null} if the file is missing or empty
+     * @throws CorruptedBatchException if the file is torn or its checksum doesn't match
+     */
+    protected byte[] readBatchFile(Path batchFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(batchFile, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size == 0) {
+                return null;
+            }
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Batch file " + batchFile + " is too large: " + size);
+            }
+
+            final ByteBuffer header = ByteBuffer.allocate(BATCH_HEADER_BYTES);
+            if (size >= BATCH_HEADER_BYTES) {
+                readFully(channel, header, 0);
+            }
+            if (size < BATCH_HEADER_BYTES || header.getInt(0) != BATCH_MAGIC) {
+                if (batchId(batchFile.getFileName().toString()) >= firstHeaderBatchId) {
+                    throw new CorruptedBatchException(size < BATCH_HEADER_BYTES ? "torn header, " + size + " bytes" : "missing header");
+                }
+                // written without a header by a previous version
+                final ByteBuffer legacyBatch = ByteBuffer.allocate((int) size);
+                readFully(channel, legacyBatch, 0);
+                return legacyBatch.array();
+            }
+
+            final int length = header.getInt(4);
+            if (length != size - BATCH_HEADER_BYTES) {
+                throw new CorruptedBatchException("torn write, " + size + " of " + (BATCH_HEADER_BYTES + (long) length) + " bytes");
+            }
+
+            final ByteBuffer batch = ByteBuffer.allocate(length);
+            readFully(channel, batch, BATCH_HEADER_BYTES);
+            batch.flip();
+            if (checksum(batch) != header.getInt(8)) {
+                throw new CorruptedBatchException("checksum mismatch");
+            }
+            return batch.array();
+        } catch (NoSuchFileException e) {
             return null;
         }
+    }
+
+    /**
+     * Moves the batch file aside to keep it for investigation
+     */
+    protected void quarantine(Path batchFile, String reason) throws IOException {
+        log.warn("Batch file {} is corrupted ({}), moving it to quarantine", batchFile, reason);
 
-        return Files.readAllBytes(batchFile);
+        final Path quarantine = path.resolve(QUARANTINE_DIRECTORY_NAME);
+        Files.createDirectories(quarantine);
+        Files.move(batchFile, quarantine.resolve(batchFile.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+        quarantinedBatches.incrementAndGet();
+    }
+
+    protected static int checksum(ByteBuffer batch) {
+        final CRC32 crc = new CRC32();
+        crc.update(batch);
+        return (int) crc.getValue();
+    }
+
+    protected static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new CorruptedBatchException("unexpected end of file");
+            }
+        }
+    }
+
+    /**
+     * Forces batch files written since the previous call, the last batch id file and the directory entries.
+     * Files not forced because of an error are forced by the next call
+     */
+    protected void sync() throws IOException {
+        final List<Path> files;
+        synchronized (this) {
+            files = unsyncedFiles;
+            unsyncedFiles = new ArrayList<>();
+        }
+
+        int forcedFiles = 0;
+        try {
+            for (Path file : files) {
+                FsyncScheduler.forceFile(file);
+                forcedFiles++;
+            }
+        } finally {
+            if (forcedFiles < files.size()) {
+                synchronized (this) {
+                    unsyncedFiles.addAll(files.subList(forcedFiles, files.size()));
+                }
+            }
+        }
+        FsyncScheduler.forceFile(batchIdFile);
+        FsyncScheduler.forceDirectory(path);
     }
 
     protected void tryDeleteFile(Path batchFile) throws IOException {
         Files.delete(batchFile);
     }
+
+    protected static class CorruptedBatchException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        protected CorruptedBatchException(String message) {
+            super(message);
+        }
+    }
 }
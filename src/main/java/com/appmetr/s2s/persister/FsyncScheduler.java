@@ -0,0 +1,198 @@
+package com.appmetr.s2s.persister;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Forces batches written by a storage to disk according to a {@link DurabilityPolicy}.
+ * The storage numbers every written batch with {@link #written()} under its lock and calls {@link #afterWrite(long)}
+ * once the lock is released, so a store waiting for an fsync doesn't block other stores. Whoever starts an fsync
+ * covers all batches written before it, stores waiting meanwhile share the next one.
+ */
+public class FsyncScheduler {
+    private static final Logger log = LoggerFactory.getLogger(FsyncScheduler.class);
+
+    @FunctionalInterface
+    public interface SyncTarget {
+        /**
+         * Forces everything written before the call to disk. Called without the scheduler lock
+         */
+        void sync() throws IOException;
+    }
+
+    protected final DurabilityPolicy policy;
+    protected final SyncTarget target;
+    protected final ScheduledExecutorService periodicService;
+
+    protected long writtenSequence;
+    protected long syncedSequence;
+    protected boolean syncing;
+
+    protected long fsyncs;
+    protected long syncedBatches;
+    protected long totalNanos;
+    protected long maxNanos;
+    protected long lastNanos;
+
+    public FsyncScheduler(DurabilityPolicy policy, SyncTarget target, String name) {
+        this.policy = policy;
+        this.target = target;
+
+        if (policy.getMode() == DurabilityPolicy.Mode.PERIODIC) {
+            periodicService = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread thread = new Thread(r, "appmetr-fsync-" + name);
+                thread.setDaemon(true);
+                return thread;
+            });
+            final long periodNanos = policy.getPeriod().toNanos();
+            periodicService.scheduleWithFixedDelay(this::syncWritten, periodNanos, periodNanos, TimeUnit.NANOSECONDS);
+        } else {
+            periodicService = null;
+        }
+    }
+
+    public DurabilityPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return sequence number of a written batch. Must be called in writing order
+     */
+    public synchronized long written() {
+        return ++writtenSequence;
+    }
+
+    /**
+     * Forces the batch to disk if the policy says so, waiting for an fsync in progress if needed
+     */
+    public void afterWrite(long sequence) throws IOException {
+        switch (policy.getMode()) {
+            case EVERY_N_BATCHES:
+                if (sequence - syncedSequence() >= policy.getBatches()) {
+                    awaitSynced(sequence);
+                }
+                break;
+            case GROUP_COMMIT:
+                awaitSynced(sequence);
+                break;
+            default:
+        }
+    }
+
+    /**
+     * Returns when all batches up to the specified one are forced to disk
+     */
+    public void awaitSynced(long sequence) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                final long syncSequence;
+                final long fromSequence;
+                synchronized (this) {
+                    while (syncing && syncedSequence < sequence) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                    if (syncedSequence >= sequence) {
+                        return;
+                    }
+
+                    syncing = true;
+                    syncSequence = writtenSequence;
+                    fromSequence = syncedSequence;
+                }
+
+                boolean synced = false;
+                final long start = System.nanoTime();
+                try {
+                    target.sync();
+                    synced = true;
+                } finally {
+                    final long nanos = System.nanoTime() - start;
+                    synchronized (this) {
+                        syncing = false;
+                        if (synced) {
+                            syncedSequence = Math.max(syncedSequence, syncSequence);
+                            fsyncs++;
+                            syncedBatches += syncSequence - fromSequence;
+                            totalNanos += nanos;
+                            maxNanos = Math.max(maxNanos, nanos);
+                            lastNanos = nanos;
+                        }
+                        notifyAll();
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Stops periodic fsyncs and forces all written batches unless the policy is {@link DurabilityPolicy.Mode#NONE}
+     */
+    public void shutdown() throws IOException {
+        if (periodicService != null) {
+            periodicService.shutdownNow();
+        }
+        if (policy.getMode() != DurabilityPolicy.Mode.NONE) {
+            awaitSynced(writtenSequence());
+        }
+    }
+
+    public synchronized FsyncStats getStats() {
+        return new FsyncStats(fsyncs, syncedBatches, totalNanos, maxNanos, lastNanos);
+    }
+
+    protected synchronized long writtenSequence() {
+        return writtenSequence;
+    }
+
+    protected synchronized long syncedSequence() {
+        return syncedSequence;
+    }
+
+    protected void syncWritten() {
+        try {
+            awaitSynced(writtenSequence());
+        } catch (IOException | RuntimeException e) {
+            log.error("Periodic fsync failed", e);
+        }
+    }
+
+    /**
+     * Forces content of the file, does nothing if it has been deleted
+     */
+    public static void forceFile(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(false);
+        } catch (NoSuchFileException e) {
+            log.trace("File {} is deleted before fsync", file);
+        }
+    }
+
+    /**
+     * Forces directory entries so created files survive a crash. Not supported by all platforms, e.g. Windows
+     */
+    public static void forceDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            log.debug("Can't fsync directory {}", directory, e);
+        }
+    }
+}
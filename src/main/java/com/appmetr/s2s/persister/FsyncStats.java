@@ -0,0 +1,58 @@
+package com.appmetr.s2s.persister;
+
+import java.time.Duration;
+
+/**
+ * Snapshot of fsync counters of a persistent storage, see {@link DurabilityPolicy}
+ */
+public class FsyncStats {
+    protected final long fsyncs;
+    protected final long syncedBatches;
+    protected final long totalNanos;
+    protected final long maxNanos;
+    protected final long lastNanos;
+
+    public FsyncStats(long fsyncs, long syncedBatches, long totalNanos, long maxNanos, long lastNanos) {
+        this.fsyncs = fsyncs;
+        this.syncedBatches = syncedBatches;
+        this.totalNanos = totalNanos;
+        this.maxNanos = maxNanos;
+        this.lastNanos = lastNanos;
+    }
+
+    public long getFsyncs() {
+        return fsyncs;
+    }
+
+    /**
+     * @return batches made durable, more than {@link #getFsyncs()} when fsyncs are shared by several batches
+     */
+    public long getSyncedBatches() {
+        return syncedBatches;
+    }
+
+    public Duration getTotalTime() {
+        return Duration.ofNanos(totalNanos);
+    }
+
+    public Duration getMaxTime() {
+        return Duration.ofNanos(maxNanos);
+    }
+
+    public Duration getLastTime() {
+        return Duration.ofNanos(lastNanos);
+    }
+
+    public Duration getAverageTime() {
+        return fsyncs == 0 ? Duration.ZERO : Duration.ofNanos(totalNanos / fsyncs);
+    }
+
+    @Override public String toString() {
+        return "FsyncStats{" +
+                "fsyncs=" + fsyncs +
+                ", syncedBatches=" + syncedBatches +
+                ", averageTime=" + getAverageTime() +
+                ", maxTime=" + getMaxTime() +
+                '}';
+    }
+}
@@ -2,18 +2,68 @@ package com.appmetr.s2s.persister;
 
 import com.appmetr.s2s.Batch;
 import com.appmetr.s2s.BinaryBatch;
+import com.appmetr.s2s.DeflateCodec;
+import com.appmetr.s2s.DirectBinaryBatch;
+import com.appmetr.s2s.DirectBufferPool;
 import com.appmetr.s2s.SerializationUtils;
 import com.appmetr.s2s.events.Action;
 
 import java.util.Collection;
 
-public class GzippedJsonBatchFactory implements BatchFactoryServerId {
+public class GzippedJsonBatchFactory implements PreEncodingBatchFactory {
     public static final GzippedJsonBatchFactory instance = new GzippedJsonBatchFactory();
 
-    protected GzippedJsonBatchFactory() {}
+    protected final DeflateCodec codec;
+    protected final DirectBufferPool bufferPool;
+
+    protected GzippedJsonBatchFactory() {
+        this(DeflateCodec.DEFAULT);
+    }
+
+    /**
+     * Compression level 6 takes about half the CPU time of the default level 9 for about 4% bigger batches,
+     * measured on 1000-action batches by DeflateCodecBenchmark
+     */
+    public GzippedJsonBatchFactory(DeflateCodec codec) {
+        this(codec, null);
+    }
+
+    /**
+     * @param bufferPool If set, batches are encoded into pooled direct buffers and kept off heap,
+     *                   see {@link DirectBinaryBatch}
+     */
+    public GzippedJsonBatchFactory(DeflateCodec codec, DirectBufferPool bufferPool) {
+        this.codec = codec;
+        this.bufferPool = bufferPool;
+    }
+
+    public DeflateCodec getCodec() {
+        return codec;
+    }
+
+    public DirectBufferPool getBufferPool() {
+        return bufferPool;
+    }
 
     @Override public BinaryBatch createBatch(Collection<Action> actions, long batchId, String serverId) {
         final Batch batch = new Batch(serverId, batchId, actions);
-        return new BinaryBatch(batchId, SerializationUtils.serializeJsonGzip(batch, false));
+        if (bufferPool != null) {
+            return new DirectBinaryBatch(batchId, SerializationUtils.serializeJsonGzip(batch, false, codec, bufferPool), bufferPool);
+        }
+
+        return new BinaryBatch(batchId, SerializationUtils.serializeJsonGzip(batch, false, codec));
+    }
+
+    @Override public byte[] encodeActions(Collection<Action> actions) {
+        return SerializationUtils.serializeJsonGzipActions(actions, codec);
+    }
+
+    @Override public BinaryBatch createBatch(byte[] encodedActions, long batchId, String serverId) {
+        if (bufferPool != null) {
+            return new DirectBinaryBatch(batchId,
+                    SerializationUtils.serializeJsonGzip(serverId, batchId, encodedActions, codec, bufferPool), bufferPool);
+        }
+
+        return new BinaryBatch(batchId, SerializationUtils.serializeJsonGzip(serverId, batchId, encodedActions, codec));
     }
 }
@@ -20,12 +20,7 @@ public class HeapStorage extends AbstractHeapStorage {
             if (!capacityExceeded) {
                 return false;
             }
-            wait();
+            notFull.await();
         }
     }
-
-    @Override public synchronized void remove() {
-        super.remove();
-        notifyAll();
-    }
 }
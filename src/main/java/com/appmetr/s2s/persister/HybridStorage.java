@@ -0,0 +1,295 @@
+package com.appmetr.s2s.persister;
+
+import com.appmetr.s2s.BinaryBatch;
+import com.appmetr.s2s.events.Action;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Keeps batches in heap while they fit into {@code maxHeapBytes} and spills the oldest ones to the segmented log
+ * when they don't, so a backlog doesn't block or drop batches and an uploader keeping up never touches the disk.
+ * All batches left in heap are spilled on shutdown.
+ * <p>
+ * Spilled batches are always older than the ones in heap, so batches are read from the log first and in id order.
+ * A batch already returned by get() is spilled without being released, as it may be being uploaded.
+ * <p>
+ * Batches are written to the log without the storage monitor, so readers and other producers don't wait for
+ * log writes and fsync. Batches being spilled stay readable until they are in the log, and are written one
+ * thread at a time in id order. If a write fails the batches being spilled are kept in heap.
+ */
+public class HybridStorage implements BatchStorage, Closeable {
+    private final static Logger log = LoggerFactory.getLogger(HybridStorage.class);
+
+    protected final SegmentedLogStorage logStorage;
+    protected final long maxHeapBytes;
+    protected final ArrayDeque<BinaryBatch> heapBatches = new ArrayDeque<>();
+    // older than heap batches, the head may be being written to the log now
+    protected final ArrayDeque<BinaryBatch> spillingBatches = new ArrayDeque<>();
+    protected final Set<Long> removedSpillingBatchIds = new HashSet<>();
+    protected final Object spillLock = new Object();
+
+    protected long heapBytes;
+    protected long spillingBytes;
+    protected long nextBatchId;
+    protected long lastReturnedBatchId = Long.MIN_VALUE;
+    protected long spilledBatches;
+    protected boolean stopped;
+
+    /**
+     * @param logStorage Storage for spilled batches, its batches left from the previous run are read first
+     * @param maxHeapBytes Heap budget for batches not spilled yet
+     */
+    public HybridStorage(SegmentedLogStorage logStorage, long maxHeapBytes) {
+        this.logStorage = logStorage;
+        this.maxHeapBytes = maxHeapBytes;
+        synchronized (logStorage) {
+            nextBatchId = logStorage.lastBatchId;
+        }
+    }
+
+    @Override public boolean store(Collection<Action> actions, BatchFactory batchFactory) throws IOException {
+        final BinaryBatch binaryBatch;
+        synchronized (this) {
+            binaryBatch = batchFactory.createBatch(actions, nextBatchId++);
+
+            while (heapBytes + binaryBatch.getSize() > maxHeapBytes && !heapBatches.isEmpty()) {
+                final BinaryBatch oldBatch = heapBatches.poll();
+                heapBytes -= oldBatch.getSize();
+                addSpilling(oldBatch);
+            }
+
+            if (stopped || binaryBatch.getSize() > maxHeapBytes) {
+                addSpilling(binaryBatch);
+            } else {
+                heapBatches.add(binaryBatch);
+                heapBytes += binaryBatch.getSize();
+            }
+
+            notifyAll();
+        }
+
+        try {
+            spill();
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                // the new batch isn't stored unless it's already in the log or being uploaded
+                if (binaryBatch.getBatchId() > lastReturnedBatchId && heapBatches.remove(binaryBatch)) {
+                    heapBytes -= binaryBatch.getSize();
+                    binaryBatch.release();
+                    throw e;
+                }
+            }
+            log.error("Failed to spill batches, they are kept in heap", e);
+        }
+
+        return true;
+    }
+
+    protected void addSpilling(BinaryBatch binaryBatch) {
+        spillingBatches.add(binaryBatch);
+        spillingBytes += binaryBatch.getSize();
+    }
+
+    /**
+     * Writes batches being spilled to the log, outside the storage monitor. On failure they are put back to heap
+     */
+    protected void spill() throws IOException {
+        synchronized (spillLock) {
+            while (true) {
+                final BinaryBatch binaryBatch;
+                synchronized (this) {
+                    binaryBatch = spillingBatches.peek();
+                }
+                if (binaryBatch == null) {
+                    return;
+                }
+
+                try {
+                    logStorage.store(binaryBatch);
+                } catch (IOException | RuntimeException e) {
+                    synchronized (this) {
+                        unspill();
+                    }
+                    throw e;
+                }
+
+                synchronized (this) {
+                    spillingBatches.poll();
+                    spillingBytes -= binaryBatch.getSize();
+                    spilledBatches++;
+                    final boolean removed = removedSpillingBatchIds.remove(binaryBatch.getBatchId());
+                    if (removed) {
+                        logStorage.remove(binaryBatch.getBatchId());
+                    }
+                    if (removed || binaryBatch.getBatchId() > lastReturnedBatchId) {
+                        binaryBatch.release();
+                    }
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Puts batches not written to the log back to the head of heap, dropping the ones removed meanwhile
+     */
+    protected void unspill() {
+        while (!spillingBatches.isEmpty()) {
+            final BinaryBatch binaryBatch = spillingBatches.pollLast();
+            spillingBytes -= binaryBatch.getSize();
+            if (removedSpillingBatchIds.remove(binaryBatch.getBatchId())) {
+                binaryBatch.release();
+            } else {
+                heapBatches.addFirst(binaryBatch);
+                heapBytes += binaryBatch.getSize();
+            }
+        }
+    }
+
+    @Override public synchronized BinaryBatch get() throws InterruptedException, IOException {
+        return get(Long.MIN_VALUE);
+    }
+
+    @Override public synchronized BinaryBatch get(long previousBatchId) throws InterruptedException, IOException {
+        while (true) {
+            BinaryBatch binaryBatch = logStorage.find(previousBatchId);
+            if (binaryBatch == null) {
+                for (BinaryBatch spillingBatch : spillingBatches) {
+                    if (spillingBatch.getBatchId() > previousBatchId
+                            && !removedSpillingBatchIds.contains(spillingBatch.getBatchId())) {
+                        binaryBatch = spillingBatch;
+                        break;
+                    }
+                }
+            }
+            if (binaryBatch == null) {
+                for (BinaryBatch heapBatch : heapBatches) {
+                    if (heapBatch.getBatchId() > previousBatchId) {
+                        binaryBatch = heapBatch;
+                        break;
+                    }
+                }
+            }
+
+            if (binaryBatch != null) {
+                lastReturnedBatchId = Math.max(lastReturnedBatchId, binaryBatch.getBatchId());
+                return binaryBatch;
+            }
+            wait();
+        }
+    }
+
+    @Override public synchronized void remove() throws IOException {
+        if (!logStorage.isEmpty()) {
+            logStorage.remove();
+            return;
+        }
+        for (BinaryBatch spillingBatch : spillingBatches) {
+            if (removedSpillingBatchIds.add(spillingBatch.getBatchId())) {
+                return;
+            }
+        }
+
+        final BinaryBatch binaryBatch = heapBatches.poll();
+        if (binaryBatch != null) {
+            heapBytes -= binaryBatch.getSize();
+            binaryBatch.release();
+        }
+    }
+
+    @Override public synchronized void remove(long batchId) throws IOException {
+        for (BinaryBatch spillingBatch : spillingBatches) {
+            if (spillingBatch.getBatchId() == batchId) {
+                // the batch may be being written, so it's removed from the log once written
+                removedSpillingBatchIds.add(batchId);
+                return;
+            }
+        }
+
+        final BinaryBatch firstHeapBatch = heapBatches.peek();
+        if (firstHeapBatch == null || batchId < firstHeapBatch.getBatchId()) {
+            logStorage.remove(batchId);
+            return;
+        }
+
+        final Iterator<BinaryBatch> iterator = heapBatches.iterator();
+        while (iterator.hasNext()) {
+            final BinaryBatch binaryBatch = iterator.next();
+            if (binaryBatch.getBatchId() == batchId) {
+                iterator.remove();
+                heapBytes -= binaryBatch.getSize();
+                binaryBatch.release();
+                return;
+            }
+        }
+    }
+
+    @Override public boolean supportsRandomAccess() {
+        return true;
+    }
+
+    @Override public boolean isPersistent() {
+        return true;
+    }
+
+    @Override public synchronized boolean isEmpty() {
+        return heapBatches.isEmpty() && spillingBatches.size() == removedSpillingBatchIds.size() && logStorage.isEmpty();
+    }
+
+    @Override public synchronized long getBatchesNumber() {
+        return heapBatches.size() + spillingBatches.size() - removedSpillingBatchIds.size() + logStorage.getBatchesNumber();
+    }
+
+    @Override public synchronized long getStoredBytes() {
+        return heapBytes + spillingBytes + logStorage.getStoredBytes();
+    }
+
+    /**
+     * @return number of batches written to the log since start
+     */
+    public synchronized long getSpilledBatches() {
+        return spilledBatches;
+    }
+
+    /**
+     * @return bytes of batches kept in heap
+     */
+    public synchronized long getHeapBytes() {
+        return heapBytes;
+    }
+
+    /**
+     * Spills all batches left in heap, batches stored after that are written to the log directly
+     */
+    @Override public void shutdown() throws InterruptedException {
+        synchronized (this) {
+            stopped = true;
+            if (!heapBatches.isEmpty()) {
+                log.info("Spilling {} batches on shutdown", heapBatches.size());
+            }
+            while (!heapBatches.isEmpty()) {
+                final BinaryBatch binaryBatch = heapBatches.poll();
+                heapBytes -= binaryBatch.getSize();
+                addSpilling(binaryBatch);
+            }
+        }
+        try {
+            spill();
+        } catch (IOException | RuntimeException e) {
+            log.error("Failed to spill {} batches on shutdown", getBatchesNumber(), e);
+        }
+        logStorage.shutdown();
+    }
+
+    @Override public void close() throws IOException {
+        logStorage.close();
+    }
+}
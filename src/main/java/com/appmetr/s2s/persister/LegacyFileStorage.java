@@ -41,6 +41,19 @@ public class LegacyFileStorage extends FileStorage {
         return SerializationUtils.serializeJsonGzip(batch, false);
     }
 
+    @Override protected long batchFileBytes(long batchId) throws IOException {
+        final long bytes = super.batchFileBytes(batchId);
+        if (bytes > 0) {
+            return bytes;
+        }
+
+        try {
+            return Files.size(batchFilePath(batchId, BATCH_FILE_NAME_LEGACY_PREFIX));
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+    }
+
     @Override protected void tryDeleteFile(Path batchFile) throws IOException {
         try {
             super.tryDeleteFile(batchFile);
@@ -16,7 +16,7 @@ public class NonBlockingHeapStorage extends AbstractHeapStorage {
     /**
      * Never blocks
      */
-    @Override public synchronized boolean store(Collection<Action> actions, BatchFactory batchFactory) {
+    @Override public boolean store(Collection<Action> actions, BatchFactory batchFactory) {
         try {
             return super.store(actions, batchFactory);
         } catch (InterruptedException e) {
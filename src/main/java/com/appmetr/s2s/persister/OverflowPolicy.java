@@ -0,0 +1,28 @@
+package com.appmetr.s2s.persister;
+
+/**
+ * What {@link BoundedHeapStorage} does with a batch which doesn't fit into its capacity.
+ * {@link com.appmetr.s2s.AppMetrAsync} applies the blocking policies and {@link #DROP_NEWEST} to actions
+ */
+public enum OverflowPolicy {
+    /**
+     * Wait until the batch fits, like {@link HeapStorage}
+     */
+    BLOCK,
+    /**
+     * Wait until the batch fits but no longer than the block timeout, then reject it
+     */
+    BLOCK_WITH_DEADLINE,
+    /**
+     * Drop the oldest batches not being uploaded to make room for the new one
+     */
+    DROP_OLDEST,
+    /**
+     * Reject the new batch, like {@link NonBlockingHeapStorage}
+     */
+    DROP_NEWEST,
+    /**
+     * Keep every N-th batch above the high watermark and reject the rest, reject all when full
+     */
+    SAMPLE
+}
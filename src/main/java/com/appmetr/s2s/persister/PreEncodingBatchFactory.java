@@ -0,0 +1,23 @@
+package com.appmetr.s2s.persister;
+
+import com.appmetr.s2s.BinaryBatch;
+import com.appmetr.s2s.events.Action;
+
+import java.util.Collection;
+
+/**
+ * Batch factory which can do the expensive part of the encoding before the batch id is known,
+ * so batches can be encoded in parallel and stored in order afterwards
+ */
+public interface PreEncodingBatchFactory extends BatchFactoryServerId {
+
+    /**
+     * @return actions encoded independently of batch id and server id
+     */
+    byte[] encodeActions(Collection<Action> actions);
+
+    /**
+     * Should be cheap comparing to {@link #encodeActions(Collection)}
+     */
+    BinaryBatch createBatch(byte[] encodedActions, long batchId, String serverId);
+}
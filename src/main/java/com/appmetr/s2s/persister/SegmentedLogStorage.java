@@ -0,0 +1,682 @@
+package com.appmetr.s2s.persister;
+
+import com.appmetr.s2s.BinaryBatch;
+import com.appmetr.s2s.DirectBinaryBatch;
+import com.appmetr.s2s.events.Action;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent storage appending batches to large segment files instead of writing a file per batch.
+ * A segment is extended to its full size when created, sparsely where the file system supports it,
+ * so appends don't change the file size.
+ * <p>
+ * A record is {@code [int length][long batchId][int crc32][batch bytes]}, the checksum covers the batch id and bytes.
+ * A segment is deleted as a whole once all its batches are removed and it isn't appended to anymore.
+ * The position of the first batch not removed yet is persisted in the cursor file, batches after it removed
+ * out of order with {@link #remove(long)} are uploaded again after a restart.
+ * <p>
+ * On startup segments are scanned from the cursor reading record headers only. A record torn by a crash ends
+ * its segment, a record with a wrong checksum is skipped when read. Segments written before a restart
+ * are never appended to.
+ * <p>
+ * Segment files stay open until {@link #close()}, which should be called after AppMetr is stopped.
+ * A file closed by an interrupt of a thread doing I/O on it is reopened and the I/O is repeated,
+ * the interrupt is left to the caller.
+ * <p>
+ * With {@link #setMemoryMapped(boolean)} batches are read through read-only mappings of the segments.
+ * A batch is then a view into the mapping without a copy to heap, valid until it is removed.
+ * Java 8 can't unmap a file explicitly, so disk space of a deleted segment is reclaimed
+ * only when its mapping is garbage collected.
+ */
+public class SegmentedLogStorage implements BatchStorage, Closeable {
+    private final static Logger log = LoggerFactory.getLogger(SegmentedLogStorage.class);
+
+    public static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+
+    protected static final String SEGMENT_FILE_NAME_PREFIX = "segment-";
+    protected static final String SEGMENT_FILE_GLOB_PATTERN = SEGMENT_FILE_NAME_PREFIX + "*";
+    protected static final String DIGITAL_FORMAT = "%011d";
+    protected static final String CURSOR_FILE_NAME = "cursor";
+    protected static final int RECORD_HEADER_BYTES = 16;
+    protected static final int CURSOR_BYTES = 16;
+
+    protected final Path path;
+    protected final long segmentBytes;
+    protected final ArrayDeque<Record> records = new ArrayDeque<>();
+    protected final TreeMap<Long, Segment> segments = new TreeMap<>();
+    protected final ByteBuffer headerBuffer = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+    protected final ByteBuffer cursorBuffer = ByteBuffer.allocate(CURSOR_BYTES);
+    protected final CRC32 crc = new CRC32();
+
+    protected boolean memoryMapped;
+    protected FsyncScheduler fsyncScheduler = new FsyncScheduler(DurabilityPolicy.NONE, this::sync, "");
+    protected Set<Segment> unsyncedSegments = new HashSet<>();
+    protected boolean segmentCreated;
+    protected FileChannel cursorChannel;
+    protected Segment writeSegment;
+    protected long lastBatchId;
+    protected long storedBytes;
+    protected volatile boolean closed;
+
+    public SegmentedLogStorage(Path path) throws IOException {
+        this(path, DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * @param segmentBytes Size of a segment file. A batch larger than that gets a segment of its own
+     */
+    public SegmentedLogStorage(Path path, long segmentBytes) throws IOException {
+        this.path = path;
+        this.segmentBytes = segmentBytes;
+        init();
+    }
+
+    /**
+     * @param memoryMapped Read batches through memory-mapped segments, {@code false} by default
+     */
+    public synchronized void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+    }
+
+    /**
+     * Replaces the durability policy, batches stored under the previous one are forced to disk first.
+     * Segments are preallocated, so forcing data doesn't update the file size.
+     * The cursor isn't forced, a crash may make batches removed recently be uploaded again.
+     */
+    public void setDurabilityPolicy(DurabilityPolicy durabilityPolicy) throws IOException {
+        final FsyncScheduler previousScheduler;
+        synchronized (this) {
+            previousScheduler = fsyncScheduler;
+            fsyncScheduler = new FsyncScheduler(durabilityPolicy, this::sync, path.getFileName().toString());
+        }
+        previousScheduler.shutdown();
+    }
+
+    public FsyncStats getFsyncStats() {
+        return fsyncScheduler.getStats();
+    }
+
+    @Override public boolean store(Collection<Action> actions, BatchFactory batchFactory) throws IOException {
+        final FsyncScheduler scheduler;
+        final long syncSequence;
+        synchronized (this) {
+            final BinaryBatch binaryBatch = batchFactory.createBatch(actions, lastBatchId);
+            try {
+                syncSequence = write(binaryBatch);
+            } finally {
+                binaryBatch.release();
+            }
+            scheduler = fsyncScheduler;
+        }
+
+        scheduler.afterWrite(syncSequence);
+
+        return true;
+    }
+
+    protected boolean store(BinaryBatch binaryBatch) throws IOException {
+        final FsyncScheduler scheduler;
+        final long syncSequence;
+        synchronized (this) {
+            syncSequence = write(binaryBatch);
+            scheduler = fsyncScheduler;
+        }
+
+        scheduler.afterWrite(syncSequence);
+
+        return true;
+    }
+
+    /**
+     * Appends the batch under its own id, ids must increase
+     *
+     * @return fsync sequence number of the batch
+     */
+    protected synchronized long write(BinaryBatch binaryBatch) throws IOException {
+        final long batchId = binaryBatch.getBatchId();
+        if (batchId < lastBatchId) {
+            throw new IllegalArgumentException("Batch id " + batchId + " is less than expected " + lastBatchId);
+        }
+
+        final ByteBuffer batch = binaryBatch.getByteBuffer();
+        final int length = batch.remaining();
+        if (length == 0) {
+            throw new IllegalArgumentException("Batch " + batchId + " is empty");
+        }
+
+        final long recordBytes = RECORD_HEADER_BYTES + (long) length;
+        Segment previousSegment = null;
+        if (writeSegment == null || writeSegment.sealed || writeSegment.size + recordBytes > writeSegment.capacity) {
+            previousSegment = writeSegment;
+            writeSegment = createSegment(Math.max(segmentBytes, recordBytes));
+        }
+
+        headerBuffer.clear();
+        headerBuffer.putInt(length).putLong(batchId).putInt(checksum(batchId, batch.duplicate()));
+        headerBuffer.flip();
+
+        final Segment segment = writeSegment;
+        retryInterrupted(segment, () -> {
+            final ByteBuffer[] buffers = {headerBuffer.duplicate(), batch.duplicate()};
+            // a failed write may have moved the channel past the recorded size
+            segment.channel.position(segment.size);
+            while (buffers[1].hasRemaining()) {
+                segment.channel.write(buffers);
+            }
+            return null;
+        });
+
+        records.add(new Record(batchId, writeSegment, writeSegment.size, length));
+        storedBytes += length;
+        writeSegment.size += recordBytes;
+        writeSegment.liveRecords++;
+        lastBatchId = batchId + 1;
+        if (fsyncScheduler.getPolicy().getMode() != DurabilityPolicy.Mode.NONE) {
+            unsyncedSegments.add(writeSegment);
+        }
+
+        // deleted only now, so the batch id sequence can be restored from the new segment
+        if (previousSegment != null && previousSegment.liveRecords == 0) {
+            deleteSegment(previousSegment);
+        }
+
+        notify();
+
+        return fsyncScheduler.written();
+    }
+
+    @Override public synchronized BinaryBatch get() throws InterruptedException, IOException {
+        return get(Long.MIN_VALUE);
+    }
+
+    @Override public synchronized BinaryBatch get(long previousBatchId) throws InterruptedException, IOException {
+        while (true) {
+            final BinaryBatch binaryBatch = find(previousBatchId);
+            if (binaryBatch != null) {
+                return binaryBatch;
+            }
+            wait();
+        }
+    }
+
+    /**
+     * Doesn't block, skips corrupted batches like get()
+     *
+     * @return the first batch after previousBatchId or {@code null} if there is none
+     */
+    protected synchronized BinaryBatch find(long previousBatchId) throws IOException {
+        while (true) {
+            Record record = null;
+            for (Record next : records) {
+                if (next.batchId > previousBatchId) {
+                    record = next;
+                    break;
+                }
+            }
+            if (record == null) {
+                return null;
+            }
+
+            final BinaryBatch binaryBatch = read(record);
+            if (binaryBatch != null) {
+                return binaryBatch;
+            }
+
+            final boolean head = records.peek() == record;
+            records.remove(record);
+            removed(record, head);
+        }
+    }
+
+    @Override public synchronized void remove() throws IOException {
+        final Record record = records.poll();
+        if (record != null) {
+            removed(record, true);
+        }
+    }
+
+    @Override public synchronized void remove(long batchId) throws IOException {
+        final Iterator<Record> iterator = records.iterator();
+        for (boolean head = true; iterator.hasNext(); head = false) {
+            final Record record = iterator.next();
+            if (record.batchId == batchId) {
+                iterator.remove();
+                removed(record, head);
+                return;
+            }
+        }
+    }
+
+    @Override public boolean supportsRandomAccess() {
+        return true;
+    }
+
+    @Override public boolean isPersistent() {
+        return true;
+    }
+
+    @Override public synchronized boolean isEmpty() {
+        return records.isEmpty();
+    }
+
+    @Override public synchronized long getBatchesNumber() {
+        return records.size();
+    }
+
+    @Override public synchronized long getStoredBytes() {
+        return storedBytes;
+    }
+
+    public synchronized int getSegmentsNumber() {
+        return segments.size();
+    }
+
+    /**
+     * Forces to disk batches stored according to the durability policy
+     */
+    @Override public void shutdown() throws InterruptedException {
+        try {
+            fsyncScheduler.shutdown();
+        } catch (IOException e) {
+            log.error("Error while forcing batches to disk", e);
+        }
+    }
+
+    /**
+     * Closes segment files. The storage must not be used afterwards.
+     */
+    @Override public void close() throws IOException {
+        fsyncScheduler.shutdown();
+        closeFiles();
+    }
+
+    protected synchronized void closeFiles() throws IOException {
+        closed = true;
+        for (Segment segment : segments.values()) {
+            segment.channel.close();
+        }
+        segments.clear();
+        records.clear();
+        storedBytes = 0;
+        writeSegment = null;
+        cursorChannel.close();
+    }
+
+    protected void init() throws IOException {
+        if (Files.notExists(path)) {
+            Files.createDirectories(path);
+        }
+
+        cursorChannel = FileChannel.open(path.resolve(CURSOR_FILE_NAME),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        long cursorSegmentId = 0;
+        long cursorPosition = 0;
+        if (cursorChannel.size() >= CURSOR_BYTES) {
+            cursorBuffer.clear();
+            readFully(cursorChannel, cursorBuffer, 0);
+            cursorBuffer.flip();
+            cursorSegmentId = cursorBuffer.getLong();
+            cursorPosition = cursorBuffer.getLong();
+        }
+
+        final List<Long> ids = new ArrayList<>();
+        try (final DirectoryStream<Path> directoryStream = Files.newDirectoryStream(path, SEGMENT_FILE_GLOB_PATTERN)) {
+            for (Path file : directoryStream) {
+                ids.add(Long.parseLong(file.getFileName().toString().substring(SEGMENT_FILE_NAME_PREFIX.length())));
+            }
+        }
+        Collections.sort(ids);
+
+        for (Long id : ids) {
+            if (id < cursorSegmentId) {
+                log.debug("Deleting consumed segment {}", id);
+                Files.delete(segmentFilePath(id));
+                continue;
+            }
+
+            final Segment segment = openSegment(id);
+            scan(segment, id == cursorSegmentId ? cursorPosition : 0);
+            segments.put(id, segment);
+        }
+
+        if (!segments.isEmpty()) {
+            // bytes of a torn record may follow the last one, so appending continues in a new segment
+            writeSegment = segments.lastEntry().getValue();
+            writeSegment.sealed = true;
+        }
+        for (Segment segment : new ArrayList<>(segments.values())) {
+            if (segment.liveRecords == 0 && segment != writeSegment) {
+                deleteSegment(segment);
+            }
+        }
+
+        log.debug("Initialized {} batches in {} segments, lastBatchId {}", records.size(), segments.size(), lastBatchId);
+    }
+
+    /**
+     * Reads record headers of the segment restoring the batch id sequence, records from the specified position are live
+     */
+    protected void scan(Segment segment, long livePosition) throws IOException {
+        long position = 0;
+        long previousBatchId = -1;
+        while (position + RECORD_HEADER_BYTES <= segment.capacity) {
+            headerBuffer.clear();
+            readFully(segment.channel, headerBuffer, position);
+            headerBuffer.flip();
+
+            final int length = headerBuffer.getInt();
+            final long batchId = headerBuffer.getLong();
+            if (length <= 0 || batchId <= previousBatchId) {
+                break;
+            }
+            if (position + RECORD_HEADER_BYTES + length > segment.capacity) {
+                log.warn("Record at {} of segment {} is torn, ignoring the rest of the segment", position, segment.id);
+                break;
+            }
+
+            if (position >= livePosition) {
+                records.add(new Record(batchId, segment, position, length));
+                storedBytes += length;
+                segment.liveRecords++;
+            }
+            lastBatchId = Math.max(lastBatchId, batchId + 1);
+            previousBatchId = batchId;
+            position += RECORD_HEADER_BYTES + length;
+        }
+
+        segment.size = position;
+    }
+
+    /**
+     * @return the batch or {@code null} if the record is corrupted
+     */
+    protected BinaryBatch read(Record record) throws IOException {
+        if (memoryMapped && record.segment.capacity <= Integer.MAX_VALUE) {
+            return readMapped(record);
+        }
+
+        final Segment segment = record.segment;
+        final byte[] bytes = new byte[record.length];
+        retryInterrupted(segment, () -> {
+            headerBuffer.clear();
+            readFully(segment.channel, headerBuffer, record.position);
+            readFully(segment.channel, ByteBuffer.wrap(bytes), record.position + RECORD_HEADER_BYTES);
+            return null;
+        });
+        headerBuffer.flip();
+        final int length = headerBuffer.getInt();
+        final long batchId = headerBuffer.getLong();
+        final int checksum = headerBuffer.getInt();
+
+        if (length != record.length || batchId != record.batchId || checksum != checksum(batchId, ByteBuffer.wrap(bytes))) {
+            log.warn("Batch {} at {} of segment {} is corrupted, skipping", record.batchId, record.position, record.segment.id);
+            return null;
+        }
+
+        return new BinaryBatch(batchId, bytes);
+    }
+
+    /**
+     * @return view of the batch in the segment mapping or {@code null} if the record is corrupted
+     */
+    protected BinaryBatch readMapped(Record record) throws IOException {
+        final Segment segment = record.segment;
+        if (segment.mapping == null) {
+            segment.mapping = retryInterrupted(segment, () -> segment.channel.map(FileChannel.MapMode.READ_ONLY, 0, segment.capacity));
+        }
+
+        final int position = (int) record.position;
+        final int length = segment.mapping.getInt(position);
+        final long batchId = segment.mapping.getLong(position + 4);
+        final int checksum = segment.mapping.getInt(position + 12);
+
+        final ByteBuffer batch = segment.mapping.duplicate();
+        batch.limit(position + RECORD_HEADER_BYTES + record.length).position(position + RECORD_HEADER_BYTES);
+
+        if (length != record.length || batchId != record.batchId || checksum != checksum(batchId, batch.duplicate())) {
+            log.warn("Batch {} at {} of segment {} is corrupted, skipping", record.batchId, record.position, record.segment.id);
+            return null;
+        }
+
+        return new DirectBinaryBatch(batchId, batch.slice(), null);
+    }
+
+    protected void removed(Record record, boolean head) throws IOException {
+        storedBytes -= record.length;
+        final Segment segment = record.segment;
+        segment.liveRecords--;
+        if (segment.liveRecords == 0 && segment != writeSegment) {
+            deleteSegment(segment);
+        }
+
+        if (head) {
+            updateCursor();
+        }
+    }
+
+    /**
+     * Overwrites the cursor in place, which doesn't change file metadata unlike replacing the file
+     */
+    protected void updateCursor() throws IOException {
+        final Record head = records.peek();
+        cursorBuffer.clear();
+        if (head != null) {
+            cursorBuffer.putLong(head.segment.id).putLong(head.position);
+        } else {
+            cursorBuffer.putLong(writeSegment.id).putLong(writeSegment.size);
+        }
+        cursorBuffer.flip();
+
+        retryInterrupted(this::reopenCursor, () -> {
+            final ByteBuffer buffer = cursorBuffer.duplicate();
+            while (buffer.hasRemaining()) {
+                cursorChannel.write(buffer, buffer.position());
+            }
+            return null;
+        });
+    }
+
+    protected Segment createSegment(long capacity) throws IOException {
+        final long id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        final Path file = segmentFilePath(id);
+        final FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        final Segment segment = new Segment(id, channel, capacity);
+        segments.put(id, segment);
+        segmentCreated = true;
+
+        retryInterrupted(segment, () -> segment.channel.write(ByteBuffer.allocate(1), capacity - 1));
+
+        log.debug("Created segment {} of {} bytes", id, capacity);
+
+        return segment;
+    }
+
+    /**
+     * Forces segments written since the previous call and the directory entry of a new segment.
+     * Segments not forced because of an error are forced by the next call
+     */
+    protected void sync() throws IOException {
+        final Set<Segment> forcedSegments;
+        final boolean forceDirectory;
+        synchronized (this) {
+            forcedSegments = unsyncedSegments;
+            unsyncedSegments = new HashSet<>();
+            forceDirectory = segmentCreated;
+            segmentCreated = false;
+        }
+
+        final Iterator<Segment> iterator = forcedSegments.iterator();
+        try {
+            while (iterator.hasNext()) {
+                final Segment segment = iterator.next();
+                try {
+                    retryInterrupted(segment, () -> {
+                        segment.channel.force(false);
+                        return null;
+                    });
+                } catch (ClosedChannelException e) {
+                    log.trace("Segment {} is deleted before fsync", segment.id);
+                }
+                iterator.remove();
+            }
+        } finally {
+            if (!forcedSegments.isEmpty()) {
+                synchronized (this) {
+                    unsyncedSegments.addAll(forcedSegments);
+                    segmentCreated |= forceDirectory;
+                }
+            }
+        }
+        if (forceDirectory) {
+            FsyncScheduler.forceDirectory(path);
+        }
+    }
+
+    /**
+     * Repeats the I/O once on the reopened file if it has been closed, e.g. by an interrupt of a thread doing I/O
+     * on it. The interrupt is cleared for the repeated I/O and restored afterwards, like {@link FileStorage} does
+     * for batch files
+     */
+    protected <T> T retryInterrupted(Reopener reopener, ChannelIo<T> io) throws IOException {
+        try {
+            return io.run();
+        } catch (ClosedChannelException e) {
+            final boolean interrupted = Thread.interrupted() || e instanceof ClosedByInterruptException;
+            try {
+                if (!reopener.reopen()) {
+                    throw e;
+                }
+                log.debug("Reopened file closed by an interrupt, repeating I/O");
+                return io.run();
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    protected <T> T retryInterrupted(Segment segment, ChannelIo<T> io) throws IOException {
+        return retryInterrupted(() -> reopen(segment), io);
+    }
+
+    /**
+     * @return {@code false} if the segment is deleted or the storage is closed
+     */
+    protected synchronized boolean reopen(Segment segment) throws IOException {
+        if (closed || segments.get(segment.id) != segment) {
+            return false;
+        }
+        if (!segment.channel.isOpen()) {
+            segment.channel = FileChannel.open(segmentFilePath(segment.id), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        return true;
+    }
+
+    protected synchronized boolean reopenCursor() throws IOException {
+        if (closed) {
+            return false;
+        }
+        if (!cursorChannel.isOpen()) {
+            cursorChannel = FileChannel.open(path.resolve(CURSOR_FILE_NAME), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        return true;
+    }
+
+    protected Segment openSegment(long id) throws IOException {
+        final FileChannel channel = FileChannel.open(segmentFilePath(id), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new Segment(id, channel, channel.size());
+    }
+
+    protected void deleteSegment(Segment segment) throws IOException {
+        segments.remove(segment.id);
+        segment.channel.close();
+        Files.delete(segmentFilePath(segment.id));
+
+        log.debug("Deleted segment {}", segment.id);
+    }
+
+    protected Path segmentFilePath(long id) {
+        return path.resolve(SEGMENT_FILE_NAME_PREFIX + String.format(DIGITAL_FORMAT, id));
+    }
+
+    protected int checksum(long batchId, ByteBuffer batch) {
+        crc.reset();
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (batchId >>> shift));
+        }
+        crc.update(batch);
+        return (int) crc.getValue();
+    }
+
+    protected static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        final int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position() - start) < 0) {
+                throw new EOFException("Unexpected end of file at " + (position + buffer.position() - start));
+            }
+        }
+    }
+
+    @FunctionalInterface
+    protected interface ChannelIo<T> {
+        T run() throws IOException;
+    }
+
+    @FunctionalInterface
+    protected interface Reopener {
+        /**
+         * @return {@code false} if the file shouldn't be reopened
+         */
+        boolean reopen() throws IOException;
+    }
+
+    protected static class Segment {
+        protected final long id;
+        // replaced when the file is reopened after an interrupt
+        protected volatile FileChannel channel;
+        protected final long capacity;
+        protected long size;
+        protected int liveRecords;
+        protected boolean sealed;
+        protected MappedByteBuffer mapping;
+
+        protected Segment(long id, FileChannel channel, long capacity) {
+            this.id = id;
+            this.channel = channel;
+            this.capacity = capacity;
+        }
+    }
+
+    protected static class Record {
+        protected final long batchId;
+        protected final Segment segment;
+        protected final long position;
+        protected final int length;
+
+        protected Record(long batchId, Segment segment, long position, int length) {
+            this.batchId = batchId;
+            this.segment = segment;
+            this.position = position;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.appmetr.s2s.persister;
+
+import com.appmetr.s2s.BinaryBatch;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Heap storage shared by several tenants, each storing into its own {@link Shard} under one memory budget.
+ * Every tenant is guaranteed a quota of an equal share of the budget. Above its quota a tenant may only fill
+ * the storage up to the high watermark, so the rest is left for tenants within their quotas.
+ * A batch which doesn't fit is rejected at once.
+ */
+public class ShardedHeapStorage {
+    protected final long maxBytes;
+    protected final AtomicLong occupiedBytes = new AtomicLong();
+    protected final Map<String, Shard> shards = new ConcurrentHashMap<>();
+    protected volatile double highWatermark = AbstractHeapStorage.DEFAULT_HIGH_WATERMARK;
+
+    protected final ReentrantLock readLock = new ReentrantLock();
+    protected final Condition notEmpty = readLock.newCondition();
+    protected final AtomicInteger waitingReaders = new AtomicInteger();
+
+    /**
+     * @param maxBytes Memory budget of all shards
+     */
+    public ShardedHeapStorage(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param highWatermark Fraction of the budget tenants above their quotas may fill
+     */
+    public void setHighWatermark(double highWatermark) {
+        this.highWatermark = highWatermark;
+    }
+
+    /**
+     * @return the shard of the tenant, created on the first call
+     */
+    public Shard shard(String tenant) {
+        return shards.computeIfAbsent(tenant, Shard::new);
+    }
+
+    public Collection<Shard> getShards() {
+        return Collections.unmodifiableCollection(shards.values());
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getStoredBytes() {
+        return occupiedBytes.get();
+    }
+
+    /**
+     * @return bytes each tenant may store regardless of the others
+     */
+    public long getTenantQuota() {
+        return maxBytes / Math.max(1, shards.size());
+    }
+
+    /**
+     * Waits until a batch is stored in any shard or the timeout
+     *
+     * @return false if the timeout has elapsed
+     */
+    public boolean awaitBatches(long timeout, TimeUnit unit) throws InterruptedException {
+        readLock.lockInterruptibly();
+        waitingReaders.incrementAndGet();
+        try {
+            return notEmpty.await(timeout, unit);
+        } finally {
+            waitingReaders.decrementAndGet();
+            readLock.unlock();
+        }
+    }
+
+    protected void signalNotEmpty() {
+        readLock.lock();
+        try {
+            notEmpty.signalAll();
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Storage of one tenant, its batches are counted in the shared budget
+     */
+    public class Shard extends TwoLockHeapStorage {
+        protected final String tenant;
+
+        protected Shard(String tenant) {
+            super(ShardedHeapStorage.this.maxBytes);
+            this.tenant = tenant;
+        }
+
+        public String getTenant() {
+            return tenant;
+        }
+
+        /**
+         * Reserves the batch size in the shared budget, never waits for space
+         */
+        @Override protected boolean isCapacityExceeded(BinaryBatch binaryBatch) {
+            final AtomicLong sharedBytes = ShardedHeapStorage.this.occupiedBytes;
+            final long limit = getLimit(binaryBatch.getSize());
+            final long size = binaryBatch.getSize();
+            while (true) {
+                final long occupied = sharedBytes.get();
+                if (occupied + size > limit) {
+                    return true;
+                }
+                if (sharedBytes.compareAndSet(occupied, occupied + size)) {
+                    return false;
+                }
+            }
+        }
+
+        /**
+         * @return fill of the shared budget up to which a batch of the size is accepted
+         */
+        protected long getLimit(long batchBytes) {
+            final boolean withinQuota = occupiedBytes.get() + batchBytes <= getTenantQuota();
+            return withinQuota ? maxBytes : (long) (maxBytes * ShardedHeapStorage.this.highWatermark);
+        }
+
+        @Override protected boolean store(BinaryBatch binaryBatch) throws InterruptedException {
+            final boolean stored = super.store(binaryBatch);
+            if (stored && ShardedHeapStorage.this.waitingReaders.get() > 0) {
+                ShardedHeapStorage.this.signalNotEmpty();
+            }
+            return stored;
+        }
+
+        @Override protected void removed(BinaryBatch binaryBatch) {
+            ShardedHeapStorage.this.occupiedBytes.addAndGet(-binaryBatch.getSize());
+            super.removed(binaryBatch);
+        }
+
+        @Override public Backpressure getBackpressure() {
+            final long occupied = ShardedHeapStorage.this.occupiedBytes.get();
+            if (occupied + lastBatchBytes > getLimit(lastBatchBytes)) {
+                return Backpressure.FULL;
+            }
+            return occupiedBytes.get() + lastBatchBytes <= getTenantQuota()
+                    && occupied <= maxBytes * ShardedHeapStorage.this.highWatermark ? Backpressure.NONE : Backpressure.HIGH;
+        }
+    }
+}
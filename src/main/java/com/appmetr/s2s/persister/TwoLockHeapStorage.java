@@ -0,0 +1,254 @@
+package com.appmetr.s2s.persister;
+
+import com.appmetr.s2s.BinaryBatch;
+import com.appmetr.s2s.events.Action;
+
+import java.time.Clock;
+import java.util.Collection;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Heap storage like {@link HeapStorage}, store() waits until space becomes available, for many producers
+ * and upload threads contending on a multi-core machine. An opt-in alternative to the single lock heap storages,
+ * on a single core the single lock is faster, see HeapStorageBenchmark.
+ * <p>
+ * Batches are kept in a lock-free queue with two locks around it, like {@link java.util.concurrent.LinkedBlockingQueue}:
+ * producers serialize on the put lock, readers wait on the take lock and removals take no lock at all.
+ * A producer waiting for space keeps the put lock, so the next producers queue behind it and batch ids
+ * stay in storing order, and a removal has a single producer to wake. The other side's lock is taken
+ * only to wake a thread actually waiting on it.
+ */
+public class TwoLockHeapStorage implements BatchStorage {
+    protected final long maxBytes;
+    protected Queue<BinaryBatch> batchesQueue = new ConcurrentLinkedQueue<>();
+    protected Clock clock = Clock.systemUTC();
+    protected volatile long previousBatchId;
+    protected final AtomicLong occupiedBytes = new AtomicLong();
+    protected final AtomicInteger batchesNumber = new AtomicInteger();
+    protected volatile long lastBatchBytes;
+    protected volatile double highWatermark = AbstractHeapStorage.DEFAULT_HIGH_WATERMARK;
+
+    protected final ReentrantLock putLock = new ReentrantLock();
+    protected final ReentrantLock spaceLock = new ReentrantLock();
+    protected final Condition notFull = spaceLock.newCondition();
+    protected volatile boolean producerWaiting;
+    protected final ReentrantLock takeLock = new ReentrantLock();
+    protected final Condition notEmpty = takeLock.newCondition();
+    protected final AtomicInteger waitingReaders = new AtomicInteger();
+
+    public TwoLockHeapStorage() {
+        this(AbstractHeapStorage.DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxBytes Limit storage capacity. Use Long.MAX_VALUE for unbound
+     */
+    public TwoLockHeapStorage(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * @param highWatermark Fraction of the capacity above which the storage reports {@link Backpressure#HIGH}
+     */
+    public void setHighWatermark(double highWatermark) {
+        this.highWatermark = highWatermark;
+    }
+
+    @Override public boolean store(Collection<Action> actions, BatchFactory batchFactory) throws InterruptedException {
+        putLock.lockInterruptibly();
+        try {
+            long batchId = clock.millis();
+            if (batchId <= previousBatchId) {
+                batchId = previousBatchId + 1;
+            }
+
+            return store(batchFactory.createBatch(actions, batchId));
+        } finally {
+            putLock.unlock();
+        }
+    }
+
+    /**
+     * Takes ownership of the batch, a rejected batch is released at once
+     */
+    protected boolean store(BinaryBatch binaryBatch) throws InterruptedException {
+        try {
+            putLock.lockInterruptibly();
+        } catch (InterruptedException e) {
+            binaryBatch.release();
+            throw e;
+        }
+        try {
+            lastBatchBytes = binaryBatch.getSize();
+            final boolean capacityExceeded;
+            try {
+                capacityExceeded = isCapacityExceeded(binaryBatch);
+            } catch (InterruptedException e) {
+                binaryBatch.release();
+                throw e;
+            }
+            if (capacityExceeded) {
+                binaryBatch.release();
+                return false;
+            }
+
+            occupiedBytes.addAndGet(binaryBatch.getSize());
+            batchesNumber.incrementAndGet();
+            batchesQueue.add(binaryBatch);
+            // set only after the batch is in the queue, so a batch is visible to anyone who has seen its id
+            previousBatchId = binaryBatch.getBatchId();
+        } finally {
+            putLock.unlock();
+        }
+
+        if (waitingReaders.get() > 0) {
+            signalNotEmpty();
+        }
+
+        return true;
+    }
+
+    @Override public BinaryBatch get() throws InterruptedException {
+        return get(Long.MIN_VALUE);
+    }
+
+    @Override public BinaryBatch get(long previousBatchId) throws InterruptedException {
+        BinaryBatch binaryBatch = find(previousBatchId);
+        if (binaryBatch != null) {
+            return binaryBatch;
+        }
+
+        takeLock.lockInterruptibly();
+        waitingReaders.incrementAndGet();
+        try {
+            // checked again after registering as a waiting reader, so a store either sees the reader or is seen here
+            while ((binaryBatch = find(previousBatchId)) == null) {
+                notEmpty.await();
+            }
+            return binaryBatch;
+        } finally {
+            waitingReaders.decrementAndGet();
+            takeLock.unlock();
+        }
+    }
+
+    protected BinaryBatch find(long previousBatchId) {
+        for (BinaryBatch binaryBatch : batchesQueue) {
+            if (binaryBatch.getBatchId() > previousBatchId) {
+                return binaryBatch;
+            }
+        }
+        return null;
+    }
+
+    @Override public void remove(long batchId) {
+        for (BinaryBatch binaryBatch : batchesQueue) {
+            if (binaryBatch.getBatchId() == batchId) {
+                if (batchesQueue.remove(binaryBatch)) {
+                    removed(binaryBatch);
+                }
+                return;
+            }
+        }
+    }
+
+    @Override public void remove() {
+        final BinaryBatch binaryBatch = batchesQueue.poll();
+        if (binaryBatch != null) {
+            removed(binaryBatch);
+        }
+    }
+
+    protected void removed(BinaryBatch binaryBatch) {
+        occupiedBytes.addAndGet(-binaryBatch.getSize());
+        batchesNumber.decrementAndGet();
+        binaryBatch.release();
+
+        if (producerWaiting) {
+            spaceLock.lock();
+            try {
+                notFull.signal();
+            } finally {
+                spaceLock.unlock();
+            }
+        }
+    }
+
+    protected void signalNotEmpty() {
+        takeLock.lock();
+        try {
+            notEmpty.signalAll();
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    @Override public boolean supportsRandomAccess() {
+        return true;
+    }
+
+    @Override
+    public boolean isPersistent() {
+        return false;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return batchesQueue.isEmpty();
+    }
+
+    @Override public long getBatchesNumber() {
+        return batchesNumber.get();
+    }
+
+    @Override public long getStoredBytes() {
+        return occupiedBytes.get();
+    }
+
+    @Override public Backpressure getBackpressure() {
+        final long occupied = occupiedBytes.get();
+        if (occupied + lastBatchBytes > maxBytes) {
+            return Backpressure.FULL;
+        }
+        return occupied > maxBytes * highWatermark ? Backpressure.HIGH : Backpressure.NONE;
+    }
+
+    /**
+     * Waits until the batch fits, called with the put lock held
+     */
+    protected boolean isCapacityExceeded(BinaryBatch binaryBatch) throws InterruptedException {
+        while (exceeds(binaryBatch)) {
+            awaitSpace(binaryBatch);
+        }
+        return false;
+    }
+
+    protected boolean exceeds(BinaryBatch binaryBatch) {
+        return occupiedBytes.get() + binaryBatch.getSize() > maxBytes;
+    }
+
+    /**
+     * Waits until a removal, called with the put lock held
+     */
+    protected void awaitSpace(BinaryBatch binaryBatch) throws InterruptedException {
+        spaceLock.lockInterruptibly();
+        producerWaiting = true;
+        try {
+            if (exceeds(binaryBatch)) {
+                notFull.await();
+            }
+        } finally {
+            producerWaiting = false;
+            spaceLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.appmetr.s2s.sender;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking sender. AppMetr keeps up to {@code maxInFlightUploads} uploads of such a sender going
+ * from its upload thread and schedules retries instead of sleeping.
+ * The returned future should complete exceptionally only on unexpected errors, failed uploads complete
+ * with a {@link SendResult}.
+ */
+public interface AsyncBatchSender extends BatchSender {
+
+    /**
+     * @param batch Batch between position and limit. Must not be modified until the future completes
+     */
+    CompletableFuture<SendResult> sendAsync(String uri, String token, ByteBuffer batch);
+
+    @Override default boolean send(String uri, String token, byte[] batch) {
+        return sendAsync(uri, token, ByteBuffer.wrap(batch)).join().isSuccess();
+    }
+
+    @Override default boolean sendBuffer(String uri, String token, ByteBuffer batch) {
+        return sendAsync(uri, token, batch).join().isSuccess();
+    }
+}
@@ -1,7 +1,23 @@
 package com.appmetr.s2s.sender;
 
+import java.nio.ByteBuffer;
+
 @FunctionalInterface
 public interface BatchSender {
 
     boolean send(String uri, String token, byte[] batch);
+
+    /**
+     * Sends the batch between position and limit of the buffer, which may be direct.
+     * Copies the batch to heap unless overridden.
+     */
+    default boolean sendBuffer(String uri, String token, ByteBuffer batch) {
+        if (batch.hasArray() && batch.arrayOffset() == 0 && batch.position() == 0 && batch.remaining() == batch.array().length) {
+            return send(uri, token, batch.array());
+        }
+
+        final byte[] bytes = new byte[batch.remaining()];
+        batch.duplicate().get(bytes);
+        return send(uri, token, bytes);
+    }
 }
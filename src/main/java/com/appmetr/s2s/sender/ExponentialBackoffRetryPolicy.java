@@ -0,0 +1,135 @@
+package com.appmetr.s2s.sender;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with full jitter: the n-th retry of a batch waits a random delay between zero and
+ * {@code min(maxDelay, baseDelay * 2^(n-1))}, so many servers recovering from the same outage don't retry in lock-step.
+ * A Retry-After delay requested with 429 or 503 responses is respected up to {@code maxDelay}.
+ * <p>
+ * After {@code failureThreshold} retryable failures in a row the circuit opens and reading new batches is paused
+ * for a backoff delay growing with further failures. The next upload after the pause probes the collector,
+ * a success closes the circuit. Rejected batches don't count as failures as the collector did respond.
+ */
+public class ExponentialBackoffRetryPolicy implements RetryPolicy {
+    private static final Logger log = LoggerFactory.getLogger(ExponentialBackoffRetryPolicy.class);
+
+    protected Duration baseDelay = Duration.ofSeconds(1);
+    protected Duration maxDelay = Duration.ofMinutes(5);
+    protected int maxAttempts;
+    protected boolean dropRejected;
+    protected int failureThreshold = 5;
+    protected Clock clock = Clock.systemUTC();
+
+    protected int consecutiveFailures;
+    protected Instant openUntil = Instant.MIN;
+
+    public void setBaseDelay(Duration baseDelay) {
+        this.baseDelay = baseDelay;
+    }
+
+    public void setMaxDelay(Duration maxDelay) {
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * @param maxAttempts Attempts of a batch before it is dropped, 0 means retrying until uploaded
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * @param dropRejected Drop batches rejected by the collector instead of retrying them, disabled by default
+     */
+    public void setDropRejected(boolean dropRejected) {
+        this.dropRejected = dropRejected;
+    }
+
+    /**
+     * @param failureThreshold Retryable failures in a row opening the circuit, 0 disables the circuit breaker
+     */
+    public void setFailureThreshold(int failureThreshold) {
+        this.failureThreshold = failureThreshold;
+    }
+
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    @Override public boolean shouldRetry(int attempt, SendResult result) {
+        return (!dropRejected || result.isRetryable()) && (maxAttempts <= 0 || attempt < maxAttempts);
+    }
+
+    @Override public Duration nextDelay(int attempt, SendResult result) {
+        final Duration delay = jitter(backoff(attempt));
+        final Duration retryAfter = result.getRetryAfter();
+        if (retryAfter == null || retryAfter.compareTo(delay) <= 0) {
+            return delay;
+        }
+
+        return retryAfter.compareTo(maxDelay) < 0 ? retryAfter : maxDelay;
+    }
+
+    @Override public synchronized void onResult(SendResult result) {
+        if (result.isSuccess() || !result.isRetryable()) {
+            if (consecutiveFailures >= failureThreshold && failureThreshold > 0) {
+                log.info("Circuit closed after {} failed uploads", consecutiveFailures);
+            }
+            consecutiveFailures = 0;
+            openUntil = Instant.MIN;
+            return;
+        }
+
+        consecutiveFailures++;
+        if (failureThreshold > 0 && consecutiveFailures >= failureThreshold) {
+            final Duration pause = nextDelay(consecutiveFailures - failureThreshold + 1, result);
+            openUntil = clock.instant().plus(pause);
+            log.warn("Circuit open for {} after {} failed uploads", pause, consecutiveFailures);
+        }
+    }
+
+    @Override public synchronized Duration readPause() {
+        final Duration pause = Duration.between(clock.instant(), openUntil);
+        return pause.isNegative() ? Duration.ZERO : pause;
+    }
+
+    public synchronized boolean isOpen() {
+        return failureThreshold > 0 && consecutiveFailures >= failureThreshold;
+    }
+
+    /**
+     * @return {@code min(maxDelay, baseDelay * 2^(attempt-1))}
+     */
+    protected Duration backoff(int attempt) {
+        final int shift = Math.min(Math.max(attempt - 1, 0), 62);
+        final long baseMillis = baseDelay.toMillis();
+        final long maxMillis = maxDelay.toMillis();
+        if (baseMillis <= 0 || baseMillis > maxMillis >> shift) {
+            return baseMillis <= 0 ? Duration.ZERO : maxDelay;
+        }
+
+        return Duration.ofMillis(baseMillis << shift);
+    }
+
+    protected Duration jitter(Duration delay) {
+        final long millis = delay.toMillis();
+        return millis <= 0 ? Duration.ZERO : Duration.ofMillis(ThreadLocalRandom.current().nextLong(millis + 1));
+    }
+
+    @Override public String toString() {
+        return "ExponentialBackoffRetryPolicy{" +
+                "baseDelay=" + baseDelay +
+                ", maxDelay=" + maxDelay +
+                ", maxAttempts=" + maxAttempts +
+                ", dropRejected=" + dropRejected +
+                ", failureThreshold=" + failureThreshold +
+                '}';
+    }
+}
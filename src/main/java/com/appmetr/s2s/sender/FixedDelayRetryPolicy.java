@@ -0,0 +1,39 @@
+package com.appmetr.s2s.sender;
+
+import java.time.Duration;
+
+/**
+ * Retries after the same delay every time or after a longer Retry-After requested by the collector
+ */
+public class FixedDelayRetryPolicy implements RetryPolicy {
+
+    protected final Duration delay;
+    protected boolean dropRejected;
+
+    public FixedDelayRetryPolicy(Duration delay) {
+        this.delay = delay;
+    }
+
+    /**
+     * @param dropRejected Drop batches rejected by the collector instead of retrying them, disabled by default
+     */
+    public void setDropRejected(boolean dropRejected) {
+        this.dropRejected = dropRejected;
+    }
+
+    @Override public boolean shouldRetry(int attempt, SendResult result) {
+        return !dropRejected || result.isRetryable();
+    }
+
+    @Override public Duration nextDelay(int attempt, SendResult result) {
+        final Duration retryAfter = result.getRetryAfter();
+        return retryAfter != null && retryAfter.compareTo(delay) > 0 ? retryAfter : delay;
+    }
+
+    @Override public String toString() {
+        return "FixedDelayRetryPolicy{" +
+                "delay=" + delay +
+                ", dropRejected=" + dropRejected +
+                '}';
+    }
+}
@@ -10,15 +10,25 @@ import java.io.*;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.HashMap;
 import java.util.Map;
 
 public class HttpBatchSender implements BatchSender {
     private static final Logger log = LoggerFactory.getLogger(HttpBatchSender.class);
 
+    protected static final String RETRY_AFTER = "Retry-After";
+    protected static final int HTTP_UNPROCESSABLE_ENTITY = 422;
+
     protected static final ThreadLocal<byte[]> bytesThreadLocal = ThreadLocal.withInitial(() -> new byte[1024]);
+    protected static final ThreadLocal<byte[]> bodyBytesThreadLocal = ThreadLocal.withInitial(() -> new byte[16 * 1024]);
 
     protected int connectTimeoutMs = 60 * 1000;
     protected int readTimeoutMs = 120 * 1000;
@@ -48,6 +58,20 @@ public class HttpBatchSender implements BatchSender {
     }
 
     @Override public boolean send(String httpURL, String deploy, byte[] batch) {
+        return sendBuffer(httpURL, deploy, ByteBuffer.wrap(batch));
+    }
+
+    /**
+     * Streams a direct buffer through a small per-thread array instead of copying the whole batch to heap
+     */
+    @Override public boolean sendBuffer(String httpURL, String deploy, ByteBuffer batch) {
+        return sendForResult(httpURL, deploy, batch).isSuccess();
+    }
+
+    /**
+     * Blocking upload telling retryable failures from rejected batches
+     */
+    public SendResult sendForResult(String httpURL, String deploy, ByteBuffer batch) {
         final HttpURLConnection connection;
         try {
             final URL url = makeUrl(httpURL, deploy);
@@ -65,38 +89,107 @@ public class HttpBatchSender implements BatchSender {
             connection.setDoOutput(true);
             connection.setRequestMethod("POST");
             connection.setRequestProperty("Content-Type", "application/octet-stream");
-            connection.setFixedLengthStreamingMode(batch.length);
+            connection.setFixedLengthStreamingMode(batch.remaining());
 
             try (OutputStream out = connection.getOutputStream()) {
-                out.write(batch);
+                writeBody(out, batch);
             }
 
-            try (InputStream inputStream = connection.getInputStream()) {
-                if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
-                    log.warn("Status code error {}", connection.getResponseCode());
-                    return false;
-                }
-                final String result = readStream(inputStream);
-                final JsonNode responseJson = objectMapper.readTree(result);
-                final JsonNode status = status(responseJson);
+            final int statusCode = connection.getResponseCode();
+            if (statusCode != HttpURLConnection.HTTP_OK) {
+                log.warn("Status code error {}", statusCode);
+                return toSendResult(statusCode, connection.getHeaderField(RETRY_AFTER), null);
+            }
 
-                if (status == null) {
-                    log.error("Unknown server response '{}'", result);
-                    return false;
-                }
-                if ("OK".equalsIgnoreCase(status.textValue())) {
-                    return true;
-                }
-            } catch (JsonParseException jsonError) {
-                log.error("Cannot parse json", jsonError);
+            try (InputStream inputStream = connection.getInputStream()) {
+                return toSendResult(statusCode, null, readStream(inputStream));
             }
         } catch (Exception e) {
             log.warn("Request exception", e);
+            return SendResult.retryable(e.toString());
         } finally {
             connection.disconnect();
         }
+    }
+
+    /**
+     * Only payload errors (400, 413 and 422) reject the batch, other responses like 401, 404 or 429
+     * may succeed after the collector or its configuration is fixed and are worth retrying
+     *
+     * @param retryAfter value of Retry-After header or {@code null}
+     * @param body       response body, read only for 200 status code
+     */
+    protected SendResult toSendResult(int statusCode, String retryAfter, String body) throws IOException {
+        if (statusCode == HttpURLConnection.HTTP_OK) {
+            return checkResponse(body) ? SendResult.OK : SendResult.retryable(statusCode, null, "Server response '" + body + "'");
+        }
+
+        if (statusCode == HttpURLConnection.HTTP_BAD_REQUEST || statusCode == HttpURLConnection.HTTP_ENTITY_TOO_LARGE
+                || statusCode == HTTP_UNPROCESSABLE_ENTITY) {
+            return SendResult.rejected(statusCode, "Status code " + statusCode);
+        }
+
+        return SendResult.retryable(statusCode, parseRetryAfter(retryAfter), "Status code " + statusCode);
+    }
+
+    /**
+     * @param retryAfter delay in seconds or HTTP date
+     */
+    protected Duration parseRetryAfter(String retryAfter) {
+        if (retryAfter == null || retryAfter.isEmpty()) {
+            return null;
+        }
+
+        try {
+            if (Character.isDigit(retryAfter.charAt(0))) {
+                return Duration.ofSeconds(Long.parseLong(retryAfter.trim()));
+            }
+
+            final Instant retryTime = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+            final Duration delay = Duration.between(clock.instant(), retryTime);
+            return delay.isNegative() ? Duration.ZERO : delay;
+
+        } catch (NumberFormatException | DateTimeParseException e) {
+            log.warn("Wrong Retry-After header '{}'", retryAfter);
+            return null;
+        }
+    }
+
+    /**
+     * @param result body of a response with 200 status code
+     * @return {@code true} if the server accepted the batch
+     */
+    protected boolean checkResponse(String result) throws IOException {
+        try {
+            final JsonNode responseJson = objectMapper.readTree(result);
+            final JsonNode status = status(responseJson);
+
+            if (status == null) {
+                log.error("Unknown server response '{}'", result);
+                return false;
+            }
+
+            return "OK".equalsIgnoreCase(status.textValue());
+
+        } catch (JsonParseException jsonError) {
+            log.error("Cannot parse json", jsonError);
+            return false;
+        }
+    }
 
-        return false;
+    protected void writeBody(OutputStream out, ByteBuffer batch) throws IOException {
+        if (batch.hasArray()) {
+            out.write(batch.array(), batch.arrayOffset() + batch.position(), batch.remaining());
+            return;
+        }
+
+        final ByteBuffer body = batch.duplicate();
+        final byte[] buffer = bodyBytesThreadLocal.get();
+        while (body.hasRemaining()) {
+            final int length = Math.min(buffer.length, body.remaining());
+            body.get(buffer, 0, length);
+            out.write(buffer, 0, length);
+        }
     }
 
     protected JsonNode status(JsonNode response) {
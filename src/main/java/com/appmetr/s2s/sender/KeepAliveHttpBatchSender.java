@@ -0,0 +1,488 @@
+package com.appmetr.s2s.sender;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HTTP/1.1 sender which keeps warm keep-alive connections to the collector, so a batch doesn't pay
+ * TCP and TLS handshakes. Up to {@code maxIdleConnections} idle connections are kept per host and
+ * connections idle longer than {@code idleTimeout} are closed by a background thread instead of being reused.
+ * A connection idle for a while is checked for being closed by the server before it is reused. A request which
+ * fails on a reused connection before any byte of it is sent is repeated once on a new one, a request which
+ * may have reached the server isn't repeated.
+ */
+public class KeepAliveHttpBatchSender extends HttpBatchSender implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(KeepAliveHttpBatchSender.class);
+
+    protected static final int MAX_LINE_LENGTH = 8 * 1024;
+    protected static final long VALIDATE_AFTER_IDLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    protected int maxIdleConnections = 4;
+    protected Duration idleTimeout = Duration.ofSeconds(30);
+    protected SSLSocketFactory sslSocketFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+
+    protected final Map<String, Deque<PooledConnection>> idleConnections = new HashMap<>();
+    protected final AtomicLong openedConnections = new AtomicLong();
+    protected ScheduledExecutorService evictionService;
+
+    /**
+     * @param maxIdleConnections Limit of idle connections kept per host. Should be at least the number of
+     *                           uploads in flight
+     */
+    public void setMaxIdleConnections(int maxIdleConnections) {
+        this.maxIdleConnections = maxIdleConnections;
+    }
+
+    /**
+     * @param idleTimeout Should be less than the keep-alive timeout of the collector
+     */
+    public void setIdleTimeout(Duration idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public void setSslSocketFactory(SSLSocketFactory sslSocketFactory) {
+        this.sslSocketFactory = sslSocketFactory;
+    }
+
+    public long getOpenedConnections() {
+        return openedConnections.get();
+    }
+
+    public synchronized int getIdleConnections() {
+        int idle = 0;
+        for (Deque<PooledConnection> connections : idleConnections.values()) {
+            idle += connections.size();
+        }
+        return idle;
+    }
+
+    @Override public SendResult sendForResult(String httpURL, String deploy, ByteBuffer batch) {
+        final URL url;
+        try {
+            url = makeUrl(httpURL, deploy);
+            if (!"http".equals(url.getProtocol()) && !"https".equals(url.getProtocol())) {
+                throw new MalformedURLException("Unsupported protocol " + url.getProtocol());
+            }
+        } catch (MalformedURLException e) {
+            log.error("Connection creation exception to {} and '{}'", httpURL, deploy, e);
+            throw new IllegalArgumentException(
+                    "Wrong url '" + httpURL + "' or deploy '" + deploy + "' or method '" + serverMethodName + "'", e);
+        }
+
+        PooledConnection connection = null;
+        try {
+            connection = acquire(url);
+
+            Response response;
+            try {
+                response = connection.exchange(url, batch);
+            } catch (IOException e) {
+                if (!connection.reused || connection.sentBytes.count > 0) {
+                    throw e;
+                }
+
+                log.debug("Reused connection to {} failed, retrying on a new one", connection.key, e);
+                connection.close();
+                connection = connect(url);
+                response = connection.exchange(url, batch);
+            }
+
+            if (response.keepAlive) {
+                release(connection);
+            } else {
+                connection.close();
+            }
+            connection = null;
+
+            if (response.code != HttpURLConnection.HTTP_OK) {
+                log.warn("Status code error {}", response.code);
+            }
+
+            return toSendResult(response.code, response.retryAfter, response.body);
+
+        } catch (Exception e) {
+            log.warn("Request exception", e);
+            return SendResult.retryable(e.toString());
+        } finally {
+            if (connection != null) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Closes connections which have been idle longer than {@code idleTimeout}
+     */
+    public synchronized void evictIdleConnections() {
+        final Iterator<Deque<PooledConnection>> iterator = idleConnections.values().iterator();
+        while (iterator.hasNext()) {
+            final Deque<PooledConnection> connections = iterator.next();
+            evictExpired(connections, System.nanoTime());
+            if (connections.isEmpty()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Closes all idle connections and stops the eviction thread, a later upload starts it again
+     */
+    @Override public synchronized void close() {
+        if (evictionService != null) {
+            evictionService.shutdownNow();
+            evictionService = null;
+        }
+        for (Deque<PooledConnection> connections : idleConnections.values()) {
+            for (PooledConnection connection : connections) {
+                connection.close();
+            }
+        }
+        idleConnections.clear();
+    }
+
+    protected PooledConnection acquire(URL url) throws IOException {
+        final String key = key(url);
+        while (true) {
+            final PooledConnection connection;
+            synchronized (this) {
+                final Deque<PooledConnection> connections = idleConnections.get(key);
+                if (connections == null) {
+                    break;
+                }
+                evictExpired(connections, System.nanoTime());
+                connection = connections.pollFirst();
+            }
+            if (connection == null) {
+                break;
+            }
+
+            if (System.nanoTime() - connection.lastUsedNanos > VALIDATE_AFTER_IDLE_NANOS && connection.isStale()) {
+                log.debug("Idle connection to {} was closed by the server", key);
+                connection.close();
+                continue;
+            }
+            connection.reused = true;
+            return connection;
+        }
+
+        return connect(url);
+    }
+
+    protected void release(PooledConnection connection) {
+        connection.lastUsedNanos = System.nanoTime();
+        synchronized (this) {
+            if (evictionService == null) {
+                startEviction();
+            }
+            final Deque<PooledConnection> connections = idleConnections.computeIfAbsent(connection.key, k -> new ArrayDeque<>());
+            evictExpired(connections, connection.lastUsedNanos);
+            if (connections.size() < maxIdleConnections) {
+                connections.offerFirst(connection);
+                return;
+            }
+        }
+
+        connection.close();
+    }
+
+    /**
+     * Closes idle connections of all hosts, also of hosts no longer uploaded to
+     */
+    protected void startEviction() {
+        evictionService = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "appmetr-keep-alive-eviction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final long periodNanos = idleTimeout.toNanos();
+        evictionService.scheduleWithFixedDelay(this::evictIdleConnections, periodNanos, periodNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * The most recently used connections are at the head
+     */
+    protected void evictExpired(Deque<PooledConnection> connections, long nowNanos) {
+        while (!connections.isEmpty() && nowNanos - connections.peekLast().lastUsedNanos > idleTimeout.toNanos()) {
+            connections.pollLast().close();
+        }
+    }
+
+    protected PooledConnection connect(URL url) throws IOException {
+        final boolean https = "https".equals(url.getProtocol());
+        final String host = url.getHost();
+        final int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(new InetSocketAddress(host, port), connectTimeoutMs);
+            socket.setSoTimeout(readTimeoutMs);
+
+            if (https) {
+                final SSLSocket sslSocket = (SSLSocket) sslSocketFactory.createSocket(socket, host, port, true);
+                socket = sslSocket;
+                final SSLParameters sslParameters = sslSocket.getSSLParameters();
+                sslParameters.setEndpointIdentificationAlgorithm("HTTPS");
+                sslSocket.setSSLParameters(sslParameters);
+                sslSocket.startHandshake();
+            }
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+
+        openedConnections.incrementAndGet();
+        log.debug("Opened connection to {}:{}", host, port);
+
+        return new PooledConnection(key(url), socket);
+    }
+
+    protected String key(URL url) {
+        return url.getProtocol() + "://" + url.getHost() + ":" + (url.getPort() != -1 ? url.getPort() : url.getDefaultPort());
+    }
+
+    protected class PooledConnection {
+        final String key;
+        final Socket socket;
+        final InputStream in;
+        final CountingOutputStream sentBytes;
+        final OutputStream out;
+        boolean reused;
+        long lastUsedNanos;
+
+        PooledConnection(String key, Socket socket) throws IOException {
+            this.key = key;
+            this.socket = socket;
+            in = new BufferedInputStream(socket.getInputStream());
+            sentBytes = new CountingOutputStream(socket.getOutputStream());
+            out = new BufferedOutputStream(sentBytes, 16 * 1024);
+        }
+
+        /**
+         * A connection closed by the server reads the end of stream, a response without a request
+         * means the connection is out of sync. Both are reported as stale
+         */
+        boolean isStale() {
+            if (socket.isClosed()) {
+                return true;
+            }
+            try {
+                socket.setSoTimeout(1);
+                in.read();
+                return true;
+            } catch (SocketTimeoutException e) {
+                return false;
+            } catch (IOException e) {
+                return true;
+            } finally {
+                try {
+                    socket.setSoTimeout(readTimeoutMs);
+                } catch (IOException e) {
+                    log.debug("Error while restoring read timeout of connection to {}", key, e);
+                }
+            }
+        }
+
+        Response exchange(URL url, ByteBuffer batch) throws IOException {
+            sentBytes.count = 0;
+            final StringBuilder head = new StringBuilder(256)
+                    .append("POST ").append(url.getFile()).append(" HTTP/1.1\r\n")
+                    .append("Host: ").append(url.getHost());
+            if (url.getPort() != -1) {
+                head.append(':').append(url.getPort());
+            }
+            head.append("\r\nContent-Type: application/octet-stream\r\n")
+                    .append("Content-Length: ").append(batch.remaining()).append("\r\n")
+                    .append("Connection: keep-alive\r\n\r\n");
+
+            out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+            writeBody(out, batch);
+            out.flush();
+
+            return readResponse();
+        }
+
+        Response readResponse() throws IOException {
+            while (true) {
+                final String statusLine = readLine();
+                if (statusLine == null) {
+                    throw new EOFException("Connection closed by server");
+                }
+                final String[] statusParts = statusLine.split(" ", 3);
+                if (statusParts.length < 2 || !statusParts[0].startsWith("HTTP/")) {
+                    throw new IOException("Wrong status line '" + statusLine + "'");
+                }
+                final int code = Integer.parseInt(statusParts[1]);
+
+                long contentLength = -1;
+                boolean chunked = false;
+                boolean keepAlive = !"HTTP/1.0".equals(statusParts[0]);
+                String retryAfter = null;
+                String line;
+                while ((line = readLine()) != null && !line.isEmpty()) {
+                    final int colon = line.indexOf(':');
+                    if (colon <= 0) {
+                        continue;
+                    }
+                    final String name = line.substring(0, colon).trim();
+                    final String value = line.substring(colon + 1).trim();
+                    if ("Content-Length".equalsIgnoreCase(name)) {
+                        contentLength = Long.parseLong(value);
+                    } else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+                        chunked = value.toLowerCase(Locale.ROOT).contains("chunked");
+                    } else if (RETRY_AFTER.equalsIgnoreCase(name)) {
+                        retryAfter = value;
+                    } else if ("Connection".equalsIgnoreCase(name)) {
+                        keepAlive = !"close".equalsIgnoreCase(value) && (keepAlive || "keep-alive".equalsIgnoreCase(value));
+                    }
+                }
+                if (line == null) {
+                    throw new EOFException("Connection closed while reading headers");
+                }
+
+                if (code / 100 == 1) {
+                    continue;
+                }
+
+                final ByteArrayOutputStream body = new ByteArrayOutputStream();
+                if (code == HttpURLConnection.HTTP_NO_CONTENT || code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    log.trace("Response {} has no body", code);
+                } else if (chunked) {
+                    readChunked(body);
+                } else if (contentLength >= 0) {
+                    readFully(body, contentLength);
+                } else {
+                    readToEnd(body);
+                    keepAlive = false;
+                }
+
+                return new Response(code, body.toString(StandardCharsets.UTF_8.name()), retryAfter, keepAlive);
+            }
+        }
+
+        void readChunked(ByteArrayOutputStream body) throws IOException {
+            while (true) {
+                final String sizeLine = readLine();
+                if (sizeLine == null) {
+                    throw new EOFException("Connection closed while reading a chunk");
+                }
+                final int extension = sizeLine.indexOf(';');
+                final long size = Long.parseLong((extension < 0 ? sizeLine : sizeLine.substring(0, extension)).trim(), 16);
+                if (size == 0) {
+                    String trailer;
+                    while ((trailer = readLine()) != null && !trailer.isEmpty()) {
+                        log.trace("Skipping trailer {}", trailer);
+                    }
+                    return;
+                }
+                readFully(body, size);
+                readLine();
+            }
+        }
+
+        void readFully(ByteArrayOutputStream body, long length) throws IOException {
+            final byte[] buffer = bytesThreadLocal.get();
+            long remaining = length;
+            while (remaining > 0) {
+                final int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) {
+                    throw new EOFException("Connection closed while reading the body");
+                }
+                body.write(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+
+        void readToEnd(ByteArrayOutputStream body) throws IOException {
+            final byte[] buffer = bytesThreadLocal.get();
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                body.write(buffer, 0, read);
+            }
+        }
+
+        String readLine() throws IOException {
+            final StringBuilder line = new StringBuilder();
+            while (true) {
+                final int b = in.read();
+                if (b == -1) {
+                    return line.length() == 0 ? null : line.toString();
+                }
+                if (b == '\n') {
+                    final int length = line.length();
+                    if (length > 0 && line.charAt(length - 1) == '\r') {
+                        line.setLength(length - 1);
+                    }
+                    return line.toString();
+                }
+                if (line.length() >= MAX_LINE_LENGTH) {
+                    throw new IOException("Too long line in the response");
+                }
+                line.append((char) b);
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                log.debug("Error while closing connection to {}", key, e);
+            }
+        }
+    }
+
+    /**
+     * Counts bytes passed to the socket, so a failed request is known to have sent nothing
+     */
+    protected static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    protected static class Response {
+        final int code;
+        final String body;
+        final String retryAfter;
+        final boolean keepAlive;
+
+        Response(int code, String body, String retryAfter, boolean keepAlive) {
+            this.code = code;
+            this.body = body;
+            this.retryAfter = retryAfter;
+            this.keepAlive = keepAlive;
+        }
+    }
+}
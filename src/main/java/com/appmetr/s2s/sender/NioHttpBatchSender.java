@@ -0,0 +1,686 @@
+package com.appmetr.s2s.sender;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous HTTP/1.1 sender driving all plain http uploads from a single selector thread over
+ * keep-alive connections, so many uploads are in flight without a thread per upload.
+ * A request which fails on a reused connection before any of it is sent is repeated once on a new one,
+ * a sent request may have been processed by the server, so it's failed as retryable.
+ * Hosts are resolved on the calling thread and cached, so a slow DNS lookup doesn't hold up the selector thread.
+ * Futures are completed on the selector thread, dependent actions should not block.
+ * https uploads fall back to blocking {@link HttpBatchSender} calls on a small thread pool.
+ */
+public class NioHttpBatchSender extends HttpBatchSender implements AsyncBatchSender, Closeable {
+    private static final Logger log = LoggerFactory.getLogger(NioHttpBatchSender.class);
+
+    protected static final AtomicInteger senderCounter = new AtomicInteger();
+    protected static final long SELECT_TIMEOUT_MS = 100;
+    protected static final byte[] HEADERS_END = {'\r', '\n', '\r', '\n'};
+
+    protected int maxIdleConnections = 16;
+    protected Duration idleTimeout = Duration.ofSeconds(30);
+    protected Duration addressTtl = Duration.ofSeconds(30);
+    protected int httpsThreads = 4;
+
+    protected final Selector selector;
+    protected final Thread eventLoopThread;
+    protected final Queue<Exchange> newExchanges = new ConcurrentLinkedQueue<>();
+    protected final Set<Exchange> activeExchanges = new HashSet<>();
+    protected final Map<String, Deque<IdleConnection>> idleConnections = new HashMap<>();
+    protected final Map<String, ResolvedAddress> addresses = new ConcurrentHashMap<>();
+    protected final AtomicLong openedConnections = new AtomicLong();
+    protected ExecutorService httpsExecutor;
+    protected volatile boolean closed;
+
+    public NioHttpBatchSender() {
+        try {
+            selector = Selector.open();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        eventLoopThread = new Thread(this::eventLoop, "appmetr-nio-sender-" + senderCounter.incrementAndGet());
+        eventLoopThread.setDaemon(true);
+        eventLoopThread.setUncaughtExceptionHandler((t, e) -> log.error("Uncaught sender exception", e));
+        eventLoopThread.start();
+    }
+
+    /**
+     * @param maxIdleConnections Limit of idle connections kept per host
+     */
+    public void setMaxIdleConnections(int maxIdleConnections) {
+        this.maxIdleConnections = maxIdleConnections;
+    }
+
+    public void setIdleTimeout(Duration idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * @param addressTtl How long a resolved host address is used, it's resolved again sooner if a connection fails
+     */
+    public void setAddressTtl(Duration addressTtl) {
+        this.addressTtl = addressTtl;
+    }
+
+    /**
+     * @param httpsThreads Number of threads uploading to https urls
+     */
+    public void setHttpsThreads(int httpsThreads) {
+        this.httpsThreads = httpsThreads;
+    }
+
+    public long getOpenedConnections() {
+        return openedConnections.get();
+    }
+
+    @Override public SendResult sendForResult(String httpURL, String deploy, ByteBuffer batch) {
+        return sendAsync(httpURL, deploy, batch).join();
+    }
+
+    @Override public CompletableFuture<SendResult> sendAsync(String httpURL, String deploy, ByteBuffer batch) {
+        if (closed) {
+            throw new IllegalStateException("Sender is closed");
+        }
+
+        final URL url;
+        try {
+            url = makeUrl(httpURL, deploy);
+            if (!"http".equals(url.getProtocol()) && !"https".equals(url.getProtocol())) {
+                throw new MalformedURLException("Unsupported protocol " + url.getProtocol());
+            }
+        } catch (MalformedURLException e) {
+            log.error("Connection creation exception to {} and '{}'", httpURL, deploy, e);
+            throw new IllegalArgumentException(
+                    "Wrong url '" + httpURL + "' or deploy '" + deploy + "' or method '" + serverMethodName + "'", e);
+        }
+
+        if ("https".equals(url.getProtocol())) {
+            return CompletableFuture.supplyAsync(() -> super.sendForResult(httpURL, deploy, batch), httpsExecutor());
+        }
+
+        final InetSocketAddress address = resolve(url);
+        if (address == null) {
+            log.warn("Unknown host {}", url.getHost());
+            return CompletableFuture.completedFuture(SendResult.retryable("Unknown host " + url.getHost()));
+        }
+
+        final Exchange exchange = new Exchange(url, address, batch.duplicate());
+        newExchanges.add(exchange);
+        selector.wakeup();
+        if (closed && newExchanges.remove(exchange)) {
+            exchange.future.complete(SendResult.retryable("Sender is closed"));
+        }
+
+        return exchange.future;
+    }
+
+    /**
+     * Fails uploads in flight as retryable and closes connections
+     */
+    @Override public void close() {
+        closed = true;
+        selector.wakeup();
+        try {
+            eventLoopThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            if (httpsExecutor != null) {
+                httpsExecutor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * @return cached or newly resolved address of the url host, null if the host can't be resolved
+     */
+    protected InetSocketAddress resolve(URL url) {
+        final String key = key(url);
+        final long nowNanos = System.nanoTime();
+        final ResolvedAddress resolved = addresses.get(key);
+        if (resolved != null && nowNanos - resolved.resolvedNanos < addressTtl.toNanos()) {
+            return resolved.address;
+        }
+
+        final InetSocketAddress address = new InetSocketAddress(url.getHost(), port(url));
+        if (address.isUnresolved()) {
+            addresses.remove(key);
+            return null;
+        }
+        addresses.put(key, new ResolvedAddress(address, nowNanos));
+        return address;
+    }
+
+    protected synchronized ExecutorService httpsExecutor() {
+        if (httpsExecutor == null) {
+            final AtomicInteger threadCounter = new AtomicInteger();
+            httpsExecutor = Executors.newFixedThreadPool(httpsThreads, r -> {
+                final Thread thread = new Thread(r, eventLoopThread.getName() + "-https-" + threadCounter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return httpsExecutor;
+    }
+
+    protected void eventLoop() {
+        try {
+            while (!closed) {
+                selector.select(SELECT_TIMEOUT_MS);
+
+                Exchange exchange;
+                while ((exchange = newExchanges.poll()) != null) {
+                    start(exchange);
+                }
+
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.attachment() instanceof Exchange) {
+                        handle((Exchange) key.attachment(), key);
+                    } else if (key.attachment() instanceof IdleConnection) {
+                        handleIdle((IdleConnection) key.attachment());
+                    }
+                }
+
+                expire(System.nanoTime());
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            log.error("Sender event loop failed", e);
+        } finally {
+            shutdownEventLoop();
+        }
+    }
+
+    protected void shutdownEventLoop() {
+        closed = true;
+
+        Exchange exchange;
+        while ((exchange = newExchanges.poll()) != null) {
+            exchange.future.complete(SendResult.retryable("Sender is closed"));
+        }
+        for (Exchange activeExchange : new ArrayList<>(activeExchanges)) {
+            finish(activeExchange, SendResult.retryable("Sender is closed"));
+        }
+        for (Deque<IdleConnection> connections : idleConnections.values()) {
+            for (IdleConnection connection : connections) {
+                closeChannel(connection.channel);
+            }
+        }
+        idleConnections.clear();
+
+        try {
+            selector.close();
+        } catch (IOException e) {
+            log.debug("Error while closing selector", e);
+        }
+    }
+
+    protected void start(Exchange exchange) {
+        activeExchanges.add(exchange);
+
+        IdleConnection idle;
+        while ((idle = pollIdle(exchange.key)) != null) {
+            if (idle.selectionKey.isValid()) {
+                exchange.reused = true;
+                exchange.channel = idle.channel;
+                exchange.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(readTimeoutMs);
+                idle.selectionKey.attach(exchange);
+                idle.selectionKey.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            closeChannel(idle.channel);
+        }
+
+        try {
+            final SocketChannel channel = SocketChannel.open();
+            exchange.channel = channel;
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+
+            final boolean connected = channel.connect(exchange.address);
+            if (connected) {
+                connected(exchange);
+                channel.register(selector, SelectionKey.OP_WRITE, exchange);
+            } else {
+                exchange.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(connectTimeoutMs);
+                channel.register(selector, SelectionKey.OP_CONNECT, exchange);
+            }
+        } catch (IOException e) {
+            fail(exchange, e);
+        }
+    }
+
+    protected void connected(Exchange exchange) {
+        openedConnections.incrementAndGet();
+        exchange.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(readTimeoutMs);
+        log.debug("Opened connection to {}", exchange.key);
+    }
+
+    protected void handle(Exchange exchange, SelectionKey key) {
+        try {
+            if (key.isConnectable()) {
+                if (exchange.channel.finishConnect()) {
+                    connected(exchange);
+                    key.interestOps(SelectionKey.OP_WRITE);
+                }
+                return;
+            }
+
+            if (key.isWritable()) {
+                if (exchange.channel.write(exchange.request) > 0) {
+                    exchange.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(readTimeoutMs);
+                }
+                if (!exchange.request[1].hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+                return;
+            }
+
+            if (key.isReadable()) {
+                final int read = exchange.channel.read(exchange.readBuffer);
+                if (read > 0) {
+                    exchange.readBuffer.flip();
+                    exchange.response.write(exchange.readBuffer);
+                    exchange.readBuffer.clear();
+                    exchange.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(readTimeoutMs);
+                }
+
+                final Response response = exchange.response.parse(read == -1);
+                if (response != null) {
+                    complete(exchange, response);
+                } else if (read == -1) {
+                    fail(exchange, new EOFException("Connection closed by server"));
+                }
+            }
+        } catch (IOException e) {
+            fail(exchange, e);
+        } catch (CancelledKeyException e) {
+            fail(exchange, new IOException("Connection to " + exchange.key + " is closed", e));
+        } catch (RuntimeException e) {
+            closeChannel(exchange.channel);
+            activeExchanges.remove(exchange);
+            exchange.future.completeExceptionally(e);
+        }
+    }
+
+    protected void handleIdle(IdleConnection connection) {
+        // an idle connection is readable only when the server closes it
+        removeIdle(connection);
+        closeChannel(connection.channel);
+    }
+
+    protected void complete(Exchange exchange, Response response) {
+        activeExchanges.remove(exchange);
+
+        if (response.keepAlive && releaseIdle(exchange)) {
+            log.trace("Connection to {} is kept alive", exchange.key);
+        } else {
+            closeChannel(exchange.channel);
+        }
+
+        if (response.code != 200) {
+            log.warn("Status code error {}", response.code);
+        }
+
+        SendResult result;
+        try {
+            result = toSendResult(response.code, response.retryAfter, response.body);
+        } catch (IOException e) {
+            result = SendResult.retryable(e.toString());
+        }
+        exchange.future.complete(result);
+    }
+
+    protected void fail(Exchange exchange, IOException e) {
+        closeChannel(exchange.channel);
+
+        if (exchange.reused && exchange.request[0].position() == 0 && !closed) {
+            log.debug("Reused connection to {} failed, retrying on a new one", exchange.key, e);
+            activeExchanges.remove(exchange);
+            start(exchange.restart());
+            return;
+        }
+
+        if (!exchange.reused) {
+            // the host may have moved, it's resolved again for the next request
+            addresses.remove(exchange.key);
+        }
+        log.warn("Request exception", e);
+        finish(exchange, SendResult.retryable(e.toString()));
+    }
+
+    protected void finish(Exchange exchange, SendResult result) {
+        closeChannel(exchange.channel);
+        activeExchanges.remove(exchange);
+        exchange.future.complete(result);
+    }
+
+    protected void expire(long nowNanos) {
+        if (!activeExchanges.isEmpty()) {
+            for (Exchange exchange : new ArrayList<>(activeExchanges)) {
+                if (nowNanos - exchange.deadlineNanos > 0) {
+                    exchange.reused = false;
+                    fail(exchange, new SocketTimeoutException("Timeout while waiting for " + exchange.key));
+                }
+            }
+        }
+
+        final long idleTimeoutNanos = idleTimeout.toNanos();
+        for (Deque<IdleConnection> connections : idleConnections.values()) {
+            while (!connections.isEmpty() && nowNanos - connections.peekLast().lastUsedNanos > idleTimeoutNanos) {
+                closeChannel(connections.pollLast().channel);
+            }
+        }
+    }
+
+    protected IdleConnection pollIdle(String key) {
+        final Deque<IdleConnection> connections = idleConnections.get(key);
+        return connections == null ? null : connections.pollFirst();
+    }
+
+    protected boolean releaseIdle(Exchange exchange) {
+        final Deque<IdleConnection> connections = idleConnections.computeIfAbsent(exchange.key, k -> new ArrayDeque<>());
+        if (connections.size() >= maxIdleConnections) {
+            return false;
+        }
+
+        final SelectionKey selectionKey = exchange.channel.keyFor(selector);
+        final IdleConnection connection = new IdleConnection(exchange.key, exchange.channel, selectionKey);
+        selectionKey.attach(connection);
+        selectionKey.interestOps(SelectionKey.OP_READ);
+        connections.offerFirst(connection);
+        return true;
+    }
+
+    protected void removeIdle(IdleConnection connection) {
+        final Deque<IdleConnection> connections = idleConnections.get(connection.key);
+        if (connections != null) {
+            connections.remove(connection);
+        }
+    }
+
+    protected void closeChannel(SocketChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.debug("Error while closing connection", e);
+        }
+    }
+
+    protected static String key(URL url) {
+        return url.getHost() + ":" + port(url);
+    }
+
+    protected static int port(URL url) {
+        return url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+    }
+
+    protected static class ResolvedAddress {
+        final InetSocketAddress address;
+        final long resolvedNanos;
+
+        ResolvedAddress(InetSocketAddress address, long resolvedNanos) {
+            this.address = address;
+            this.resolvedNanos = resolvedNanos;
+        }
+    }
+
+    protected static class Exchange {
+        final URL url;
+        final InetSocketAddress address;
+        final String key;
+        final ByteBuffer body;
+        final ByteBuffer[] request;
+        final ByteBuffer readBuffer = ByteBuffer.allocate(4 * 1024);
+        final ResponseBuffer response = new ResponseBuffer();
+        final CompletableFuture<SendResult> future;
+        SocketChannel channel;
+        boolean reused;
+        long deadlineNanos;
+
+        Exchange(URL url, InetSocketAddress address, ByteBuffer body) {
+            this(url, address, body, new CompletableFuture<>());
+        }
+
+        Exchange(URL url, InetSocketAddress address, ByteBuffer body, CompletableFuture<SendResult> future) {
+            this.url = url;
+            this.address = address;
+            this.key = key(url);
+            this.body = body;
+            this.future = future;
+
+            final StringBuilder head = new StringBuilder(256)
+                    .append("POST ").append(url.getFile()).append(" HTTP/1.1\r\n")
+                    .append("Host: ").append(url.getHost());
+            if (url.getPort() != -1) {
+                head.append(':').append(url.getPort());
+            }
+            head.append("\r\nContent-Type: application/octet-stream\r\n")
+                    .append("Content-Length: ").append(body.remaining()).append("\r\n")
+                    .append("Connection: keep-alive\r\n\r\n");
+            request = new ByteBuffer[]{ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.ISO_8859_1)), body.duplicate()};
+        }
+
+        Exchange restart() {
+            return new Exchange(url, address, body, future);
+        }
+    }
+
+    protected static class IdleConnection {
+        final String key;
+        final SocketChannel channel;
+        final SelectionKey selectionKey;
+        final long lastUsedNanos = System.nanoTime();
+
+        IdleConnection(String key, SocketChannel channel, SelectionKey selectionKey) {
+            this.key = key;
+            this.channel = channel;
+            this.selectionKey = selectionKey;
+        }
+    }
+
+    /**
+     * Accumulates response bytes and parses the response once it is complete
+     */
+    protected static class ResponseBuffer {
+        byte[] bytes = new byte[1024];
+        int length;
+        int headersEnd = -1;
+        int statusCode;
+        long contentLength;
+        boolean chunked;
+        boolean keepAlive;
+        String retryAfter;
+
+        boolean isEmpty() {
+            return length == 0;
+        }
+
+        void write(ByteBuffer buffer) {
+            final int remaining = buffer.remaining();
+            if (length + remaining > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + remaining));
+            }
+            buffer.get(bytes, length, remaining);
+            length += remaining;
+        }
+
+        /**
+         * @return complete response or {@code null} if more bytes are needed
+         */
+        Response parse(boolean endOfStream) throws IOException {
+            while (headersEnd < 0) {
+                final int end = indexOf(HEADERS_END, 0, HEADERS_END.length);
+                if (end < 0) {
+                    return null;
+                }
+                parseHeaders(new String(bytes, 0, end, StandardCharsets.ISO_8859_1));
+                if (statusCode / 100 == 1) {
+                    final int next = end + HEADERS_END.length;
+                    System.arraycopy(bytes, next, bytes, 0, length - next);
+                    length -= next;
+                    continue;
+                }
+                headersEnd = end + HEADERS_END.length;
+            }
+
+            if (statusCode == HttpURLConnection.HTTP_NO_CONTENT || statusCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                return response(new byte[0], 0);
+            }
+            if (chunked) {
+                final byte[] body = decodeChunked();
+                return body == null ? null : response(body, body.length);
+            }
+            if (contentLength >= 0) {
+                return length - headersEnd >= contentLength ? response(Arrays.copyOfRange(bytes, headersEnd, length), (int) contentLength) : null;
+            }
+            if (endOfStream) {
+                keepAlive = false;
+                return response(Arrays.copyOfRange(bytes, headersEnd, length), length - headersEnd);
+            }
+            return null;
+        }
+
+        Response response(byte[] body, int bodyLength) {
+            return new Response(statusCode, new String(body, 0, bodyLength, StandardCharsets.UTF_8), retryAfter, keepAlive);
+        }
+
+        void parseHeaders(String headers) throws IOException {
+            final String[] lines = headers.split("\r\n");
+            final String[] statusParts = lines[0].split(" ", 3);
+            if (statusParts.length < 2 || !statusParts[0].startsWith("HTTP/")) {
+                throw new IOException("Wrong status line '" + lines[0] + "'");
+            }
+
+            statusCode = Integer.parseInt(statusParts[1]);
+            contentLength = -1;
+            chunked = false;
+            keepAlive = !"HTTP/1.0".equals(statusParts[0]);
+            retryAfter = null;
+            for (int i = 1; i < lines.length; i++) {
+                final int colon = lines[i].indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                final String name = lines[i].substring(0, colon).trim();
+                final String value = lines[i].substring(colon + 1).trim();
+                if ("Content-Length".equalsIgnoreCase(name)) {
+                    contentLength = Long.parseLong(value);
+                } else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+                    chunked = value.toLowerCase(Locale.ROOT).contains("chunked");
+                } else if (RETRY_AFTER.equalsIgnoreCase(name)) {
+                    retryAfter = value;
+                } else if ("Connection".equalsIgnoreCase(name)) {
+                    keepAlive = !"close".equalsIgnoreCase(value) && (keepAlive || "keep-alive".equalsIgnoreCase(value));
+                }
+            }
+        }
+
+        /**
+         * @return decoded body or {@code null} if the last chunk hasn't been received yet
+         */
+        byte[] decodeChunked() throws IOException {
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            int position = headersEnd;
+            while (true) {
+                final int lineEnd = indexOf(HEADERS_END, position, 2);
+                if (lineEnd < 0) {
+                    return null;
+                }
+                String sizeLine = new String(bytes, position, lineEnd - position, StandardCharsets.ISO_8859_1);
+                final int extension = sizeLine.indexOf(';');
+                if (extension >= 0) {
+                    sizeLine = sizeLine.substring(0, extension);
+                }
+                final int size;
+                try {
+                    size = Integer.parseInt(sizeLine.trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Wrong chunk size '" + sizeLine + "'");
+                }
+                position = lineEnd + 2;
+
+                if (size == 0) {
+                    // the last chunk is followed by optional trailers and an empty line
+                    if (position + 2 <= length && bytes[position] == '\r' && bytes[position + 1] == '\n') {
+                        return body.toByteArray();
+                    }
+                    return indexOf(HEADERS_END, position - 2, 4) < 0 ? null : body.toByteArray();
+                }
+                if (position + size + 2 > length) {
+                    return null;
+                }
+                body.write(bytes, position, size);
+                position += size + 2;
+            }
+        }
+
+        /**
+         * Finds the first {@code patternLength} bytes of the pattern starting from {@code from}
+         */
+        int indexOf(byte[] pattern, int from, int patternLength) {
+            for (int i = from; i <= length - patternLength; i++) {
+                boolean found = true;
+                for (int j = 0; j < patternLength; j++) {
+                    if (bytes[i + j] != pattern[j]) {
+                        found = false;
+                        break;
+                    }
+                }
+                if (found) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    protected static class Response {
+        final int code;
+        final String body;
+        final String retryAfter;
+        final boolean keepAlive;
+
+        Response(int code, String body, String retryAfter, boolean keepAlive) {
+            this.code = code;
+            this.body = body;
+            this.retryAfter = retryAfter;
+            this.keepAlive = keepAlive;
+        }
+    }
+}
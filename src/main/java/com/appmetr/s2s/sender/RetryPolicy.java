@@ -0,0 +1,38 @@
+package com.appmetr.s2s.sender;
+
+import java.time.Duration;
+
+/**
+ * Decides when a failed batch upload is retried. AppMetr reports every upload result to the policy
+ * and asks it whether reading new batches from the storage should be paused while the collector is down.
+ * Implementations are called from several upload threads at once.
+ */
+public interface RetryPolicy {
+
+    /**
+     * @param attempt Number of failed attempts of the batch so far, starting with 1
+     * @return {@code false} to drop the batch, batches are retried until uploaded by default
+     */
+    default boolean shouldRetry(int attempt, SendResult result) {
+        return true;
+    }
+
+    /**
+     * @param attempt Number of failed attempts of the batch so far, starting with 1
+     * @return delay before the next attempt of the batch
+     */
+    Duration nextDelay(int attempt, SendResult result);
+
+    /**
+     * Called with the result of every upload
+     */
+    default void onResult(SendResult result) {
+    }
+
+    /**
+     * @return how long reading new batches should be paused, {@link Duration#ZERO} if they can be read now
+     */
+    default Duration readPause() {
+        return Duration.ZERO;
+    }
+}
@@ -0,0 +1,87 @@
+package com.appmetr.s2s.sender;
+
+import java.time.Duration;
+
+/**
+ * Outcome of a batch upload. Unlike a plain boolean it tells a failure worth retrying
+ * from a batch the collector will never accept.
+ */
+public class SendResult {
+    public enum Status {
+        OK,
+        /**
+         * Network errors, timeouts, 5xx and 4xx responses other than payload errors
+         */
+        RETRYABLE,
+        /**
+         * 400, 413 and 422 responses, the same batch will be rejected again.
+         * Rejected batches are still retried unless the retry policy drops them
+         */
+        REJECTED
+    }
+
+    public static final SendResult OK = new SendResult(Status.OK, 200, null, null);
+
+    protected final Status status;
+    protected final int statusCode;
+    protected final Duration retryAfter;
+    protected final String message;
+
+    public SendResult(Status status, int statusCode, Duration retryAfter, String message) {
+        this.status = status;
+        this.statusCode = statusCode;
+        this.retryAfter = retryAfter;
+        this.message = message;
+    }
+
+    public static SendResult retryable(String message) {
+        return new SendResult(Status.RETRYABLE, 0, null, message);
+    }
+
+    public static SendResult retryable(int statusCode, Duration retryAfter, String message) {
+        return new SendResult(Status.RETRYABLE, statusCode, retryAfter, message);
+    }
+
+    public static SendResult rejected(int statusCode, String message) {
+        return new SendResult(Status.REJECTED, statusCode, null, message);
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isSuccess() {
+        return status == Status.OK;
+    }
+
+    public boolean isRetryable() {
+        return status == Status.RETRYABLE;
+    }
+
+    /**
+     * @return HTTP status code or 0 if there was no response
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return delay requested by the collector with Retry-After header or {@code null}
+     */
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    @Override public String toString() {
+        return "SendResult{" +
+                "status=" + status +
+                ", statusCode=" + statusCode +
+                ", retryAfter=" + retryAfter +
+                ", message='" + message + '\'' +
+                '}';
+    }
+}
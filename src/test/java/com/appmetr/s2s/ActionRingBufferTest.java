@@ -0,0 +1,83 @@
+package com.appmetr.s2s;
+
+import com.appmetr.s2s.events.Action;
+import com.appmetr.s2s.events.Event;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ActionRingBufferTest {
+
+    @Test
+    void offerUntilFullAndWrap() {
+        final ActionRingBuffer buffer = new ActionRingBuffer(3);
+        assertEquals(4, buffer.capacity());
+
+        final List<Action> actions = new ArrayList<>();
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 4; i++) {
+                assertTrue(buffer.offer(new Event("test" + i)));
+            }
+            assertFalse(buffer.offer(new Event("overflow")));
+            assertEquals(4, buffer.size());
+
+            assertEquals(3, buffer.drainTo(actions, 3));
+            assertTrue(buffer.offer(new Event("test4")));
+            assertEquals(2, buffer.drainTo(actions, 10));
+            assertTrue(buffer.isEmpty());
+        }
+
+        assertEquals(15, actions.size());
+        assertEquals("test0", ((Event) actions.get(0)).getEvent());
+        assertEquals("test4", ((Event) actions.get(4)).getEvent());
+        assertEquals(15, buffer.getHead());
+    }
+
+    @Test
+    void keepOrderOfEachProducer() throws Exception {
+        final ActionRingBuffer buffer = new ActionRingBuffer(64);
+        final int producers = 4;
+        final int actionsPerProducer = 10_000;
+
+        final List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final String producer = "p" + p;
+            final Thread thread = new Thread(() -> {
+                for (int i = 0; i < actionsPerProducer; i++) {
+                    final Event event = new Event(producer);
+                    event.getProperties().put("i", i);
+                    while (!buffer.offer(event)) {
+                        Thread.yield();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+
+        final Map<String, Integer> nextIndex = new HashMap<>();
+        final List<Action> actions = new ArrayList<>();
+        int drained = 0;
+        while (drained < producers * actionsPerProducer) {
+            actions.clear();
+            drained += buffer.drainTo(actions, 16);
+            for (Action action : actions) {
+                final String producer = ((Event) action).getEvent();
+                final int expected = nextIndex.getOrDefault(producer, 0);
+                assertEquals(expected, action.getProperties().get("i"));
+                nextIndex.put(producer, expected + 1);
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue(buffer.isEmpty());
+        assertEquals(producers, nextIndex.size());
+    }
+}
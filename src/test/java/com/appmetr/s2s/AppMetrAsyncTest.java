@@ -0,0 +1,115 @@
+package com.appmetr.s2s;
+
+import com.appmetr.s2s.events.Action;
+import com.appmetr.s2s.events.Event;
+import com.appmetr.s2s.persister.GzippedJsonBatchFactoryTest;
+import com.appmetr.s2s.persister.HeapStorage;
+import com.appmetr.s2s.persister.OverflowPolicy;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AppMetrAsyncTest {
+
+    @Test
+    void trackInBulkAndFlush() throws Exception {
+        final AtomicInteger uploadedActions = new AtomicInteger();
+        final AtomicInteger bulkCalls = new AtomicInteger();
+        final AppMetr appMetr = new AppMetr("token", "url") {
+            @Override public synchronized int track(Collection<Action> newActions) throws InterruptedException, IOException {
+                bulkCalls.incrementAndGet();
+                return super.track(newActions);
+            }
+        };
+        appMetr.setBatchStorage(new HeapStorage(HeapStorage.DEFAULT_MAX_BYTES));
+        appMetr.setBatchSender((uri, token, batch) -> {
+            try {
+                uploadedActions.addAndGet(GzippedJsonBatchFactoryTest.decompress(batch).get("batch").size());
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            return true;
+        });
+
+        final AppMetrAsync appMetrAsync = new AppMetrAsync(appMetr, 1024);
+        for (int i = 0; i < 3000; i++) {
+            assertTrue(appMetrAsync.track(new Event("test" + i)));
+        }
+
+        assertTrue(appMetrAsync.flush().get(5, TimeUnit.SECONDS));
+        assertEquals(0, appMetr.getActionsNumber());
+        assertTrue(bulkCalls.get() < 3000);
+
+        assertTrue(appMetrAsync.track(new Event("last")));
+        appMetrAsync.stop().join();
+
+        assertEquals(3001, uploadedActions.get());
+        assertEquals(0, appMetrAsync.getDroppedActions());
+        assertEquals(0, appMetrAsync.getFailedActions());
+        assertThrows(IllegalStateException.class, () -> appMetrAsync.track(new Event("test")));
+    }
+
+    @Test
+    void handleFullBuffer() throws Exception {
+        final CountDownLatch draining = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AppMetr appMetr = new AppMetr("token", "url") {
+            @Override public synchronized int track(Collection<Action> newActions) throws InterruptedException, IOException {
+                draining.countDown();
+                release.await();
+                return super.track(newActions);
+            }
+        };
+        appMetr.setBatchSender((uri, token, batch) -> true);
+
+        final AppMetrAsync appMetrAsync = new AppMetrAsync(appMetr, 4);
+        appMetrAsync.setOverflowPolicy(OverflowPolicy.DROP_NEWEST);
+        assertTrue(appMetrAsync.track(new Event("first")));
+        assertTrue(draining.await(5, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(appMetrAsync.track(new Event("test" + i)));
+        }
+        assertFalse(appMetrAsync.track(new Event("dropped")));
+
+        appMetrAsync.setOverflowPolicy(OverflowPolicy.BLOCK_WITH_DEADLINE);
+        appMetrAsync.setBlockTimeout(Duration.ofMillis(10));
+        assertFalse(appMetrAsync.track(new Event("timedOut")));
+        assertEquals(2, appMetrAsync.getDroppedActions());
+        assertThrows(IllegalArgumentException.class, () -> appMetrAsync.setOverflowPolicy(OverflowPolicy.SAMPLE));
+
+        release.countDown();
+        appMetrAsync.setOverflowPolicy(OverflowPolicy.BLOCK);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(appMetrAsync.track(new Event("blocked" + i)));
+        }
+        assertTrue(appMetrAsync.flush().get(5, TimeUnit.SECONDS));
+        appMetrAsync.stop().join();
+    }
+
+    @Test
+    void stopDrainingOnInterrupt() throws Exception {
+        final AppMetr appMetr = new AppMetr("token", "url");
+        appMetr.setBatchSender((uri, token, batch) -> true);
+        final ScheduledExecutorService executorService = Executors.newScheduledThreadPool(1);
+
+        final AppMetrAsync appMetrAsync = new AppMetrAsync(appMetr, executorService);
+        assertTrue(appMetrAsync.flush().get(5, TimeUnit.SECONDS));
+        assertTrue(appMetrAsync.track(new Event("test")));
+        executorService.shutdownNow();
+
+        assertTrue(executorService.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(0, appMetrAsync.getQueuedActions());
+        assertThrows(IllegalStateException.class, () -> appMetrAsync.track(new Event("test")));
+        appMetr.stop();
+    }
+}
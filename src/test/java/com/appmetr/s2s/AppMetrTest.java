@@ -3,10 +3,17 @@ package com.appmetr.s2s;
 
 import com.appmetr.s2s.events.Action;
 import com.appmetr.s2s.events.Event;
+import com.appmetr.s2s.persister.Backpressure;
 import com.appmetr.s2s.persister.BatchFactory;
+import com.appmetr.s2s.persister.BoundedHeapStorage;
 import com.appmetr.s2s.persister.GzippedJsonBatchFactoryTest;
 import com.appmetr.s2s.persister.HeapStorage;
+import com.appmetr.s2s.sender.AsyncBatchSender;
 import com.appmetr.s2s.sender.BatchSender;
+import com.appmetr.s2s.sender.FixedDelayRetryPolicy;
+import com.appmetr.s2s.sender.HttpBatchSender;
+import com.appmetr.s2s.sender.RetryPolicy;
+import com.appmetr.s2s.sender.SendResult;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import org.junit.jupiter.api.BeforeEach;
@@ -20,6 +27,8 @@ import java.time.Duration;
 import java.time.Instant;
 import java.time.ZoneOffset;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
@@ -109,6 +118,88 @@ public class AppMetrTest {
         assertEquals(Collections.singletonList(event2), testStorage.storeCalls.get(1));
     }
 
+    @Test
+    void storeByTargetBatchBytes() throws Exception {
+        final List<byte[]> sentBatches = new CopyOnWriteArrayList<>();
+        appMetr.setBatchSender((uri, token, batch) -> sentBatches.add(batch));
+        appMetr.setTargetBatchBytes(2048);
+        appMetr.setMaxBatchActions(0);
+        appMetr.start();
+
+        final Random random = new Random(1);
+        for (int i = 0; i < 3000; i++) {
+            final Event event = new Event("test" + i);
+            event.getProperties().put("value", random.nextLong());
+            assertTrue(appMetr.track(event));
+        }
+        appMetr.softStop();
+
+        int actions = 0;
+        for (int i = 0; i < sentBatches.size(); i++) {
+            final byte[] batch = sentBatches.get(i);
+            // the compression ratio is learned from the first batch
+            if (i > 0 && i < sentBatches.size() - 1) {
+                assertTrue(batch.length >= 2048 * 0.9 && batch.length <= 2048 * 1.2, "Batch size " + batch.length);
+            }
+            for (JsonNode event : GzippedJsonBatchFactoryTest.decompress(batch).get("batch")) {
+                assertEquals("test" + actions++, event.get("event").asText());
+            }
+        }
+        assertEquals(3000, actions);
+    }
+
+    @Test
+    void stopStoresActionsTrackedAfterRejectedFlush() throws Exception {
+        final List<byte[]> sentBatches = new CopyOnWriteArrayList<>();
+        final AtomicInteger storeCalls = new AtomicInteger();
+        appMetr.setBatchSender((uri, token, batch) -> sentBatches.add(batch));
+        appMetr.setBatchStorage(new HeapStorage() {
+            @Override public synchronized boolean store(Collection<Action> actions, BatchFactory batchFactory) throws InterruptedException {
+                return storeCalls.incrementAndGet() > 1 && super.store(actions, batchFactory);
+            }
+        });
+        appMetr.setTargetBatchBytes(1024 * 1024);
+        appMetr.setMaxBatchActions(0);
+        appMetr.start();
+
+        assertTrue(appMetr.track(new Event("test1")));
+        assertFalse(appMetr.flush());
+        assertTrue(appMetr.track(new Event("test2")));
+        Thread.sleep(400);
+        appMetr.softStop();
+
+        final List<String> events = new ArrayList<>();
+        for (byte[] batch : sentBatches) {
+            for (JsonNode event : GzippedJsonBatchFactoryTest.decompress(batch).get("batch")) {
+                events.add(event.get("event").asText());
+            }
+        }
+        assertEquals(Arrays.asList("test1", "test2"), events);
+    }
+
+    @Test
+    void inFlightUploadsRequireRandomAccessStorage() {
+        appMetr.setBatchStorage(new HeapStorage() {
+            @Override public boolean supportsRandomAccess() {
+                return false;
+            }
+        });
+        appMetr.setMaxInFlightUploads(2);
+
+        assertThrows(IllegalStateException.class, appMetr::start);
+        assertTrue(appMetr.isStopped());
+    }
+
+    @Test
+    void targetBatchBytesRequireGzippedJsonBatchFactory() {
+        appMetr.setBatchFactory((actions, batchId, serverId) -> new BinaryBatch(batchId, new byte[1]));
+        appMetr.setTargetBatchBytes(1024);
+
+        assertThrows(IllegalStateException.class, appMetr::start);
+        assertTrue(appMetr.isStopped());
+        assertNull(appMetr.uploadThread);
+    }
+
     @Test
     void storeByTime() throws Exception {
         final TestStorage testStorage = new TestStorage();
@@ -154,6 +245,45 @@ public class AppMetrTest {
         appMetr.hardStop();
     }
 
+    @Test
+    void trackInBulkStopsAtRejection() throws Exception {
+        final AtomicInteger storeCalls = new AtomicInteger();
+
+        appMetr.setBatchSender(NothingBatchSender.instance);
+        appMetr.setBatchStorage(new DiscardStorage() {
+            @Override public synchronized boolean store(Collection<Action> actions, BatchFactory batchFactory) throws InterruptedException {
+                storeCalls.incrementAndGet();
+                return false;
+            }
+        });
+        appMetr.setMaxBatchActions(1);
+        appMetr.start();
+
+        assertEquals(1, appMetr.track(Arrays.asList(new Event("test1"), new Event("test2"), new Event("test3"))));
+        assertEquals(1, storeCalls.get());
+
+        appMetr.hardStop();
+    }
+
+    @Test
+    void trackWithBoundedWait() throws Exception {
+        final BoundedHeapStorage storage = new BoundedHeapStorage(1);
+        storage.setBlockTimeout(Duration.ofMillis(50));
+
+        appMetr.setBatchSender(NothingBatchSender.instance);
+        appMetr.setBatchStorage(storage);
+        appMetr.setMaxBatchActions(1);
+        appMetr.start();
+
+        assertEquals(Backpressure.NONE, appMetr.getBackpressure());
+        assertTrue(appMetr.track(new Event("test1")));
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () -> assertFalse(appMetr.track(new Event("test2"))));
+        assertEquals(Backpressure.FULL, appMetr.getBackpressure());
+        assertEquals(1, storage.getDroppedBatches());
+
+        appMetr.hardStop();
+    }
+
     @Test
     void senderSuccess() throws IOException, InterruptedException {
         final BatchSender mockSender = Mockito.mock(BatchSender.class);
@@ -232,6 +362,7 @@ public class AppMetrTest {
         assertTrue(appMetr.track(new Event("test1")));
         appMetr.flush();
         assertTrue(appMetr.track(new Event("test2")));
+        Thread.sleep(400);
         appMetr.softStop();
 
         verify(mockSender, times(2)).send(eq(url), eq(token), any());
@@ -324,6 +455,348 @@ public class AppMetrTest {
         assertTrue(RuntimeException.class.isAssignableFrom(appMetr.getLastUploadError().getClass()));
     }
 
+    @Test
+    void pipelinedUploads() throws Exception {
+        final TestStorage testStorage = new TestStorage();
+        final Set<String> failedOnce = Collections.synchronizedSet(new HashSet<>());
+        final Set<String> uploaded = Collections.synchronizedSet(new HashSet<>());
+        final CountDownLatch concurrentUploads = new CountDownLatch(4);
+
+        appMetr.setBatchSender((uri, token, batch) -> {
+            concurrentUploads.countDown();
+            try {
+                concurrentUploads.await();
+                final String event = GzippedJsonBatchFactoryTest.decompress(batch).get("batch").get(0).get("event").asText();
+                if (event.equals("test0") && failedOnce.add(event)) {
+                    return false;
+                }
+                uploaded.add(event);
+                return true;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        appMetr.setBatchStorage(testStorage);
+        appMetr.setMaxBatchActions(1);
+        appMetr.setMaxInFlightUploads(4);
+        appMetr.setFailedUploadTimeout(Duration.ofMillis(1));
+        appMetr.start();
+
+        for (int i = 0; i < 20; i++) {
+            assertTrue(appMetr.track(new Event("test" + i)));
+        }
+
+        appMetr.softStop();
+
+        assertNull(appMetr.getLastUploadError());
+        assertEquals(20, uploaded.size());
+        assertTrue(testStorage.getBathesQueue().isEmpty());
+    }
+
+    @Test
+    void pipelinedUploadsSenderException() throws Exception {
+        final TestStorage testStorage = new TestStorage();
+
+        appMetr.setBatchSender((uri, token, batch) -> {
+            throw new IllegalStateException("test");
+        });
+        appMetr.setBatchStorage(testStorage);
+        appMetr.setMaxInFlightUploads(2);
+        appMetr.start();
+
+        assertTrue(appMetr.track(new Event("test1")));
+        appMetr.flush();
+
+        appMetr.uploadThread.join(1000);
+        assertFalse(appMetr.uploadThread.isAlive());
+        assertTrue(appMetr.getLastUploadError() instanceof IllegalStateException);
+        assertThrows(IllegalStateException.class, () -> appMetr.track(new Event("test2")));
+        assertFalse(testStorage.getBathesQueue().isEmpty());
+    }
+
+    @Test
+    void uploadWorkers() throws Exception {
+        final TestStorage testStorage = new TestStorage();
+        final Set<String> failedOnce = Collections.synchronizedSet(new HashSet<>());
+        final List<String> uploaded = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch concurrentUploads = new CountDownLatch(4);
+
+        appMetr.setBatchSender((uri, token, batch) -> {
+            concurrentUploads.countDown();
+            try {
+                concurrentUploads.await();
+                final String event = GzippedJsonBatchFactoryTest.decompress(batch).get("batch").get(0).get("event").asText();
+                if (event.equals("test0") && failedOnce.add(event)) {
+                    return false;
+                }
+                uploaded.add(event);
+                return true;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        appMetr.setBatchStorage(testStorage);
+        appMetr.setMaxBatchActions(1);
+        appMetr.setUploadWorkers(4);
+        appMetr.setFailedUploadTimeout(Duration.ofMillis(1));
+        appMetr.start();
+
+        for (int i = 0; i < 20; i++) {
+            assertTrue(appMetr.track(new Event("test" + i)));
+        }
+
+        appMetr.softStop();
+
+        assertNull(appMetr.getLastUploadError());
+        assertEquals(20, uploaded.size());
+        assertEquals(20, new HashSet<>(uploaded).size());
+        assertTrue(testStorage.getBathesQueue().isEmpty());
+        assertEquals(4, appMetr.getUploadWorkerStats().size());
+        assertEquals(20, appMetr.getUploadWorkerStats().stream().mapToLong(stats -> stats.getUploadedBatches()).sum());
+    }
+
+    @Test
+    void uploadWorkersRenewLeaseWhileRetrying() throws Exception {
+        final TestStorage testStorage = new TestStorage();
+        final Map<String, Integer> attempts = new ConcurrentHashMap<>();
+
+        appMetr.setBatchSender((uri, token, batch) -> {
+            try {
+                final String event = GzippedJsonBatchFactoryTest.decompress(batch).get("batch").get(0).get("event").asText();
+                return attempts.merge(event, 1, Integer::sum) > 1 || !event.equals("test1");
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        appMetr.setBatchStorage(testStorage);
+        appMetr.setUploadWorkers(2);
+        appMetr.setUploadLeaseTime(Duration.ofMillis(20));
+        appMetr.setRetryPolicy(new FixedDelayRetryPolicy(Duration.ofMillis(300)));
+        appMetr.start();
+
+        assertTrue(appMetr.track(new Event("test1")));
+        appMetr.flush();
+        Thread.sleep(100);
+        // the other worker claims again after this batch, when the lease of the retried batch would have expired
+        assertTrue(appMetr.track(new Event("test2")));
+        appMetr.flush();
+        Thread.sleep(400);
+        appMetr.softStop();
+
+        assertNull(appMetr.getLastUploadError());
+        assertEquals(2, attempts.get("test1"));
+        assertEquals(1, attempts.get("test2"));
+        assertTrue(testStorage.getBathesQueue().isEmpty());
+    }
+
+    @Test
+    void uploadWorkersSenderException() throws Exception {
+        final TestStorage testStorage = new TestStorage();
+
+        appMetr.setBatchSender((uri, token, batch) -> {
+            throw new IllegalStateException("test");
+        });
+        appMetr.setBatchStorage(testStorage);
+        appMetr.setUploadWorkers(2);
+        appMetr.start();
+
+        assertTrue(appMetr.track(new Event("test1")));
+        appMetr.flush();
+
+        appMetr.uploadThread.join(1000);
+        assertFalse(appMetr.uploadThread.isAlive());
+        assertTrue(appMetr.getLastUploadError() instanceof IllegalStateException);
+        assertFalse(testStorage.getBathesQueue().isEmpty());
+        assertEquals(0, appMetr.batchClaims.getClaimedBatches());
+    }
+
+    @Test
+    void asyncUploads() throws Exception {
+        final TestStorage testStorage = new TestStorage();
+        final Map<String, Integer> attempts = new ConcurrentHashMap<>();
+        final Set<String> uploaded = Collections.synchronizedSet(new HashSet<>());
+        final CountDownLatch concurrentUploads = new CountDownLatch(4);
+        final ExecutorService collector = Executors.newCachedThreadPool();
+
+        appMetr.setBatchSender((AsyncBatchSender) (uri, token, batch) -> CompletableFuture.supplyAsync(() -> {
+            concurrentUploads.countDown();
+            try {
+                concurrentUploads.await();
+                final byte[] bytes = new byte[batch.remaining()];
+                batch.duplicate().get(bytes);
+                final String event = GzippedJsonBatchFactoryTest.decompress(bytes).get("batch").get(0).get("event").asText();
+                if (attempts.merge(event, 1, Integer::sum) == 1 && event.equals("test0")) {
+                    return SendResult.retryable(503, Duration.ofMillis(5), null);
+                }
+                if (event.equals("test1")) {
+                    return SendResult.rejected(400, null);
+                }
+                uploaded.add(event);
+                return SendResult.OK;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }, collector));
+        appMetr.setBatchStorage(testStorage);
+        appMetr.setMaxBatchActions(1);
+        appMetr.setMaxInFlightUploads(4);
+        final FixedDelayRetryPolicy retryPolicy = new FixedDelayRetryPolicy(Duration.ofMillis(1));
+        retryPolicy.setDropRejected(true);
+        appMetr.setRetryPolicy(retryPolicy);
+        appMetr.start();
+
+        for (int i = 0; i < 20; i++) {
+            assertTrue(appMetr.track(new Event("test" + i)));
+        }
+
+        appMetr.softStop();
+        collector.shutdown();
+
+        assertNull(appMetr.getLastUploadError());
+        assertEquals(19, uploaded.size());
+        assertFalse(uploaded.contains("test1"));
+        assertEquals(2, attempts.get("test0").intValue());
+        assertEquals(1, attempts.get("test1").intValue());
+        assertTrue(testStorage.getBathesQueue().isEmpty());
+    }
+
+    @Test
+    void asyncUploadsSenderException() throws Exception {
+        final TestStorage testStorage = new TestStorage();
+
+        appMetr.setBatchSender((AsyncBatchSender) (uri, token, batch) -> {
+            final CompletableFuture<SendResult> result = new CompletableFuture<>();
+            result.completeExceptionally(new IllegalStateException("test"));
+            return result;
+        });
+        appMetr.setBatchStorage(testStorage);
+        appMetr.setMaxInFlightUploads(2);
+        appMetr.start();
+
+        assertTrue(appMetr.track(new Event("test1")));
+        appMetr.flush();
+
+        appMetr.uploadThread.join(1000);
+        assertFalse(appMetr.uploadThread.isAlive());
+        assertTrue(appMetr.getLastUploadError() instanceof IllegalStateException);
+        assertThrows(IllegalStateException.class, () -> appMetr.track(new Event("test2")));
+        assertFalse(testStorage.getBathesQueue().isEmpty());
+    }
+
+    @Test
+    void rejectedBatchIsNotRetried() throws Exception {
+        final TestStorage testStorage = new TestStorage();
+        final HttpBatchSender rejectingSender = Mockito.mock(HttpBatchSender.class);
+        when(rejectingSender.sendForResult(any(), any(), any())).thenReturn(SendResult.rejected(400, null));
+        final FixedDelayRetryPolicy retryPolicy = new FixedDelayRetryPolicy(Duration.ofMillis(1));
+        retryPolicy.setDropRejected(true);
+
+        appMetr.setBatchSender(rejectingSender);
+        appMetr.setBatchStorage(testStorage);
+        appMetr.setRetryPolicy(retryPolicy);
+        appMetr.start();
+
+        assertTrue(appMetr.track(new Event("test1")));
+        appMetr.softStop();
+
+        verify(rejectingSender, times(1)).sendForResult(eq(url), eq(token), any());
+        assertTrue(testStorage.getBathesQueue().isEmpty());
+    }
+
+    @Test
+    void rejectedBatchIsRetriedByDefault() throws Exception {
+        final TestStorage testStorage = new TestStorage();
+        final HttpBatchSender rejectingSender = Mockito.mock(HttpBatchSender.class);
+        when(rejectingSender.sendForResult(any(), any(), any()))
+                .thenReturn(SendResult.rejected(400, null), SendResult.OK);
+
+        appMetr.setBatchSender(rejectingSender);
+        appMetr.setBatchStorage(testStorage);
+        appMetr.setFailedUploadTimeout(Duration.ofMillis(1));
+        appMetr.start();
+
+        assertTrue(appMetr.track(new Event("test1")));
+        appMetr.softStop();
+
+        verify(rejectingSender, times(2)).sendForResult(eq(url), eq(token), any());
+        assertTrue(testStorage.getBathesQueue().isEmpty());
+    }
+
+    @Test
+    void retryPolicy() throws Exception {
+        final TestStorage testStorage = new TestStorage();
+        final BatchSender mockSender = Mockito.mock(BatchSender.class);
+        when(mockSender.send(eq(url), eq(token), any())).thenReturn(false, false, true);
+        final List<Integer> attempts = Collections.synchronizedList(new ArrayList<>());
+        final List<SendResult> results = Collections.synchronizedList(new ArrayList<>());
+
+        appMetr.setBatchSender(mockSender);
+        appMetr.setBatchStorage(testStorage);
+        appMetr.setRetryPolicy(new RetryPolicy() {
+            @Override public Duration nextDelay(int attempt, SendResult result) {
+                attempts.add(attempt);
+                return Duration.ofMillis(1);
+            }
+
+            @Override public void onResult(SendResult result) {
+                results.add(result);
+            }
+        });
+        appMetr.start();
+
+        assertTrue(appMetr.track(new Event("test1")));
+        appMetr.softStop();
+
+        verify(mockSender, times(3)).send(eq(url), eq(token), any());
+        assertEquals(Arrays.asList(1, 2), attempts);
+        assertEquals(3, results.size());
+        assertTrue(results.get(2).isSuccess());
+        assertTrue(testStorage.getBathesQueue().isEmpty());
+    }
+
+    @Test
+    void defaultRetryPolicyCreatedOnStart() {
+        appMetr.setBatchStorage(new TestStorage());
+        appMetr.setFailedUploadTimeout(Duration.ofMillis(10));
+        appMetr.start();
+
+        final RetryPolicy policy = appMetr.retryPolicy();
+        assertTrue(policy instanceof FixedDelayRetryPolicy);
+        assertEquals(Duration.ofMillis(10), policy.nextDelay(1, SendResult.retryable(null)));
+        assertSame(policy, appMetr.retryPolicy());
+
+        appMetr.hardStop();
+    }
+
+    @Test
+    void retryPolicyPausesReads() throws Exception {
+        final TestStorage testStorage = new TestStorage();
+        final BatchSender mockSender = Mockito.mock(BatchSender.class);
+        when(mockSender.send(eq(url), eq(token), any())).thenReturn(true);
+        final AtomicInteger pauses = new AtomicInteger(3);
+
+        appMetr.setBatchSender(mockSender);
+        appMetr.setBatchStorage(testStorage);
+        appMetr.setRetryPolicy(new RetryPolicy() {
+            @Override public Duration nextDelay(int attempt, SendResult result) {
+                return Duration.ZERO;
+            }
+
+            @Override public Duration readPause() {
+                return pauses.getAndDecrement() > 0 ? Duration.ofMillis(50) : Duration.ZERO;
+            }
+        });
+        appMetr.start();
+
+        assertTrue(appMetr.track(new Event("test1")));
+        appMetr.flush();
+
+        verify(mockSender, after(100).never()).send(eq(url), eq(token), any());
+        verify(mockSender, timeout(500)).send(eq(url), eq(token), any());
+
+        appMetr.softStop();
+    }
+
     static void waitForever() throws InterruptedException {
         while (true) {
             Thread.sleep(100);
@@ -0,0 +1,150 @@
+package com.appmetr.s2s;
+
+import com.appmetr.s2s.AppMetrTest.DiscardStorage;
+import com.appmetr.s2s.AppMetrTest.NothingBatchSender;
+import com.appmetr.s2s.AppMetrTest.TestStorage;
+import com.appmetr.s2s.events.Action;
+import com.appmetr.s2s.events.Event;
+import com.appmetr.s2s.persister.BatchFactory;
+import com.appmetr.s2s.persister.BatchFactoryServerId;
+import com.appmetr.s2s.persister.GzippedJsonBatchFactory;
+import com.appmetr.s2s.persister.GzippedJsonBatchFactoryTest;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AsyncBatchEncoderTest {
+
+    TestStorage testStorage = new TestStorage();
+
+    @Test
+    void storeInSubmissionOrder() throws Exception {
+        final AsyncBatchEncoder encoder = new AsyncBatchEncoder(testStorage, GzippedJsonBatchFactory.instance, "s1", 4, 3, "test");
+
+        for (int i = 0; i < 50; i++) {
+            final List<Action> actions = new ArrayList<>();
+            for (int j = 0; j < (i % 2 == 0 ? 500 : 1); j++) {
+                actions.add(new Event("batch" + i));
+            }
+            encoder.submit(actions);
+        }
+        encoder.shutdown();
+
+        assertEquals(50, testStorage.storeCalls.size());
+        assertEquals(50, testStorage.getBathesQueue().size());
+
+        int i = 0;
+        long previousBatchId = Long.MIN_VALUE;
+        for (BinaryBatch binaryBatch : testStorage.getBathesQueue()) {
+            final JsonNode batchNode = GzippedJsonBatchFactoryTest.decompress(binaryBatch.getBytes());
+            assertEquals("s1", batchNode.get("serverId").asText());
+            assertEquals(binaryBatch.getBatchId(), batchNode.get("batchId").asLong());
+            assertTrue(binaryBatch.getBatchId() > previousBatchId);
+            assertEquals(i % 2 == 0 ? 500 : 1, batchNode.get("batch").size());
+            assertEquals("batch" + i, batchNode.get("batch").get(0).get("event").asText());
+
+            previousBatchId = binaryBatch.getBatchId();
+            i++;
+        }
+    }
+
+    @Test
+    void storeWithPlainFactory() throws Exception {
+        final BatchFactoryServerId batchFactory = (actions, batchId, serverId) ->
+                new BinaryBatch(batchId, new byte[actions.size()]);
+        final AsyncBatchEncoder encoder = new AsyncBatchEncoder(testStorage, batchFactory, "s1", 2, 1, "test");
+
+        encoder.submit(Collections.singletonList(new Event("test1")));
+        encoder.submit(Collections.nCopies(2, new Event("test2")));
+        encoder.shutdown();
+
+        assertEquals(2, testStorage.storeCalls.size());
+        assertEquals(1, testStorage.getBathesQueue().poll().getBytes().length);
+        assertEquals(2, testStorage.getBathesQueue().poll().getBytes().length);
+    }
+
+    @Test
+    void retryRejected() throws Exception {
+        final AtomicInteger rejections = new AtomicInteger(2);
+        final TestStorage rejectingStorage = new TestStorage() {
+            @Override public synchronized boolean store(Collection<Action> actions, BatchFactory batchFactory) throws InterruptedException {
+                return rejections.getAndDecrement() <= 0 && super.store(actions, batchFactory);
+            }
+        };
+        final AsyncBatchEncoder encoder = new AsyncBatchEncoder(rejectingStorage, GzippedJsonBatchFactory.instance, "s1", 1, 1, "test");
+
+        assertTrue(encoder.submit(Collections.singletonList(new Event("test1"))));
+        while (!encoder.rejecting) {
+            Thread.sleep(1);
+        }
+        assertFalse(encoder.submit(Collections.singletonList(new Event("test2"))));
+        encoder.shutdown();
+
+        assertEquals(0, encoder.getDroppedBatches());
+        assertEquals(1, rejectingStorage.getBathesQueue().size());
+    }
+
+    @Test
+    void dropRejectedOnShutdown() throws Exception {
+        final AsyncBatchEncoder encoder = new AsyncBatchEncoder(new DiscardStorage(), GzippedJsonBatchFactory.instance, "s1", 1, 1, "test");
+        encoder.setShutdownTimeout(Duration.ofMillis(50));
+
+        assertTrue(encoder.submit(Collections.singletonList(new Event("test1"))));
+        encoder.shutdown();
+
+        assertEquals(1, encoder.getDroppedBatches());
+        assertThrows(IllegalStateException.class, () -> encoder.submit(Collections.singletonList(new Event("test2"))));
+    }
+
+    @Test
+    void shutdownTimeoutWithBlockedStorage() throws Exception {
+        final CountDownLatch storing = new CountDownLatch(1);
+        final TestStorage blockedStorage = new TestStorage() {
+            @Override public synchronized boolean store(Collection<Action> actions, BatchFactory batchFactory) throws InterruptedException {
+                storing.countDown();
+                Thread.sleep(Long.MAX_VALUE);
+                return false;
+            }
+        };
+        final AsyncBatchEncoder encoder = new AsyncBatchEncoder(blockedStorage, GzippedJsonBatchFactory.instance, "s1", 1, 1, "test");
+        encoder.setShutdownTimeout(Duration.ofMillis(50));
+
+        assertTrue(encoder.submit(Collections.singletonList(new Event("test1"))));
+        storing.await();
+        assertTrue(encoder.submit(Collections.singletonList(new Event("test2"))));
+
+        assertTimeoutPreemptively(Duration.ofSeconds(5), encoder::shutdown);
+        assertFalse(encoder.storeThread.isAlive());
+    }
+
+    @Test
+    void appMetrEncoderThreads() throws Exception {
+        final AppMetr appMetr = new AppMetr(AppMetrTest.token, AppMetrTest.url);
+        appMetr.setBatchSender(NothingBatchSender.instance);
+        appMetr.setBatchStorage(testStorage);
+        appMetr.setEncoderThreads(2);
+        appMetr.setMaxBatchActions(1);
+        appMetr.start();
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(appMetr.track(new Event("test" + i)));
+        }
+
+        appMetr.hardStop();
+
+        assertEquals(10, testStorage.storeCalls.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(1, testStorage.storeCalls.get(i).size());
+            assertEquals("test" + i, ((Event) testStorage.storeCalls.get(i).get(0)).getEvent());
+        }
+    }
+}
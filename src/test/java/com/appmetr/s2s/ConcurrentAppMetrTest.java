@@ -0,0 +1,212 @@
+package com.appmetr.s2s;
+
+import com.appmetr.s2s.AppMetrTest.DiscardStorage;
+import com.appmetr.s2s.AppMetrTest.NothingBatchSender;
+import com.appmetr.s2s.AppMetrTest.TestStorage;
+import com.appmetr.s2s.events.Action;
+import com.appmetr.s2s.events.Event;
+import com.appmetr.s2s.persister.BatchFactory;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConcurrentAppMetrTest {
+
+    ConcurrentAppMetr appMetr = new ConcurrentAppMetr(AppMetrTest.token, AppMetrTest.url, 4);
+    TestStorage testStorage = new TestStorage();
+
+    @BeforeEach
+    void setUp() {
+        appMetr.setServerId("s1");
+        appMetr.setBatchSender(NothingBatchSender.instance);
+        appMetr.setBatchStorage(testStorage);
+    }
+
+    @Test
+    void storeByBatchActions() throws Exception {
+        appMetr.setMaxBatchActions(1);
+        appMetr.start();
+
+        final Event event1 = new Event("test1");
+        final Event event2 = new Event("test2");
+        assertTrue(appMetr.track(event1));
+        assertTrue(appMetr.track(event2));
+
+        assertEquals(1, testStorage.storeCalls.size());
+        assertEquals(Collections.singletonList(event1), testStorage.storeCalls.get(0));
+        assertEquals(1, appMetr.getActionsNumber());
+
+        appMetr.hardStop();
+
+        assertEquals(2, testStorage.storeCalls.size());
+        assertEquals(Collections.singletonList(event2), testStorage.storeCalls.get(1));
+    }
+
+    @Test
+    void storeByBatchBytes() throws Exception {
+        appMetr.setMaxBatchBytes(1);
+        appMetr.start();
+
+        final Event event1 = new Event("test1");
+        final Event event2 = new Event("test2");
+        assertTrue(appMetr.track(event1));
+        assertTrue(appMetr.track(event2));
+
+        assertEquals(1, testStorage.storeCalls.size());
+        assertEquals(Collections.singletonList(event1), testStorage.storeCalls.get(0));
+
+        appMetr.hardStop();
+
+        assertEquals(2, testStorage.storeCalls.size());
+        assertEquals(Collections.singletonList(event2), testStorage.storeCalls.get(1));
+    }
+
+    @Test
+    void flushSplitsByBatchActions() throws Exception {
+        appMetr.setMaxBatchActions(2);
+        appMetr.start();
+
+        for (int i = 0; i < 5; i++) {
+            final Event event = new Event("test" + i);
+            appMetr.actionBuffer.add(event, event.calcApproximateSize());
+        }
+
+        assertTrue(appMetr.flush());
+
+        assertEquals(3, testStorage.storeCalls.size());
+        assertEquals(2, testStorage.storeCalls.get(0).size());
+        assertEquals(2, testStorage.storeCalls.get(1).size());
+        assertEquals(1, testStorage.storeCalls.get(2).size());
+        assertEquals(0, appMetr.getActionsNumber());
+        assertEquals(0, appMetr.getActionsBytes());
+
+        appMetr.hardStop();
+    }
+
+    @Test
+    void storeDiscarded() throws Exception {
+        appMetr.setBatchStorage(new DiscardStorage());
+        appMetr.setMaxBatchActions(1);
+        appMetr.start();
+
+        final Event event1 = new Event("test1");
+        final Event event2 = new Event("test2");
+        assertTrue(appMetr.track(event1));
+        assertFalse(appMetr.track(event2));
+        assertFalse(appMetr.track(event2));
+        assertEquals(1, appMetr.getActionsNumber());
+
+        appMetr.hardStop();
+    }
+
+    @Test
+    void trackInBulkStopsAtRejection() throws Exception {
+        final List<Collection<Action>> storeCalls = new ArrayList<>();
+        appMetr.setBatchStorage(new DiscardStorage() {
+            @Override public boolean store(Collection<Action> actions, BatchFactory batchFactory) {
+                storeCalls.add(actions);
+                return false;
+            }
+        });
+        appMetr.setMaxBatchActions(1);
+        appMetr.start();
+
+        assertEquals(1, appMetr.track(Arrays.asList(new Event("test1"), new Event("test2"), new Event("test3"))));
+        assertEquals(1, storeCalls.size());
+
+        appMetr.hardStop();
+    }
+
+    @Test
+    void stopWaitsForActiveTrackers() throws Exception {
+        final CountDownLatch storing = new CountDownLatch(1);
+        final CountDownLatch stored = new CountDownLatch(1);
+        appMetr.setBatchStorage(new TestStorage() {
+            @Override public boolean store(Collection<Action> actions, BatchFactory batchFactory) throws InterruptedException {
+                storing.countDown();
+                stored.await();
+                return super.store(actions, batchFactory);
+            }
+        });
+        appMetr.setMaxBatchActions(1);
+        appMetr.start();
+        assertTrue(appMetr.track(new Event("test1")));
+
+        final Thread tracker = new Thread(() -> {
+            try {
+                appMetr.track(new Event("test2"));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        tracker.start();
+        assertTrue(storing.await(5, TimeUnit.SECONDS));
+
+        final Thread stopper = new Thread(appMetr::hardStop);
+        stopper.start();
+        stopper.join(100);
+        assertTrue(stopper.isAlive());
+
+        stored.countDown();
+        stopper.join(5000);
+        assertFalse(stopper.isAlive());
+        tracker.join();
+        assertEquals(0, appMetr.getActionsNumber());
+    }
+
+    @Test
+    void concurrentProducers() throws Exception {
+        final int threads = 8;
+        final int actionsPerThread = 10_000;
+        appMetr.setMaxBatchActions(100);
+        appMetr.start();
+
+        final Throwable[] throwables = new Throwable[threads];
+        final List<Thread> producers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int threadNumber = t;
+            final Thread producer = new Thread(() -> {
+                for (int i = 0; i < actionsPerThread; i++) {
+                    try {
+                        assertTrue(appMetr.track(new Event(threadNumber + ":" + i)));
+                    } catch (Throwable e) {
+                        throwables[threadNumber] = e;
+                        return;
+                    }
+                }
+            });
+            producers.add(producer);
+            producer.start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        for (Throwable throwable : throwables) {
+            if (throwable != null) {
+                fail(throwable);
+            }
+        }
+
+        appMetr.hardStop();
+
+        final Map<Integer, Integer> lastByThread = new HashMap<>();
+        int total = 0;
+        for (List<Action> batch : testStorage.storeCalls) {
+            assertTrue(batch.size() <= 100);
+            for (Action action : batch) {
+                final String[] parts = ((Event) action).getEvent().split(":");
+                final int thread = Integer.parseInt(parts[0]);
+                final int number = Integer.parseInt(parts[1]);
+                assertEquals(lastByThread.getOrDefault(thread, -1) + 1, number, "Order within thread " + thread);
+                lastByThread.put(thread, number);
+                total++;
+            }
+        }
+        assertEquals(threads * actionsPerThread, total);
+    }
+}
@@ -0,0 +1,72 @@
+package com.appmetr.s2s;
+
+import com.appmetr.s2s.events.Action;
+import com.appmetr.s2s.events.Event;
+import com.appmetr.s2s.events.Payment;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeflateCodecTest {
+
+    @Test
+    void reuseReleased() {
+        final DeflateCodec codec = new DeflateCodec(Deflater.BEST_SPEED, Deflater.DEFAULT_STRATEGY, 1024, 1);
+
+        final Deflater deflater = codec.acquireDeflater();
+        codec.releaseDeflater(deflater);
+        assertSame(deflater, codec.acquireDeflater());
+
+        final Inflater inflater = codec.acquireInflater();
+        codec.releaseInflater(inflater);
+        assertSame(inflater, codec.acquireInflater());
+    }
+
+    @Test
+    void endNotPooled() {
+        final DeflateCodec codec = new DeflateCodec(Deflater.BEST_SPEED, Deflater.DEFAULT_STRATEGY, 1024, 1);
+
+        final Deflater deflater1 = codec.acquireDeflater();
+        final Deflater deflater2 = codec.acquireDeflater();
+        codec.releaseDeflater(deflater1);
+        codec.releaseDeflater(deflater2);
+
+        assertThrows(NullPointerException.class, () -> deflater2.deflate(new byte[16]));
+        deflater1.deflate(new byte[16]);
+
+        codec.close();
+        assertThrows(NullPointerException.class, () -> deflater1.deflate(new byte[16]));
+    }
+
+    @Test
+    void wrongSettings() {
+        assertThrows(IllegalArgumentException.class, () -> new DeflateCodec(10));
+        assertThrows(IllegalArgumentException.class, () -> new DeflateCodec(1, 5, 1024));
+        assertThrows(IllegalArgumentException.class, () -> new DeflateCodec(1, Deflater.FILTERED, 0));
+    }
+
+    @Test
+    void roundTripWithSettings() {
+        final List<Action> actions = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            actions.add(new Event("event" + i).setUserId("user" + i));
+            actions.add(new Payment("order" + i, "trans" + i, "proc", "USD", String.valueOf(i)));
+        }
+        final Batch batch = new Batch("s1", 1, actions);
+
+        for (DeflateCodec codec : new DeflateCodec[]{
+                new DeflateCodec(Deflater.NO_COMPRESSION),
+                new DeflateCodec(Deflater.BEST_SPEED, Deflater.FILTERED, 16),
+                new DeflateCodec(6, Deflater.HUFFMAN_ONLY, 64 * 1024)}) {
+            for (int i = 0; i < 3; i++) {
+                final byte[] bytes = SerializationUtils.serializeJsonGzip(batch, true, codec);
+                assertEquals(batch, SerializationUtils.deserializeJsonGzip(bytes, codec), codec.toString());
+            }
+        }
+    }
+}
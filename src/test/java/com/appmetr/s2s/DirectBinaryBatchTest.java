@@ -0,0 +1,199 @@
+package com.appmetr.s2s;
+
+import com.appmetr.s2s.events.Action;
+import com.appmetr.s2s.events.Event;
+import com.appmetr.s2s.persister.FileStorage;
+import com.appmetr.s2s.persister.GzippedJsonBatchFactory;
+import com.appmetr.s2s.persister.GzippedJsonBatchFactoryTest;
+import com.appmetr.s2s.persister.NonBlockingHeapStorage;
+import com.appmetr.s2s.sender.BatchSender;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DirectBinaryBatchTest {
+
+    DirectBufferPool bufferPool = new DirectBufferPool(1024, 4);
+    GzippedJsonBatchFactory batchFactory = new GzippedJsonBatchFactory(DeflateCodec.DEFAULT, bufferPool);
+
+    @Test
+    void poolReusesBuffers() {
+        final ByteBuffer buffer = bufferPool.acquire();
+        assertTrue(buffer.isDirect());
+        assertEquals(1024, buffer.capacity());
+
+        buffer.put((byte) 1);
+        bufferPool.release(buffer);
+        assertEquals(1, bufferPool.getPooledBuffers());
+
+        final ByteBuffer reused = bufferPool.acquire();
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+
+        bufferPool.release(ByteBuffer.allocateDirect(10));
+        bufferPool.release(ByteBuffer.allocate(1024));
+        assertEquals(0, bufferPool.getPooledBuffers());
+    }
+
+    @Test
+    void outputStreamGrows() {
+        final byte[] data = new byte[3000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+
+        final DirectBufferOutputStream out = new DirectBufferOutputStream(bufferPool);
+        out.write(data, 0, 1000);
+        out.write(data, 1000, 2000);
+        final ByteBuffer buffer = out.toByteBuffer();
+        out.close();
+
+        assertTrue(buffer.isDirect());
+        assertEquals(3000, buffer.remaining());
+        final byte[] result = new byte[3000];
+        buffer.get(result);
+        assertArrayEquals(data, result);
+        assertEquals(1, bufferPool.getPooledBuffers());
+    }
+
+    @Test
+    void poolBuffersBySizeClass() {
+        final ByteBuffer buffer = bufferPool.acquire(1500);
+        assertTrue(buffer.isDirect());
+        assertEquals(2048, buffer.capacity());
+        assertEquals(8192, bufferPool.getMaxBufferSize());
+
+        bufferPool.release(buffer);
+        assertSame(buffer, bufferPool.acquire(2048));
+        assertFalse(bufferPool.acquire(8193).isDirect());
+    }
+
+    @Test
+    void outputStreamGrowsFromPool() {
+        final DirectBufferOutputStream out = new DirectBufferOutputStream(bufferPool);
+        out.write(new byte[3000], 0, 3000);
+        final ByteBuffer buffer = out.toByteBuffer();
+        bufferPool.release(buffer);
+
+        assertEquals(2, bufferPool.getPooledBuffers());
+        assertSame(buffer, bufferPool.acquire(3000));
+    }
+
+    @Test
+    void outputStreamMovesToHeapAboveMaxBufferSize() {
+        final DirectBufferOutputStream out = new DirectBufferOutputStream(bufferPool);
+        out.write(new byte[5000], 0, 5000);
+        out.write(new byte[5000], 0, 5000);
+        final ByteBuffer buffer = out.toByteBuffer();
+
+        assertFalse(buffer.isDirect());
+        assertEquals(10000, buffer.remaining());
+        assertEquals(2, bufferPool.getPooledBuffers());
+    }
+
+    @Test
+    void createDirectBatch() throws Exception {
+        final List<Action> actions = actions(20);
+
+        final BinaryBatch heapBatch = GzippedJsonBatchFactory.instance.createBatch(actions, 7, "s1");
+        final BinaryBatch directBatch = batchFactory.createBatch(actions, 7, "s1");
+        final BinaryBatch preEncodedBatch = batchFactory.createBatch(batchFactory.encodeActions(actions), 7, "s1");
+
+        assertFalse(directBatch.hasArray());
+        assertEquals(heapBatch.getSize(), directBatch.getSize());
+        assertArrayEquals(heapBatch.getBytes(), directBatch.getBytes());
+        final ByteBuffer byteBuffer = directBatch.getByteBuffer();
+        byteBuffer.get();
+        assertEquals(directBatch.getSize(), directBatch.getByteBuffer().remaining());
+        assertTrue(heapBatch.getByteBuffer().hasArray());
+        assertSame(heapBatch.getBytes(), heapBatch.getByteBuffer().array());
+
+        final JsonNode batchNode = GzippedJsonBatchFactoryTest.decompress(preEncodedBatch.getBytes());
+        assertEquals(7, batchNode.get("batchId").asLong());
+        assertEquals(20, batchNode.get("batch").size());
+
+        directBatch.release();
+        directBatch.release();
+        preEncodedBatch.release();
+        assertEquals(2, bufferPool.getPooledBuffers());
+    }
+
+    @Test
+    void heapStorageReleasesBatches() throws Exception {
+        final NonBlockingHeapStorage storage = new NonBlockingHeapStorage(2000);
+
+        assertTrue(storage.store(actions(1), (a, batchId) -> batchFactory.createBatch(a, batchId, "s1")));
+        assertFalse(storage.store(actions(1000), (a, batchId) -> batchFactory.createBatch(a, batchId, "s1")));
+        // the rejected batch has grown from the pooled buffer into a pooled buffer of a larger size class
+        assertEquals(2, bufferPool.getPooledBuffers());
+
+        final BinaryBatch binaryBatch = storage.get();
+        assertFalse(binaryBatch.hasArray());
+        storage.remove();
+        assertEquals(3, bufferPool.getPooledBuffers());
+        assertTrue(storage.isEmpty());
+    }
+
+    @Test
+    void fileStorageWritesDirectBatch(@TempDir Path tempDir) throws Exception {
+        final FileStorage storage = new FileStorage(tempDir);
+        final List<Action> actions = actions(10);
+
+        assertTrue(storage.store(actions, (a, batchId) -> batchFactory.createBatch(a, batchId, "s1")));
+        assertEquals(1, bufferPool.getPooledBuffers());
+
+        final BinaryBatch expected = GzippedJsonBatchFactory.instance.createBatch(actions, 0, "s1");
+        assertArrayEquals(expected.getBytes(), storage.get().getBytes());
+    }
+
+    @Test
+    void appMetrSendsByteBuffer() throws Exception {
+        final List<ByteBuffer> sent = new ArrayList<>();
+        final AppMetr appMetr = new AppMetr(AppMetrTest.token, AppMetrTest.url);
+        appMetr.setBatchFactory(batchFactory);
+        appMetr.setBatchStorage(new NonBlockingHeapStorage(Long.MAX_VALUE));
+        appMetr.setBatchSender(new BatchSender() {
+            @Override public boolean send(String uri, String token, byte[] batch) {
+                throw new AssertionError("Direct batch copied to heap");
+            }
+
+            @Override public boolean sendBuffer(String uri, String token, ByteBuffer batch) {
+                synchronized (sent) {
+                    sent.add(batch);
+                    sent.notifyAll();
+                }
+                return true;
+            }
+        });
+        appMetr.start();
+
+        appMetr.track(new Event("test"));
+        appMetr.flush();
+
+        synchronized (sent) {
+            while (sent.isEmpty()) {
+                sent.wait();
+            }
+        }
+        appMetr.softStop();
+
+        assertEquals(1, sent.size());
+        assertTrue(sent.get(0).isDirect());
+    }
+
+    static List<Action> actions(int number) {
+        final List<Action> actions = new ArrayList<>(number);
+        for (int i = 0; i < number; i++) {
+            actions.add(new Event("test" + i).setProperties(Collections.singletonMap("value", "v" + i)));
+        }
+        return actions;
+    }
+}
@@ -0,0 +1,143 @@
+package com.appmetr.s2s;
+
+import com.appmetr.s2s.events.Event;
+import com.appmetr.s2s.persister.GzippedJsonBatchFactoryTest;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MultiTenantAppMetrTest {
+
+    @Test
+    void uploadTenantsOnSharedThreads() throws Exception {
+        final Map<String, List<String>> uploaded = new ConcurrentHashMap<>();
+        final MultiTenantAppMetr appMetr = new MultiTenantAppMetr("url");
+        appMetr.setBatchSender((uri, token, batch) -> {
+            try {
+                final String event = GzippedJsonBatchFactoryTest.decompress(batch).get("batch").get(0).get("event").asText();
+                uploaded.computeIfAbsent(token, t -> Collections.synchronizedList(new ArrayList<>())).add(event);
+                return true;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        appMetr.setTenantConfigurer(tenant -> tenant.setMaxBatchActions(1));
+        appMetr.setUploadThreads(2);
+        appMetr.start();
+
+        for (int i = 0; i < 10; i++) {
+            for (int tenant = 0; tenant < 20; tenant++) {
+                assertTrue(appMetr.track("token" + tenant, new Event("test" + i)));
+            }
+        }
+        assertEquals(20, appMetr.getTenantsNumber());
+        assertTrue(Thread.getAllStackTraces().keySet().stream()
+                .noneMatch(thread -> thread.getName().startsWith("appmetr-upload-token")));
+
+        appMetr.stop();
+
+        assertEquals(20, uploaded.size());
+        for (List<String> events : uploaded.values()) {
+            assertEquals(10, events.size());
+        }
+        assertEquals(0, appMetr.getStorage().getStoredBytes());
+    }
+
+    @Test
+    void tenantCreatedDuringStopIsStopped() throws Exception {
+        final CountDownLatch creating = new CountDownLatch(1);
+        final CountDownLatch created = new CountDownLatch(1);
+        final MultiTenantAppMetr appMetr = new MultiTenantAppMetr("url") {
+            @Override protected Tenant createTenant(String token) {
+                creating.countDown();
+                try {
+                    created.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                return super.createTenant(token);
+            }
+        };
+        appMetr.setBatchSender((uri, token, batch) -> true);
+        appMetr.start();
+
+        final AtomicReference<AppMetr> tenant = new AtomicReference<>();
+        final Thread tracker = new Thread(() -> tenant.set(appMetr.getTenant("token")));
+        tracker.start();
+        assertTrue(creating.await(5, TimeUnit.SECONDS));
+
+        final Thread stopper = new Thread(appMetr::stop);
+        stopper.start();
+        stopper.join(100);
+        created.countDown();
+        tracker.join(5000);
+        stopper.join(5000);
+
+        assertFalse(stopper.isAlive());
+        assertTrue(tenant.get().isStopped());
+    }
+
+    @Test
+    void senderExceptionStopsOnlyItsTenant() throws Exception {
+        final Set<String> uploaded = ConcurrentHashMap.newKeySet();
+        final MultiTenantAppMetr appMetr = new MultiTenantAppMetr("url");
+        appMetr.setBatchSender((uri, token, batch) -> {
+            if (token.equals("failing")) {
+                throw new IllegalStateException("test");
+            }
+            uploaded.add(token);
+            return true;
+        });
+        appMetr.start();
+
+        assertTrue(appMetr.track("failing", new Event("test")));
+        appMetr.flush();
+        while (appMetr.getTenant("failing").getLastUploadError() == null) {
+            Thread.sleep(10);
+        }
+        assertThrows(IllegalStateException.class, () -> appMetr.track("failing", new Event("test")));
+
+        assertTrue(appMetr.track("working", new Event("test")));
+        appMetr.stop();
+
+        assertEquals(Collections.singleton("working"), uploaded);
+    }
+
+    @Test
+    void retryingTenantReleasesSharedThread() throws Exception {
+        final List<String> uploaded = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger failures = new AtomicInteger();
+        final CountDownLatch failed = new CountDownLatch(1);
+        final MultiTenantAppMetr appMetr = new MultiTenantAppMetr("url");
+        appMetr.setBatchSender((uri, token, batch) -> {
+            if (token.equals("failing") && failures.incrementAndGet() <= 2) {
+                failed.countDown();
+                return false;
+            }
+            uploaded.add(token);
+            return true;
+        });
+        appMetr.setTenantConfigurer(tenant -> tenant.setFailedUploadTimeout(Duration.ofMillis(300)));
+        appMetr.setUploadThreads(1);
+        appMetr.start();
+
+        assertTrue(appMetr.track("failing", new Event("test")));
+        appMetr.flush();
+        assertTrue(failed.await(5, TimeUnit.SECONDS));
+
+        assertTrue(appMetr.track("working", new Event("test")));
+        appMetr.flush();
+        appMetr.stop();
+
+        assertEquals(Arrays.asList("working", "failing"), uploaded);
+        assertEquals(3, failures.get());
+    }
+}
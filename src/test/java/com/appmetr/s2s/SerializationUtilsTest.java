@@ -2,6 +2,7 @@ package com.appmetr.s2s;
 
 import com.appmetr.s2s.events.*;
 import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.module.SimpleModule;
@@ -130,6 +131,50 @@ class SerializationUtilsTest {
         assertEquals(Arrays.asList("party2019:A", "newYear2020:C"), action.getProperties().get("$abGroup"));
     }
 
+    @Test
+    void deserializeTypedInstanceBeforeClass() throws IOException {
+        final String json = "{\"serverId\":\"s1\",\"batchId\":1,\"batch\":["
+                + "{\"inst\":{\"action\":\"trackEvent\",\"timestamp\":5,\"properties\":{\"a\":[1]},\"event\":\"test\"},\"cls\":\"Event\"},"
+                + "{\"cls\":\"Refund\",\"unknown\":{\"a\":1},\"inst\":{\"action\":\"trackRefundInfo\",\"timestamp\":6,\"transactionId\":\"t1\",\"cancellationDateMs\":7}}]}";
+
+        final Batch batch = SerializationUtils.objectMapperTyped.readValue(json, Batch.class);
+
+        assertEquals(2, batch.getBatch().size());
+        final Event event = (Event) batch.getBatch().get(0);
+        assertEquals("test", event.getEvent());
+        assertEquals(5, event.getTimestamp());
+        assertEquals(singletonList(1), event.getProperties().get("a"));
+        final Refund refund = (Refund) batch.getBatch().get(1);
+        assertEquals("t1", refund.getTransactionId());
+        assertEquals(7, refund.getCancellationDateMs());
+    }
+
+    @Test
+    void deserializeTypedUnknownClass() {
+        final String json = "{\"batch\":[{\"cls\":\"Unknown\",\"inst\":{}}]}";
+
+        final JsonMappingException e = assertThrows(JsonMappingException.class, () -> SerializationUtils.objectMapperTyped.readValue(json, Batch.class));
+        assertEquals("Couldn't find class Unknown", e.getCause().getMessage());
+    }
+
+    @Test
+    void deserializeTypedWithoutInstance() {
+        final String json = "{\"batch\":[{\"cls\":\"Event\"}]}";
+
+        final JsonMappingException e = assertThrows(JsonMappingException.class, () -> SerializationUtils.objectMapperTyped.readValue(json, Batch.class));
+        assertEquals(IllegalArgumentException.class, e.getCause().getClass());
+    }
+
+    @Test
+    void serializeTypedSeveralActions() {
+        final Batch original = new Batch("s1", 3, Arrays.asList(
+                new Event("test").setProperties(singletonMap("nested", singletonMap("list", Arrays.asList(1, 2)))),
+                new Payment("order1", "trans1", "proc1", "USD", "123"),
+                new Event("test2")));
+
+        assertEquals(original, SerializationUtils.deserializeJsonGzip(SerializationUtils.serializeJsonGzip(original, true)));
+    }
+
     @Test
     void serializeWithoutTypeInfo() {
         byte[] bytes = SerializationUtils.serializeJsonGzip(new Batch("s2", 9, singletonList(new Event("test"))), false);
@@ -0,0 +1,80 @@
+package com.appmetr.s2s;
+
+import com.appmetr.s2s.events.Action;
+import com.appmetr.s2s.events.Event;
+import com.appmetr.s2s.events.Payment;
+import com.appmetr.s2s.persister.GzippedJsonBatchFactory;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static com.appmetr.s2s.persister.GzippedJsonBatchFactoryTest.decompress;
+import static org.junit.jupiter.api.Assertions.*;
+
+class StreamingActionsEncoderTest {
+
+    static GzippedJsonBatchFactory batchFactory = GzippedJsonBatchFactory.instance;
+
+    StreamingActionsEncoder encoder = new StreamingActionsEncoder(DeflateCodec.DEFAULT);
+
+    @Test
+    void encodeAsBatch() throws IOException {
+        final List<Action> actions = Arrays.asList(new Event("test1").setUserId("user1"),
+                new Payment("order1", "trans1", "proc1", "USD", "123"),
+                new Event("test\"quoted\""));
+        actions.get(0).getProperties().put("level", 2);
+
+        for (int i = 0; i < 2; i++) {
+            for (Action action : actions) {
+                encoder.add(action);
+            }
+            assertEquals(3, encoder.getActionsNumber());
+
+            final byte[] encodedActions = encoder.finish();
+            assertEquals(0, encoder.getActionsNumber());
+            assertEquals(decompress(batchFactory.createBatch(actions, 7, "s1").getBytes()),
+                    decompress(batchFactory.createBatch(encodedActions, 7, "s1").getBytes()));
+        }
+        assertNull(encoder.finish());
+    }
+
+    @Test
+    void leaveOutFailedAction() throws IOException {
+        final Action failedAction = new Event("test2");
+        failedAction.getProperties().put("value", new Object());
+
+        encoder.add(new Event("test1"));
+        assertThrows(IOException.class, () -> encoder.add(failedAction));
+        encoder.add(new Event("test3"));
+
+        final JsonNode batch = decompress(batchFactory.createBatch(encoder.finish(), 1, null).getBytes()).get("batch");
+        assertEquals(2, batch.size());
+        assertEquals("test1", batch.get(0).get("event").asText());
+        assertEquals("test3", batch.get(1).get("event").asText());
+    }
+
+    @Test
+    void projectCompressedBytes() throws IOException {
+        final Random random = new Random(1);
+        final List<Action> actions = new ArrayList<>();
+        for (int i = 0; i < 20_000; i++) {
+            final Event event = new Event("test" + random.nextInt(100));
+            event.getProperties().put("value", random.nextInt(1_000_000));
+            actions.add(event);
+        }
+
+        for (int i = 0; i < 2; i++) {
+            for (Action action : actions) {
+                encoder.add(action);
+            }
+            final long projectedBytes = encoder.getCompressedBytes();
+            final int encodedBytes = encoder.finish().length;
+            assertEquals(encodedBytes, projectedBytes, encodedBytes * 0.1);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.appmetr.s2s.events;
+
+import com.appmetr.s2s.SerializationUtils;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ActionTest {
+
+    static int serializedSize(Action action) throws JsonProcessingException {
+        return SerializationUtils.objectMapper.writeValueAsBytes(action).length;
+    }
+
+    @Test
+    void exactSizeOfTypicalActions() throws JsonProcessingException {
+        final Action event = new Event("battle/start").setUserId("user1");
+        event.getProperties().put("level", 42);
+        event.getProperties().put("location", "zone7");
+        event.getProperties().put("gold", -1_000_000L);
+        event.getProperties().put("price", 9.99);
+        event.getProperties().put("ratio", 0.5);
+        event.getProperties().put("vip", true);
+        event.getProperties().put("empty", null);
+        event.setTimestamp(1);
+
+        final Map<String, Object> nested = new HashMap<>();
+        nested.put("a", 1);
+        nested.put("b", Arrays.asList("x", "y"));
+        final Action attachProperties = new AttachProperties()
+                .setProperties(Collections.singletonMap("nested", nested));
+
+        final Action payment = new Payment("order1", "trans1", "google_play", "USD", "9.99",
+                "gold", "100", "US", false);
+
+        for (Action action : Arrays.asList(event, attachProperties, payment,
+                Events.trackAbGroup("user2", Arrays.asList("exp1:A", "exp2:B")),
+                new Refund("trans1", 1_500_000_000_000L),
+                new AttachEntityAttributes("$clan", "clan1"))) {
+            assertEquals(serializedSize(action), action.calcApproximateSize(), action.toString());
+        }
+    }
+
+    @Test
+    void boundedErrorForLongDecimals() throws JsonProcessingException {
+        final Action event = new Event("test");
+        event.getProperties().put("ratio", 0.1234567);
+
+        final int serializedSize = serializedSize(event);
+        assertTrue(event.calcApproximateSize() >= serializedSize);
+        assertTrue(event.calcApproximateSize() <= serializedSize + 20);
+    }
+}
@@ -0,0 +1,160 @@
+package com.appmetr.s2s.metrics;
+
+import com.appmetr.s2s.AppMetr;
+import com.appmetr.s2s.events.Event;
+import com.appmetr.s2s.persister.BufferedFileStorage;
+import com.appmetr.s2s.persister.FileStorage;
+import com.appmetr.s2s.persister.HeapStorage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BatchTracerTest {
+
+    @Test
+    void keepRecentTimelines() {
+        final BatchTracer tracer = new BatchTracer(3, 10);
+        for (long batchId = 1; batchId <= 5; batchId++) {
+            final BatchTimeline timeline = tracer.queued();
+            tracer.encoded(timeline, batchId, 100);
+            tracer.stored(timeline, true);
+            tracer.sending(batchId);
+            tracer.acknowledged(batchId, true);
+        }
+
+        final List<BatchTimeline> timelines = tracer.getRecentTimelines();
+        assertEquals(3, timelines.size());
+        assertEquals(5, timelines.get(0).getBatchId());
+        assertEquals(4, timelines.get(1).getBatchId());
+        assertEquals(3, timelines.get(2).getBatchId());
+        assertTrue(tracer.getTracedTimelines().isEmpty());
+
+        final BatchTimeline timeline = timelines.get(0);
+        assertTrue(timeline.isUploaded());
+        assertEquals(1, timeline.getAttempts());
+        assertNotNull(timeline.getEncoding());
+        assertNotNull(timeline.getWaiting());
+        assertNotNull(timeline.getTotal());
+        assertNull(timeline.getPersisting());
+    }
+
+    @Test
+    void finishRejectedAndLimitTraced() {
+        final BatchTracer tracer = new BatchTracer(10, 1);
+        final BatchTimeline rejected = tracer.queued();
+        tracer.encoded(rejected, 1, 100);
+        tracer.stored(rejected, false);
+
+        final BatchTimeline first = tracer.queued();
+        tracer.encoded(first, 2, 100);
+        tracer.encoded(tracer.queued(), 3, 100);
+        assertEquals(1, tracer.getUntracedBatches());
+        assertEquals(1, tracer.getTracedTimelines().size());
+
+        final List<BatchTimeline> timelines = tracer.getRecentTimelines();
+        assertEquals(1, timelines.size());
+        assertTrue(timelines.get(0).isRejected());
+        assertNull(timelines.get(0).getTotal());
+    }
+
+    @Test
+    void expireTracedBatches() throws Exception {
+        final BatchTracer tracer = new BatchTracer(10, 1);
+        tracer.setMaxTracedAge(Duration.ofMillis(10));
+
+        // dropped by the storage, so never acknowledged
+        final BatchTimeline dropped = tracer.queued();
+        tracer.encoded(dropped, 1, 100);
+        tracer.stored(dropped, true);
+        tracer.encoded(tracer.queued(), 2, 100);
+        assertEquals(1, tracer.getUntracedBatches());
+
+        Thread.sleep(20);
+        final BatchTimeline next = tracer.queued();
+        tracer.encoded(next, 3, 100);
+
+        assertEquals(1, tracer.getExpiredBatches());
+        assertEquals(1, tracer.getUntracedBatches());
+        assertEquals(Collections.singletonList(next), tracer.getTracedTimelines());
+    }
+
+    @Test
+    void traceUploadedBatches() throws Exception {
+        final BatchTracer tracer = new BatchTracer();
+        final AtomicInteger attempts = new AtomicInteger();
+        final CountDownLatch uploaded = new CountDownLatch(2);
+
+        final AppMetr appMetr = new AppMetr("token", "url");
+        appMetr.setBatchStorage(new HeapStorage(HeapStorage.DEFAULT_MAX_BYTES));
+        appMetr.setFailedUploadTimeout(Duration.ofMillis(1));
+        appMetr.setBatchSender((uri, token, batch) -> {
+            if (attempts.incrementAndGet() == 1) {
+                return false;
+            }
+            uploaded.countDown();
+            return true;
+        });
+        appMetr.setBatchTracer(tracer);
+        appMetr.start();
+
+        appMetr.track(new Event("test1"));
+        appMetr.flush();
+        appMetr.track(new Event("test2"));
+        appMetr.flush();
+        assertTrue(uploaded.await(5, TimeUnit.SECONDS));
+        appMetr.stop();
+
+        final List<BatchTimeline> timelines = tracer.getRecentTimelines();
+        assertEquals(2, timelines.size());
+        assertEquals(1, timelines.get(0).getAttempts());
+        assertEquals(2, timelines.get(1).getAttempts());
+        for (BatchTimeline timeline : timelines) {
+            assertTrue(timeline.isUploaded());
+            assertTrue(timeline.getBatchBytes() > 0);
+            assertNotNull(timeline.getStoring());
+            assertNotNull(timeline.getUploading());
+            assertNotNull(timeline.getTotal());
+        }
+    }
+
+    @Test
+    void traceBatchesPersistedUnderFileIds(@TempDir Path path) throws Exception {
+        final BatchTracer tracer = new BatchTracer();
+        final CountDownLatch uploaded = new CountDownLatch(3);
+
+        final FileStorage fileStorage = new FileStorage(path);
+        final AppMetr appMetr = new AppMetr("token", "url");
+        appMetr.setBatchStorage(new BufferedFileStorage(fileStorage, new HeapStorage(HeapStorage.DEFAULT_MAX_BYTES)));
+        appMetr.setBatchSender((uri, token, batch) -> {
+            uploaded.countDown();
+            return true;
+        });
+        appMetr.setBatchTracer(tracer);
+        appMetr.start();
+
+        for (int i = 0; i < 3; i++) {
+            appMetr.track(new Event("test" + i));
+            appMetr.flush();
+        }
+        assertTrue(uploaded.await(5, TimeUnit.SECONDS));
+        appMetr.stop();
+
+        final List<BatchTimeline> timelines = tracer.getRecentTimelines();
+        assertEquals(3, timelines.size());
+        for (BatchTimeline timeline : timelines) {
+            assertTrue(timeline.isUploaded());
+            assertNotNull(timeline.getPersisting());
+            assertNotNull(timeline.getWaiting());
+            assertNotNull(timeline.getTotal());
+        }
+    }
+}
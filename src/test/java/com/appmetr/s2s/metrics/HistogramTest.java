@@ -0,0 +1,39 @@
+package com.appmetr.s2s.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HistogramTest {
+
+    @Test
+    void percentiles() {
+        final Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getPercentile(99));
+
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500_500, histogram.getMean(), 0.001);
+        assertEquals(1_000_000, histogram.getMax());
+        assertEquals(500_000, histogram.getPercentile(50), 500_000 * 0.25);
+        assertEquals(990_000, histogram.getPercentile(99), 990_000 * 0.25);
+        assertEquals(1_000_000, histogram.getPercentile(100));
+    }
+
+    @Test
+    void bucketBounds() {
+        long previousUpperBound = -1;
+        for (long value = 0; value < 1_000_000; value = value * 9 / 8 + 1) {
+            final int bucket = Histogram.bucket(value);
+            final long upperBound = Histogram.upperBound(bucket);
+            assertTrue(value <= upperBound, "Value " + value);
+            assertTrue(upperBound <= Math.max(value * 5 / 4, 3), "Value " + value);
+            assertTrue(upperBound >= previousUpperBound);
+            previousUpperBound = upperBound;
+        }
+        assertTrue(Histogram.bucket(Long.MAX_VALUE) < 64 * Histogram.SUB_BUCKETS);
+    }
+}
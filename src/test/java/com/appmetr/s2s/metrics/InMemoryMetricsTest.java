@@ -0,0 +1,105 @@
+package com.appmetr.s2s.metrics;
+
+import com.appmetr.s2s.AppMetr;
+import com.appmetr.s2s.events.Event;
+import com.appmetr.s2s.persister.HeapStorage;
+import org.junit.jupiter.api.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InMemoryMetricsTest {
+
+    @Test
+    void collectAppMetrMetrics() throws Exception {
+        final InMemoryMetrics metrics = new InMemoryMetrics();
+        final HeapStorage storage = new HeapStorage(HeapStorage.DEFAULT_MAX_BYTES);
+        final AtomicInteger attempts = new AtomicInteger();
+        final CountDownLatch uploaded = new CountDownLatch(2);
+
+        final AppMetr appMetr = new AppMetr("token", "url");
+        appMetr.setBatchStorage(storage);
+        appMetr.setFailedUploadTimeout(Duration.ofMillis(1));
+        appMetr.setBatchSender((uri, token, batch) -> {
+            if (attempts.incrementAndGet() == 1) {
+                return false;
+            }
+            uploaded.countDown();
+            return true;
+        });
+        appMetr.setMetrics(metrics);
+        appMetr.start();
+
+        assertEquals(0, metrics.getStorageBatches());
+        for (int i = 0; i < 10; i++) {
+            assertTrue(appMetr.track(new Event("test" + i)));
+        }
+        appMetr.flush();
+        assertTrue(appMetr.track(new Event("test")));
+        appMetr.flush();
+        assertTrue(uploaded.await(5, TimeUnit.SECONDS));
+        appMetr.stop();
+
+        assertEquals(11, metrics.getTrackCount());
+        assertTrue(metrics.getTrackMaxMillis() > 0);
+        assertEquals(2, metrics.getFlushCount());
+        assertEquals(0, metrics.getRejectedFlushCount());
+        assertEquals(2, metrics.getEncodeCount());
+        assertTrue(metrics.getCompressionRatio() > 0 && metrics.getCompressionRatio() < 1);
+        assertEquals(3, metrics.getUploadCount());
+        assertEquals(1, metrics.getFailedUploadCount());
+        assertEquals(1, metrics.getRetryCount());
+        assertEquals(0, metrics.getDropCount());
+        assertEquals(0, metrics.getStorageBatches());
+        assertEquals(0, metrics.getStorageBytes());
+    }
+
+    @Test
+    void countDrops() throws Exception {
+        final CountDownLatch dropped = new CountDownLatch(1);
+        final InMemoryMetrics metrics = new InMemoryMetrics() {
+            @Override public void dropped() {
+                super.dropped();
+                dropped.countDown();
+            }
+        };
+        final AppMetr appMetr = new AppMetr("token", "url");
+        appMetr.setBatchSender((uri, token, batch) -> false);
+        appMetr.setRetryBatchUpload(false);
+        appMetr.setFailedUploadTimeout(Duration.ofMillis(1));
+        appMetr.setMetrics(metrics);
+        appMetr.start();
+
+        appMetr.track(new Event("test"));
+        appMetr.flush();
+        assertTrue(dropped.await(5, TimeUnit.SECONDS));
+        appMetr.hardStop();
+
+        assertEquals(1, metrics.getDropCount());
+        assertEquals(0, metrics.getRetryCount());
+        assertEquals(1, metrics.getFailedUploadCount());
+    }
+
+    @Test
+    void registerMBean() throws Exception {
+        final InMemoryMetrics metrics = new InMemoryMetrics();
+        metrics.bind(new HeapStorage(HeapStorage.DEFAULT_MAX_BYTES));
+        metrics.tracked(TimeUnit.MILLISECONDS.toNanos(3));
+
+        final ObjectName objectName = metrics.registerMBean("test");
+        try {
+            assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(objectName, "TrackCount"));
+            assertEquals(3.0, (Double) ManagementFactory.getPlatformMBeanServer().getAttribute(objectName, "TrackMaxMillis"), 0.001);
+            assertEquals(0L, ManagementFactory.getPlatformMBeanServer().getAttribute(objectName, "StorageBatches"));
+        } finally {
+            metrics.unregisterMBean();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(objectName));
+    }
+}
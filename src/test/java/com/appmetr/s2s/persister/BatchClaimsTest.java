@@ -0,0 +1,112 @@
+package com.appmetr.s2s.persister;
+
+import com.appmetr.s2s.BinaryBatch;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BatchClaimsTest {
+    HeapStorage storage;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        storage = new HeapStorage(HeapStorage.DEFAULT_MAX_BYTES);
+        for (int i = 0; i < 3; i++) {
+            storage.store(Collections.emptyList(), (actions, batchId) -> new BinaryBatch(batchId, new byte[10]));
+        }
+    }
+
+    @Test
+    void claimDistinctBatches() throws Exception {
+        final BatchClaims claims = new BatchClaims(storage);
+        final Set<Long> batchIds = new HashSet<>();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(batchIds.add(claims.claim().getBatchId()));
+        }
+        assertEquals(3, claims.getClaimedBatches());
+
+        for (long batchId : batchIds) {
+            claims.complete(batchId);
+        }
+        assertTrue(storage.isEmpty());
+        assertEquals(0, claims.getClaimedBatches());
+    }
+
+    @Test
+    void claimReleasedBatchFirst() throws Exception {
+        final BatchClaims claims = new BatchClaims(storage);
+        final BatchClaims.Lease first = claims.claim();
+        claims.claim();
+        claims.release(first);
+
+        assertEquals(first.getBatchId(), claims.claim().getBatchId());
+        assertEquals(3, storage.getBatchesNumber());
+    }
+
+    @Test
+    void releaseCompletedBatch() throws Exception {
+        final BatchClaims claims = new BatchClaims(storage);
+        final BatchClaims.Lease lease = claims.claim();
+        claims.complete(lease.getBatchId());
+        claims.release(lease);
+
+        assertNotEquals(lease.getBatchId(), claims.claim().getBatchId());
+        assertEquals(2, storage.getBatchesNumber());
+    }
+
+    @Test
+    void claimExpiredBatch() throws Exception {
+        final BatchClaims claims = new BatchClaims(storage, Duration.ZERO);
+        final BatchClaims.Lease expired = claims.claim();
+        Thread.sleep(1);
+
+        final BatchClaims.Lease lease = claims.claim();
+        assertEquals(expired.getBatchId(), lease.getBatchId());
+
+        // the former holder can't return the batch claimed by another worker
+        claims.release(expired);
+        assertEquals(1, claims.getClaimedBatches());
+    }
+
+    @Test
+    void claimConcurrently() throws Exception {
+        for (int i = 0; i < 97; i++) {
+            storage.store(Collections.emptyList(), (actions, batchId) -> new BinaryBatch(batchId, new byte[10]));
+        }
+
+        final BatchClaims claims = new BatchClaims(storage);
+        final Set<Long> claimed = ConcurrentHashMap.newKeySet();
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<Integer>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(executor.submit(() -> {
+                    int number = 0;
+                    for (int j = 0; j < 25; j++) {
+                        final BatchClaims.Lease lease = claims.claim();
+                        assertTrue(claimed.add(lease.getBatchId()));
+                        claims.complete(lease.getBatchId());
+                        number++;
+                    }
+                    return number;
+                }));
+            }
+            for (Future<Integer> future : futures) {
+                assertEquals(25, future.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(100, claimed.size());
+        assertTrue(storage.isEmpty());
+    }
+}
@@ -0,0 +1,157 @@
+package com.appmetr.s2s.persister;
+
+import com.appmetr.s2s.BinaryBatch;
+import com.appmetr.s2s.events.Event;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.time.Duration.ofSeconds;
+import static org.junit.jupiter.api.Assertions.*;
+
+class BoundedHeapStorageTest {
+
+    static BatchFactory batchFactory = (actions, batchId) -> new BinaryBatch(batchId, new byte[1]);
+
+    @Test
+    void blockWithDeadline() throws InterruptedException {
+        final BoundedHeapStorage storage = new BoundedHeapStorage(1);
+        storage.setBlockTimeout(Duration.ofMillis(50));
+        assertTrue(storage.store(Collections.singleton(new Event("test1")), batchFactory));
+
+        assertTimeoutPreemptively(ofSeconds(5), () -> {
+            assertFalse(storage.store(Collections.singleton(new Event("test2")), batchFactory));
+        });
+        assertEquals(1, storage.getDroppedBatches());
+        assertEquals(1, storage.batchesQueue.size());
+    }
+
+    @Test
+    void blockUntilRemoved() throws InterruptedException {
+        final BoundedHeapStorage storage = new BoundedHeapStorage(1);
+        storage.setBlockTimeout(ofSeconds(30));
+        assertTrue(storage.store(Collections.singleton(new Event("test1")), batchFactory));
+
+        final Thread consumerThread = new Thread(() -> {
+            try {
+                storage.get();
+                storage.remove();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        consumerThread.start();
+
+        assertTimeoutPreemptively(ofSeconds(5), () -> {
+            assertTrue(storage.store(Collections.singleton(new Event("test2")), batchFactory));
+        });
+        consumerThread.join();
+        assertEquals(0, storage.getDroppedBatches());
+    }
+
+    @Test
+    void queuedProducersShareDeadline() throws InterruptedException {
+        final Duration blockTimeout = Duration.ofMillis(300);
+        final BoundedHeapStorage storage = new BoundedHeapStorage(1);
+        storage.setBlockTimeout(blockTimeout);
+        assertTrue(storage.store(Collections.singleton(new Event("test0")), batchFactory));
+
+        final AtomicInteger lateProducers = new AtomicInteger();
+        final List<Thread> producers = new ArrayList<>();
+        for (int i = 1; i <= 5; i++) {
+            final Event event = new Event("test" + i);
+            producers.add(new Thread(() -> {
+                final long start = System.nanoTime();
+                try {
+                    assertFalse(storage.store(Collections.singleton(event), batchFactory));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                // the fifth producer waits five timeouts if each one waits in turn
+                if (System.nanoTime() - start > blockTimeout.toNanos() * 3) {
+                    lateProducers.incrementAndGet();
+                }
+            }));
+        }
+        producers.forEach(Thread::start);
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        assertEquals(0, lateProducers.get());
+        assertEquals(5, storage.getDroppedBatches());
+        assertEquals(1, storage.batchesQueue.size());
+    }
+
+    @Test
+    void dropOldest() throws InterruptedException {
+        final BoundedHeapStorage storage = new BoundedHeapStorage(2, OverflowPolicy.DROP_OLDEST);
+        storage.setClock(Clock.fixed(Instant.ofEpochMilli(1), ZoneOffset.UTC));
+        for (int i = 0; i < 4; i++) {
+            assertTrue(storage.store(Collections.singleton(new Event("test" + i)), batchFactory));
+            if (i == 0) {
+                storage.get();
+            }
+        }
+
+        // the first batch is being uploaded and is kept
+        assertEquals(2, storage.getDroppedBatches());
+        final long firstBatchId = storage.get().getBatchId();
+        storage.remove();
+        assertEquals(firstBatchId + 3, storage.get().getBatchId());
+    }
+
+    @Test
+    void dropNewest() throws InterruptedException {
+        final BoundedHeapStorage storage = new BoundedHeapStorage(1, OverflowPolicy.DROP_NEWEST);
+        assertTrue(storage.store(Collections.singleton(new Event("test1")), batchFactory));
+        final long firstBatchId = storage.get().getBatchId();
+
+        assertFalse(storage.store(Collections.singleton(new Event("test2")), batchFactory));
+        assertEquals(1, storage.getDroppedBatches());
+        assertEquals(firstBatchId, storage.get().getBatchId());
+    }
+
+    @Test
+    void sampleAboveHighWatermark() throws InterruptedException {
+        final BoundedHeapStorage storage = new BoundedHeapStorage(10, OverflowPolicy.SAMPLE);
+        storage.setHighWatermark(0.5);
+        storage.setSampleRate(2);
+
+        int stored = 0;
+        for (int i = 0; i < 20; i++) {
+            if (storage.store(Collections.singleton(new Event("test" + i)), batchFactory)) {
+                stored++;
+            }
+        }
+
+        // 6 up to the watermark, then every second batch until full
+        assertEquals(10, stored);
+        assertEquals(10, storage.getDroppedBatches());
+    }
+
+    @Test
+    void backpressure() throws InterruptedException {
+        final BoundedHeapStorage storage = new BoundedHeapStorage(4, OverflowPolicy.DROP_NEWEST);
+        storage.setHighWatermark(0.5);
+        assertEquals(Backpressure.NONE, storage.getBackpressure());
+
+        for (int i = 0; i < 3; i++) {
+            storage.store(Collections.singleton(new Event("test" + i)), batchFactory);
+        }
+        assertEquals(Backpressure.HIGH, storage.getBackpressure());
+
+        storage.store(Collections.singleton(new Event("test4")), batchFactory);
+        assertEquals(Backpressure.FULL, storage.getBackpressure());
+
+        storage.remove();
+        assertEquals(Backpressure.HIGH, storage.getBackpressure());
+    }
+}
@@ -8,6 +8,7 @@ import org.junit.jupiter.api.io.TempDir;
 import org.opentest4j.AssertionFailedError;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.util.Collections;
 
@@ -96,4 +97,25 @@ class BufferedFileStorageTest {
 
         assertTrue(bufferedFileStorage.isEmpty());
     }
+
+    @Test
+    void saveThreadsKeepOrder() throws InterruptedException, IOException {
+        heapStorage = new HeapStorage(64);
+        bufferedFileStorage = new BufferedFileStorage(fileStorage, heapStorage, 4);
+        final BatchFactory idBatchFactory = (actions, batchId) -> new BinaryBatch(batchId, ByteBuffer.allocate(8).putLong(batchId).array());
+
+        for (int i = 0; i < 200; i++) {
+            assertTrue(bufferedFileStorage.store(Collections.singleton(new Event("test" + i)), idBatchFactory));
+        }
+        bufferedFileStorage.shutdown();
+        assertTrue(heapStorage.isEmpty());
+
+        for (int i = 0; i < 200; i++) {
+            final BinaryBatch binaryBatch = bufferedFileStorage.get();
+            assertEquals(i, binaryBatch.getBatchId());
+            assertEquals(i + 1, binaryBatch.getByteBuffer().getLong());
+            bufferedFileStorage.remove();
+        }
+        assertTrue(bufferedFileStorage.isEmpty());
+    }
 }
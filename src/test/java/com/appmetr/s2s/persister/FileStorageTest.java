@@ -7,7 +7,10 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.Collections;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -71,4 +74,219 @@ class FileStorageTest {
 
         assertTrue(otherStorage.isEmpty());
     }
+
+    @Test
+    void countStoredBytes() throws IOException, InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            assertTrue(fileStorage.store(Collections.singleton(new Event("test" + i)), batchFactory));
+        }
+        // 1 byte batches with 12 byte headers
+        assertEquals(39, fileStorage.getStoredBytes());
+
+        fileStorage.remove();
+        fileStorage.remove(2);
+        assertEquals(13, fileStorage.getStoredBytes());
+
+        final FileStorage otherStorage = new FileStorage(fileStorage.path);
+        assertEquals(13, otherStorage.getStoredBytes());
+        otherStorage.remove();
+        assertEquals(0, otherStorage.getStoredBytes());
+    }
+
+    @Test
+    void skipMissingAndEmptyFiles() throws IOException, InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            assertTrue(fileStorage.store(Collections.singleton(new Event("test" + i)), batchFactory));
+        }
+
+        Files.delete(fileStorage.batchFilePath(0L, FileStorage.BATCH_FILE_NAME_PREFIX));
+        Files.write(fileStorage.batchFilePath(1L, FileStorage.BATCH_FILE_NAME_PREFIX), new byte[0]);
+
+        final BinaryBatch binaryBatch = fileStorage.get();
+        assertEquals(2, binaryBatch.getBatchId());
+        assertArrayEquals(new byte[1], binaryBatch.getBytes());
+    }
+
+    @Test
+    void groupCommit() throws IOException, InterruptedException {
+        fileStorage.setDurabilityPolicy(DurabilityPolicy.groupCommit());
+
+        assertTrue(fileStorage.store(Collections.singleton(new Event("test0")), batchFactory));
+        assertTrue(fileStorage.store(Collections.singleton(new Event("test1")), batchFactory));
+        assertEquals(2, fileStorage.getFsyncStats().getFsyncs());
+
+        fileStorage.remove();
+        fileStorage.shutdown();
+        assertEquals(2, fileStorage.getFsyncStats().getFsyncs());
+        assertEquals(1, fileStorage.get().getBatchId());
+    }
+
+    @Test
+    void syncFailedFilesAgain() throws IOException, InterruptedException {
+        fileStorage.setDurabilityPolicy(DurabilityPolicy.everyBatches(10));
+
+        assertTrue(fileStorage.store(Collections.singleton(new Event("test0")), batchFactory));
+        assertTrue(fileStorage.store(Collections.singleton(new Event("test1")), batchFactory));
+        final Path failingFile = fileStorage.unsyncedFiles.get(0);
+        final Path unforcedFile = fileStorage.unsyncedFiles.get(1);
+        // a directory can't be opened for writing
+        Files.delete(failingFile);
+        Files.createDirectory(failingFile);
+
+        assertThrows(IOException.class, () -> fileStorage.sync());
+        assertEquals(Arrays.asList(failingFile, unforcedFile), fileStorage.unsyncedFiles);
+
+        Files.delete(failingFile);
+        fileStorage.sync();
+        assertTrue(fileStorage.unsyncedFiles.isEmpty());
+    }
+
+    @Test
+    void getAfterAndRemoveById() throws IOException, InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            assertTrue(fileStorage.store(Collections.singleton(new Event("test" + i)), batchFactory));
+        }
+
+        assertEquals(0, fileStorage.get(Long.MIN_VALUE).getBatchId());
+        assertEquals(2, fileStorage.get(1).getBatchId());
+
+        fileStorage.remove(1);
+        fileStorage.remove(1);
+        assertEquals(2, fileStorage.get(0).getBatchId());
+
+        fileStorage.remove(2);
+        assertEquals(0, fileStorage.get().getBatchId());
+        fileStorage.remove(0);
+        assertTrue(fileStorage.isEmpty());
+
+        final FileStorage otherStorage = new FileStorage(fileStorage.path);
+        assertTrue(otherStorage.isEmpty());
+    }
+
+    @Test
+    void quarantineTornBatchOnRestart() throws IOException, InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            assertTrue(fileStorage.store(Collections.singleton(new Event("test" + i)), batchFactory));
+        }
+
+        final Path tornFile = fileStorage.batchFilePath(2L, FileStorage.BATCH_FILE_NAME_PREFIX);
+        Files.write(tornFile, Arrays.copyOf(Files.readAllBytes(tornFile), FileStorage.BATCH_HEADER_BYTES));
+
+        final FileStorage otherStorage = new FileStorage(fileStorage.path);
+        assertEquals(1, otherStorage.getQuarantinedBatches());
+        assertTrue(Files.notExists(tornFile));
+        assertTrue(Files.exists(fileStorage.path.resolve(FileStorage.QUARANTINE_DIRECTORY_NAME).resolve(tornFile.getFileName())));
+
+        otherStorage.remove();
+        otherStorage.remove();
+        assertTrue(otherStorage.isEmpty());
+        assertTrue(otherStorage.store(Collections.singleton(new Event("test3")), batchFactory));
+        assertEquals(3, otherStorage.get().getBatchId());
+    }
+
+    @Test
+    void quarantineCorruptedBatchOnRead() throws IOException, InterruptedException {
+        for (int i = 0; i < 2; i++) {
+            assertTrue(fileStorage.store(Collections.singleton(new Event("test" + i)), batchFactory));
+        }
+
+        final Path corruptedFile = fileStorage.batchFilePath(0L, FileStorage.BATCH_FILE_NAME_PREFIX);
+        final byte[] bytes = Files.readAllBytes(corruptedFile);
+        bytes[bytes.length - 1] ^= 1;
+        Files.write(corruptedFile, bytes);
+
+        assertEquals(1, fileStorage.get().getBatchId());
+        assertEquals(1, fileStorage.getQuarantinedBatches());
+    }
+
+    @Test
+    void readLegacyBatchWithoutHeader() throws IOException, InterruptedException {
+        // a directory written by a previous version has no first header batch id file
+        final Path legacyPath = Files.createDirectory(fileStorage.path.resolve("legacy"));
+        Files.write(legacyPath.resolve(FileStorage.BATCH_FILE_NAME_PREFIX + String.format(FileStorage.DIGITAL_FORMAT, 0)), new byte[]{1, 2, 3});
+
+        final FileStorage legacyStorage = new FileStorage(legacyPath);
+        assertTrue(legacyStorage.store(Collections.singleton(new Event("test1")), batchFactory));
+
+        final FileStorage otherStorage = new FileStorage(legacyPath);
+        assertArrayEquals(new byte[]{1, 2, 3}, otherStorage.get().getBytes());
+        otherStorage.remove();
+        assertEquals(1, otherStorage.get().getBatchId());
+        assertEquals(0, otherStorage.getQuarantinedBatches());
+    }
+
+    @Test
+    void quarantineBatchWithoutHeaderAfterFormatSwitch() throws IOException, InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            assertTrue(fileStorage.store(Collections.singleton(new Event("test" + i)), batchFactory));
+        }
+        // zero-filled prefix left by a crash and a file torn within the header
+        Files.write(fileStorage.batchFilePath(1L, FileStorage.BATCH_FILE_NAME_PREFIX), new byte[FileStorage.BATCH_HEADER_BYTES + 1]);
+        Files.write(fileStorage.batchFilePath(2L, FileStorage.BATCH_FILE_NAME_PREFIX), new byte[]{0x41, 0x42});
+
+        final FileStorage otherStorage = new FileStorage(fileStorage.path);
+        assertEquals(2, otherStorage.getQuarantinedBatches());
+        assertEquals(0, otherStorage.get().getBatchId());
+        otherStorage.remove();
+        assertTrue(otherStorage.isEmpty());
+    }
+
+    @Test
+    void restoreLastBatchId() throws IOException, InterruptedException {
+        assertTrue(fileStorage.store(Collections.singleton(new Event("test0")), batchFactory));
+        final Path lastBatchIdFile = fileStorage.path.resolve(FileStorage.LAST_BATCH_ID_FILE_NAME);
+
+        Files.write(lastBatchIdFile, Collections.singleton("12345678901"));
+        assertEquals(12345678901L, new FileStorage(fileStorage.path).lastBatchId);
+
+        Files.write(lastBatchIdFile, Collections.singleton("garbage"));
+        assertEquals(1, new FileStorage(fileStorage.path).lastBatchId);
+
+        Files.delete(lastBatchIdFile);
+        assertEquals(1, new FileStorage(fileStorage.path).lastBatchId);
+    }
+
+    @Test
+    void keepWriteErrorWhenCommitFails(@TempDir Path path) throws IOException {
+        final FileStorage storage = new FileStorage(path) {
+            @Override protected void updateLastBatchId() throws IOException {
+                throw new IOException("commit");
+            }
+        };
+        final BinaryBatch brokenBatch = new BinaryBatch(0, new byte[1]) {
+            @Override public ByteBuffer getByteBuffer() {
+                throw new IllegalStateException("write");
+            }
+        };
+
+        final IllegalStateException e = assertThrows(IllegalStateException.class, () -> storage.store(storage.reserveBatchId(), brokenBatch));
+        assertEquals("write", e.getMessage());
+        assertEquals("commit", e.getSuppressed()[0].getMessage());
+    }
+
+    @Test
+    void commitReservedBatchesInOrder() throws IOException, InterruptedException {
+        final long batchId0 = fileStorage.reserveBatchId();
+        final long batchId1 = fileStorage.reserveBatchId();
+        final long batchId2 = fileStorage.reserveBatchId();
+        final long batchId3 = fileStorage.reserveBatchId();
+
+        assertTrue(fileStorage.store(batchId3, new BinaryBatch(batchId3, new byte[]{3})));
+        fileStorage.commit(batchId2, null, -1);
+        assertTrue(fileStorage.store(batchId1, new BinaryBatch(batchId1, new byte[]{1})));
+        assertTrue(fileStorage.isEmpty());
+        assertEquals(0, fileStorage.getStoredBytes());
+
+        assertTrue(fileStorage.store(batchId0, new BinaryBatch(batchId0, new byte[]{0})));
+        assertEquals(39, fileStorage.getStoredBytes());
+        assertArrayEquals(new byte[]{0}, fileStorage.get().getBytes());
+        fileStorage.remove();
+        assertArrayEquals(new byte[]{1}, fileStorage.get().getBytes());
+        fileStorage.remove();
+        assertArrayEquals(new byte[]{3}, fileStorage.get().getBytes());
+        fileStorage.remove();
+        assertTrue(fileStorage.isEmpty());
+
+        assertEquals(4, new FileStorage(fileStorage.path).lastBatchId);
+    }
 }
@@ -0,0 +1,124 @@
+package com.appmetr.s2s.persister;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FsyncSchedulerTest {
+
+    AtomicInteger syncs = new AtomicInteger();
+
+    @Test
+    void none() throws IOException {
+        final FsyncScheduler scheduler = new FsyncScheduler(DurabilityPolicy.NONE, syncs::incrementAndGet, "test");
+
+        scheduler.afterWrite(scheduler.written());
+        scheduler.shutdown();
+
+        assertEquals(0, syncs.get());
+        assertEquals(0, scheduler.getStats().getFsyncs());
+    }
+
+    @Test
+    void everyBatches() throws IOException {
+        final FsyncScheduler scheduler = new FsyncScheduler(DurabilityPolicy.everyBatches(3), syncs::incrementAndGet, "test");
+
+        for (int i = 0; i < 5; i++) {
+            scheduler.afterWrite(scheduler.written());
+            assertEquals(i < 2 ? 0 : 1, syncs.get());
+        }
+
+        scheduler.shutdown();
+        assertEquals(2, syncs.get());
+        assertEquals(2, scheduler.getStats().getFsyncs());
+        assertEquals(5, scheduler.getStats().getSyncedBatches());
+    }
+
+    @Test
+    void periodic() throws Exception {
+        final FsyncScheduler scheduler = new FsyncScheduler(DurabilityPolicy.periodic(Duration.ofMillis(10)), syncs::incrementAndGet, "test");
+
+        scheduler.afterWrite(scheduler.written());
+        assertEquals(0, syncs.get());
+
+        for (int i = 0; i < 100 && syncs.get() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, syncs.get());
+
+        Thread.sleep(50);
+        assertEquals(1, syncs.get(), "Nothing new to sync");
+
+        scheduler.shutdown();
+    }
+
+    @Test
+    void groupCommit() throws Exception {
+        final CountDownLatch firstSync = new CountDownLatch(1);
+        final FsyncScheduler scheduler = new FsyncScheduler(DurabilityPolicy.groupCommit(), () -> {
+            syncs.incrementAndGet();
+            try {
+                firstSync.await();
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        }, "test");
+
+        final List<Thread> threads = new ArrayList<>();
+        final AtomicInteger committed = new AtomicInteger();
+        for (int i = 0; i < 8; i++) {
+            final Thread thread = new Thread(() -> {
+                try {
+                    scheduler.afterWrite(scheduler.written());
+                    committed.incrementAndGet();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        Thread.sleep(50);
+        assertEquals(0, committed.get());
+        firstSync.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(8, committed.get());
+        assertTrue(syncs.get() <= 2, "Stores waiting for an fsync share the next one: " + syncs.get());
+        assertEquals(8, scheduler.getStats().getSyncedBatches());
+        assertTrue(scheduler.getStats().getMaxTime().toMillis() >= 20);
+    }
+
+    @Test
+    void syncFailure() throws IOException {
+        final FsyncScheduler scheduler = new FsyncScheduler(DurabilityPolicy.groupCommit(), () -> {
+            if (syncs.incrementAndGet() == 1) {
+                throw new IOException("test");
+            }
+        }, "test");
+
+        final long sequence = scheduler.written();
+        assertThrows(IOException.class, () -> scheduler.afterWrite(sequence));
+        assertEquals(0, scheduler.getStats().getFsyncs());
+
+        scheduler.afterWrite(sequence);
+        assertEquals(1, scheduler.getStats().getFsyncs());
+    }
+
+    @Test
+    void policyValidation() {
+        assertThrows(IllegalArgumentException.class, () -> DurabilityPolicy.everyBatches(0));
+        assertThrows(IllegalArgumentException.class, () -> DurabilityPolicy.periodic(Duration.ZERO));
+    }
+}
@@ -2,7 +2,9 @@ package com.appmetr.s2s.persister;
 
 import com.appmetr.s2s.BinaryBatch;
 import com.appmetr.s2s.SerializationUtils;
+import com.appmetr.s2s.events.Action;
 import com.appmetr.s2s.events.AttachProperties;
+import com.appmetr.s2s.events.Event;
 import com.appmetr.s2s.events.Payment;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
@@ -12,12 +14,13 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.zip.Inflater;
 import java.util.zip.InflaterOutputStream;
 
-import static org.junit.jupiter.api.Assertions.assertEquals;
-import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.*;
 
 public class GzippedJsonBatchFactoryTest {
 
@@ -45,6 +48,35 @@ public class GzippedJsonBatchFactoryTest {
         assertEquals(2, events.get(0).get("properties").get("$level").asInt());
     }
 
+    @Test
+    void createPreEncodedBatch() throws Exception {
+        final List<Action> actions = Arrays.asList(
+                new AttachProperties().setProperties(new HashMap<String, Object>() {{
+                    put("a",5);
+                    put("$level",2);
+                }}),
+                new Payment("order1", "trans1", "proc1", "USD", "123"),
+                new Event("test\"quoted\""));
+
+        final byte[] encodedActions = GzippedJsonBatchFactory.instance.encodeActions(actions);
+        final BinaryBatch batch = GzippedJsonBatchFactory.instance.createBatch(encodedActions, 7, "s\"1");
+
+        assertEquals(decompress(GzippedJsonBatchFactory.instance.createBatch(actions, 7, "s\"1").getBytes()),
+                decompress(batch.getBytes()));
+        assertEquals(7, batch.getBatchId());
+    }
+
+    @Test
+    void createPreEncodedBatchWithoutActions() throws Exception {
+        final byte[] encodedActions = GzippedJsonBatchFactory.instance.encodeActions(Collections.emptyList());
+        final BinaryBatch batch = GzippedJsonBatchFactory.instance.createBatch(encodedActions, 1, null);
+
+        final JsonNode jsonNode = decompress(batch.getBytes());
+        assertEquals(1, jsonNode.get("batchId").asLong());
+        assertFalse(jsonNode.has("serverId"));
+        assertEquals(0, jsonNode.get("batch").size());
+    }
+
     public static JsonNode decompress(byte[] compressedBody) throws IOException {
         ByteArrayOutputStream inflatedByteStream = new ByteArrayOutputStream();
         Inflater inflater = new Inflater(true);
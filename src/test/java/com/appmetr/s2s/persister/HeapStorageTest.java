@@ -12,6 +12,7 @@ import java.time.ZoneOffset;
 import java.util.Collections;
 
 import static java.time.Duration.ofMillis;
+import static java.time.Duration.ofSeconds;
 import static org.junit.jupiter.api.Assertions.*;
 
 class HeapStorageTest {
@@ -34,6 +35,33 @@ class HeapStorageTest {
         assertEquals(1, heapStorage.batchesQueue.size());
     }
 
+    @Test
+    void getAfterAndRemoveById() throws InterruptedException {
+        final HeapStorage storage = new HeapStorage(2);
+        storage.setClock(Clock.fixed(Instant.ofEpochMilli(1), ZoneOffset.UTC));
+        assertTrue(storage.store(Collections.singleton(new Event("test1")), batchFactory));
+        assertTrue(storage.store(Collections.singleton(new Event("test2")), batchFactory));
+
+        assertEquals(1, storage.get(Long.MIN_VALUE).getBatchId());
+        assertEquals(2, storage.get(1).getBatchId());
+
+        final Thread producerThread = new Thread(() -> {
+            try {
+                storage.store(Collections.singleton(new Event("test3")), batchFactory);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        producerThread.start();
+
+        storage.remove(2);
+        assertEquals(3, storage.get(2).getBatchId());
+        producerThread.join();
+
+        assertEquals(1, storage.get().getBatchId());
+        assertEquals(2, storage.batchesQueue.size());
+    }
+
     @Test
     void storeAndPeekConcurrently() throws InterruptedException {
         Throwable[] throwables = new Throwable[2];
@@ -79,4 +107,41 @@ class HeapStorageTest {
 
         assertTrue(heapStorage.isEmpty());
     }
+
+    @Test
+    void severalProducersBlockAndWakeUp() {
+        final HeapStorage storage = new HeapStorage(4);
+        final int producers = 4;
+        final int batchesPerProducer = 500;
+
+        assertTimeoutPreemptively(ofSeconds(20), () -> {
+            final Thread[] producerThreads = new Thread[producers];
+            for (int i = 0; i < producers; i++) {
+                producerThreads[i] = new Thread(() -> {
+                    try {
+                        for (int j = 0; j < batchesPerProducer; j++) {
+                            assertTrue(storage.store(Collections.singleton(new Event("test")), batchFactory));
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+                producerThreads[i].start();
+            }
+
+            long previousBatchId = Long.MIN_VALUE;
+            for (int i = 0; i < producers * batchesPerProducer; i++) {
+                final BinaryBatch binaryBatch = storage.get();
+                assertTrue(binaryBatch.getBatchId() > previousBatchId);
+                previousBatchId = binaryBatch.getBatchId();
+                storage.remove();
+            }
+
+            for (Thread producerThread : producerThreads) {
+                producerThread.join();
+            }
+            assertTrue(storage.isEmpty());
+            assertEquals(Backpressure.NONE, storage.getBackpressure());
+        });
+    }
 }
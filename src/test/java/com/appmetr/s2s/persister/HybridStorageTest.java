@@ -0,0 +1,224 @@
+package com.appmetr.s2s.persister;
+
+import com.appmetr.s2s.BinaryBatch;
+import com.appmetr.s2s.events.Event;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static java.time.Duration.ofSeconds;
+import static org.junit.jupiter.api.Assertions.*;
+
+class HybridStorageTest {
+
+    static BatchFactory batchFactory = (actions, batchId) -> new BinaryBatch(batchId, new byte[]{(byte) batchId, 1, 2, 3});
+
+    Path path;
+    SegmentedLogStorage logStorage;
+    HybridStorage storage;
+
+    @BeforeEach
+    void setUp(@TempDir Path path) throws IOException {
+        this.path = path;
+        logStorage = new SegmentedLogStorage(path, 60);
+        // 3 batches of 4 bytes fit into heap
+        storage = new HybridStorage(logStorage, 12);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        storage.close();
+    }
+
+    @Test
+    void keepInHeapWhileFits() throws IOException, InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            assertTrue(storage.store(Collections.singleton(new Event("test" + i)), batchFactory));
+            assertEquals(i, storage.get().getBatchId());
+            storage.remove();
+        }
+
+        assertTrue(storage.isEmpty());
+        assertEquals(0, storage.getSpilledBatches());
+        assertEquals(0, logStorage.getSegmentsNumber());
+    }
+
+    @Test
+    void spillOldestAndReadInOrder() throws IOException, InterruptedException {
+        for (int i = 0; i < 5; i++) {
+            assertTrue(storage.store(Collections.singleton(new Event("test" + i)), batchFactory));
+        }
+
+        assertEquals(2, storage.getSpilledBatches());
+        assertEquals(12, storage.getHeapBytes());
+
+        assertEquals(1, storage.get(0).getBatchId());
+        assertEquals(2, storage.get(1).getBatchId());
+        storage.remove(1);
+
+        for (int i : new int[]{0, 2, 3, 4}) {
+            final BinaryBatch binaryBatch = storage.get();
+            assertEquals(i, binaryBatch.getBatchId());
+            assertArrayEquals(new byte[]{(byte) i, 1, 2, 3}, binaryBatch.getBytes());
+            storage.remove();
+        }
+        assertTrue(storage.isEmpty());
+    }
+
+    @Test
+    void spillReturnedBatchWithoutRelease() throws IOException, InterruptedException {
+        final BinaryBatch[] releasedBatches = new BinaryBatch[1];
+        final BatchFactory trackingBatchFactory = (actions, batchId) -> new BinaryBatch(batchId, new byte[4]) {
+            @Override public void release() {
+                releasedBatches[0] = this;
+            }
+        };
+
+        storage.store(Collections.emptyList(), trackingBatchFactory);
+        final BinaryBatch binaryBatch = storage.get();
+        for (int i = 0; i < 3; i++) {
+            storage.store(Collections.emptyList(), trackingBatchFactory);
+        }
+
+        assertEquals(1, storage.getSpilledBatches());
+        assertNull(releasedBatches[0]);
+
+        storage.remove();
+        assertEquals(1, storage.get().getBatchId());
+        assertNotNull(binaryBatch.getBytes());
+    }
+
+    @Test
+    void spillOnShutdownAndRestore() throws IOException, InterruptedException {
+        for (int i = 0; i < 2; i++) {
+            assertTrue(storage.store(Collections.singleton(new Event("test" + i)), batchFactory));
+        }
+
+        storage.shutdown();
+        assertEquals(2, storage.getSpilledBatches());
+        assertTrue(storage.store(Collections.singleton(new Event("test2")), batchFactory));
+        storage.close();
+
+        storage = new HybridStorage(new SegmentedLogStorage(path, 60), 12);
+        assertTrue(storage.store(Collections.singleton(new Event("test3")), batchFactory));
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i, storage.get().getBatchId());
+            storage.remove();
+        }
+        assertTrue(storage.isEmpty());
+    }
+
+    @Test
+    void storeLargeBatchToLog() throws IOException, InterruptedException {
+        storage.store(Collections.emptyList(), batchFactory);
+        storage.store(Collections.emptyList(), (actions, batchId) -> new BinaryBatch(batchId, new byte[13]));
+
+        assertEquals(2, storage.getSpilledBatches());
+        assertEquals(0, storage.getHeapBytes());
+        assertEquals(0, storage.get().getBatchId());
+        assertEquals(13, storage.get(0).getSize());
+    }
+
+    @Test
+    void keepSpillingBatchesAndReleaseNewOneOnFailure() throws IOException, InterruptedException {
+        storage = new HybridStorage(new SegmentedLogStorage(path, 60) {
+            @Override protected boolean store(BinaryBatch binaryBatch) throws IOException {
+                throw new IOException("test");
+            }
+        }, 12);
+        final boolean[] released = new boolean[1];
+        for (int i = 0; i < 3; i++) {
+            storage.store(Collections.emptyList(), batchFactory);
+        }
+
+        assertThrows(IOException.class, () -> storage.store(Collections.emptyList(),
+                (actions, batchId) -> new BinaryBatch(batchId, new byte[4]) {
+                    @Override public void release() {
+                        released[0] = true;
+                    }
+                }));
+
+        assertTrue(released[0]);
+        assertEquals(0, storage.getSpilledBatches());
+        assertEquals(3, storage.getBatchesNumber());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, storage.get().getBatchId());
+            storage.remove();
+        }
+        assertTrue(storage.isEmpty());
+    }
+
+    @Test
+    void readWhileSpilling() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch written = new CountDownLatch(1);
+        storage = new HybridStorage(new SegmentedLogStorage(path, 60) {
+            @Override protected boolean store(BinaryBatch binaryBatch) throws IOException {
+                writing.countDown();
+                try {
+                    written.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return super.store(binaryBatch);
+            }
+        }, 4);
+        storage.store(Collections.emptyList(), batchFactory);
+
+        final CompletableFuture<Void> spilling = CompletableFuture.runAsync(() -> {
+            try {
+                storage.store(Collections.emptyList(), batchFactory);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+
+        // the batch being written to the log is read without waiting for the write
+        assertTimeoutPreemptively(ofSeconds(5), () -> {
+            assertEquals(0, storage.get().getBatchId());
+            assertEquals(1, storage.get(0).getBatchId());
+            assertEquals(2, storage.getBatchesNumber());
+            storage.remove(0);
+        });
+
+        written.countDown();
+        spilling.get(5, TimeUnit.SECONDS);
+        assertEquals(1, storage.getSpilledBatches());
+        assertEquals(1, storage.get().getBatchId());
+        storage.remove();
+        assertTrue(storage.isEmpty());
+    }
+
+    @Test
+    void spillAfterInterrupt() throws IOException, InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            assertTrue(storage.store(Collections.singleton(new Event("test" + i)), batchFactory));
+        }
+
+        Thread.currentThread().interrupt();
+        assertTrue(storage.store(Collections.singleton(new Event("test3")), batchFactory));
+        assertTrue(Thread.interrupted());
+        assertEquals(1, storage.getSpilledBatches());
+
+        Thread.currentThread().interrupt();
+        assertEquals(0, storage.get().getBatchId());
+        assertTrue(Thread.interrupted());
+
+        assertTrue(storage.store(Collections.singleton(new Event("test4")), batchFactory));
+        assertEquals(2, storage.getSpilledBatches());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, storage.get().getBatchId());
+            storage.remove();
+        }
+        assertTrue(storage.isEmpty());
+    }
+}
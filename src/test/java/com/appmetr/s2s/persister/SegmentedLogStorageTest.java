@@ -0,0 +1,324 @@
+package com.appmetr.s2s.persister;
+
+import com.appmetr.s2s.BinaryBatch;
+import com.appmetr.s2s.events.Event;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SegmentedLogStorageTest {
+
+    static BatchFactory batchFactory = (actions, batchId) -> new BinaryBatch(batchId, new byte[]{(byte) batchId, 1, 2, 3});
+
+    Path path;
+    SegmentedLogStorage storage;
+
+    @BeforeEach
+    void setUp(@TempDir Path path) throws IOException {
+        this.path = path;
+        // 3 records of 20 bytes per segment
+        storage = new SegmentedLogStorage(path, 60);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        storage.close();
+    }
+
+    @Test
+    void storeAndPeekConcurrently() throws IOException, InterruptedException {
+        final Thread consumerThread = new Thread(() -> {
+            try {
+                final BinaryBatch binaryBatch1 = storage.get();
+                assertEquals(0, binaryBatch1.getBatchId());
+                storage.remove();
+
+                final BinaryBatch binaryBatch2 = storage.get();
+                assertEquals(1, binaryBatch2.getBatchId());
+                assertArrayEquals(new byte[]{1, 1, 2, 3}, binaryBatch2.getBytes());
+                storage.remove();
+            } catch (Throwable e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        Throwable[] throwables = new Throwable[1];
+        consumerThread.setUncaughtExceptionHandler((t, e) -> throwables[0] = e);
+        consumerThread.start();
+
+        assertTrue(storage.store(Collections.singleton(new Event("test0")), batchFactory));
+        assertTrue(storage.store(Collections.singleton(new Event("test1")), batchFactory));
+
+        consumerThread.join();
+        if (throwables[0] != null) {
+            fail(throwables[0]);
+        }
+
+        assertTrue(storage.isEmpty());
+    }
+
+    @Test
+    void restore() throws IOException, InterruptedException {
+        store(5);
+        storage.get();
+        storage.remove();
+        storage.close();
+
+        storage = new SegmentedLogStorage(path, 60);
+        for (int i = 1; i < 5; i++) {
+            final BinaryBatch binaryBatch = storage.get();
+            assertEquals(i, binaryBatch.getBatchId());
+            assertArrayEquals(new byte[]{(byte) i, 1, 2, 3}, binaryBatch.getBytes());
+            storage.remove();
+        }
+        assertTrue(storage.isEmpty());
+
+        store(1);
+        assertEquals(5, storage.get().getBatchId());
+    }
+
+    @Test
+    void restoreEmpty() throws IOException, InterruptedException {
+        store(2);
+        storage.remove();
+        storage.remove();
+        storage.close();
+
+        storage = new SegmentedLogStorage(path, 60);
+        assertTrue(storage.isEmpty());
+
+        store(1);
+        assertEquals(2, storage.get().getBatchId());
+    }
+
+    @Test
+    void deleteConsumedSegments() throws IOException {
+        store(7);
+        assertEquals(3, storage.getSegmentsNumber());
+
+        for (int i = 0; i < 3; i++) {
+            storage.remove();
+        }
+        assertEquals(2, storage.getSegmentsNumber());
+
+        for (int i = 0; i < 4; i++) {
+            storage.remove();
+        }
+        assertEquals(1, storage.getSegmentsNumber());
+        assertTrue(storage.isEmpty());
+    }
+
+    @Test
+    void largeBatchSegment() throws IOException, InterruptedException {
+        store(1);
+        assertTrue(storage.store(Collections.emptyList(), (actions, batchId) -> new BinaryBatch(batchId, new byte[100])));
+        store(1);
+
+        assertEquals(3, storage.getSegmentsNumber());
+        storage.remove();
+        assertEquals(100, storage.get().getSize());
+    }
+
+    @Test
+    void getAfterAndRemoveById() throws IOException, InterruptedException {
+        store(5);
+
+        assertEquals(0, storage.get(Long.MIN_VALUE).getBatchId());
+        assertEquals(2, storage.get(1).getBatchId());
+
+        storage.remove(1);
+        storage.remove(1);
+        assertEquals(2, storage.get(0).getBatchId());
+
+        storage.remove(2);
+        storage.remove(0);
+        assertEquals(3, storage.get().getBatchId());
+        storage.close();
+
+        storage = new SegmentedLogStorage(path, 60);
+        assertEquals(3, storage.get().getBatchId());
+        storage.remove(4);
+        storage.remove(3);
+        assertTrue(storage.isEmpty());
+    }
+
+    @Test
+    void skipCorruptedBatch() throws IOException, InterruptedException {
+        store(3);
+        storage.close();
+
+        try (FileChannel channel = FileChannel.open(storage.segmentFilePath(0), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{42}), SegmentedLogStorage.RECORD_HEADER_BYTES + 20 + 1);
+        }
+
+        storage = new SegmentedLogStorage(path, 60);
+        assertEquals(0, storage.get().getBatchId());
+        storage.remove();
+        assertEquals(2, storage.get().getBatchId());
+    }
+
+    @Test
+    void ignoreTornRecord() throws IOException, InterruptedException {
+        store(2);
+        storage.close();
+
+        try (FileChannel channel = FileChannel.open(storage.segmentFilePath(0), StandardOpenOption.WRITE)) {
+            channel.write((ByteBuffer) ByteBuffer.allocate(4).putInt(1000).flip(), 40);
+        }
+
+        storage = new SegmentedLogStorage(path, 60);
+        assertEquals(0, storage.get().getBatchId());
+        storage.remove();
+        assertEquals(1, storage.get().getBatchId());
+        storage.remove();
+        assertTrue(storage.isEmpty());
+
+        store(1);
+        assertEquals(2, storage.get().getBatchId());
+    }
+
+    @Test
+    void writeAfterFailedWrite() throws IOException, InterruptedException {
+        store(1);
+        // a write failed after a partial record
+        storage.writeSegment.channel.position(storage.writeSegment.size + 7);
+        store(1);
+        storage.close();
+
+        storage = new SegmentedLogStorage(path, 60);
+        assertEquals(0, storage.get().getBatchId());
+        storage.remove();
+        assertArrayEquals(new byte[]{1, 1, 2, 3}, storage.get().getBytes());
+        storage.remove();
+        assertTrue(storage.isEmpty());
+    }
+
+    @Test
+    void memoryMappedReads() throws IOException, InterruptedException {
+        storage.setMemoryMapped(true);
+        store(4);
+
+        for (int i = 0; i < 4; i++) {
+            final BinaryBatch binaryBatch = storage.get();
+            assertEquals(i, binaryBatch.getBatchId());
+            assertFalse(binaryBatch.hasArray());
+            assertEquals(4, binaryBatch.getSize());
+            assertEquals(ByteBuffer.wrap(new byte[]{(byte) i, 1, 2, 3}), binaryBatch.getByteBuffer());
+            assertArrayEquals(new byte[]{(byte) i, 1, 2, 3}, binaryBatch.getBytes());
+            storage.remove();
+            binaryBatch.release();
+        }
+
+        store(1);
+        assertEquals(4, storage.get().getBatchId());
+    }
+
+    @Test
+    void memoryMappedSkipCorruptedBatch() throws IOException, InterruptedException {
+        store(3);
+        storage.close();
+
+        try (FileChannel channel = FileChannel.open(storage.segmentFilePath(0), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{42}), SegmentedLogStorage.RECORD_HEADER_BYTES + 20 + 1);
+        }
+
+        storage = new SegmentedLogStorage(path, 60);
+        storage.setMemoryMapped(true);
+        assertEquals(0, storage.get().getBatchId());
+        storage.remove();
+        assertEquals(2, storage.get().getBatchId());
+    }
+
+    @Test
+    void everyBatchesDurability() throws IOException, InterruptedException {
+        storage.setDurabilityPolicy(DurabilityPolicy.everyBatches(2));
+
+        store(3);
+        assertEquals(1, storage.getFsyncStats().getFsyncs());
+        assertEquals(2, storage.getFsyncStats().getSyncedBatches());
+
+        storage.shutdown();
+        assertEquals(2, storage.getFsyncStats().getFsyncs());
+        assertEquals(3, storage.getFsyncStats().getSyncedBatches());
+        assertEquals(0, storage.get().getBatchId());
+    }
+
+    @Test
+    void syncFailedSegmentAgain() throws IOException, InterruptedException {
+        storage.setDurabilityPolicy(DurabilityPolicy.everyBatches(10));
+        store(1);
+        final FileChannel failingChannel = Mockito.mock(FileChannel.class);
+        Mockito.doThrow(new IOException("test")).when(failingChannel).force(false);
+        final SegmentedLogStorage.Segment failingSegment = new SegmentedLogStorage.Segment(100, failingChannel, 60);
+        storage.unsyncedSegments.add(failingSegment);
+
+        assertThrows(IOException.class, () -> storage.sync());
+        assertTrue(storage.unsyncedSegments.contains(failingSegment));
+
+        storage.unsyncedSegments.remove(failingSegment);
+        storage.sync();
+        assertTrue(storage.unsyncedSegments.isEmpty());
+    }
+
+    void store(int batches) throws IOException {
+        for (int i = 0; i < batches; i++) {
+            assertTrue(storage.store(Collections.singleton(new Event("test" + i)), batchFactory));
+        }
+    }
+
+    @Test
+    void countStoredBytes() throws IOException, InterruptedException {
+        for (int i = 0; i < 4; i++) {
+            assertTrue(storage.store(Collections.singleton(new Event("test" + i)), batchFactory));
+        }
+        assertEquals(16, storage.getStoredBytes());
+
+        storage.remove(2);
+        assertEquals(12, storage.getStoredBytes());
+        storage.remove();
+        storage.remove();
+        assertEquals(4, storage.getStoredBytes());
+
+        storage.close();
+        storage = new SegmentedLogStorage(path, 60);
+        assertEquals(4, storage.getStoredBytes());
+        storage.remove();
+        assertEquals(0, storage.getStoredBytes());
+    }
+
+    @Test
+    void reopenFilesClosedByInterrupt() throws IOException, InterruptedException {
+        assertTrue(storage.store(Collections.singleton(new Event("test0")), batchFactory));
+
+        Thread.currentThread().interrupt();
+        assertEquals(0, storage.get().getBatchId());
+        assertTrue(Thread.interrupted());
+
+        Thread.currentThread().interrupt();
+        assertTrue(storage.store(Collections.singleton(new Event("test1")), batchFactory));
+        storage.remove();
+        assertTrue(Thread.interrupted());
+
+        assertArrayEquals(new byte[]{1, 1, 2, 3}, storage.get().getBytes());
+        assertTrue(storage.store(Collections.singleton(new Event("test2")), batchFactory));
+        storage.close();
+
+        storage = new SegmentedLogStorage(path, 60);
+        for (int i = 1; i < 3; i++) {
+            assertEquals(i, storage.get().getBatchId());
+            storage.remove();
+        }
+        assertTrue(storage.isEmpty());
+    }
+}
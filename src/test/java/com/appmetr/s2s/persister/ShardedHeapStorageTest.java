@@ -0,0 +1,65 @@
+package com.appmetr.s2s.persister;
+
+import com.appmetr.s2s.BinaryBatch;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardedHeapStorageTest {
+
+    static boolean store(BatchStorage storage, int bytes) throws Exception {
+        return storage.store(Collections.emptyList(), (actions, batchId) -> new BinaryBatch(batchId, new byte[bytes]));
+    }
+
+    @Test
+    void keepQuotaForOtherTenants() throws Exception {
+        final ShardedHeapStorage storage = new ShardedHeapStorage(1000);
+        final ShardedHeapStorage.Shard heavy = storage.shard("heavy");
+        final ShardedHeapStorage.Shard light = storage.shard("light");
+        assertEquals(500, storage.getTenantQuota());
+
+        // above its quota the heavy tenant stops at the high watermark
+        for (int i = 0; i < 8; i++) {
+            assertTrue(store(heavy, 100));
+        }
+        assertFalse(store(heavy, 100));
+        assertEquals(Backpressure.FULL, heavy.getBackpressure());
+        assertEquals(800, storage.getStoredBytes());
+
+        // within its quota the light tenant may fill the whole budget
+        assertTrue(store(light, 100));
+        assertTrue(store(light, 100));
+        assertFalse(store(light, 100));
+        assertEquals(1000, storage.getStoredBytes());
+        assertEquals(200, light.getStoredBytes());
+
+        heavy.remove();
+        heavy.remove();
+        heavy.remove();
+        assertEquals(700, storage.getStoredBytes());
+        assertTrue(store(light, 100));
+        assertEquals(3, light.getBatchesNumber());
+    }
+
+    @Test
+    void wakeReadersOnStore() throws Exception {
+        final ShardedHeapStorage storage = new ShardedHeapStorage(1000);
+        final ShardedHeapStorage.Shard shard = storage.shard("tenant");
+        assertFalse(storage.awaitBatches(1, TimeUnit.MILLISECONDS));
+
+        final Thread storeThread = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+                store(shard, 10);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        storeThread.start();
+        assertTrue(storage.awaitBatches(5, TimeUnit.SECONDS));
+        storeThread.join();
+    }
+}
@@ -0,0 +1,95 @@
+package com.appmetr.s2s.persister;
+
+import com.appmetr.s2s.BinaryBatch;
+import com.appmetr.s2s.events.Event;
+import org.junit.jupiter.api.Test;
+import org.opentest4j.AssertionFailedError;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Collections;
+
+import static java.time.Duration.ofMillis;
+import static java.time.Duration.ofSeconds;
+import static org.junit.jupiter.api.Assertions.*;
+
+class TwoLockHeapStorageTest {
+
+    static BatchFactory batchFactory = (actions, batchId) -> new BinaryBatch(batchId, new byte[1]);
+
+    @Test
+    void blocksForever() throws InterruptedException {
+        final TwoLockHeapStorage storage = new TwoLockHeapStorage(1);
+        assertTrue(storage.store(Collections.singleton(new Event("test1")), batchFactory));
+        assertThrows(AssertionFailedError.class, () -> assertTimeoutPreemptively(ofMillis(1), () -> {
+            storage.store(Collections.singleton(new Event("test2")), batchFactory);
+        }));
+        assertEquals(1, storage.getBatchesNumber());
+    }
+
+    @Test
+    void getAfterAndRemoveById() throws InterruptedException {
+        final TwoLockHeapStorage storage = new TwoLockHeapStorage(2);
+        storage.setClock(Clock.fixed(Instant.ofEpochMilli(1), ZoneOffset.UTC));
+        assertTrue(storage.store(Collections.singleton(new Event("test1")), batchFactory));
+        assertTrue(storage.store(Collections.singleton(new Event("test2")), batchFactory));
+
+        assertEquals(1, storage.get(Long.MIN_VALUE).getBatchId());
+        assertEquals(2, storage.get(1).getBatchId());
+
+        final Thread producerThread = new Thread(() -> {
+            try {
+                storage.store(Collections.singleton(new Event("test3")), batchFactory);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        producerThread.start();
+
+        storage.remove(2);
+        assertEquals(3, storage.get(2).getBatchId());
+        producerThread.join();
+
+        assertEquals(1, storage.get().getBatchId());
+        assertEquals(2, storage.getBatchesNumber());
+        assertEquals(2, storage.getStoredBytes());
+    }
+
+    @Test
+    void severalProducersBlockAndWakeUp() {
+        final TwoLockHeapStorage storage = new TwoLockHeapStorage(4);
+        final int producers = 4;
+        final int batchesPerProducer = 500;
+
+        assertTimeoutPreemptively(ofSeconds(20), () -> {
+            final Thread[] producerThreads = new Thread[producers];
+            for (int i = 0; i < producers; i++) {
+                producerThreads[i] = new Thread(() -> {
+                    try {
+                        for (int j = 0; j < batchesPerProducer; j++) {
+                            assertTrue(storage.store(Collections.singleton(new Event("test")), batchFactory));
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+                producerThreads[i].start();
+            }
+
+            long previousBatchId = Long.MIN_VALUE;
+            for (int i = 0; i < producers * batchesPerProducer; i++) {
+                final BinaryBatch binaryBatch = storage.get();
+                assertTrue(binaryBatch.getBatchId() > previousBatchId);
+                previousBatchId = binaryBatch.getBatchId();
+                storage.remove();
+            }
+
+            for (Thread producerThread : producerThreads) {
+                producerThread.join();
+            }
+            assertTrue(storage.isEmpty());
+            assertEquals(Backpressure.NONE, storage.getBackpressure());
+        });
+    }
+}
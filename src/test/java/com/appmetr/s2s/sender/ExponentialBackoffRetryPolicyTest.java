@@ -0,0 +1,100 @@
+package com.appmetr.s2s.sender;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExponentialBackoffRetryPolicyTest {
+
+    static SendResult unavailable = SendResult.retryable(503, null, null);
+
+    ExponentialBackoffRetryPolicy policy = new ExponentialBackoffRetryPolicy();
+
+    @BeforeEach
+    void setUp() {
+        policy.setBaseDelay(Duration.ofMillis(100));
+        policy.setMaxDelay(Duration.ofSeconds(10));
+        policy.setClock(Clock.fixed(Instant.ofEpochSecond(1000), ZoneOffset.UTC));
+    }
+
+    @Test
+    void backoffGrowsUpToMaxDelay() {
+        assertEquals(Duration.ofMillis(100), policy.backoff(1));
+        assertEquals(Duration.ofMillis(200), policy.backoff(2));
+        assertEquals(Duration.ofMillis(6400), policy.backoff(7));
+        assertEquals(Duration.ofSeconds(10), policy.backoff(8));
+        assertEquals(Duration.ofSeconds(10), policy.backoff(Integer.MAX_VALUE));
+    }
+
+    @Test
+    void fullJitter() {
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        for (int i = 0; i < 1000; i++) {
+            final long delay = policy.nextDelay(4, unavailable).toMillis();
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+
+        assertTrue(min >= 0 && min < 100, "min " + min);
+        assertTrue(max > 700 && max <= 800, "max " + max);
+    }
+
+    @Test
+    void retryAfter() {
+        assertEquals(Duration.ofSeconds(3), policy.nextDelay(1, SendResult.retryable(429, Duration.ofSeconds(3), null)));
+        assertEquals(Duration.ofSeconds(10), policy.nextDelay(1, SendResult.retryable(503, Duration.ofHours(1), null)));
+    }
+
+    @Test
+    void shouldRetry() {
+        assertTrue(policy.shouldRetry(100, unavailable));
+        assertTrue(policy.shouldRetry(1, SendResult.rejected(400, null)));
+
+        policy.setDropRejected(true);
+        assertFalse(policy.shouldRetry(1, SendResult.rejected(400, null)));
+
+        policy.setMaxAttempts(3);
+        assertTrue(policy.shouldRetry(2, unavailable));
+        assertFalse(policy.shouldRetry(3, unavailable));
+    }
+
+    @Test
+    void circuitBreaker() {
+        policy.setFailureThreshold(3);
+
+        policy.onResult(unavailable);
+        policy.onResult(unavailable);
+        assertFalse(policy.isOpen());
+        assertEquals(Duration.ZERO, policy.readPause());
+
+        policy.onResult(SendResult.retryable(503, Duration.ofSeconds(5), null));
+        assertTrue(policy.isOpen());
+        assertEquals(Duration.ofSeconds(5), policy.readPause());
+
+        policy.setClock(Clock.fixed(Instant.ofEpochSecond(1006), ZoneOffset.UTC));
+        assertEquals(Duration.ZERO, policy.readPause());
+        assertTrue(policy.isOpen());
+
+        policy.onResult(SendResult.OK);
+        assertFalse(policy.isOpen());
+    }
+
+    @Test
+    void rejectedBatchClosesCircuit() {
+        policy.setFailureThreshold(1);
+
+        policy.onResult(SendResult.retryable(503, Duration.ofSeconds(5), null));
+        assertTrue(policy.isOpen());
+
+        policy.onResult(SendResult.rejected(400, null));
+        assertFalse(policy.isOpen());
+        assertEquals(Duration.ZERO, policy.readPause());
+    }
+}
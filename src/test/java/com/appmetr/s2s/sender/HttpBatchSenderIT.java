@@ -3,7 +3,9 @@ package com.appmetr.s2s.sender;
 import com.github.tomakehurst.wiremock.WireMockServer;
 import org.junit.jupiter.api.*;
 
+import java.nio.ByteBuffer;
 import java.time.Clock;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.ZoneOffset;
 
@@ -59,6 +61,25 @@ class HttpBatchSenderIT {
                 .withRequestBody(binaryEqualTo(new byte[]{1, 2})));
     }
 
+    @Test
+    void response200_directBuffer() {
+        stubFor(post(urlPathEqualTo(path)).willReturn(okJson(JSON_OK)));
+
+        final ByteBuffer directBatch = ByteBuffer.allocateDirect(40_000);
+        for (int i = 0; i < directBatch.capacity(); i++) {
+            directBatch.put((byte) i);
+        }
+        directBatch.position(3);
+
+        Assertions.assertTrue(httpBatchSender.sendBuffer(url, token, directBatch));
+        Assertions.assertEquals(3, directBatch.position());
+
+        final byte[] expected = new byte[directBatch.remaining()];
+        directBatch.duplicate().get(expected);
+        verify(postRequestedFor(urlPathEqualTo(path))
+                .withRequestBody(binaryEqualTo(expected)));
+    }
+
     @Test
     void response404() {
         stubFor(post(urlPathEqualTo(path)).willReturn(status(404)));
@@ -113,6 +134,66 @@ class HttpBatchSenderIT {
         verify(0, postRequestedFor(urlPathEqualTo(path)));
     }
 
+    @Test
+    void resultRejected() {
+        stubFor(post(urlPathEqualTo(path)).willReturn(status(400)));
+
+        final SendResult result = httpBatchSender.sendForResult(url, token, ByteBuffer.wrap(batch));
+
+        Assertions.assertEquals(SendResult.Status.REJECTED, result.getStatus());
+        Assertions.assertEquals(400, result.getStatusCode());
+    }
+
+    @Test
+    void resultForbiddenIsRetryable() {
+        stubFor(post(urlPathEqualTo(path)).willReturn(status(403)));
+
+        final SendResult result = httpBatchSender.sendForResult(url, token, ByteBuffer.wrap(batch));
+
+        Assertions.assertTrue(result.isRetryable());
+        Assertions.assertEquals(403, result.getStatusCode());
+    }
+
+    @Test
+    void resultRetryAfterSeconds() {
+        stubFor(post(urlPathEqualTo(path)).willReturn(status(503).withHeader("Retry-After", "7")));
+
+        final SendResult result = httpBatchSender.sendForResult(url, token, ByteBuffer.wrap(batch));
+
+        Assertions.assertTrue(result.isRetryable());
+        Assertions.assertEquals(503, result.getStatusCode());
+        Assertions.assertEquals(Duration.ofSeconds(7), result.getRetryAfter());
+    }
+
+    @Test
+    void resultRetryAfterDate() {
+        stubFor(post(urlPathEqualTo(path)).willReturn(status(429).withHeader("Retry-After", "Thu, 01 Jan 1970 00:01:00 GMT")));
+        httpBatchSender.setClock(Clock.fixed(Instant.ofEpochSecond(20), ZoneOffset.UTC));
+
+        final SendResult result = httpBatchSender.sendForResult(url, token, ByteBuffer.wrap(batch));
+
+        Assertions.assertTrue(result.isRetryable());
+        Assertions.assertEquals(429, result.getStatusCode());
+        Assertions.assertEquals(Duration.ofSeconds(40), result.getRetryAfter());
+    }
+
+    @Test
+    void resultRetryableError() {
+        stubFor(post(urlPathEqualTo(path)).willReturn(okJson(JSON_ERROR)));
+
+        final SendResult result = httpBatchSender.sendForResult(url, token, ByteBuffer.wrap(batch));
+
+        Assertions.assertTrue(result.isRetryable());
+        Assertions.assertNull(result.getRetryAfter());
+    }
+
+    @Test
+    void resultOk() {
+        stubFor(post(urlPathEqualTo(path)).willReturn(okJson(JSON_OK)));
+
+        Assertions.assertTrue(httpBatchSender.sendForResult(url, token, ByteBuffer.wrap(batch)).isSuccess());
+    }
+
     @Test
     void malformedUrl() {
         Assertions.assertThrows(RuntimeException.class, () -> httpBatchSender.send("mmm://test", token, batch));
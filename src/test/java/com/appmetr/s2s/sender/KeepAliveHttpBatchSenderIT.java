@@ -0,0 +1,140 @@
+package com.appmetr.s2s.sender;
+
+import com.github.tomakehurst.wiremock.http.Fault;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+
+class KeepAliveHttpBatchSenderIT extends HttpBatchSenderIT {
+
+    KeepAliveHttpBatchSender keepAliveSender = new KeepAliveHttpBatchSender();
+
+    KeepAliveHttpBatchSenderIT() {
+        httpBatchSender = keepAliveSender;
+    }
+
+    @AfterEach
+    void tearDown() {
+        keepAliveSender.close();
+    }
+
+    @Test
+    void reuseConnection() {
+        stubFor(post(urlPathEqualTo(path)).willReturn(okJson(JSON_OK)));
+
+        for (int i = 0; i < 10; i++) {
+            Assertions.assertTrue(keepAliveSender.send(url, token, new byte[]{(byte) i}));
+        }
+
+        Assertions.assertEquals(1, keepAliveSender.getOpenedConnections());
+        Assertions.assertEquals(1, keepAliveSender.getIdleConnections());
+        verify(10, postRequestedFor(urlPathEqualTo(path)));
+        verify(postRequestedFor(urlPathEqualTo(path)).withRequestBody(binaryEqualTo(new byte[]{9})));
+    }
+
+    @Test
+    void reuseConnectionAfterFailure() {
+        stubFor(post(urlPathEqualTo(path)).willReturn(status(500)));
+        Assertions.assertFalse(keepAliveSender.send(url, token, batch));
+
+        stubFor(post(urlPathEqualTo(path)).willReturn(okJson(JSON_OK)));
+        Assertions.assertTrue(keepAliveSender.send(url, token, batch));
+
+        Assertions.assertEquals(1, keepAliveSender.getOpenedConnections());
+    }
+
+    @Test
+    void evictIdleConnections() throws Exception {
+        stubFor(post(urlPathEqualTo(path)).willReturn(okJson(JSON_OK)));
+        keepAliveSender.setIdleTimeout(Duration.ofMillis(1));
+
+        Assertions.assertTrue(keepAliveSender.send(url, token, batch));
+        Thread.sleep(10);
+        keepAliveSender.evictIdleConnections();
+        Assertions.assertEquals(0, keepAliveSender.getIdleConnections());
+
+        Assertions.assertTrue(keepAliveSender.send(url, token, batch));
+        Assertions.assertEquals(2, keepAliveSender.getOpenedConnections());
+    }
+
+    @Test
+    void retryOnClosedConnection() {
+        stubFor(post(urlPathEqualTo(path)).willReturn(okJson(JSON_OK)));
+        Assertions.assertTrue(keepAliveSender.send(url, token, batch));
+
+        synchronized (keepAliveSender) {
+            keepAliveSender.idleConnections.values().forEach(connections -> connections.forEach(c -> c.close()));
+        }
+
+        Assertions.assertTrue(keepAliveSender.send(url, token, batch));
+        Assertions.assertEquals(2, keepAliveSender.getOpenedConnections());
+        verify(2, postRequestedFor(urlPathEqualTo(path)));
+    }
+
+    @Test
+    void scheduledEviction() throws Exception {
+        stubFor(post(urlPathEqualTo(path)).willReturn(okJson(JSON_OK)));
+        keepAliveSender.setIdleTimeout(Duration.ofMillis(20));
+
+        Assertions.assertTrue(keepAliveSender.send(url, token, batch));
+        for (int i = 0; i < 100 && keepAliveSender.getIdleConnections() > 0; i++) {
+            Thread.sleep(10);
+        }
+        Assertions.assertEquals(0, keepAliveSender.getIdleConnections());
+    }
+
+    @Test
+    void reuseConnectionAfterNoContent() {
+        stubFor(post(urlPathEqualTo(path)).willReturn(noContent()));
+        Assertions.assertTrue(keepAliveSender.sendForResult(url, token, ByteBuffer.wrap(batch)).isRetryable());
+
+        stubFor(post(urlPathEqualTo(path)).willReturn(okJson(JSON_OK)));
+        Assertions.assertTrue(keepAliveSender.send(url, token, batch));
+
+        Assertions.assertEquals(1, keepAliveSender.getOpenedConnections());
+    }
+
+    @Test
+    void doNotRepeatSentRequest() {
+        stubFor(post(urlPathEqualTo(path)).willReturn(okJson(JSON_OK)));
+        Assertions.assertTrue(keepAliveSender.send(url, token, batch));
+
+        stubFor(post(urlPathEqualTo(path)).willReturn(aResponse().withFault(Fault.CONNECTION_RESET_BY_PEER)));
+        Assertions.assertFalse(keepAliveSender.send(url, token, batch));
+
+        Assertions.assertEquals(1, keepAliveSender.getOpenedConnections());
+        verify(2, postRequestedFor(urlPathEqualTo(path)));
+    }
+
+    @Test
+    void concurrentUploads() throws Exception {
+        stubFor(post(urlPathEqualTo(path)).willReturn(okJson(JSON_OK).withFixedDelay(20)));
+        keepAliveSender.setMaxIdleConnections(2);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < 40; i++) {
+                results.add(executor.submit(() -> keepAliveSender.send(url, token, batch)));
+            }
+            for (Future<Boolean> result : results) {
+                Assertions.assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        Assertions.assertTrue(keepAliveSender.getOpenedConnections() < 40);
+        Assertions.assertEquals(2, keepAliveSender.getIdleConnections());
+    }
+}
@@ -0,0 +1,147 @@
+package com.appmetr.s2s.sender;
+
+import com.github.tomakehurst.wiremock.http.Fault;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+
+class NioHttpBatchSenderIT extends HttpBatchSenderIT {
+
+    NioHttpBatchSender nioSender = new NioHttpBatchSender();
+
+    NioHttpBatchSenderIT() {
+        httpBatchSender = nioSender;
+    }
+
+    @AfterEach
+    void tearDown() {
+        nioSender.close();
+    }
+
+    @Test
+    void manyInFlight() {
+        stubFor(post(urlPathEqualTo(path)).willReturn(okJson(JSON_OK).withFixedDelay(200)));
+
+        final long start = System.nanoTime();
+        final List<CompletableFuture<SendResult>> results = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            results.add(nioSender.sendAsync(url, token, ByteBuffer.wrap(new byte[]{(byte) i})));
+        }
+        for (CompletableFuture<SendResult> result : results) {
+            Assertions.assertTrue(result.join().isSuccess());
+        }
+
+        Assertions.assertTrue(System.nanoTime() - start < 20 * 200_000_000L, "Uploads should overlap");
+        verify(20, postRequestedFor(urlPathEqualTo(path)));
+        verify(postRequestedFor(urlPathEqualTo(path)).withRequestBody(binaryEqualTo(new byte[]{19})));
+    }
+
+    @Test
+    void reuseConnection() {
+        stubFor(post(urlPathEqualTo(path)).willReturn(okJson(JSON_OK)));
+
+        for (int i = 0; i < 10; i++) {
+            Assertions.assertTrue(nioSender.sendAsync(url, token, ByteBuffer.wrap(batch)).join().isSuccess());
+        }
+
+        Assertions.assertEquals(1, nioSender.getOpenedConnections());
+    }
+
+    @Test
+    void directBufferBody() {
+        stubFor(post(urlPathEqualTo(path)).willReturn(okJson(JSON_OK)));
+
+        final ByteBuffer directBatch = ByteBuffer.allocateDirect(300_000);
+        for (int i = 0; i < directBatch.capacity(); i++) {
+            directBatch.put((byte) i);
+        }
+        directBatch.flip();
+
+        Assertions.assertTrue(nioSender.sendAsync(url, token, directBatch).join().isSuccess());
+        Assertions.assertEquals(0, directBatch.position());
+
+        final byte[] expected = new byte[directBatch.remaining()];
+        directBatch.get(expected);
+        verify(postRequestedFor(urlPathEqualTo(path)).withRequestBody(binaryEqualTo(expected)));
+    }
+
+    @Test
+    void chunkedResponse() {
+        stubFor(post(urlPathEqualTo(path)).willReturn(okJson(JSON_OK).withChunkedDribbleDelay(3, 30)));
+
+        Assertions.assertTrue(nioSender.sendAsync(url, token, ByteBuffer.wrap(batch)).join().isSuccess());
+    }
+
+    @Test
+    void readTimeout() {
+        stubFor(post(urlPathEqualTo(path)).willReturn(okJson(JSON_OK).withFixedDelay(2000)));
+        nioSender.setReadTimeoutMs(200);
+
+        final SendResult result = nioSender.sendAsync(url, token, ByteBuffer.wrap(batch)).join();
+
+        Assertions.assertTrue(result.isRetryable());
+        Assertions.assertEquals(0, result.getStatusCode());
+    }
+
+    @Test
+    void closedSender() {
+        nioSender.close();
+
+        Assertions.assertThrows(IllegalStateException.class, () -> nioSender.sendAsync(url, token, ByteBuffer.wrap(batch)));
+    }
+
+    @Test
+    void resolveOnceOnCallingThread() {
+        stubFor(post(urlPathEqualTo(path)).willReturn(okJson(JSON_OK)));
+
+        Assertions.assertTrue(nioSender.sendAsync(url, token, ByteBuffer.wrap(batch)).join().isSuccess());
+        final NioHttpBatchSender.ResolvedAddress resolved = nioSender.addresses.values().iterator().next();
+        Assertions.assertTrue(nioSender.sendAsync(url, token, ByteBuffer.wrap(batch)).join().isSuccess());
+
+        Assertions.assertSame(resolved, nioSender.addresses.values().iterator().next());
+    }
+
+    @Test
+    void unknownHost() {
+        stubFor(post(urlPathEqualTo(path)).willReturn(okJson(JSON_OK)));
+
+        final SendResult result = nioSender.sendAsync("http://appmetr-test.invalid" + path, token, ByteBuffer.wrap(batch)).join();
+
+        Assertions.assertTrue(result.isRetryable());
+        Assertions.assertTrue(nioSender.sendAsync(url, token, ByteBuffer.wrap(batch)).join().isSuccess());
+    }
+
+    @Test
+    void reuseConnectionAfterNoContent() {
+        stubFor(post(urlPathEqualTo(path)).willReturn(noContent()));
+        nioSender.setReadTimeoutMs(5000);
+
+        final long start = System.nanoTime();
+        Assertions.assertTrue(nioSender.sendAsync(url, token, ByteBuffer.wrap(batch)).join().isRetryable());
+        Assertions.assertTrue(System.nanoTime() - start < 5_000_000_000L, "No content response should not wait for the body");
+
+        stubFor(post(urlPathEqualTo(path)).willReturn(okJson(JSON_OK)));
+        Assertions.assertTrue(nioSender.sendAsync(url, token, ByteBuffer.wrap(batch)).join().isSuccess());
+
+        Assertions.assertEquals(1, nioSender.getOpenedConnections());
+    }
+
+    @Test
+    void doNotRepeatSentRequest() {
+        stubFor(post(urlPathEqualTo(path)).willReturn(okJson(JSON_OK)));
+        Assertions.assertTrue(nioSender.sendAsync(url, token, ByteBuffer.wrap(batch)).join().isSuccess());
+
+        stubFor(post(urlPathEqualTo(path)).willReturn(aResponse().withFault(Fault.CONNECTION_RESET_BY_PEER)));
+        Assertions.assertTrue(nioSender.sendAsync(url, token, ByteBuffer.wrap(batch)).join().isRetryable());
+
+        Assertions.assertEquals(1, nioSender.getOpenedConnections());
+        verify(2, postRequestedFor(urlPathEqualTo(path)));
+    }
+}